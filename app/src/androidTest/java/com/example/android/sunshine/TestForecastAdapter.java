@@ -0,0 +1,139 @@
+/*
+ * Copyright (C) 2016 The Android Open Source Project
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *      http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package com.example.android.sunshine;
+
+import android.content.Context;
+import android.database.MatrixCursor;
+import android.support.test.InstrumentationRegistry;
+import android.support.test.runner.AndroidJUnit4;
+import android.support.v7.widget.RecyclerView;
+
+import com.example.android.sunshine.utilities.SunshineDateUtils;
+
+import org.junit.Before;
+import org.junit.Test;
+import org.junit.runner.RunWith;
+
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.List;
+
+import static junit.framework.Assert.assertEquals;
+
+/**
+ * Tests that {@link ForecastAdapter#swapForecast} tells the RecyclerView only about the days that
+ * were removed, inserted or changed, and which parts of them changed.
+ */
+@RunWith(AndroidJUnit4.class)
+public class TestForecastAdapter {
+
+    private static final long FIRST_DATE = 1475280000000L;
+
+    private final Context mContext = InstrumentationRegistry.getTargetContext();
+
+    private ForecastAdapter mAdapter;
+    private final List<String> mEvents = new ArrayList<>();
+
+    @Before
+    public void setUp() {
+        mAdapter = new ForecastAdapter(mContext, null);
+        mAdapter.swapForecast(createForecast(0, 14));
+        mAdapter.registerAdapterDataObserver(new RecyclerView.AdapterDataObserver() {
+            @Override
+            public void onChanged() {
+                mEvents.add("everything changed");
+            }
+
+            @Override
+            public void onItemRangeChanged(int positionStart, int itemCount, Object payload) {
+                mEvents.add("changed " + positionStart + " " + payload);
+            }
+
+            @Override
+            public void onItemRangeInserted(int positionStart, int itemCount) {
+                mEvents.add("inserted " + positionStart);
+            }
+
+            @Override
+            public void onItemRangeRemoved(int positionStart, int itemCount) {
+                mEvents.add("removed " + positionStart);
+            }
+        });
+    }
+
+    @Test
+    public void testSameForecastChangesNothing() {
+        mAdapter.swapForecast(createForecast(0, 14));
+
+        assertEquals(new ArrayList<String>(), mEvents);
+    }
+
+    @Test
+    public void testOnlyChangedPartsAreRebound() {
+        MatrixCursor forecast = new MatrixCursor(MainActivity.MAIN_FORECAST_PROJECTION);
+        for (int day = 0; day < 14; day++) {
+            int weatherId = day == 5 ? 500 : 800;
+            double high = day == 9 ? 30 : 20 + day;
+            forecast.addRow(new Object[]{dateOf(day), high, 10 + day, weatherId});
+        }
+
+        mAdapter.swapForecast(ForecastLoader.createRows(mContext, forecast));
+
+        assertEquals(Arrays.asList(
+                "changed 5 " + ForecastAdapter.PAYLOAD_CONDITION,
+                "changed 9 " + ForecastAdapter.PAYLOAD_TEMPERATURES),
+                mEvents);
+    }
+
+    @Test
+    public void testDaysGoneByAreRemovedAndNewDaysInserted() {
+        /* Two days have gone by, and the forecast reaches two days further */
+        mAdapter.swapForecast(createForecast(2, 14));
+
+        List<String> expected = new ArrayList<>(Arrays.asList(
+                "removed 0", "removed 0", "inserted 12", "inserted 13"));
+        if (mContext.getResources().getBoolean(R.bool.use_today_layout)) {
+            /* The new first row takes the layout of today */
+            expected.add("changed 0 null");
+        }
+        assertEquals(expected, mEvents);
+        assertEquals(14, mAdapter.getItemCount());
+    }
+
+    @Test
+    public void testUnsortedForecastRebindsEverything() {
+        MatrixCursor forecast = new MatrixCursor(MainActivity.MAIN_FORECAST_PROJECTION);
+        forecast.addRow(new Object[]{dateOf(1), 20, 10, 800});
+        forecast.addRow(new Object[]{dateOf(0), 20, 10, 800});
+
+        mAdapter.swapForecast(ForecastLoader.createRows(mContext, forecast));
+
+        assertEquals(Arrays.asList("everything changed"), mEvents);
+    }
+
+    private static long dateOf(int day) {
+        return FIRST_DATE + day * SunshineDateUtils.DAY_IN_MILLIS;
+    }
+
+    /* The days from firstDay on */
+    private ForecastRow[] createForecast(int firstDay, int count) {
+        MatrixCursor forecast = new MatrixCursor(MainActivity.MAIN_FORECAST_PROJECTION);
+        for (int day = firstDay; day < firstDay + count; day++) {
+            forecast.addRow(new Object[]{dateOf(day), 20 + day, 10 + day, 800});
+        }
+        return ForecastLoader.createRows(mContext, forecast);
+    }
+}
@@ -0,0 +1,138 @@
+/*
+ * Copyright (C) 2016 The Android Open Source Project
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *      http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package com.example.android.sunshine;
+
+import android.content.Context;
+import android.database.MatrixCursor;
+import android.os.Debug;
+import android.support.test.InstrumentationRegistry;
+import android.support.test.runner.AndroidJUnit4;
+import android.util.Log;
+import android.view.ContextThemeWrapper;
+import android.widget.FrameLayout;
+
+import com.example.android.sunshine.utilities.SunshineDateUtils;
+
+import org.junit.Test;
+import org.junit.runner.RunWith;
+
+import static junit.framework.Assert.assertEquals;
+
+/**
+ * Measures what binding a row of the forecast list costs on the main thread, now that
+ * {@link ForecastLoader} works out every string ahead of time, against the cost of working those
+ * strings out, which onBindViewHolder used to pay for every row that scrolled into view.
+ * <p>
+ * Rows are bound over and over to the same ViewHolder, as they are while the list scrolls.
+ * Timings, how many rows fit in a 16 ms frame and allocated bytes are written to logcat
+ * under the "ForecastBindPerformance" tag. The only assertion made is that the ViewHolder shows
+ * the row bound last.
+ */
+@RunWith(AndroidJUnit4.class)
+public class TestForecastBindPerformance {
+
+    private static final String TAG = "ForecastBindPerformance";
+
+    private static final long FIRST_DATE = 1475280000000L;
+
+    private static final long FRAME_NANOS = 16000000L;
+
+    /* MainActivity's list is shown with this theme */
+    private final Context mContext = new ContextThemeWrapper(
+            InstrumentationRegistry.getTargetContext(), R.style.AppTheme_Forecast);
+
+    @Test
+    public void testBindOneThousandRows() {
+        final MatrixCursor cursor = createForecast(1000);
+
+        /* Rows are bound on the main thread, and allocations are counted per thread */
+        InstrumentationRegistry.getInstrumentation().runOnMainSync(new Runnable() {
+            @Override
+            public void run() {
+                compareFormattingWithBinding(cursor);
+            }
+        });
+    }
+
+    @SuppressWarnings("deprecation")
+    private void compareFormattingWithBinding(MatrixCursor cursor) {
+        ForecastAdapter adapter = new ForecastAdapter(mContext, null);
+        FrameLayout parent = new FrameLayout(mContext);
+
+        /* Warm both paths up, so that class loading isn't counted against either */
+        ForecastRow[] forecast = ForecastLoader.createRows(mContext, cursor);
+        adapter.swapForecast(forecast);
+        ForecastAdapter.ForecastAdapterViewHolder holder =
+                adapter.onCreateViewHolder(parent, adapter.getItemViewType(1));
+        bindAll(adapter, holder, forecast.length);
+
+        Debug.resetThreadAllocCount();
+        Debug.startAllocCounting();
+        long formattingStart = System.nanoTime();
+        forecast = ForecastLoader.createRows(mContext, cursor);
+        long formattingNanos = System.nanoTime() - formattingStart;
+        Debug.stopAllocCounting();
+        long formattingBytes = Debug.getThreadAllocSize();
+
+        adapter.swapForecast(forecast);
+
+        Debug.resetThreadAllocCount();
+        Debug.startAllocCounting();
+        long bindingStart = System.nanoTime();
+        bindAll(adapter, holder, forecast.length);
+        long bindingNanos = System.nanoTime() - bindingStart;
+        Debug.stopAllocCounting();
+        long bindingBytes = Debug.getThreadAllocSize();
+
+        ForecastRow last = forecast[forecast.length - 1];
+        assertEquals(last.dateString, holder.dateView.getText().toString());
+        assertEquals(last.description, holder.descriptionView.getText().toString());
+        assertEquals(last.highString, holder.highTempView.getText().toString());
+        assertEquals(last.lowString, holder.lowTempView.getText().toString());
+
+        int rows = forecast.length;
+        Log.i(TAG, rows + " rows: "
+                + "formatting " + describe(formattingNanos, formattingBytes, rows) + "; "
+                + "binding " + describe(bindingNanos, bindingBytes, rows));
+    }
+
+    /* Binds every row but the first, which has a layout of its own */
+    private static void bindAll(ForecastAdapter adapter,
+                                ForecastAdapter.ForecastAdapterViewHolder holder, int rows) {
+        for (int position = 1; position < rows; position++) {
+            adapter.onBindViewHolder(holder, position);
+        }
+    }
+
+    private static String describe(long nanos, long bytes, int rows) {
+        long nanosPerRow = Math.max(1, nanos / rows);
+        return (nanosPerRow / 1000) + " us and " + (bytes / rows) + " bytes allocated per row, "
+                + (FRAME_NANOS / nanosPerRow) + " rows per frame";
+    }
+
+    /* Days in MainActivity's projection, with varied weather */
+    private static MatrixCursor createForecast(int count) {
+        MatrixCursor forecast = new MatrixCursor(MainActivity.MAIN_FORECAST_PROJECTION);
+        for (int day = 0; day < count; day++) {
+            forecast.addRow(new Object[]{
+                    FIRST_DATE + day * SunshineDateUtils.DAY_IN_MILLIS,
+                    20 + day % 9 + 0.25,
+                    10 + day % 5 + 0.5,
+                    800 + day % 5});
+        }
+        return forecast;
+    }
+}
@@ -0,0 +1,168 @@
+/*
+ * Copyright (C) 2016 The Android Open Source Project
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *      http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package com.example.android.sunshine.data;
+
+import android.content.Context;
+import android.database.Cursor;
+import android.database.DatabaseUtils;
+import android.database.MatrixCursor;
+import android.database.sqlite.SQLiteDatabase;
+import android.os.SystemClock;
+import android.support.test.InstrumentationRegistry;
+import android.support.test.runner.AndroidJUnit4;
+import android.util.Log;
+
+import com.example.android.sunshine.utilities.SunshineDateUtils;
+
+import org.junit.After;
+import org.junit.Before;
+import org.junit.Test;
+import org.junit.runner.RunWith;
+
+import static junit.framework.Assert.assertEquals;
+
+/**
+ * Measures how fast {@link ForecastArchive} writes and reads years of weather, and how much
+ * space it takes. Timings and sizes are written to logcat under the "ArchivePerformance" tag.
+ * Like {@link TestBulkInsertPerformance}, the only assertions made are that every day is
+ * written and read back, as absolute timings vary far too much between devices to assert on.
+ */
+@RunWith(AndroidJUnit4.class)
+public class TestArchivePerformance {
+
+    private static final String TAG = "ArchivePerformance";
+
+    private static final int DAYS_PER_YEAR = 365;
+
+    /* The days ForecastRetention archives in one transaction */
+    private static final int BATCH_DAYS = ForecastRetention.DEFAULT_BATCH_SIZE;
+
+    private final Context mContext = InstrumentationRegistry.getTargetContext();
+
+    private WeatherDbHelper mDbHelper;
+    private SQLiteDatabase mDatabase;
+    private long mLocationId;
+
+    @Before
+    public void setUp() {
+        mDbHelper = new WeatherDbHelper(mContext);
+        mDatabase = mDbHelper.getWritableDatabase();
+        mDatabase.delete(WeatherContract.ArchiveEntry.TABLE_NAME, null, null);
+        mLocationId = TestUtilities.getOrInsertLocation(mDatabase,
+                SunshinePreferences.getPreferredWeatherLocation(mContext));
+    }
+
+    @After
+    public void tearDown() {
+        mDatabase.delete(WeatherContract.ArchiveEntry.TABLE_NAME, null, null);
+        mDbHelper.close();
+    }
+
+    @Test
+    public void testOneYear() {
+        measure(DAYS_PER_YEAR);
+    }
+
+    @Test
+    public void testTenYears() {
+        measure(10 * DAYS_PER_YEAR);
+    }
+
+    @Test
+    public void testFiftyYears() {
+        measure(50 * DAYS_PER_YEAR);
+    }
+
+    /**
+     * Archives dayCount days the way ForecastRetention does, a batch per transaction, then reads
+     * every day back through the ContentProvider, and a single month out of the middle. Logs
+     * how long each took and how many bytes the archive takes per day.
+     */
+    private void measure(int dayCount) {
+        MatrixCursor days = TestForecastArchive.createDays(TestUtilities.DATE_NORMALIZED,
+                dayCount);
+
+        long writeStart = SystemClock.elapsedRealtime();
+        for (int first = 0; first < dayCount; first += BATCH_DAYS) {
+            archiveBatch(days, first, Math.min(dayCount, first + BATCH_DAYS));
+        }
+        long writeMillis = SystemClock.elapsedRealtime() - writeStart;
+
+        long lastDate = TestUtilities.DATE_NORMALIZED
+                + (dayCount - 1) * SunshineDateUtils.DAY_IN_MILLIS;
+
+        long readStart = SystemClock.elapsedRealtime();
+        assertEquals("Not every archived day was read back",
+                dayCount, countDays(TestUtilities.DATE_NORMALIZED, lastDate));
+        long readMillis = SystemClock.elapsedRealtime() - readStart;
+
+        long monthStart = TestUtilities.DATE_NORMALIZED
+                + (dayCount / 2) * SunshineDateUtils.DAY_IN_MILLIS;
+        long monthReadStart = SystemClock.elapsedRealtime();
+        assertEquals("Not every day of the month was read back",
+                30, countDays(monthStart, monthStart + 29 * SunshineDateUtils.DAY_IN_MILLIS));
+        long monthReadMillis = SystemClock.elapsedRealtime() - monthReadStart;
+
+        long bytes = DatabaseUtils.longForQuery(mDatabase,
+                "SELECT SUM(LENGTH(" + WeatherContract.ArchiveEntry.COLUMN_DAYS + ")) FROM "
+                        + WeatherContract.ArchiveEntry.TABLE_NAME, null);
+
+        Log.i(TAG, dayCount + " days: written in " + writeMillis + " ms, "
+                + "read in " + readMillis + " ms, a month read in " + monthReadMillis + " ms, "
+                + bytes + " bytes (" + (bytes / (double) dayCount) + " per day)");
+    }
+
+    private void archiveBatch(Cursor days, int first, int end) {
+        MatrixCursor batch = new MatrixCursor(ForecastArchive.DAY_COLUMNS);
+        Object[] row = new Object[ForecastArchive.DAY_COLUMNS.length];
+        for (int position = first; position < end; position++) {
+            days.moveToPosition(position);
+            row[0] = days.getLong(0);
+            row[1] = days.getInt(1);
+            for (int column = 2; column < row.length; column++) {
+                row[column] = days.getDouble(column);
+            }
+            batch.addRow(row);
+        }
+
+        mDatabase.beginTransaction();
+        try {
+            ForecastArchive.archive(mDatabase, mLocationId, batch);
+            mDatabase.setTransactionSuccessful();
+        } finally {
+            mDatabase.endTransaction();
+        }
+    }
+
+    private int countDays(long startDate, long endDate) {
+        Cursor cursor = mContext.getContentResolver().query(
+                WeatherContract.ArchiveEntry.buildArchiveUriWithDateRange(startDate, endDate),
+                null,
+                null,
+                null,
+                null);
+        int count = 0;
+        while (cursor.moveToNext()) {
+            /* Touch every value, as a chart would */
+            for (int column = 0; column < cursor.getColumnCount(); column++) {
+                cursor.getDouble(column);
+            }
+            count++;
+        }
+        cursor.close();
+        return count;
+    }
+}
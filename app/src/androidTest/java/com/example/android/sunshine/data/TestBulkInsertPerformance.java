@@ -0,0 +1,163 @@
+/*
+ * Copyright (C) 2016 The Android Open Source Project
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *      http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package com.example.android.sunshine.data;
+
+import android.content.ContentValues;
+import android.content.Context;
+import android.database.DatabaseUtils;
+import android.database.sqlite.SQLiteDatabase;
+import android.os.SystemClock;
+import android.support.test.InstrumentationRegistry;
+import android.support.test.runner.AndroidJUnit4;
+import android.util.Log;
+
+import com.example.android.sunshine.utilities.SunshineDateUtils;
+
+import org.junit.After;
+import org.junit.Before;
+import org.junit.Test;
+import org.junit.runner.RunWith;
+
+import static com.example.android.sunshine.data.WeatherContract.WeatherEntry.COLUMN_DATE;
+import static com.example.android.sunshine.data.WeatherContract.WeatherEntry.COLUMN_DEGREES;
+import static com.example.android.sunshine.data.WeatherContract.WeatherEntry.COLUMN_HUMIDITY;
+import static com.example.android.sunshine.data.WeatherContract.WeatherEntry.COLUMN_LOCATION_ID;
+import static com.example.android.sunshine.data.WeatherContract.WeatherEntry.COLUMN_MAX_TEMP;
+import static com.example.android.sunshine.data.WeatherContract.WeatherEntry.COLUMN_MIN_TEMP;
+import static com.example.android.sunshine.data.WeatherContract.WeatherEntry.COLUMN_PRESSURE;
+import static com.example.android.sunshine.data.WeatherContract.WeatherEntry.COLUMN_WEATHER_ID;
+import static com.example.android.sunshine.data.WeatherContract.WeatherEntry.COLUMN_WIND_SPEED;
+import static junit.framework.Assert.assertEquals;
+
+/**
+ * Compares the compiled statement path used by {@link WeatherProvider#bulkInsert} with the
+ * SQLiteDatabase#insert loop it replaced. Timings are written to logcat under the
+ * "BulkInsertPerformance" tag. The only assertions made are that both paths write every row, as
+ * absolute timings vary far too much between devices to assert on.
+ */
+@RunWith(AndroidJUnit4.class)
+public class TestBulkInsertPerformance {
+
+    private static final String TAG = "BulkInsertPerformance";
+
+    private final Context mContext = InstrumentationRegistry.getTargetContext();
+
+    private WeatherDbHelper mDbHelper;
+    private long mLocationId;
+
+    @Before
+    public void setUp() {
+        mDbHelper = new WeatherDbHelper(mContext);
+        deleteAllRecordsFromWeatherTable();
+        mLocationId = TestUtilities.getOrInsertLocation(mDbHelper.getWritableDatabase(),
+                SunshinePreferences.getPreferredWeatherLocation(mContext));
+    }
+
+    @After
+    public void tearDown() {
+        deleteAllRecordsFromWeatherTable();
+        mDbHelper.close();
+    }
+
+    @Test
+    public void testBulkInsertFourteenRows() {
+        compareInsertPaths(14);
+    }
+
+    @Test
+    public void testBulkInsertOneThousandRows() {
+        compareInsertPaths(1000);
+    }
+
+    @Test
+    public void testBulkInsertOneHundredThousandRows() {
+        compareInsertPaths(100000);
+    }
+
+    /**
+     * Inserts the same forecast once through the old insert loop and once through the provider,
+     * clearing the table in between, and logs how long each took.
+     *
+     * @param rowCount Number of days of weather to insert
+     */
+    private void compareInsertPaths(int rowCount) {
+        ContentValues[] weatherValues = createWeatherValues(rowCount, mLocationId);
+
+        long legacyStart = SystemClock.elapsedRealtime();
+        insertRowByRow(weatherValues);
+        long legacyMillis = SystemClock.elapsedRealtime() - legacyStart;
+        assertEquals("Insert loop did not write every row", rowCount, countRows());
+
+        deleteAllRecordsFromWeatherTable();
+
+        long compiledStart = SystemClock.elapsedRealtime();
+        int rowsInserted = mContext.getContentResolver()
+                .bulkInsert(WeatherContract.WeatherEntry.CONTENT_URI, weatherValues);
+        long compiledMillis = SystemClock.elapsedRealtime() - compiledStart;
+        assertEquals("bulkInsert did not report every row", rowCount, rowsInserted);
+        assertEquals("bulkInsert did not write every row", rowCount, countRows());
+
+        Log.i(TAG, rowCount + " rows: insert loop " + legacyMillis + " ms, "
+                + "compiled statement " + compiledMillis + " ms");
+    }
+
+    /**
+     * The way WeatherProvider#bulkInsert used to write rows: one SQLiteDatabase#insert per
+     * ContentValues, all inside a single transaction.
+     */
+    private void insertRowByRow(ContentValues[] weatherValues) {
+        SQLiteDatabase database = mDbHelper.getWritableDatabase();
+        database.beginTransaction();
+        try {
+            for (ContentValues value : weatherValues) {
+                database.insert(WeatherContract.WeatherEntry.TABLE_NAME, null, value);
+            }
+            database.setTransactionSuccessful();
+        } finally {
+            database.endTransaction();
+        }
+    }
+
+    private static ContentValues[] createWeatherValues(int rowCount, long locationId) {
+        ContentValues[] weatherValues = new ContentValues[rowCount];
+        long normalizedDate = SunshineDateUtils.normalizeDate(TestUtilities.DATE_NORMALIZED);
+
+        for (int i = 0; i < rowCount; i++) {
+            ContentValues value = new ContentValues();
+            value.put(COLUMN_LOCATION_ID, locationId);
+            value.put(COLUMN_DATE, normalizedDate + SunshineDateUtils.DAY_IN_MILLIS * i);
+            value.put(COLUMN_DEGREES, 1.1);
+            value.put(COLUMN_HUMIDITY, 1.2 + 0.01 * (i % 100));
+            value.put(COLUMN_PRESSURE, 1.3 - 0.01 * (i % 100));
+            value.put(COLUMN_MAX_TEMP, 75 + i % 10);
+            value.put(COLUMN_MIN_TEMP, 65 - i % 10);
+            value.put(COLUMN_WIND_SPEED, 5.5 + 0.2 * (i % 10));
+            value.put(COLUMN_WEATHER_ID, 321);
+            weatherValues[i] = value;
+        }
+
+        return weatherValues;
+    }
+
+    private long countRows() {
+        return DatabaseUtils.queryNumEntries(mDbHelper.getReadableDatabase(),
+                WeatherContract.WeatherEntry.TABLE_NAME);
+    }
+
+    private void deleteAllRecordsFromWeatherTable() {
+        mDbHelper.getWritableDatabase().delete(WeatherContract.WeatherEntry.TABLE_NAME, null, null);
+    }
+}
@@ -0,0 +1,168 @@
+/*
+ * Copyright (C) 2016 The Android Open Source Project
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *      http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package com.example.android.sunshine.data;
+
+import android.content.ContentResolver;
+import android.content.ContentValues;
+import android.content.Context;
+import android.database.Cursor;
+import android.database.DatabaseUtils;
+import android.os.Build;
+import android.os.SystemClock;
+import android.support.test.InstrumentationRegistry;
+import android.support.test.runner.AndroidJUnit4;
+import android.util.Log;
+
+import com.example.android.sunshine.MainActivity;
+
+import org.junit.After;
+import org.junit.Before;
+import org.junit.Test;
+import org.junit.runner.RunWith;
+
+import java.util.concurrent.atomic.AtomicBoolean;
+
+import static com.example.android.sunshine.data.TestUtilities.createBulkInsertTestWeatherValues;
+import static junit.framework.Assert.assertEquals;
+import static junit.framework.Assert.assertNull;
+import static junit.framework.Assert.assertTrue;
+
+/**
+ * Runs forecast list queries on one thread while another thread keeps syncing new forecasts, and
+ * logs how long the reads took under the "DatabaseContention" tag. With write-ahead logging, the
+ * reads should take about as long as they do with no writer at all.
+ */
+@RunWith(AndroidJUnit4.class)
+public class TestDatabaseContention {
+
+    private static final String TAG = "DatabaseContention";
+
+    private static final int WRITER_SYNC_COUNT = 200;
+
+    private final Context mContext = InstrumentationRegistry.getTargetContext();
+
+    private WeatherDbHelper mDbHelper;
+
+    @Before
+    public void setUp() {
+        mDbHelper = new WeatherDbHelper(mContext);
+        mDbHelper.getWritableDatabase().delete(WeatherContract.WeatherEntry.TABLE_NAME, null, null);
+    }
+
+    @After
+    public void tearDown() {
+        mDbHelper.getWritableDatabase().delete(WeatherContract.WeatherEntry.TABLE_NAME, null, null);
+        mDbHelper.close();
+    }
+
+    /**
+     * Write-ahead logging is only available from Honeycomb on, and is what lets readers get
+     * past a writer in the first place.
+     */
+    @Test
+    public void testDatabaseUsesWriteAheadLog() {
+        if (Build.VERSION.SDK_INT < Build.VERSION_CODES.HONEYCOMB) return;
+
+        String journalMode = DatabaseUtils.stringForQuery(mDbHelper.getWritableDatabase(),
+                "PRAGMA journal_mode", null);
+
+        assertEquals("weather.db should use write-ahead logging", "wal", journalMode.toLowerCase());
+    }
+
+    @Test
+    public void testReadsWhileSyncing() throws InterruptedException {
+        final ContentResolver contentResolver = mContext.getContentResolver();
+
+        /*
+         * Two forecasts that differ in every row, so that every single sync the writer performs
+         * has to rewrite the whole table.
+         */
+        final ContentValues[] firstForecast = createBulkInsertTestWeatherValues();
+        final ContentValues[] secondForecast = createBulkInsertTestWeatherValues();
+        for (ContentValues value : secondForecast) {
+            value.put(WeatherContract.WeatherEntry.COLUMN_WEATHER_ID, 800);
+        }
+        contentResolver.bulkInsert(WeatherContract.WeatherEntry.SYNC_URI, firstForecast);
+
+        long idleReadMillis = timeForecastQuery(contentResolver);
+
+        final AtomicBoolean writerDone = new AtomicBoolean(false);
+        final Throwable[] writerError = new Throwable[1];
+
+        Thread writer = new Thread(new Runnable() {
+            @Override
+            public void run() {
+                try {
+                    for (int i = 0; i < WRITER_SYNC_COUNT; i++) {
+                        ContentValues[] forecast = i % 2 == 0 ? secondForecast : firstForecast;
+                        contentResolver.bulkInsert(WeatherContract.WeatherEntry.SYNC_URI, forecast);
+                    }
+                } catch (Throwable t) {
+                    writerError[0] = t;
+                } finally {
+                    writerDone.set(true);
+                }
+            }
+        }, "ContentionWriter");
+
+        writer.start();
+
+        int readCount = 0;
+        long totalReadMillis = 0;
+        long slowestReadMillis = 0;
+        while (!writerDone.get()) {
+            long readMillis = timeForecastQuery(contentResolver);
+            totalReadMillis += readMillis;
+            slowestReadMillis = Math.max(slowestReadMillis, readMillis);
+            readCount++;
+        }
+
+        writer.join();
+
+        assertNull("Writer failed: " + writerError[0], writerError[0]);
+        assertTrue("No reads completed while the writer was running", readCount > 0);
+
+        Log.i(TAG, "Idle read: " + idleReadMillis + " ms. "
+                + readCount + " reads during " + WRITER_SYNC_COUNT + " syncs: "
+                + "average " + (totalReadMillis / readCount) + " ms, "
+                + "slowest " + slowestReadMillis + " ms");
+    }
+
+    /**
+     * Runs MainActivity's forecast list query and reads every row, the way the list would.
+     *
+     * @return How long the query took, in milliseconds
+     */
+    private static long timeForecastQuery(ContentResolver contentResolver) {
+        long start = SystemClock.elapsedRealtime();
+
+        Cursor cursor = contentResolver.query(
+                WeatherContract.WeatherEntry.CONTENT_URI,
+                MainActivity.MAIN_FORECAST_PROJECTION,
+                null,
+                null,
+                WeatherContract.WeatherEntry.COLUMN_DATE + " ASC");
+
+        if (cursor != null) {
+            while (cursor.moveToNext()) {
+                cursor.getLong(MainActivity.INDEX_WEATHER_DATE);
+            }
+            cursor.close();
+        }
+
+        return SystemClock.elapsedRealtime() - start;
+    }
+}
@@ -0,0 +1,200 @@
+/*
+ * Copyright (C) 2016 The Android Open Source Project
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *      http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package com.example.android.sunshine.data;
+
+import android.content.Context;
+import android.database.Cursor;
+import android.database.DatabaseUtils;
+import android.database.MatrixCursor;
+import android.database.sqlite.SQLiteDatabase;
+import android.support.test.InstrumentationRegistry;
+import android.support.test.runner.AndroidJUnit4;
+
+import com.example.android.sunshine.utilities.SunshineDateUtils;
+
+import org.junit.After;
+import org.junit.Before;
+import org.junit.Test;
+import org.junit.runner.RunWith;
+
+import static junit.framework.Assert.assertEquals;
+import static junit.framework.Assert.assertFalse;
+import static junit.framework.Assert.assertTrue;
+
+/**
+ * Tests that days written to {@link ForecastArchive} come back out of
+ * {@link WeatherContract.ArchiveEntry}'s URI as they went in, to a tenth, and only for the range
+ * asked for.
+ */
+@RunWith(AndroidJUnit4.class)
+public class TestForecastArchive {
+
+    /* Enough to spread over four blocks, with the first and last only partly filled */
+    private static final int DAYS = 3 * ForecastArchive.BLOCK_DAYS + 5;
+
+    private final Context mContext = InstrumentationRegistry.getTargetContext();
+
+    private WeatherDbHelper mDbHelper;
+    private SQLiteDatabase mDatabase;
+    private long mLocationId;
+
+    @Before
+    public void setUp() {
+        mDbHelper = new WeatherDbHelper(mContext);
+        mDatabase = mDbHelper.getWritableDatabase();
+        mDatabase.delete(WeatherContract.ArchiveEntry.TABLE_NAME, null, null);
+        mLocationId = TestUtilities.getOrInsertLocation(mDatabase,
+                SunshinePreferences.getPreferredWeatherLocation(mContext));
+    }
+
+    @After
+    public void tearDown() {
+        mDatabase.delete(WeatherContract.ArchiveEntry.TABLE_NAME, null, null);
+        mDbHelper.close();
+    }
+
+    @Test
+    public void testDaysComeBackAsArchived() {
+        archive(createDays(TestUtilities.DATE_NORMALIZED, DAYS));
+
+        Cursor cursor = mContext.getContentResolver().query(
+                WeatherContract.ArchiveEntry.buildArchiveUriWithDateRange(
+                        TestUtilities.DATE_NORMALIZED,
+                        dayAfter(DAYS - 1)),
+                null,
+                null,
+                null,
+                null);
+        assertCursorMatches(cursor, createDays(TestUtilities.DATE_NORMALIZED, DAYS), 0, DAYS);
+    }
+
+    @Test
+    public void testQueryReturnsOnlyTheRange() {
+        archive(createDays(TestUtilities.DATE_NORMALIZED, DAYS));
+
+        /* Starts and ends in the middle of a block */
+        int first = ForecastArchive.BLOCK_DAYS / 2;
+        int last = 2 * ForecastArchive.BLOCK_DAYS + 3;
+
+        Cursor cursor = mContext.getContentResolver().query(
+                WeatherContract.ArchiveEntry.buildArchiveUriWithDateRange(
+                        dayAfter(first), dayAfter(last)),
+                null,
+                null,
+                null,
+                null);
+        assertCursorMatches(cursor, createDays(TestUtilities.DATE_NORMALIZED, DAYS),
+                first, last - first + 1);
+    }
+
+    @Test
+    public void testArchivingADayAgainReplacesIt() {
+        archive(createDays(TestUtilities.DATE_NORMALIZED, DAYS));
+
+        /* The same dates, with different weather */
+        MatrixCursor days = createDays(TestUtilities.DATE_NORMALIZED, DAYS);
+        MatrixCursor replacement = new MatrixCursor(ForecastArchive.DAY_COLUMNS);
+        while (days.moveToNext()) {
+            replacement.addRow(new Object[]{days.getLong(0), 500, days.getDouble(2) + 10,
+                    days.getDouble(3) + 10, days.getDouble(4), days.getDouble(5),
+                    days.getDouble(6), days.getDouble(7)});
+        }
+        archive(replacement);
+
+        assertEquals("Archiving again should not add blocks",
+                4, DatabaseUtils.queryNumEntries(mDatabase,
+                        WeatherContract.ArchiveEntry.TABLE_NAME));
+
+        Cursor cursor = mContext.getContentResolver().query(
+                WeatherContract.ArchiveEntry.buildArchiveUriWithDateRange(
+                        TestUtilities.DATE_NORMALIZED, dayAfter(DAYS - 1)),
+                null,
+                null,
+                null,
+                null);
+        replacement.moveToPosition(-1);
+        assertCursorMatches(cursor, replacement, 0, DAYS);
+    }
+
+    @Test
+    public void testArchiveIsCompact() {
+        archive(createDays(TestUtilities.DATE_NORMALIZED, DAYS));
+
+        long bytes = DatabaseUtils.longForQuery(mDatabase,
+                "SELECT SUM(LENGTH(" + WeatherContract.ArchiveEntry.COLUMN_DAYS + ")) FROM "
+                        + WeatherContract.ArchiveEntry.TABLE_NAME, null);
+
+        /* A weather row alone takes well over 60 bytes, before its index entries */
+        assertTrue(DAYS + " days took " + bytes + " bytes", bytes < DAYS * 16);
+    }
+
+    private void archive(Cursor days) {
+        mDatabase.beginTransaction();
+        try {
+            assertEquals(days.getCount(), ForecastArchive.archive(mDatabase, mLocationId, days));
+            mDatabase.setTransactionSuccessful();
+        } finally {
+            mDatabase.endTransaction();
+        }
+    }
+
+    private static long dayAfter(int days) {
+        return TestUtilities.DATE_NORMALIZED + days * SunshineDateUtils.DAY_IN_MILLIS;
+    }
+
+    /**
+     * Creates days of weather that change a little from one day to the next, the way real
+     * weather does, with {@link ForecastArchive#DAY_COLUMNS}.
+     */
+    static MatrixCursor createDays(long firstDate, int count) {
+        MatrixCursor days = new MatrixCursor(ForecastArchive.DAY_COLUMNS);
+        for (int i = 0; i < count; i++) {
+            /* Already in tenths, so that only the rounding of the other values is tested */
+            double seasonal = Math.round(100 * Math.sin(i * 2 * Math.PI / 365)) / 10.0;
+            days.addRow(new Object[]{
+                    firstDate + i * SunshineDateUtils.DAY_IN_MILLIS,
+                    800 + i % 3,
+                    seasonal - 5 + 0.1 * (i % 7),
+                    seasonal + 5 - 0.1 * (i % 5),
+                    60 + i % 20,
+                    1013.2 + 0.3 * (i % 11),
+                    2.5 + 0.1 * (i % 13),
+                    (i * 37) % 360
+            });
+        }
+        return days;
+    }
+
+    /**
+     * Checks that cursor holds count days of expected, starting at offset, and closes it.
+     */
+    private static void assertCursorMatches(Cursor cursor, Cursor expected, int offset,
+            int count) {
+        assertEquals("Wrong number of archived days", count, cursor.getCount());
+        expected.moveToPosition(offset - 1);
+        while (cursor.moveToNext()) {
+            assertTrue(expected.moveToNext());
+            assertEquals(expected.getLong(0), cursor.getLong(0));
+            assertEquals(expected.getInt(1), cursor.getInt(1));
+            for (int column = 2; column < ForecastArchive.DAY_COLUMNS.length; column++) {
+                assertEquals(ForecastArchive.DAY_COLUMNS[column],
+                        expected.getDouble(column), cursor.getDouble(column), 0.05);
+            }
+        }
+        assertFalse(cursor.moveToNext());
+        cursor.close();
+    }
+}
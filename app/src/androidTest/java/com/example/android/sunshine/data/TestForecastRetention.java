@@ -0,0 +1,188 @@
+/*
+ * Copyright (C) 2016 The Android Open Source Project
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *      http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package com.example.android.sunshine.data;
+
+import android.content.ContentValues;
+import android.database.Cursor;
+import android.database.DatabaseUtils;
+import android.database.sqlite.SQLiteDatabase;
+import android.support.test.InstrumentationRegistry;
+import android.support.test.runner.AndroidJUnit4;
+
+import com.example.android.sunshine.utilities.SunshineDateUtils;
+
+import org.junit.After;
+import org.junit.Before;
+import org.junit.Test;
+import org.junit.runner.RunWith;
+
+import static junit.framework.Assert.assertEquals;
+import static junit.framework.Assert.assertTrue;
+
+/**
+ * Tests that {@link ForecastRetention} moves the days before its history window to the archive,
+ * deletes the locations beyond its limit, keeps everything else, and gives the space back.
+ */
+@RunWith(AndroidJUnit4.class)
+public class TestForecastRetention {
+
+    private static final int HISTORY_DAYS = 1;
+    private static final int MAX_LOCATIONS = 2;
+
+    /* Small, so that a location's past days take several batches */
+    private static final int BATCH_SIZE = 3;
+
+    private static final long NOW = TestUtilities.DATE_NORMALIZED;
+
+    private WeatherDbHelper mDbHelper;
+    private SQLiteDatabase mDatabase;
+
+    @Before
+    public void setUp() {
+        mDbHelper = new WeatherDbHelper(InstrumentationRegistry.getTargetContext());
+        mDatabase = mDbHelper.getWritableDatabase();
+
+        /* The forecast goes with its location */
+        mDatabase.delete(WeatherContract.LocationEntry.TABLE_NAME, null, null);
+    }
+
+    @After
+    public void tearDown() {
+        mDatabase.delete(WeatherContract.LocationEntry.TABLE_NAME, null, null);
+        mDbHelper.close();
+    }
+
+    @Test
+    public void testDeletesDaysBeforeHistoryWindow() {
+        /* Ten days before today, then today and the week after it */
+        long locationId = insertForecast(TestUtilities.TEST_LOCATION, 1, -10, 7);
+
+        ForecastRetention.Report report = runRetention();
+
+        /* Yesterday stays, within the history window */
+        assertEquals(9, report.pastDaysDeleted);
+        assertEquals(0, report.locationsDeleted);
+        assertEquals(9, countDays(locationId));
+        assertEquals(NOW - HISTORY_DAYS * SunshineDateUtils.DAY_IN_MILLIS,
+                DatabaseUtils.longForQuery(mDatabase,
+                        "SELECT MIN(" + WeatherContract.WeatherEntry.COLUMN_DATE + ") FROM "
+                                + WeatherContract.WeatherEntry.TABLE_NAME, null));
+
+        /* The summary of the forecast follows the deletes, and counts today onwards only */
+        assertEquals(8, DatabaseUtils.longForQuery(mDatabase,
+                "SELECT " + WeatherContract.LocationEntry.COLUMN_FORECAST_DAYS + " FROM "
+                        + WeatherContract.LocationEntry.TABLE_NAME + " WHERE "
+                        + WeatherContract.LocationEntry._ID + " = " + locationId, null));
+
+        /* The days that were deleted are kept in the archive */
+        Cursor archived = ForecastArchive.query(mDatabase, locationId,
+                NOW - 10 * SunshineDateUtils.DAY_IN_MILLIS,
+                NOW - 2 * SunshineDateUtils.DAY_IN_MILLIS,
+                null);
+        assertEquals(9, archived.getCount());
+        archived.close();
+
+        /* Nothing is left to delete the second time */
+        report = runRetention();
+        assertEquals(0, report.pastDaysDeleted);
+    }
+
+    @Test
+    public void testKeepsCurrentAndMostRecentlySyncedLocations() {
+        long current = insertForecast(TestUtilities.TEST_LOCATION, 1, 0, 6);
+        long recent = insertForecast("94043", 3, 0, 6);
+        long older = insertForecast("10001", 2, 0, 6);
+
+        ForecastRetention.Report report = runRetention();
+
+        /* The current location was synced the longest ago, but it is never deleted */
+        assertEquals(1, report.locationsDeleted);
+        assertEquals(7, countDays(current));
+        assertEquals(7, countDays(recent));
+        assertEquals(0, countDays(older));
+    }
+
+    @Test
+    public void testReclaimsSpace() {
+        for (int i = 0; i < 20; i++) {
+            insertForecast("location " + i, i + 1, -30, 14);
+        }
+
+        /* The first run switches to incremental auto_vacuum, which the second one relies on */
+        runRetention();
+        assertEquals(2, DatabaseUtils.longForQuery(mDatabase, "PRAGMA auto_vacuum", null));
+
+        for (int i = 0; i < 20; i++) {
+            insertForecast("location " + i, i + 1, -30, 14);
+        }
+
+        ForecastRetention.Report report = runRetention();
+
+        assertTrue("Reclaimed " + report, report.bytesReclaimed > 0);
+        assertEquals(0, DatabaseUtils.longForQuery(mDatabase, "PRAGMA freelist_count", null));
+    }
+
+    /* With TEST_LOCATION as the current location */
+    private ForecastRetention.Report runRetention() {
+        return new ForecastRetention(HISTORY_DAYS, MAX_LOCATIONS, BATCH_SIZE)
+                .run(mDatabase, TestUtilities.TEST_LOCATION, NOW);
+    }
+
+    /**
+     * Inserts a location with a forecast from firstDay to lastDay, counted from today, both
+     * included.
+     *
+     * @return The _ID of the location
+     */
+    private long insertForecast(String locationSetting, long lastSynced, int firstDay,
+            int lastDay) {
+        long locationId = TestUtilities.getOrInsertLocation(mDatabase, locationSetting);
+
+        ContentValues lastSyncedValues = new ContentValues();
+        lastSyncedValues.put(WeatherContract.LocationEntry.COLUMN_LAST_SYNCED, lastSynced);
+        mDatabase.update(WeatherContract.LocationEntry.TABLE_NAME, lastSyncedValues,
+                WeatherContract.LocationEntry._ID + " = " + locationId, null);
+
+        mDatabase.beginTransaction();
+        try {
+            for (int day = firstDay; day <= lastDay; day++) {
+                ContentValues weatherValues =
+                        TestUtilities.createTestWeatherContentValues(locationId);
+                weatherValues.put(WeatherContract.WeatherEntry.COLUMN_DATE,
+                        NOW + day * SunshineDateUtils.DAY_IN_MILLIS);
+                mDatabase.insertOrThrow(WeatherContract.WeatherEntry.TABLE_NAME, null,
+                        weatherValues);
+            }
+            WeatherProvider.updateForecastSummary(mDatabase, locationId, NOW);
+            mDatabase.setTransactionSuccessful();
+        } finally {
+            mDatabase.endTransaction();
+        }
+        return locationId;
+    }
+
+    private int countDays(long locationId) {
+        Cursor cursor = mDatabase.query(WeatherContract.WeatherEntry.TABLE_NAME,
+                new String[]{WeatherContract.WeatherEntry._ID},
+                WeatherContract.WeatherEntry.COLUMN_LOCATION_ID + " = " + locationId,
+                null, null, null, null);
+        try {
+            return cursor.getCount();
+        } finally {
+            cursor.close();
+        }
+    }
+}
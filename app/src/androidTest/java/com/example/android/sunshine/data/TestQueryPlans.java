@@ -0,0 +1,174 @@
+/*
+ * Copyright (C) 2016 The Android Open Source Project
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *      http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package com.example.android.sunshine.data;
+
+import android.database.Cursor;
+import android.database.sqlite.SQLiteDatabase;
+import android.database.sqlite.SQLiteQueryBuilder;
+import android.support.test.InstrumentationRegistry;
+import android.support.test.runner.AndroidJUnit4;
+
+import com.example.android.sunshine.DetailActivity;
+import com.example.android.sunshine.MainActivity;
+import com.example.android.sunshine.sync.WearableSync;
+import com.example.android.sunshine.utilities.NotificationUtils;
+
+import org.junit.After;
+import org.junit.Before;
+import org.junit.Test;
+import org.junit.runner.RunWith;
+
+import static junit.framework.Assert.assertFalse;
+import static junit.framework.Assert.assertTrue;
+
+/**
+ * Runs every query that Sunshine sends to {@link WeatherProvider} through EXPLAIN QUERY PLAN and
+ * makes sure that SQLite can answer it using an index. A query fails this test if SQLite has to
+ * scan the whole weather table (or a whole index) or has to build a temporary B-tree to sort
+ * the results.
+ * <p>
+ * The SQL is built with SQLiteQueryBuilder, which is what SQLiteDatabase#query uses under the
+ * hood, and every selection is limited to one location the same way WeatherProvider does it, so
+ * the statements here are the same ones WeatherProvider#query runs.
+ */
+@RunWith(AndroidJUnit4.class)
+public class TestQueryPlans {
+
+    private static final String SELECT_BY_DATE = WeatherContract.WeatherEntry.COLUMN_DATE + " = ? ";
+
+    private static final String[] DATE_ARGS =
+            new String[]{Long.toString(TestUtilities.DATE_NORMALIZED)};
+
+    /* Any location will do, the plan doesn't depend on which one it is */
+    private static final long LOCATION_ID = 1;
+
+    private WeatherDbHelper mDbHelper;
+    private SQLiteDatabase mDatabase;
+
+    @Before
+    public void setUp() {
+        mDbHelper = new WeatherDbHelper(InstrumentationRegistry.getTargetContext());
+        mDatabase = mDbHelper.getReadableDatabase();
+    }
+
+    @After
+    public void tearDown() {
+        mDbHelper.close();
+    }
+
+    /* MainActivity's forecast list */
+    @Test
+    public void testForecastListQueryUsesIndex() {
+        assertQueryUsesIndex("forecast list",
+                MainActivity.MAIN_FORECAST_PROJECTION,
+                WeatherContract.WeatherEntry.getSqlSelectForTodayOnwards(),
+                null,
+                WeatherContract.WeatherEntry.COLUMN_DATE + " ASC");
+    }
+
+    /* DetailActivity's single day */
+    @Test
+    public void testDetailQueryUsesIndex() {
+        assertQueryUsesIndex("detail",
+                DetailActivity.WEATHER_DETAIL_PROJECTION,
+                SELECT_BY_DATE,
+                DATE_ARGS,
+                null);
+    }
+
+    /* NotificationUtils' summary of today */
+    @Test
+    public void testNotificationQueryUsesIndex() {
+        assertQueryUsesIndex("notification",
+                NotificationUtils.WEATHER_NOTIFICATION_PROJECTION,
+                SELECT_BY_DATE,
+                DATE_ARGS,
+                null);
+    }
+
+    /* Today's weather, as sent to the watch */
+    @Test
+    public void testWearQueryUsesIndex() {
+        assertQueryUsesIndex("wear",
+                WearableSync.MAIN_FORECAST_PROJECTION,
+                SELECT_BY_DATE,
+                DATE_ARGS,
+                null);
+    }
+
+    /*
+     * The subqueries WeatherProvider runs after every write to keep a location's forecast
+     * summary up to date, which SunshineSyncUtils reads to decide whether or not to sync
+     * immediately
+     */
+    @Test
+    public void testForecastSummaryQueryUsesIndex() {
+        assertQueryUsesIndex("forecast summary",
+                new String[]{"COUNT(*)",
+                        "IFNULL(MAX(" + WeatherContract.WeatherEntry.COLUMN_DATE + "), 0)"},
+                null,
+                null,
+                null);
+    }
+
+    /**
+     * Asks SQLite how it would run a query against the weather table and fails if any step of
+     * the plan is a full scan or a temporary B-tree used for sorting.
+     *
+     * @param description   Used in failure messages to identify the query
+     * @param projection    Columns the query asks for
+     * @param selection     WHERE clause of the query
+     * @param selectionArgs Arguments for the WHERE clause
+     * @param sortOrder     ORDER BY clause of the query
+     */
+    private void assertQueryUsesIndex(String description, String[] projection, String selection,
+                                      String[] selectionArgs, String sortOrder) {
+        String sql = SQLiteQueryBuilder.buildQueryString(false,
+                WeatherContract.WeatherEntry.TABLE_NAME,
+                projection,
+                WeatherProvider.scopeSelectionToLocation(selection),
+                null,
+                null,
+                sortOrder,
+                null);
+
+        Cursor planCursor = mDatabase.rawQuery("EXPLAIN QUERY PLAN " + sql,
+                WeatherProvider.scopeSelectionArgsToLocation(LOCATION_ID, selectionArgs));
+
+        assertTrue("No query plan returned for the " + description + " query",
+                planCursor.moveToFirst());
+
+        int detailIndex = planCursor.getColumnIndex("detail");
+        StringBuilder plan = new StringBuilder();
+        boolean scansTable = false;
+        boolean sortsWithTempBTree = false;
+
+        do {
+            String detail = planCursor.getString(detailIndex);
+            plan.append(detail).append('\n');
+
+            if (detail.startsWith("SCAN")) scansTable = true;
+            if (detail.contains("TEMP B-TREE")) sortsWithTempBTree = true;
+        } while (planCursor.moveToNext());
+
+        planCursor.close();
+
+        assertFalse("The " + description + " query scans the whole table:\n" + plan,
+                scansTable);
+        assertFalse("The " + description + " query sorts using a temporary B-tree:\n" + plan,
+                sortsWithTempBTree);
+    }
+}
@@ -32,6 +32,7 @@ import java.lang.reflect.Constructor;
 import java.lang.reflect.InvocationTargetException;
 import java.lang.reflect.Method;
 import java.util.HashSet;
+import java.util.List;
 import java.util.concurrent.TimeUnit;
 
 import static com.example.android.sunshine.data.TestUtilities.getConstantNameByStringValue;
@@ -41,6 +42,7 @@ import static com.example.android.sunshine.data.TestUtilities.studentReadableCla
 import static com.example.android.sunshine.data.TestUtilities.studentReadableNoSuchField;
 import static junit.framework.Assert.assertEquals;
 import static junit.framework.Assert.assertFalse;
+import static junit.framework.Assert.assertNotNull;
 import static junit.framework.Assert.assertNotSame;
 import static junit.framework.Assert.assertTrue;
 import static junit.framework.Assert.fail;
@@ -57,6 +59,7 @@ import static junit.framework.Assert.fail;
  * 4) Verify that NON NULL constraints are working properly on record inserts
  * 5) Verify auto increment is working with the ID
  * 6) Test the onUpgrade functionality of the WeatherDbHelper
+ * 7) Verify that upgrading through the migration steps keeps the cached forecast
  */
 @RunWith(AndroidJUnit4.class)
 public class TestSunshineDatabase {
@@ -122,6 +125,9 @@ public class TestSunshineDatabase {
     private SQLiteDatabase database;
     private SQLiteOpenHelper dbHelper;
 
+    /* Every weather row needs a location, see TestUtilities#getOrInsertLocation */
+    private long testLocationId;
+
     @Before
     public void before() {
         try {
@@ -176,6 +182,9 @@ public class TestSunshineDatabase {
             Method getWritableDatabase = SQLiteOpenHelper.class.getDeclaredMethod("getWritableDatabase");
             database = (SQLiteDatabase) getWritableDatabase.invoke(dbHelper);
 
+            testLocationId = TestUtilities.getOrInsertLocation(
+                    database, TestUtilities.TEST_LOCATION);
+
         } catch (ClassNotFoundException e) {
             fail(studentReadableClassNotFound(e));
         } catch (NoSuchFieldException e) {
@@ -193,7 +202,7 @@ public class TestSunshineDatabase {
 
     @Test
     public void testDatabaseVersionWasIncremented() {
-        int expectedDatabaseVersion = 3;
+        int expectedDatabaseVersion = 8;
         String databaseVersionShouldBe1 = "Database version should be "
                 + expectedDatabaseVersion + " but isn't."
                 + "\n Database version: ";
@@ -226,7 +235,7 @@ public class TestSunshineDatabase {
     public void testDuplicateDateInsertBehaviorShouldReplace() {
 
         /* Obtain weather values from TestUtilities */
-        ContentValues testWeatherValues = TestUtilities.createTestWeatherContentValues();
+        ContentValues testWeatherValues = TestUtilities.createTestWeatherContentValues(testLocationId);
 
         /*
          * Get the original weather ID of the testWeatherValues to ensure we use a different
@@ -292,7 +301,7 @@ public class TestSunshineDatabase {
         weatherTableCursor.close();
 
         /* Obtain weather values from TestUtilities and make a copy to avoid altering singleton */
-        ContentValues testValues = TestUtilities.createTestWeatherContentValues();
+        ContentValues testValues = TestUtilities.createTestWeatherContentValues(testLocationId);
         /* Create a copy of the testValues to save as a reference point to restore values */
         ContentValues testValuesReferenceCopy = new ContentValues(testValues);
 
@@ -345,7 +354,7 @@ public class TestSunshineDatabase {
         testInsertSingleRecordIntoWeatherTable();
 
         /* Obtain weather values from TestUtilities */
-        ContentValues testWeatherValues = TestUtilities.createTestWeatherContentValues();
+        ContentValues testWeatherValues = TestUtilities.createTestWeatherContentValues(testLocationId);
 
         /* Get the date of the testWeatherValues to ensure we use a different date later */
         long originalDate = testWeatherValues.getAsLong(REFLECTED_COLUMN_DATE);
@@ -382,9 +391,10 @@ public class TestSunshineDatabase {
     }
 
     /**
-     * This method tests the {@link WeatherDbHelper#onUpgrade(SQLiteDatabase, int, int)}. The proper
-     * behavior for this method in our case is to simply DROP (or delete) the weather table from
-     * the database and then have the table recreated.
+     * This method tests the {@link WeatherDbHelper#onUpgrade(SQLiteDatabase, int, int)} between two
+     * versions that no migration step exists for. The proper behavior for this method in that
+     * case is to simply DROP (or delete) the weather table from the database and then have the
+     * table recreated.
      */
     @Test
     public void testOnUpgradeBehavesCorrectly() {
@@ -436,6 +446,112 @@ public class TestSunshineDatabase {
         database.close();
     }
 
+    /**
+     * Every version from 3 (the first version of Sunshine's database out in the wild) up to the
+     * current version should be reachable through migration steps, so that no app update has to
+     * throw away the cached forecast.
+     */
+    @Test
+    public void testMigrationPathReachesCurrentVersion() {
+        WeatherDbMigration[] migrations = WeatherDbHelper.buildMigrations(context);
+
+        for (int oldVersion = 3; oldVersion < REFLECTED_DATABASE_VERSION; oldVersion++) {
+            List<WeatherDbMigration> path = WeatherDbHelper.findMigrationPath(
+                    migrations, oldVersion, REFLECTED_DATABASE_VERSION);
+
+            assertNotNull("No migration path from version " + oldVersion
+                    + " to version " + REFLECTED_DATABASE_VERSION, path);
+
+            int version = oldVersion;
+            for (WeatherDbMigration migration : path) {
+                assertEquals("Migration steps are out of order", version, migration.startVersion);
+                version = migration.endVersion;
+            }
+            assertEquals("Migration path stops short of the current version",
+                    REFLECTED_DATABASE_VERSION, version);
+        }
+    }
+
+    /**
+     * Puts the database back into its version 3 shape (a single weather table with no location
+     * and no forecast index), caches a forecast and upgrades to the current version. The
+     * forecast should still be there afterwards, assigned to the location set in the
+     * preferences, and the index should exist.
+     */
+    @Test
+    public void testUpgradeFromVersion3KeepsForecast() {
+
+        database.execSQL("DROP TABLE " + WeatherContract.ArchiveEntry.TABLE_NAME);
+        database.execSQL("DROP TABLE " + REFLECTED_TABLE_NAME);
+        database.execSQL("DROP TABLE " + WeatherContract.LocationEntry.TABLE_NAME);
+        database.execSQL("CREATE TABLE weather ("
+                + "_id INTEGER PRIMARY KEY AUTOINCREMENT, "
+                + "date INTEGER NOT NULL, "
+                + "weather_id INTEGER NOT NULL,"
+                + "min REAL NOT NULL, "
+                + "max REAL NOT NULL, "
+                + "humidity REAL NOT NULL, "
+                + "pressure REAL NOT NULL, "
+                + "wind REAL NOT NULL, "
+                + "degrees REAL NOT NULL, "
+                + " UNIQUE (date) ON CONFLICT REPLACE);");
+
+        ContentValues version3Values = TestUtilities.createTestWeatherContentValues(0);
+        version3Values.remove(WeatherContract.WeatherEntry.COLUMN_LOCATION_ID);
+        assertTrue("Unable to insert into the version 3 weather table",
+                database.insert(REFLECTED_TABLE_NAME, null, version3Values) != -1);
+
+        dbHelper.onUpgrade(database, 3, REFLECTED_DATABASE_VERSION);
+
+        long preferredLocationId = TestUtilities.getOrInsertLocation(database,
+                SunshinePreferences.getPreferredWeatherLocation(context));
+
+        Cursor weatherCursor = database.query(
+                REFLECTED_TABLE_NAME,
+                null,
+                null,
+                null,
+                null,
+                null,
+                null);
+
+        String forecastWasDiscarded = "The cached forecast should survive the upgrade";
+        assertEquals(forecastWasDiscarded, 1, weatherCursor.getCount());
+
+        weatherCursor.moveToFirst();
+        TestUtilities.validateCurrentRecord(forecastWasDiscarded,
+                weatherCursor,
+                TestUtilities.createTestWeatherContentValues(preferredLocationId));
+        weatherCursor.close();
+
+        Cursor summaryCursor = database.query(
+                WeatherContract.LocationEntry.TABLE_NAME,
+                new String[]{WeatherContract.LocationEntry.COLUMN_FORECAST_DAYS,
+                        WeatherContract.LocationEntry.COLUMN_NEWEST_DATE},
+                WeatherContract.LocationEntry._ID + " = ?",
+                new String[]{Long.toString(preferredLocationId)},
+                null,
+                null,
+                null);
+
+        assertTrue("The upgrade should keep the preferred location", summaryCursor.moveToFirst());
+        assertEquals("The upgrade should count the cached forecast",
+                1, summaryCursor.getInt(0));
+        assertEquals("The upgrade should record the date of the cached forecast",
+                TestUtilities.DATE_NORMALIZED, summaryCursor.getLong(1));
+        summaryCursor.close();
+
+        Cursor indexCursor = database.rawQuery(
+                "SELECT name FROM sqlite_master WHERE type='index' AND name=?",
+                new String[]{WeatherDbHelper.FORECAST_INDEX_NAME});
+
+        assertEquals("The upgrade should create the forecast index",
+                1, indexCursor.getCount());
+        indexCursor.close();
+
+        database.close();
+    }
+
     /**
      * This method tests that our database contains all of the tables that we think it should
      * contain. Although in our case, we just have one table that we expect should be added
@@ -454,8 +570,10 @@ public class TestSunshineDatabase {
          */
         final HashSet<String> tableNameHashSet = new HashSet<>();
 
-        /* Here, we add the name of our only table in this particular database */
+        /* Here, we add the names of the tables in this particular database */
         tableNameHashSet.add(REFLECTED_TABLE_NAME);
+        tableNameHashSet.add(WeatherContract.LocationEntry.TABLE_NAME);
+        tableNameHashSet.add(WeatherContract.ArchiveEntry.TABLE_NAME);
         /* Students, here is where you would add any other table names if you had them */
 //        tableNameHashSet.add(MyAwesomeSuperCoolTableName);
 //        tableNameHashSet.add(MyOtherCoolTableNameThatContainsOtherCoolData);
@@ -513,7 +631,7 @@ public class TestSunshineDatabase {
     public void testInsertSingleRecordIntoWeatherTable() {
 
         /* Obtain weather values from TestUtilities */
-        ContentValues testWeatherValues = TestUtilities.createTestWeatherContentValues();
+        ContentValues testWeatherValues = TestUtilities.createTestWeatherContentValues(testLocationId);
 
         /* Insert ContentValues into database and get a row ID back */
         long weatherRowId = database.insert(
@@ -0,0 +1,124 @@
+/*
+ * Copyright (C) 2016 The Android Open Source Project
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *      http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package com.example.android.sunshine.data;
+
+import android.content.Context;
+import android.content.SharedPreferences;
+import android.os.Debug;
+import android.preference.PreferenceManager;
+import android.support.test.InstrumentationRegistry;
+import android.support.test.runner.AndroidJUnit4;
+
+import com.example.android.sunshine.R;
+
+import org.junit.After;
+import org.junit.Before;
+import org.junit.Test;
+import org.junit.runner.RunWith;
+
+import static junit.framework.Assert.assertEquals;
+import static junit.framework.Assert.assertFalse;
+import static junit.framework.Assert.assertNotSame;
+import static junit.framework.Assert.assertSame;
+import static junit.framework.Assert.assertTrue;
+
+/**
+ * Tests that {@link SunshinePreferences.Snapshot} follows every change to the preferences, those
+ * made through SunshinePreferences right away and any other once the main thread has heard of
+ * it, and that reading it allocates nothing.
+ */
+@RunWith(AndroidJUnit4.class)
+public class TestSunshinePreferences {
+
+    private final Context mContext = InstrumentationRegistry.getTargetContext();
+
+    private SharedPreferences mPreferences;
+    private String mLocationKey;
+    private String mSavedLocation;
+
+    @Before
+    public void setUp() {
+        mPreferences = PreferenceManager.getDefaultSharedPreferences(mContext);
+        mLocationKey = mContext.getString(R.string.pref_location_key);
+        mSavedLocation = mPreferences.getString(mLocationKey, null);
+        SunshinePreferences.resetLocationCoordinates(mContext);
+    }
+
+    @After
+    public void tearDown() {
+        mPreferences.edit().putString(mLocationKey, mSavedLocation).commit();
+        SunshinePreferences.resetLocationCoordinates(mContext);
+        InstrumentationRegistry.getInstrumentation().waitForIdleSync();
+    }
+
+    @Test
+    public void testWritesShowUpRightAway() {
+        SunshinePreferences.Snapshot before = SunshinePreferences.getSnapshot(mContext);
+        assertFalse(before.isLocationLatLonAvailable);
+
+        SunshinePreferences.setLocationDetails(mContext, 37.386, -122.084);
+
+        SunshinePreferences.Snapshot after = SunshinePreferences.getSnapshot(mContext);
+        assertNotSame("A change should make a new snapshot", before, after);
+        assertTrue(after.isLocationLatLonAvailable);
+        assertEquals(37.386, after.latitude);
+        assertEquals(-122.084, after.longitude);
+
+        /* Snapshots never change */
+        assertFalse(before.isLocationLatLonAvailable);
+        assertEquals(0.0, before.latitude);
+    }
+
+    @Test
+    public void testOtherChangesShowUpOnceHeardOf() {
+        mPreferences.edit().putString(mLocationKey, "Ouagadougou").commit();
+        InstrumentationRegistry.getInstrumentation().waitForIdleSync();
+
+        assertEquals("Ouagadougou", SunshinePreferences.getPreferredWeatherLocation(mContext));
+    }
+
+    @Test
+    public void testSnapshotIsKeptUntilAPreferenceChanges() {
+        SunshinePreferences.Snapshot snapshot = SunshinePreferences.getSnapshot(mContext);
+
+        assertSame(snapshot, SunshinePreferences.getSnapshot(mContext));
+        assertEquals(snapshot.isMetric, SunshinePreferences.isMetric(mContext));
+        assertEquals(snapshot.preferredWeatherLocation,
+                SunshinePreferences.getPreferredWeatherLocation(mContext));
+    }
+
+    @Test
+    @SuppressWarnings("deprecation")
+    public void testReadingAllocatesNothing() {
+        SunshinePreferences.getSnapshot(mContext);
+
+        Debug.resetThreadAllocCount();
+        Debug.startAllocCounting();
+        double sum = 0;
+        for (int i = 0; i < 1000; i++) {
+            SunshinePreferences.Snapshot snapshot = SunshinePreferences.getSnapshot(mContext);
+            sum += snapshot.latitude + snapshot.longitude;
+            if (SunshinePreferences.isMetric(mContext)
+                    && SunshinePreferences.areNotificationsEnabled(mContext)) {
+                sum++;
+            }
+        }
+        Debug.stopAllocCounting();
+
+        assertEquals("Reading the preferences shouldn't allocate (" + sum + ")",
+                0, Debug.getThreadAllocCount());
+    }
+}
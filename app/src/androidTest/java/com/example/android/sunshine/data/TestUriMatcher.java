@@ -19,6 +19,8 @@ import android.content.UriMatcher;
 import android.net.Uri;
 import android.support.test.runner.AndroidJUnit4;
 
+import com.example.android.sunshine.utilities.SunshineDateUtils;
+
 import org.junit.Before;
 import org.junit.Test;
 import org.junit.runner.RunWith;
@@ -101,5 +103,29 @@ public class TestUriMatcher {
         assertEquals(weatherWithDateUriCodeDoesNotMatch,
                 expectedWeatherWithDateCode,
                 actualWeatherWithDateCode);
+
+        /* Test the URIs for locations and for the forecast of a particular location */
+        assertEquals("Error: The CODE_WEATHER_WITH_LOCATION URI was matched incorrectly.",
+                WeatherProvider.CODE_WEATHER_WITH_LOCATION,
+                testMatcher.match(WeatherContract.WeatherEntry.buildWeatherUriWithLocation(3)));
+
+        assertEquals("Error: The CODE_LOCATION URI was matched incorrectly.",
+                WeatherProvider.CODE_LOCATION,
+                testMatcher.match(WeatherContract.LocationEntry.CONTENT_URI));
+
+        assertEquals("Error: The CODE_LOCATION_WITH_ID URI was matched incorrectly.",
+                WeatherProvider.CODE_LOCATION_WITH_ID,
+                testMatcher.match(WeatherContract.LocationEntry.buildLocationUri(3)));
+
+        /* Test the URI for a range of the archive */
+        assertEquals("Error: The CODE_ARCHIVE_WITH_DATE_RANGE URI was matched incorrectly.",
+                WeatherProvider.CODE_ARCHIVE_WITH_DATE_RANGE,
+                testMatcher.match(WeatherContract.ArchiveEntry.buildArchiveUriWithDateRange(
+                        TestUtilities.DATE_NORMALIZED,
+                        TestUtilities.DATE_NORMALIZED + SunshineDateUtils.DAY_IN_MILLIS)));
+
+        assertEquals("Error: The CODE_MAINTENANCE URI was matched incorrectly.",
+                WeatherProvider.CODE_MAINTENANCE,
+                testMatcher.match(WeatherContract.MAINTENANCE_URI));
     }
 }
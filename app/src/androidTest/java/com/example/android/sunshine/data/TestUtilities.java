@@ -18,6 +18,7 @@ package com.example.android.sunshine.data;
 import android.content.ContentValues;
 import android.database.ContentObserver;
 import android.database.Cursor;
+import android.database.sqlite.SQLiteDatabase;
 import android.net.Uri;
 import android.os.Handler;
 import android.os.HandlerThread;
@@ -35,6 +36,7 @@ import java.util.regex.Pattern;
 import static com.example.android.sunshine.data.WeatherContract.WeatherEntry.COLUMN_DATE;
 import static com.example.android.sunshine.data.WeatherContract.WeatherEntry.COLUMN_DEGREES;
 import static com.example.android.sunshine.data.WeatherContract.WeatherEntry.COLUMN_HUMIDITY;
+import static com.example.android.sunshine.data.WeatherContract.WeatherEntry.COLUMN_LOCATION_ID;
 import static com.example.android.sunshine.data.WeatherContract.WeatherEntry.COLUMN_MAX_TEMP;
 import static com.example.android.sunshine.data.WeatherContract.WeatherEntry.COLUMN_MIN_TEMP;
 import static com.example.android.sunshine.data.WeatherContract.WeatherEntry.COLUMN_PRESSURE;
@@ -59,6 +61,11 @@ class TestUtilities {
 
     static final int BULK_INSERT_RECORDS_TO_INSERT = 10;
 
+    /* Fairbanks, Alaska. Used wherever a location other than the preferred one is needed. */
+    static final String TEST_LOCATION = "99705";
+    static final double TEST_LOCATION_LAT = 64.7488;
+    static final double TEST_LOCATION_LONG = -147.353;
+
     /**
      * Ensures there is a non empty cursor and validates the cursor's data by checking it against
      * a set of expected values. This method will then close the cursor.
@@ -110,16 +117,57 @@ class TestUtilities {
         }
     }
 
+    /**
+     * Every weather row belongs to a location, so tests that write to weather.db directly need
+     * one to exist first. Returns the _ID of the location with the given setting, inserting it
+     * (with the test coordinates) if it isn't stored yet.
+     *
+     * @param database        A writable weather.db
+     * @param locationSetting The location setting to look up
+     * @return The _ID of the location
+     */
+    static long getOrInsertLocation(SQLiteDatabase database, String locationSetting) {
+        Cursor cursor = database.query(
+                WeatherContract.LocationEntry.TABLE_NAME,
+                new String[]{WeatherContract.LocationEntry._ID},
+                WeatherContract.LocationEntry.COLUMN_LOCATION_SETTING + " = ?",
+                new String[]{locationSetting},
+                null,
+                null,
+                null);
+        try {
+            if (cursor.moveToFirst()) {
+                return cursor.getLong(0);
+            }
+        } finally {
+            cursor.close();
+        }
+
+        ContentValues locationValues = new ContentValues();
+        locationValues.put(WeatherContract.LocationEntry.COLUMN_LOCATION_SETTING, locationSetting);
+        locationValues.put(WeatherContract.LocationEntry.COLUMN_COORD_LAT, TEST_LOCATION_LAT);
+        locationValues.put(WeatherContract.LocationEntry.COLUMN_COORD_LONG, TEST_LOCATION_LONG);
+        locationValues.put(WeatherContract.LocationEntry.COLUMN_LAST_SYNCED, 0);
+
+        long locationId = database.insert(
+                WeatherContract.LocationEntry.TABLE_NAME, null, locationValues);
+        assertTrue("Unable to insert location " + locationSetting, locationId != -1);
+        return locationId;
+    }
+
     /**
      * Used as a convenience method to return a singleton instance of ContentValues to populate
      * our database or insert using our ContentProvider.
      *
+     * @param locationId The _ID of the location the weather belongs to
      * @return ContentValues that can be inserted into our ContentProvider or weather.db
      */
-    static ContentValues createTestWeatherContentValues() {
+    static ContentValues createTestWeatherContentValues(long locationId) {
 
         ContentValues testWeatherValues = new ContentValues();
 
+        testWeatherValues.put(COLUMN_LOCATION_ID, locationId);
+
         testWeatherValues.put(COLUMN_DATE, DATE_NORMALIZED);
         testWeatherValues.put(COLUMN_DEGREES, 1.1);
         testWeatherValues.put(COLUMN_HUMIDITY, 1.2);
@@ -17,16 +17,24 @@ package com.example.android.sunshine.data;
 
 import android.content.ComponentName;
 import android.content.ContentResolver;
+import android.content.ContentUris;
 import android.content.ContentValues;
 import android.content.Context;
 import android.content.pm.PackageManager;
 import android.content.pm.ProviderInfo;
+import android.database.ContentObserver;
 import android.database.Cursor;
 import android.database.sqlite.SQLiteDatabase;
 import android.net.Uri;
+import android.os.Handler;
+import android.os.HandlerThread;
+import android.os.SystemClock;
 import android.support.test.InstrumentationRegistry;
 import android.support.test.runner.AndroidJUnit4;
 
+import com.example.android.sunshine.utilities.SunshineDateUtils;
+import com.example.android.sunshine.utils.PollingCheck;
+
 import org.junit.Before;
 import org.junit.Test;
 import org.junit.runner.RunWith;
@@ -168,8 +176,15 @@ public class TestWeatherProvider {
         WeatherDbHelper dbHelper = new WeatherDbHelper(mContext);
         SQLiteDatabase database = dbHelper.getWritableDatabase();
 
+        /*
+         * The provider only returns the forecast of the location set in the preferences, so
+         * that's the location our test weather has to belong to.
+         */
+        long locationId = TestUtilities.getOrInsertLocation(database,
+                SunshinePreferences.getPreferredWeatherLocation(mContext));
+
         /* Obtain weather values from TestUtilities */
-        ContentValues testWeatherValues = TestUtilities.createTestWeatherContentValues();
+        ContentValues testWeatherValues = TestUtilities.createTestWeatherContentValues(locationId);
 
         /* Insert ContentValues into database and get a row ID back */
         long weatherRowId = database.insert(
@@ -423,6 +438,527 @@ public class TestWeatherProvider {
         shouldBeEmptyCursor.close();
     }
 
+    /**
+     * This test bulk inserts a forecast at the sync URI twice. The first sync should write every
+     * day. The second sync changes one day and drops the first day of the forecast, so it should
+     * write exactly one row and delete exactly one row.
+     * <p>
+     * Potential causes for failure:
+     * <p>
+     *   1) WeatherProvider rewrote days whose values did not change
+     * <p>
+     *   2) Days missing from the new forecast were not deleted
+     */
+    @Test
+    public void testSyncOnlyWritesChangedRows() {
+
+        ContentResolver contentResolver = mContext.getContentResolver();
+
+        /* Days before today are never deleted by a sync, so the forecast starts today */
+        long today = SunshineDateUtils.normalizeDate(System.currentTimeMillis());
+        ContentValues[] firstForecast =
+                createForecastFrom(today, BULK_INSERT_RECORDS_TO_INSERT);
+        int firstSyncChanges = contentResolver.bulkInsert(
+                WeatherContract.WeatherEntry.SYNC_URI,
+                firstForecast);
+
+        assertEquals("The first sync should write every day of the forecast",
+                BULK_INSERT_RECORDS_TO_INSERT,
+                firstSyncChanges);
+
+        /* Drop the first day and change the max temperature of the last day */
+        ContentValues[] secondForecast =
+                createForecastFrom(today, BULK_INSERT_RECORDS_TO_INSERT);
+        ContentValues[] shiftedForecast = new ContentValues[secondForecast.length - 1];
+        System.arraycopy(secondForecast, 1, shiftedForecast, 0, shiftedForecast.length);
+        shiftedForecast[shiftedForecast.length - 1]
+                .put(WeatherContract.WeatherEntry.COLUMN_MAX_TEMP, 100);
+
+        int secondSyncChanges = contentResolver.bulkInsert(
+                WeatherContract.WeatherEntry.SYNC_URI,
+                shiftedForecast);
+
+        assertEquals("The second sync should write one row and delete one row",
+                2,
+                secondSyncChanges);
+
+        Cursor cursor = contentResolver.query(
+                WeatherContract.WeatherEntry.CONTENT_URI,
+                null,
+                null,
+                null,
+                WeatherContract.WeatherEntry.COLUMN_DATE + " ASC");
+
+        assertNotNull("Cursor was null.", cursor);
+        assertEquals(shiftedForecast.length, cursor.getCount());
+
+        cursor.moveToFirst();
+        for (int i = 0; i < shiftedForecast.length; i++, cursor.moveToNext()) {
+            TestUtilities.validateCurrentRecord(
+                    "testSyncOnlyWritesChangedRows. Error validating WeatherEntry " + i,
+                    cursor,
+                    shiftedForecast[i]);
+        }
+
+        cursor.close();
+    }
+
+    /**
+     * This test syncs a forecast for the location set in the preferences and then another
+     * forecast for a second location. Both forecasts should be kept, each one under its own
+     * location, and syncing should record when each location was last synced.
+     * <p>
+     * Potential causes for failure:
+     * <p>
+     *   1) Syncing one location deleted or replaced the forecast of another location
+     * <p>
+     *   2) WeatherEntry.CONTENT_URI returned rows that don't belong to the current location
+     * <p>
+     *   3) The location's last synced time was not updated
+     */
+    @Test
+    public void testSyncKeepsOtherLocations() {
+
+        ContentResolver contentResolver = mContext.getContentResolver();
+
+        ContentValues[] currentForecast = createBulkInsertTestWeatherValues();
+        contentResolver.bulkInsert(WeatherContract.WeatherEntry.SYNC_URI, currentForecast);
+
+        ContentValues locationValues = new ContentValues();
+        locationValues.put(WeatherContract.LocationEntry.COLUMN_LOCATION_SETTING,
+                TestUtilities.TEST_LOCATION);
+        locationValues.put(WeatherContract.LocationEntry.COLUMN_COORD_LAT,
+                TestUtilities.TEST_LOCATION_LAT);
+        locationValues.put(WeatherContract.LocationEntry.COLUMN_COORD_LONG,
+                TestUtilities.TEST_LOCATION_LONG);
+
+        Uri locationUri = contentResolver.insert(
+                WeatherContract.LocationEntry.CONTENT_URI,
+                locationValues);
+        assertNotNull("Inserting a location should return its URI", locationUri);
+        long otherLocationId = ContentUris.parseId(locationUri);
+
+        /* Inserting the same location again should update it rather than add another row */
+        Uri secondLocationUri = contentResolver.insert(
+                WeatherContract.LocationEntry.CONTENT_URI,
+                locationValues);
+        assertEquals("Inserting a stored location should keep its _ID",
+                otherLocationId, ContentUris.parseId(secondLocationUri));
+
+        /* Only keep the first half of the forecast for the other location */
+        ContentValues[] otherForecast = new ContentValues[BULK_INSERT_RECORDS_TO_INSERT / 2];
+        System.arraycopy(createBulkInsertTestWeatherValues(), 0,
+                otherForecast, 0, otherForecast.length);
+        for (ContentValues value : otherForecast) {
+            value.put(WeatherContract.WeatherEntry.COLUMN_LOCATION_ID, otherLocationId);
+        }
+
+        long beforeSync = System.currentTimeMillis();
+        contentResolver.bulkInsert(WeatherContract.WeatherEntry.SYNC_URI, otherForecast);
+
+        Cursor currentCursor = contentResolver.query(
+                WeatherContract.WeatherEntry.CONTENT_URI, null, null, null, null);
+        assertNotNull("Cursor was null.", currentCursor);
+        assertEquals("Syncing another location should not touch the current forecast",
+                currentForecast.length, currentCursor.getCount());
+        currentCursor.close();
+
+        Cursor otherCursor = contentResolver.query(
+                WeatherContract.WeatherEntry.buildWeatherUriWithLocation(otherLocationId),
+                null, null, null, null);
+        assertNotNull("Cursor was null.", otherCursor);
+        assertEquals("The other location should have its own forecast",
+                otherForecast.length, otherCursor.getCount());
+        otherCursor.close();
+
+        Cursor locationCursor = contentResolver.query(
+                WeatherContract.LocationEntry.buildLocationUri(otherLocationId),
+                new String[]{WeatherContract.LocationEntry.COLUMN_LAST_SYNCED},
+                null, null, null);
+        assertNotNull("Cursor was null.", locationCursor);
+        assertTrue("The other location should be stored", locationCursor.moveToFirst());
+        assertTrue("Syncing should update the location's last synced time",
+                locationCursor.getLong(0) >= beforeSync);
+        locationCursor.close();
+    }
+
+    /**
+     * This test checks that the summary at WeatherEntry.META_URI follows the forecast of the
+     * current location as it is synced and deleted.
+     * <p>
+     * Potential causes for failure:
+     * <p>
+     *   1) WeatherProvider didn't update the location's forecast summary along with a write
+     * <p>
+     *   2) The summary counted the rows of another location
+     */
+    @Test
+    public void testForecastSummaryFollowsForecast() {
+
+        ContentResolver contentResolver = mContext.getContentResolver();
+
+        Cursor emptyCursor = contentResolver.query(
+                WeatherContract.WeatherEntry.META_URI, null, null, null, null);
+        assertNotNull("Cursor was null.", emptyCursor);
+        assertEquals("A location that was never synced has no summary",
+                0, emptyCursor.getCount());
+        emptyCursor.close();
+
+        long today = SunshineDateUtils.normalizeDate(System.currentTimeMillis());
+        ContentValues[] forecast = createForecastFrom(today, BULK_INSERT_RECORDS_TO_INSERT);
+        long beforeSync = System.currentTimeMillis();
+        contentResolver.bulkInsert(WeatherContract.WeatherEntry.SYNC_URI, forecast);
+
+        long newestDate = forecast[forecast.length - 1]
+                .getAsLong(WeatherContract.WeatherEntry.COLUMN_DATE);
+        assertForecastSummary("after syncing", forecast.length, newestDate, beforeSync);
+
+        /* Drop the last two days */
+        int rowsDeleted = contentResolver.delete(WeatherContract.WeatherEntry.CONTENT_URI,
+                WeatherContract.WeatherEntry.COLUMN_DATE + " >= ?",
+                new String[]{forecast[forecast.length - 2]
+                        .getAsString(WeatherContract.WeatherEntry.COLUMN_DATE)});
+        assertEquals(2, rowsDeleted);
+
+        long newDate = forecast[forecast.length - 3]
+                .getAsLong(WeatherContract.WeatherEntry.COLUMN_DATE);
+        assertForecastSummary("after deleting", forecast.length - 2, newDate, beforeSync);
+
+        contentResolver.delete(WeatherContract.WeatherEntry.CONTENT_URI, null, null);
+        assertForecastSummary("after deleting everything", 0, 0, beforeSync);
+    }
+
+    /**
+     * This test syncs the same forecast twice, the second time as if the server had confirmed it
+     * later on. Nothing about the weather changed, so nothing should count as changed, but every
+     * day, and the location's summary, should know when the forecast now expires.
+     * <p>
+     * Potential causes for failure:
+     * <p>
+     *   1) WeatherProvider compared the freshness columns along with the weather
+     * <p>
+     *   2) The days that didn't change kept their old expiry time
+     */
+    @Test
+    public void testSyncRefreshesExpiryWithoutChanges() {
+
+        ContentResolver contentResolver = mContext.getContentResolver();
+
+        long today = SunshineDateUtils.normalizeDate(System.currentTimeMillis());
+        ContentValues[] firstForecast = createForecastFrom(today, BULK_INSERT_RECORDS_TO_INSERT);
+        setFreshness(firstForecast, 1000, 2000);
+        contentResolver.bulkInsert(WeatherContract.WeatherEntry.SYNC_URI, firstForecast);
+
+        ContentValues[] secondForecast = createForecastFrom(today, BULK_INSERT_RECORDS_TO_INSERT);
+        setFreshness(secondForecast, 3000, 4000);
+        int rowsChanged = contentResolver.bulkInsert(
+                WeatherContract.WeatherEntry.SYNC_URI, secondForecast);
+
+        assertEquals("Confirming a forecast shouldn't count as changing it", 0, rowsChanged);
+
+        Cursor cursor = contentResolver.query(
+                WeatherContract.WeatherEntry.CONTENT_URI,
+                new String[]{WeatherContract.WeatherEntry.COLUMN_FETCHED_AT,
+                        WeatherContract.WeatherEntry.COLUMN_EXPIRES_AT},
+                null, null, null);
+        assertNotNull("Cursor was null.", cursor);
+        assertEquals(secondForecast.length, cursor.getCount());
+        while (cursor.moveToNext()) {
+            assertEquals("Every day should be marked as fetched again", 3000, cursor.getLong(0));
+            assertEquals("Every day should expire later", 4000, cursor.getLong(1));
+        }
+        cursor.close();
+
+        Cursor summaryCursor = contentResolver.query(WeatherContract.WeatherEntry.META_URI,
+                new String[]{WeatherContract.LocationEntry.COLUMN_FORECAST_EXPIRES_AT},
+                null, null, null);
+        assertNotNull("Cursor was null.", summaryCursor);
+        assertTrue(summaryCursor.moveToFirst());
+        assertEquals("The summary should expire with the forecast", 4000, summaryCursor.getLong(0));
+        summaryCursor.close();
+    }
+
+    /**
+     * This test opens a cursor over the whole forecast and a cursor for each of two days, then
+     * syncs a forecast in which only one of those days changed. The cursor over the whole
+     * forecast and the cursor for the day that changed should each be notified once, and the
+     * cursor for the other day not at all. Syncing the same forecast again shouldn't notify
+     * anyone.
+     * <p>
+     * Potential causes for failure:
+     * <p>
+     *   1) WeatherProvider notified CONTENT_URI, which reaches the cursor of every day
+     * <p>
+     *   2) WeatherProvider notified the cursor over the whole forecast once per changed day
+     * <p>
+     *   3) A sync that changed nothing notified anyway
+     */
+    @Test
+    public void testSyncNotifiesOnlyChangedDays() {
+
+        ContentResolver contentResolver = mContext.getContentResolver();
+
+        ContentValues[] forecast = createBulkInsertTestWeatherValues();
+        contentResolver.bulkInsert(WeatherContract.WeatherEntry.SYNC_URI, forecast);
+
+        long changedDate = forecast[0].getAsLong(WeatherContract.WeatherEntry.COLUMN_DATE);
+        long unchangedDate = forecast[1].getAsLong(WeatherContract.WeatherEntry.COLUMN_DATE);
+
+        HandlerThread observerThread = new HandlerThread("ChangedDaysObserverThread");
+        observerThread.start();
+        Handler handler = new Handler(observerThread.getLooper());
+
+        Cursor forecastCursor = contentResolver.query(
+                WeatherContract.WeatherEntry.CONTENT_URI, null, null, null, null);
+        Cursor changedDayCursor = contentResolver.query(
+                WeatherContract.WeatherEntry.buildWeatherUriWithDate(changedDate),
+                null, null, null, null);
+        Cursor unchangedDayCursor = contentResolver.query(
+                WeatherContract.WeatherEntry.buildWeatherUriWithDate(unchangedDate),
+                null, null, null, null);
+        assertNotNull("Cursor was null.", forecastCursor);
+        assertNotNull("Cursor was null.", changedDayCursor);
+        assertNotNull("Cursor was null.", unchangedDayCursor);
+
+        final CountingObserver forecastObserver = new CountingObserver(handler);
+        final CountingObserver changedDayObserver = new CountingObserver(handler);
+        CountingObserver unchangedDayObserver = new CountingObserver(handler);
+        forecastCursor.registerContentObserver(forecastObserver);
+        changedDayCursor.registerContentObserver(changedDayObserver);
+        unchangedDayCursor.registerContentObserver(unchangedDayObserver);
+
+        ContentValues[] changedForecast = createBulkInsertTestWeatherValues();
+        changedForecast[0].put(WeatherContract.WeatherEntry.COLUMN_MAX_TEMP, 100);
+        contentResolver.bulkInsert(WeatherContract.WeatherEntry.SYNC_URI, changedForecast);
+
+        new PollingCheck(5000) {
+            @Override
+            protected boolean check() {
+                return forecastObserver.mChanges > 0 && changedDayObserver.mChanges > 0;
+            }
+        }.run();
+
+        /* Give any extra notifications time to arrive */
+        SystemClock.sleep(500);
+
+        assertEquals("The whole forecast should be notified once", 1, forecastObserver.mChanges);
+        assertEquals("The day that changed should be notified once",
+                1, changedDayObserver.mChanges);
+        assertEquals("The day that didn't change shouldn't be notified",
+                0, unchangedDayObserver.mChanges);
+
+        contentResolver.bulkInsert(WeatherContract.WeatherEntry.SYNC_URI, changedForecast);
+        SystemClock.sleep(500);
+
+        assertEquals("A sync that changed nothing shouldn't notify anyone",
+                1, forecastObserver.mChanges);
+        assertEquals("A sync that changed nothing shouldn't notify anyone",
+                1, changedDayObserver.mChanges);
+
+        forecastCursor.close();
+        changedDayCursor.close();
+        unchangedDayCursor.close();
+        observerThread.quit();
+    }
+
+    /**
+     * This test syncs a forecast that starts three days ago and then runs maintenance through
+     * the provider. The two days before the history window should be archived, and the cursor
+     * over the forecast should hear about it.
+     * <p>
+     * Potential causes for failure:
+     * <p>
+     *   1) Maintenance didn't run on the provider's database
+     * <p>
+     *   2) WeatherProvider didn't notify the observers of the days maintenance deleted
+     */
+    @Test
+    public void testMaintenanceRunsThroughProvider() {
+
+        ContentResolver contentResolver = mContext.getContentResolver();
+
+        long today = SunshineDateUtils.normalizeDate(System.currentTimeMillis());
+        contentResolver.bulkInsert(WeatherContract.WeatherEntry.SYNC_URI,
+                createForecastFrom(today - 3 * SunshineDateUtils.DAY_IN_MILLIS, 7));
+
+        HandlerThread observerThread = new HandlerThread("MaintenanceObserverThread");
+        observerThread.start();
+        Cursor forecastCursor = contentResolver.query(
+                WeatherContract.WeatherEntry.CONTENT_URI, null, null, null, null);
+        assertNotNull("Cursor was null.", forecastCursor);
+        final CountingObserver forecastObserver =
+                new CountingObserver(new Handler(observerThread.getLooper()));
+        forecastCursor.registerContentObserver(forecastObserver);
+
+        assertTrue("Maintenance should run", ForecastRetention.runMaintenance(mContext));
+
+        new PollingCheck(5000) {
+            @Override
+            protected boolean check() {
+                return forecastObserver.mChanges > 0;
+            }
+        }.run();
+
+        assertEquals("Yesterday and the days after it should be kept", 5, countForecastDays());
+        assertEquals("The days before yesterday should be archived", 2, countArchivedDays(
+                today - 3 * SunshineDateUtils.DAY_IN_MILLIS, today));
+
+        forecastCursor.close();
+        observerThread.quit();
+    }
+
+    /**
+     * This test syncs a forecast as it was two days ago, then today's forecast, which no longer
+     * has the two days that went by, and then runs maintenance. The sync should leave the past
+     * days alone. Maintenance should keep yesterday, which is within the history window, and
+     * move the day before it to the archive.
+     * <p>
+     * Potential causes for failure:
+     * <p>
+     *   1) The sync deleted the days that went by before maintenance could archive them
+     * <p>
+     *   2) Maintenance didn't archive the days before the history window
+     */
+    @Test
+    public void testPastDaysAreArchivedAfterSync() {
+
+        ContentResolver contentResolver = mContext.getContentResolver();
+
+        long today = SunshineDateUtils.normalizeDate(System.currentTimeMillis());
+        long yesterday = today - SunshineDateUtils.DAY_IN_MILLIS;
+        long dayBeforeYesterday = today - 2 * SunshineDateUtils.DAY_IN_MILLIS;
+
+        contentResolver.bulkInsert(WeatherContract.WeatherEntry.SYNC_URI,
+                createForecastFrom(dayBeforeYesterday, 7));
+        int rowsChanged = contentResolver.bulkInsert(WeatherContract.WeatherEntry.SYNC_URI,
+                createForecastFrom(today, 7));
+
+        assertEquals("Today's forecast should be written, and no past day deleted",
+                7, rowsChanged);
+        assertEquals("The days that went by should be kept", 9, countForecastDays());
+
+        assertTrue("Maintenance should run", ForecastRetention.runMaintenance(mContext));
+
+        assertEquals("Yesterday should still be in the forecast",
+                8, countForecastDays());
+        assertEquals("Yesterday is within the history window, so it isn't archived yet",
+                0, countArchivedDays(yesterday, yesterday));
+        assertEquals("The day before yesterday should be archived",
+                1, countArchivedDays(dayBeforeYesterday, dayBeforeYesterday));
+    }
+
+    /**
+     * This test syncs a forecast as it was two days ago, then today's forecast, each fetched at
+     * its own time. The two days that went by are kept for maintenance, but they are history
+     * now: the second sync shouldn't mark them as fetched, and the summary shouldn't count them
+     * or let their older expiry time decide when the forecast expires.
+     * <p>
+     * Potential causes for failure:
+     * <p>
+     *   1) The sync marked every stored day of the location as fetched, the past ones too
+     * <p>
+     *   2) The summary counted the days before today
+     */
+    @Test
+    public void testPastDaysAreNotPartOfTheSummary() {
+
+        ContentResolver contentResolver = mContext.getContentResolver();
+
+        long today = SunshineDateUtils.normalizeDate(System.currentTimeMillis());
+        long dayBeforeYesterday = today - 2 * SunshineDateUtils.DAY_IN_MILLIS;
+
+        ContentValues[] oldForecast = createForecastFrom(dayBeforeYesterday, 7);
+        setFreshness(oldForecast, 1000, 2000);
+        contentResolver.bulkInsert(WeatherContract.WeatherEntry.SYNC_URI, oldForecast);
+
+        ContentValues[] newForecast = createForecastFrom(today, 7);
+        setFreshness(newForecast, 3000, 4000);
+        long beforeSync = System.currentTimeMillis();
+        contentResolver.bulkInsert(WeatherContract.WeatherEntry.SYNC_URI, newForecast);
+
+        Cursor pastCursor = contentResolver.query(
+                WeatherContract.WeatherEntry.buildWeatherUriWithDate(dayBeforeYesterday),
+                new String[]{WeatherContract.WeatherEntry.COLUMN_FETCHED_AT},
+                null, null, null);
+        assertNotNull("Cursor was null.", pastCursor);
+        assertTrue(pastCursor.moveToFirst());
+        assertEquals("A day that went by wasn't fetched again", 1000, pastCursor.getLong(0));
+        pastCursor.close();
+
+        assertForecastSummary("with days that went by", 7,
+                today + 6 * SunshineDateUtils.DAY_IN_MILLIS, beforeSync);
+
+        Cursor summaryCursor = contentResolver.query(WeatherContract.WeatherEntry.META_URI,
+                new String[]{WeatherContract.LocationEntry.COLUMN_FORECAST_EXPIRES_AT},
+                null, null, null);
+        assertNotNull("Cursor was null.", summaryCursor);
+        assertTrue(summaryCursor.moveToFirst());
+        assertEquals("The days that went by shouldn't decide when the forecast expires",
+                4000, summaryCursor.getLong(0));
+        summaryCursor.close();
+    }
+
+    /* A forecast of days days for the current location, from firstDate on */
+    private static ContentValues[] createForecastFrom(long firstDate, int days) {
+        ContentValues[] forecast = createBulkInsertTestWeatherValues();
+        ContentValues[] shortForecast = new ContentValues[days];
+        for (int i = 0; i < days; i++) {
+            shortForecast[i] = forecast[i];
+            shortForecast[i].put(WeatherContract.WeatherEntry.COLUMN_DATE,
+                    firstDate + i * SunshineDateUtils.DAY_IN_MILLIS);
+        }
+        return shortForecast;
+    }
+
+    private int countForecastDays() {
+        Cursor cursor = mContext.getContentResolver().query(
+                WeatherContract.WeatherEntry.CONTENT_URI, null, null, null, null);
+        assertNotNull("Cursor was null.", cursor);
+        try {
+            return cursor.getCount();
+        } finally {
+            cursor.close();
+        }
+    }
+
+    private int countArchivedDays(long firstDate, long lastDate) {
+        Cursor cursor = mContext.getContentResolver().query(
+                WeatherContract.ArchiveEntry.buildArchiveUriWithDateRange(firstDate, lastDate),
+                null, null, null, null);
+        assertNotNull("Cursor was null.", cursor);
+        try {
+            return cursor.getCount();
+        } finally {
+            cursor.close();
+        }
+    }
+
+    private static void setFreshness(ContentValues[] forecast, long fetchedAt, long expiresAt) {
+        for (ContentValues day : forecast) {
+            day.put(WeatherContract.WeatherEntry.COLUMN_FETCHED_AT, fetchedAt);
+            day.put(WeatherContract.WeatherEntry.COLUMN_EXPIRES_AT, expiresAt);
+        }
+    }
+
+    private void assertForecastSummary(String when, int forecastDays, long newestDate,
+                                       long syncedAfter) {
+        Cursor cursor = mContext.getContentResolver().query(
+                WeatherContract.WeatherEntry.META_URI, null, null, null, null);
+        assertNotNull("Cursor was null.", cursor);
+        assertTrue("The current location should have a summary " + when, cursor.moveToFirst());
+
+        assertEquals("Wrong number of forecast days " + when, forecastDays,
+                cursor.getInt(cursor.getColumnIndex(
+                        WeatherContract.LocationEntry.COLUMN_FORECAST_DAYS)));
+        assertEquals("Wrong newest date " + when, newestDate,
+                cursor.getLong(cursor.getColumnIndex(
+                        WeatherContract.LocationEntry.COLUMN_NEWEST_DATE)));
+        assertTrue("Wrong last synced time " + when,
+                cursor.getLong(cursor.getColumnIndex(
+                        WeatherContract.LocationEntry.COLUMN_LAST_SYNCED)) >= syncedAfter);
+        cursor.close();
+    }
+
     /**
      * This method will clear all rows from the weather table in our database.
      * <p>
@@ -443,7 +979,25 @@ public class TestWeatherProvider {
         /* The delete method deletes all of the desired rows from the table, not the table itself */
         database.delete(WeatherContract.WeatherEntry.TABLE_NAME, null, null);
 
+        /* Stored locations are cleared too, so that no test sees another test's locations */
+        database.delete(WeatherContract.LocationEntry.TABLE_NAME, null, null);
+
         /* Always close the database when you're through with it */
         database.close();
     }
+
+    /* Counts the changes it is notified of, on the handler's thread */
+    private static class CountingObserver extends ContentObserver {
+
+        volatile int mChanges;
+
+        CountingObserver(Handler handler) {
+            super(handler);
+        }
+
+        @Override
+        public void onChange(boolean selfChange) {
+            mChanges++;
+        }
+    }
 }
\ No newline at end of file
@@ -0,0 +1,325 @@
+/*
+ * Copyright (C) 2016 The Android Open Source Project
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *      http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package com.example.android.sunshine.sync;
+
+import android.support.test.runner.AndroidJUnit4;
+import android.util.Log;
+
+import org.junit.Test;
+import org.junit.runner.RunWith;
+
+import java.util.ArrayList;
+import java.util.List;
+import java.util.Random;
+import java.util.TimeZone;
+import java.util.concurrent.TimeUnit;
+
+import static junit.framework.Assert.assertEquals;
+import static junit.framework.Assert.assertFalse;
+import static junit.framework.Assert.assertTrue;
+
+/**
+ * Runs {@link AdaptiveSyncPolicy} against four weeks of a simulated user and weather server, and
+ * compares it with syncing every three hours, which is what Sunshine used to do.
+ * <p>
+ * The user opens Sunshine around breakfast, lunch and dinner. The forecast changes upstream
+ * about twice a day. The device is charging on Wi-Fi at night. For each policy, the simulation
+ * counts how many times a day the device wakes up to sync, and how old the forecast is when the
+ * user looks at it. Syncs that wait for the charger run as soon as it is plugged in. The numbers
+ * are logged under {@link #TAG}; the assertions only check that the adaptive policy wakes up
+ * less without the user seeing an outdated forecast more often.
+ */
+@RunWith(AndroidJUnit4.class)
+public class TestAdaptiveSyncSimulation {
+
+    private static final String TAG = TestAdaptiveSyncSimulation.class.getSimpleName();
+
+    /* Midnight UTC, which is also midnight in the simulation's time zone */
+    private static final long START = 1475280000000L;
+    private static final int DAYS = 28;
+
+    private static final long MINUTE = TimeUnit.MINUTES.toMillis(1);
+    private static final long HOUR = TimeUnit.HOURS.toMillis(1);
+    private static final long DAY = TimeUnit.DAYS.toMillis(1);
+
+    private static final TimeZone UTC = TimeZone.getTimeZone("UTC");
+
+    /* When the user opens the app, in minutes after midnight, give or take OPEN_JITTER */
+    private static final int[] OPEN_MINUTES = {7 * 60 + 30, 12 * 60 + 15, 19 * 60};
+    private static final int OPEN_JITTER_MINUTES = 20;
+
+    /* When the forecast changes upstream, in minutes after midnight, plus up to an hour */
+    private static final int[] CHANGE_MINUTES = {5 * 60, 17 * 60};
+
+    /* The device charges on Wi-Fi from 23:00 to 07:00 */
+    private static final int CHARGING_FROM_HOUR = 23;
+    private static final int CHARGING_UNTIL_HOUR = 7;
+
+    /**
+     * What happened during one simulation.
+     */
+    private static class Result {
+        int syncs;
+        int opens;
+        int outdatedOpens;
+        long totalAgeAtOpenMillis;
+
+        float getSyncsPerDay() {
+            return syncs / (float) DAYS;
+        }
+
+        long getMeanAgeAtOpenMinutes() {
+            return TimeUnit.MILLISECONDS.toMinutes(totalAgeAtOpenMillis / opens);
+        }
+
+        float getOutdatedOpenRate() {
+            return outdatedOpens / (float) opens;
+        }
+
+        @Override
+        public String toString() {
+            return String.format("%.1f syncs a day, forecast %d minutes old on average when "
+                            + "opened, outdated at %.0f%% of opens",
+                    getSyncsPerDay(), getMeanAgeAtOpenMinutes(), getOutdatedOpenRate() * 100);
+        }
+    }
+
+    /**
+     * A sync policy under simulation, told about every sync and every open.
+     */
+    private interface Scheduler {
+        AdaptiveSyncPolicy.Schedule onSync(long nowMillis, boolean changed);
+
+        void onOpen(long nowMillis);
+    }
+
+    @Test
+    public void testAdaptivePolicyWakesUpLessWithoutShowingOlderForecasts() {
+        Result fixed = simulate(new Scheduler() {
+            @Override
+            public AdaptiveSyncPolicy.Schedule onSync(long nowMillis, boolean changed) {
+                long interval = AdaptiveSyncPolicy.DEFAULT_INTERVAL_MILLIS;
+                return new AdaptiveSyncPolicy.Schedule(interval, interval + interval / 3,
+                        AdaptiveSyncPolicy.Schedule.NO_OPPORTUNISTIC_SYNC);
+            }
+
+            @Override
+            public void onOpen(long nowMillis) {
+            }
+        });
+
+        final AdaptiveSyncPolicy policy = new AdaptiveSyncPolicy(UTC);
+        Result adaptive = simulate(new Scheduler() {
+            @Override
+            public AdaptiveSyncPolicy.Schedule onSync(long nowMillis, boolean changed) {
+                policy.recordSync(nowMillis, changed);
+                AdaptiveSyncPolicy.Schedule schedule = policy.nextSchedule(nowMillis);
+                assertValid(schedule);
+                return schedule;
+            }
+
+            @Override
+            public void onOpen(long nowMillis) {
+                policy.recordAppOpen(nowMillis);
+            }
+        });
+
+        Log.i(TAG, "Every 3 hours: " + fixed);
+        Log.i(TAG, "Adaptive: " + adaptive);
+        Log.i(TAG, "Adaptive interval after " + DAYS + " days: "
+                + TimeUnit.MILLISECONDS.toMinutes(policy.getIntervalMillis()) + " minutes");
+
+        assertTrue("The adaptive policy should wake the device up less often",
+                adaptive.syncs < fixed.syncs);
+        assertTrue("The adaptive policy should not show outdated forecasts more often",
+                adaptive.outdatedOpens <= fixed.outdatedOpens);
+    }
+
+    @Test
+    public void testWithoutUsageTheScheduleIsUnchanged() {
+        AdaptiveSyncPolicy policy = new AdaptiveSyncPolicy(UTC);
+        AdaptiveSyncPolicy.Schedule schedule = policy.nextSchedule(START);
+
+        assertEquals(AdaptiveSyncPolicy.DEFAULT_INTERVAL_MILLIS, schedule.windowStartMillis);
+        assertEquals(AdaptiveSyncPolicy.DEFAULT_INTERVAL_MILLIS * 4 / 3,
+                schedule.windowEndMillis);
+        assertFalse(schedule.hasOpportunisticSync());
+    }
+
+    @Test
+    public void testIntervalFollowsHowOftenTheForecastChanges() {
+        AdaptiveSyncPolicy policy = new AdaptiveSyncPolicy(UTC);
+        long now = START;
+        for (int i = 0; i < 50; i++) {
+            now += HOUR;
+            policy.recordSync(now, false);
+        }
+        assertEquals(AdaptiveSyncPolicy.MAX_INTERVAL_MILLIS, policy.getIntervalMillis());
+
+        for (int i = 0; i < 50; i++) {
+            now += HOUR;
+            policy.recordSync(now, true);
+        }
+        assertTrue(policy.getIntervalMillis() < AdaptiveSyncPolicy.DEFAULT_INTERVAL_MILLIS);
+    }
+
+    @Test
+    public void testSyncHappensShortlyBeforeTheUsualOpen() {
+        AdaptiveSyncPolicy policy = newPolicyOpenedAtEight();
+
+        /* The forecast changes all the time, so there's no time to sync early */
+        long evening = START + 7 * DAY + 20 * HOUR;
+        for (int i = 0; i < 10; i++) {
+            policy.recordSync(evening, true);
+        }
+        AdaptiveSyncPolicy.Schedule schedule = policy.nextSchedule(evening);
+
+        long untilOpen = 12 * HOUR;
+        assertEquals(untilOpen - AdaptiveSyncPolicy.LEAD_TIME_MILLIS, schedule.windowEndMillis);
+        assertEquals(schedule.windowEndMillis - AdaptiveSyncPolicy.PRE_OPEN_WINDOW_MILLIS,
+                schedule.windowStartMillis);
+        assertFalse(schedule.hasOpportunisticSync());
+    }
+
+    @Test
+    public void testSlowlyChangingForecastIsSyncedWhileCharging() {
+        AdaptiveSyncPolicy policy = newPolicyOpenedAtEight();
+
+        long evening = START + 7 * DAY + 20 * HOUR;
+        for (int i = 0; i < 5; i++) {
+            policy.recordSync(evening, false);
+        }
+        AdaptiveSyncPolicy.Schedule schedule = policy.nextSchedule(evening);
+
+        assertTrue(schedule.hasOpportunisticSync());
+        assertEquals("Any sync from the freshness before the open on will do",
+                12 * HOUR - policy.getFreshnessMillis(), schedule.opportunisticStartMillis);
+        assertEquals(12 * HOUR - AdaptiveSyncPolicy.LEAD_TIME_MILLIS, schedule.windowEndMillis);
+    }
+
+    @Test
+    public void testOpenWithFreshForecastIsSkipped() {
+        AdaptiveSyncPolicy policy = newPolicyOpenedAtEight();
+
+        /* The forecast changes slowly, so an hour before the open is recent enough */
+        long morning = START + 7 * DAY + 7 * HOUR;
+        for (int i = 0; i < 5; i++) {
+            policy.recordSync(morning, false);
+        }
+        assertTrue(policy.getFreshnessMillis() > HOUR);
+
+        /* The next open that needs a sync is more than a day away, so sync on the interval */
+        AdaptiveSyncPolicy.Schedule schedule = policy.nextSchedule(morning);
+        assertEquals(policy.getIntervalMillis(), schedule.windowStartMillis);
+    }
+
+    private static AdaptiveSyncPolicy newPolicyOpenedAtEight() {
+        AdaptiveSyncPolicy policy = new AdaptiveSyncPolicy(UTC);
+        for (int day = 0; day < 7; day++) {
+            policy.recordAppOpen(START + day * DAY + 8 * HOUR);
+        }
+        return policy;
+    }
+
+    private static void assertValid(AdaptiveSyncPolicy.Schedule schedule) {
+        assertTrue("Window starts in the past: " + schedule, schedule.windowStartMillis >= 0);
+        assertTrue("Window is empty: " + schedule,
+                schedule.windowEndMillis > schedule.windowStartMillis);
+        assertTrue("Window ends too late: " + schedule,
+                schedule.windowEndMillis <= AdaptiveSyncPolicy.MAX_INTERVAL_MILLIS * 4 / 3);
+        if (schedule.hasOpportunisticSync()) {
+            assertTrue("Opportunistic window is empty: " + schedule,
+                    schedule.opportunisticStartMillis >= 0
+                            && schedule.opportunisticStartMillis < schedule.windowStartMillis);
+        }
+    }
+
+    /**
+     * Runs the simulation one minute at a time.
+     */
+    private static Result simulate(Scheduler scheduler) {
+        /* The same seed for every policy, so that they face the same user and server */
+        Random random = new Random(42);
+        List<Long> opens = new ArrayList<>();
+        List<Long> changes = new ArrayList<>();
+        for (int day = 0; day < DAYS; day++) {
+            long midnight = START + day * DAY;
+            for (int minutes : OPEN_MINUTES) {
+                int jitter = random.nextInt(2 * OPEN_JITTER_MINUTES + 1) - OPEN_JITTER_MINUTES;
+                opens.add(midnight + (minutes + jitter) * MINUTE);
+            }
+            for (int minutes : CHANGE_MINUTES) {
+                changes.add(midnight + (minutes + random.nextInt(60)) * MINUTE);
+            }
+        }
+
+        Result result = new Result();
+        int nextOpen = 0;
+        int nextChange = 0;
+        long lastChange = START;
+
+        /* The app is installed, and synced, at ten in the morning */
+        long installed = START + 10 * HOUR;
+        while (opens.get(nextOpen) < installed) {
+            nextOpen++;
+        }
+
+        long lastSync = 0;
+        long runAt = installed;
+        long opportunisticFrom = 0;
+        boolean opportunistic = false;
+
+        for (long now = installed; now < START + DAYS * DAY; now += MINUTE) {
+            while (nextChange < changes.size() && changes.get(nextChange) <= now) {
+                lastChange = changes.get(nextChange++);
+            }
+
+            /*
+             * Like JobScheduler, the Job on any network runs somewhere in its window. The
+             * opportunistic Job runs as soon as the device is charging after its window started.
+             */
+            if (now >= runAt
+                    || (opportunistic && now >= opportunisticFrom && isChargingOnWifi(now))) {
+                boolean changed = lastChange > lastSync;
+                lastSync = now;
+                result.syncs++;
+
+                AdaptiveSyncPolicy.Schedule schedule = scheduler.onSync(now, changed);
+                long window = schedule.windowEndMillis - schedule.windowStartMillis;
+                runAt = now + schedule.windowStartMillis + (long) (random.nextFloat() * window);
+                opportunistic = schedule.hasOpportunisticSync();
+                opportunisticFrom = now + schedule.opportunisticStartMillis;
+            }
+
+            while (nextOpen < opens.size() && opens.get(nextOpen) <= now) {
+                nextOpen++;
+                result.opens++;
+                result.totalAgeAtOpenMillis += now - lastSync;
+                if (lastChange > lastSync) {
+                    result.outdatedOpens++;
+                }
+                scheduler.onOpen(now);
+            }
+        }
+
+        return result;
+    }
+
+    private static boolean isChargingOnWifi(long timeMillis) {
+        long hour = TimeUnit.MILLISECONDS.toHours(timeMillis % DAY);
+        return hour >= CHARGING_FROM_HOUR || hour < CHARGING_UNTIL_HOUR;
+    }
+}
@@ -0,0 +1,268 @@
+/*
+ * Copyright (C) 2016 The Android Open Source Project
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *      http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package com.example.android.sunshine.sync;
+
+import android.support.test.runner.AndroidJUnit4;
+import android.support.v4.os.CancellationSignal;
+
+import com.example.android.sunshine.utils.PollingCheck;
+
+import org.junit.Test;
+import org.junit.runner.RunWith;
+
+import java.util.concurrent.Callable;
+import java.util.concurrent.CancellationException;
+import java.util.concurrent.CountDownLatch;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicBoolean;
+import java.util.concurrent.atomic.AtomicInteger;
+
+import static junit.framework.Assert.assertEquals;
+import static junit.framework.Assert.assertFalse;
+import static junit.framework.Assert.assertNotNull;
+import static junit.framework.Assert.assertNull;
+import static junit.framework.Assert.assertTrue;
+
+/**
+ * Tests that {@link SingleFlight} shares a running sync between callers asking for the same
+ * location, and cancels a running sync when another location is asked for.
+ */
+@RunWith(AndroidJUnit4.class)
+public class TestSingleFlight {
+
+    private static final String LOCATION = "94043";
+    private static final String OTHER_LOCATION = "99705";
+
+    private final SingleFlight mSingleFlight = new SingleFlight();
+
+    /**
+     * Work that blocks until released, counting how many times it ran.
+     */
+    private static class BlockingWork implements SingleFlight.Work {
+        final CountDownLatch started = new CountDownLatch(1);
+        final CountDownLatch release = new CountDownLatch(1);
+        final AtomicInteger runCount = new AtomicInteger();
+        final AtomicBoolean sawCancellation = new AtomicBoolean();
+        final boolean result;
+
+        BlockingWork(boolean result) {
+            this.result = result;
+        }
+
+        @Override
+        public boolean run(SingleFlight.Flight flight) {
+            runCount.incrementAndGet();
+            started.countDown();
+            try {
+                release.await(5, TimeUnit.SECONDS);
+            } catch (InterruptedException e) {
+                Thread.currentThread().interrupt();
+            }
+            sawCancellation.set(flight.isCancelled());
+            return result;
+        }
+    }
+
+    /**
+     * Runs execute on another thread, as the job, the settings and startup would.
+     */
+    private class Caller extends Thread {
+        final String key;
+        final SingleFlight.Work work;
+        final CancellationSignal signal = new CancellationSignal();
+        volatile boolean result;
+        volatile boolean gaveUp;
+
+        Caller(String key, SingleFlight.Work work) {
+            this.key = key;
+            this.work = work;
+        }
+
+        @Override
+        public void run() {
+            try {
+                result = mSingleFlight.execute(key, work, signal);
+            } catch (CancellationException e) {
+                gaveUp = true;
+            } catch (InterruptedException e) {
+                throw new AssertionError(e);
+            }
+        }
+    }
+
+    @Test
+    public void testCallersForTheSameLocationShareOneSync() throws Exception {
+        BlockingWork work = new BlockingWork(true);
+        BlockingWork duplicateWork = new BlockingWork(false);
+
+        Caller first = new Caller(LOCATION, work);
+        first.start();
+        assertTrue(work.started.await(5, TimeUnit.SECONDS));
+
+        final SingleFlight.Flight flight = mSingleFlight.getCurrentFlight();
+        Caller second = new Caller(LOCATION, duplicateWork);
+        Caller third = new Caller(LOCATION, duplicateWork);
+        second.start();
+        third.start();
+
+        PollingCheck.check("Both callers should have attached to the running sync", 3000,
+                new Callable<Boolean>() {
+                    @Override
+                    public Boolean call() {
+                        return flight.getCallerCount() == 3;
+                    }
+                });
+
+        work.release.countDown();
+        first.join(5000);
+        second.join(5000);
+        third.join(5000);
+
+        assertEquals("Only one sync should have run", 1, work.runCount.get());
+        assertEquals(0, duplicateWork.runCount.get());
+        assertTrue("Every caller should get the result of the shared sync",
+                first.result && second.result && third.result);
+    }
+
+    @Test
+    public void testAnotherLocationSupersedesTheRunningSync() throws Exception {
+        BlockingWork staleWork = new BlockingWork(true);
+        BlockingWork newWork = new BlockingWork(true);
+        newWork.release.countDown();
+
+        Caller stale = new Caller(LOCATION, staleWork);
+        stale.start();
+        assertTrue(staleWork.started.await(5, TimeUnit.SECONDS));
+
+        Caller current = new Caller(OTHER_LOCATION, newWork);
+        current.start();
+
+        PollingCheck.check("The running sync should have been cancelled", 3000,
+                new Callable<Boolean>() {
+                    @Override
+                    public Boolean call() {
+                        return OTHER_LOCATION.equals(mSingleFlight.getCurrentFlight().key);
+                    }
+                });
+
+        assertEquals("The new sync must wait for the stale one to stop",
+                0, newWork.runCount.get());
+
+        staleWork.release.countDown();
+        stale.join(5000);
+        current.join(5000);
+
+        assertTrue(staleWork.sawCancellation.get());
+        assertEquals(1, newWork.runCount.get());
+        assertFalse(newWork.sawCancellation.get());
+    }
+
+    @Test
+    public void testLastCallerGivingUpCancelsTheSync() throws Exception {
+        BlockingWork work = new BlockingWork(true);
+
+        Caller caller = new Caller(LOCATION, work);
+        caller.start();
+        assertTrue(work.started.await(5, TimeUnit.SECONDS));
+
+        SingleFlight.Flight flight = mSingleFlight.getCurrentFlight();
+        caller.signal.cancel();
+        assertTrue("Nobody is left to want the result", flight.isCancelled());
+        assertTrue(flight.getCancellationSignal().isCanceled());
+
+        work.release.countDown();
+        caller.join(5000);
+        assertTrue(work.sawCancellation.get());
+    }
+
+    @Test
+    public void testCallerGivingUpLeavesTheSyncToTheOthers() throws Exception {
+        BlockingWork work = new BlockingWork(true);
+        BlockingWork duplicateWork = new BlockingWork(false);
+
+        Caller runner = new Caller(LOCATION, work);
+        runner.start();
+        assertTrue(work.started.await(5, TimeUnit.SECONDS));
+
+        final SingleFlight.Flight flight = mSingleFlight.getCurrentFlight();
+        Caller waiter = new Caller(LOCATION, duplicateWork);
+        waiter.start();
+        PollingCheck.check("The second caller should have attached to the running sync", 3000,
+                new Callable<Boolean>() {
+                    @Override
+                    public Boolean call() {
+                        return flight.getCallerCount() == 2;
+                    }
+                });
+
+        /* Like a stopped job that was waiting for an immediate sync */
+        waiter.signal.cancel();
+        waiter.join(5000);
+        assertTrue("The caller that gave up should stop waiting", waiter.gaveUp);
+        assertFalse(waiter.isAlive());
+        assertFalse("The sync is still wanted by the first caller", flight.isCancelled());
+
+        work.release.countDown();
+        runner.join(5000);
+        assertTrue(runner.result);
+        assertFalse(work.sawCancellation.get());
+    }
+
+    @Test
+    public void testJoiningTheRunningSyncDoesNotWait() throws Exception {
+        BlockingWork work = new BlockingWork(true);
+
+        Caller runner = new Caller(LOCATION, work);
+        runner.start();
+        assertTrue(work.started.await(5, TimeUnit.SECONDS));
+
+        assertNull("Only the sync of the same location can be joined",
+                mSingleFlight.join(OTHER_LOCATION));
+        SingleFlight.Flight flight = mSingleFlight.join(LOCATION);
+        assertNotNull(flight);
+        assertEquals(2, flight.getCallerCount());
+
+        final CountDownLatch finished = new CountDownLatch(1);
+        final AtomicBoolean joinedResult = new AtomicBoolean();
+        flight.whenFinished(new SingleFlight.Listener() {
+            @Override
+            public void onFinished(boolean result) {
+                joinedResult.set(result);
+                finished.countDown();
+            }
+        });
+        assertEquals("The listener must wait for the sync", 1, finished.getCount());
+
+        work.release.countDown();
+        assertTrue(finished.await(5, TimeUnit.SECONDS));
+        runner.join(5000);
+
+        assertTrue("The joined caller should get the result of the shared sync",
+                joinedResult.get());
+        assertEquals("Only one sync should have run", 1, work.runCount.get());
+    }
+
+    @Test
+    public void testSequentialSyncsBothRun() throws Exception {
+        BlockingWork work = new BlockingWork(false);
+        work.release.countDown();
+
+        mSingleFlight.execute(LOCATION, work);
+        mSingleFlight.execute(LOCATION, work);
+
+        assertEquals("Sharing only applies to syncs that overlap", 2, work.runCount.get());
+    }
+}
@@ -0,0 +1,184 @@
+/*
+ * Copyright (C) 2016 The Android Open Source Project
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *      http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package com.example.android.sunshine.sync;
+
+import android.content.Context;
+import android.support.test.InstrumentationRegistry;
+import android.support.test.runner.AndroidJUnit4;
+
+import org.junit.After;
+import org.junit.Before;
+import org.junit.Test;
+import org.junit.runner.RunWith;
+
+import java.io.IOException;
+import java.util.HashSet;
+import java.util.Random;
+import java.util.Set;
+
+import static junit.framework.Assert.assertEquals;
+import static junit.framework.Assert.assertFalse;
+import static junit.framework.Assert.assertTrue;
+
+/**
+ * Tests the backoff and circuit breaker of {@link SyncRetryPolicy}, and which failures
+ * {@link SyncException} considers worth retrying.
+ */
+@RunWith(AndroidJUnit4.class)
+public class TestSyncRetryPolicy {
+
+    private static final long NOW = 1475323200000L;
+
+    private final Context mContext = InstrumentationRegistry.getTargetContext();
+
+    @Before
+    public void setUp() {
+        SyncRetryPolicy.reset(mContext);
+    }
+
+    @After
+    public void tearDown() {
+        SyncRetryPolicy.reset(mContext);
+    }
+
+    @Test
+    public void testBackoffGrowsExponentiallyUpToTheMaximum() {
+        Random random = new Random(42);
+        long expectedBackoff = SyncRetryPolicy.INITIAL_BACKOFF_SECONDS;
+
+        for (int failureCount = 1; failureCount <= 12; failureCount++) {
+            long cappedBackoff = Math.min(expectedBackoff, SyncRetryPolicy.MAX_BACKOFF_SECONDS);
+            for (int i = 0; i < 100; i++) {
+                int backoff = SyncRetryPolicy.computeBackoffSeconds(failureCount, random);
+                assertTrue("Backoff after " + failureCount + " failures is too short: " + backoff,
+                        backoff >= cappedBackoff / 2);
+                assertTrue("Backoff after " + failureCount + " failures is too long: " + backoff,
+                        backoff <= cappedBackoff);
+            }
+            expectedBackoff *= 2;
+        }
+    }
+
+    /* FirebaseJobDispatcher rejects retry strategies with an initial backoff under 30 seconds */
+    @Test
+    public void testFirstBackoffIsAtLeastThirtySeconds() {
+        Random random = new Random(42);
+        for (int i = 0; i < 1000; i++) {
+            assertTrue(SyncRetryPolicy.computeBackoffSeconds(1, random) >= 30);
+        }
+    }
+
+    @Test
+    public void testBackoffIsJittered() {
+        Random random = new Random(42);
+        Set<Integer> backoffs = new HashSet<>();
+        for (int i = 0; i < 100; i++) {
+            backoffs.add(SyncRetryPolicy.computeBackoffSeconds(3, random));
+        }
+        assertTrue("Devices failing together should not all retry together",
+                backoffs.size() > 10);
+    }
+
+    @Test
+    public void testOnlyTransientFailuresAreRetried() {
+        assertTrue(SyncRetryPolicy.recordFailure(mContext,
+                SyncException.network(new IOException()), NOW));
+        assertTrue(SyncRetryPolicy.recordFailure(mContext,
+                SyncException.httpStatus(503, null), NOW));
+        assertTrue(SyncRetryPolicy.recordFailure(mContext,
+                SyncException.httpStatus(429, null), NOW));
+
+        SyncRetryPolicy.reset(mContext);
+        assertFalse(SyncRetryPolicy.recordFailure(mContext,
+                SyncException.httpStatus(404, null), NOW));
+        assertFalse(SyncRetryPolicy.recordFailure(mContext,
+                SyncException.httpStatus(SyncException.STATUS_IN_RESPONSE_BODY, null), NOW));
+        assertFalse(SyncRetryPolicy.recordFailure(mContext,
+                SyncException.parse(new IllegalStateException()), NOW));
+    }
+
+    @Test
+    public void testDatabaseFailuresDontCountAgainstTheServer() {
+        for (int i = 0; i < SyncRetryPolicy.FAILURE_THRESHOLD * 2; i++) {
+            assertFalse(SyncRetryPolicy.recordFailure(mContext,
+                    SyncException.database(new RuntimeException()), NOW));
+        }
+
+        assertEquals(0, SyncRetryPolicy.getConsecutiveFailures(mContext));
+        assertTrue(SyncRetryPolicy.isSyncAllowed(mContext, NOW));
+    }
+
+    @Test
+    public void testCircuitOpensAfterTooManyFailures() {
+        for (int i = 1; i < SyncRetryPolicy.FAILURE_THRESHOLD; i++) {
+            assertTrue(recordNetworkFailure(NOW));
+            assertTrue(SyncRetryPolicy.isSyncAllowed(mContext, NOW));
+        }
+
+        assertFalse("The failure that opens the circuit should not be retried",
+                recordNetworkFailure(NOW));
+        assertFalse(SyncRetryPolicy.isSyncAllowed(mContext, NOW));
+        assertFalse(SyncRetryPolicy.isSyncAllowed(mContext,
+                NOW + SyncRetryPolicy.INITIAL_COOL_DOWN_MILLIS - 1));
+        assertTrue("A sync should be let through once the circuit has cooled down",
+                SyncRetryPolicy.isSyncAllowed(mContext,
+                        NOW + SyncRetryPolicy.INITIAL_COOL_DOWN_MILLIS));
+    }
+
+    @Test
+    public void testFailureAfterCoolDownReopensCircuitForLonger() {
+        openCircuit(NOW);
+
+        long afterCoolDown = NOW + SyncRetryPolicy.INITIAL_COOL_DOWN_MILLIS;
+        assertFalse(recordNetworkFailure(afterCoolDown));
+
+        long doubleCoolDown = SyncRetryPolicy.INITIAL_COOL_DOWN_MILLIS * 2;
+        assertFalse(SyncRetryPolicy.isSyncAllowed(mContext, afterCoolDown + doubleCoolDown - 1));
+        assertTrue(SyncRetryPolicy.isSyncAllowed(mContext, afterCoolDown + doubleCoolDown));
+    }
+
+    @Test
+    public void testSuccessClosesCircuit() {
+        openCircuit(NOW);
+
+        SyncRetryPolicy.recordSuccess(mContext);
+
+        assertTrue(SyncRetryPolicy.isSyncAllowed(mContext, NOW));
+        assertEquals(0, SyncRetryPolicy.getConsecutiveFailures(mContext));
+        assertTrue("After a success, a failure should be retried again",
+                recordNetworkFailure(NOW));
+    }
+
+    @Test
+    public void testCoolDownIsCapped() {
+        assertEquals(SyncRetryPolicy.INITIAL_COOL_DOWN_MILLIS,
+                SyncRetryPolicy.computeCoolDownMillis(1));
+        assertEquals(SyncRetryPolicy.MAX_COOL_DOWN_MILLIS,
+                SyncRetryPolicy.computeCoolDownMillis(100));
+    }
+
+    private boolean recordNetworkFailure(long nowMillis) {
+        return SyncRetryPolicy.recordFailure(mContext,
+                SyncException.network(new IOException()), nowMillis);
+    }
+
+    private void openCircuit(long nowMillis) {
+        for (int i = 0; i < SyncRetryPolicy.FAILURE_THRESHOLD; i++) {
+            recordNetworkFailure(nowMillis);
+        }
+        assertFalse(SyncRetryPolicy.isSyncAllowed(mContext, nowMillis));
+    }
+}
@@ -0,0 +1,112 @@
+/*
+ * Copyright (C) 2016 The Android Open Source Project
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *      http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package com.example.android.sunshine.utilities;
+
+import android.content.Context;
+import android.os.SystemClock;
+import android.support.test.InstrumentationRegistry;
+import android.support.test.runner.AndroidJUnit4;
+import android.support.v4.os.CancellationSignal;
+
+import com.example.android.sunshine.utils.StubHttpServer;
+
+import org.junit.After;
+import org.junit.Before;
+import org.junit.Test;
+import org.junit.runner.RunWith;
+
+import java.io.IOException;
+import java.util.concurrent.CountDownLatch;
+import java.util.concurrent.TimeUnit;
+
+import static junit.framework.Assert.assertTrue;
+import static junit.framework.Assert.fail;
+
+/**
+ * Tests that cancelling a forecast request closes its connection, so that a sync that is told to
+ * stop doesn't keep waiting for a slow weather server until the read timeout.
+ */
+@RunWith(AndroidJUnit4.class)
+public class TestForecastCancellation {
+
+    /* Well under WeatherHttpClient's read timeout */
+    private static final long MAX_CANCEL_MILLIS = 3000;
+
+    private final Context mContext = InstrumentationRegistry.getTargetContext();
+
+    private final CountDownLatch mRequestReceived = new CountDownLatch(1);
+    private final CountDownLatch mReleaseResponse = new CountDownLatch(1);
+    private StubHttpServer mServer;
+
+    @Before
+    public void setUp() throws Exception {
+        ForecastHttpCache.clear(mContext);
+
+        /* A server that takes its time to answer */
+        mServer = new StubHttpServer(new StubHttpServer.Dispatcher() {
+            @Override
+            public StubHttpServer.Response dispatch(StubHttpServer.Request request) {
+                mRequestReceived.countDown();
+                try {
+                    mReleaseResponse.await(30, TimeUnit.SECONDS);
+                } catch (InterruptedException e) {
+                    Thread.currentThread().interrupt();
+                }
+                return StubHttpServer.Response.ok("{}");
+            }
+        });
+        mServer.start();
+    }
+
+    @After
+    public void tearDown() {
+        mReleaseResponse.countDown();
+        mServer.shutdown();
+        ForecastHttpCache.clear(mContext);
+    }
+
+    @Test
+    public void testCancellingClosesTheConnection() throws Exception {
+        final CancellationSignal signal = new CancellationSignal();
+
+        Thread canceller = new Thread(new Runnable() {
+            @Override
+            public void run() {
+                try {
+                    mRequestReceived.await(5, TimeUnit.SECONDS);
+                } catch (InterruptedException e) {
+                    return;
+                }
+                signal.cancel();
+            }
+        });
+        canceller.start();
+
+        long start = SystemClock.elapsedRealtime();
+        try {
+            NetworkUtils.openForecast(mContext, mServer.getUrl("/forecast"), false, signal)
+                    .close();
+            fail("A cancelled request should not get a response");
+        } catch (IOException expected) {
+            /* The connection was closed under the request */
+        }
+        long elapsed = SystemClock.elapsedRealtime() - start;
+
+        assertTrue(signal.isCanceled());
+        assertTrue("Cancelling took " + elapsed + " ms", elapsed < MAX_CANCEL_MILLIS);
+        canceller.join(5000);
+    }
+}
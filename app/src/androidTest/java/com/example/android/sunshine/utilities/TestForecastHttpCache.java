@@ -0,0 +1,159 @@
+/*
+ * Copyright (C) 2016 The Android Open Source Project
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *      http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package com.example.android.sunshine.utilities;
+
+import android.content.ContentValues;
+import android.content.Context;
+import android.support.test.InstrumentationRegistry;
+import android.support.test.runner.AndroidJUnit4;
+
+import com.example.android.sunshine.utils.StubHttpServer;
+
+import org.junit.After;
+import org.junit.Before;
+import org.junit.Test;
+import org.junit.runner.RunWith;
+
+import java.net.URL;
+
+import static junit.framework.Assert.assertEquals;
+import static junit.framework.Assert.assertNotNull;
+import static junit.framework.Assert.assertNull;
+import static junit.framework.Assert.assertSame;
+
+/**
+ * Tests the conditional requests made by
+ * {@link NetworkUtils#getWeatherContentValuesFromHttpUrl(Context, URL, boolean)} against a
+ * local stand-in for the weather server.
+ */
+@RunWith(AndroidJUnit4.class)
+public class TestForecastHttpCache {
+
+    private static final String FORECAST_PATH = "/staticweather?q=94043";
+
+    private static final String ETAG = "\"forecast-v1\"";
+    private static final String LAST_MODIFIED = "Sat, 01 Oct 2016 00:00:00 GMT";
+
+    private static final String FORECAST_JSON = "{\"cod\":\"200\","
+            + "\"city\":{\"coord\":{\"lon\":-122.08,\"lat\":37.39}},"
+            + "\"list\":[{\"temp\":{\"min\":11.5,\"max\":17.25},\"pressure\":1011.3,"
+            + "\"humidity\":81,\"weather\":[{\"id\":501}],\"speed\":4.2,\"deg\":190}]}";
+
+    private final Context mContext = InstrumentationRegistry.getTargetContext();
+
+    /* What the stub server adds to every full response, changed by the tests */
+    private volatile String mCacheControl = "no-cache";
+
+    private StubHttpServer mServer;
+
+    @Before
+    public void setUp() throws Exception {
+        ForecastHttpCache.clear(mContext);
+
+        mServer = new StubHttpServer(new StubHttpServer.Dispatcher() {
+            @Override
+            public StubHttpServer.Response dispatch(StubHttpServer.Request request) {
+                if (ETAG.equals(request.getHeader("If-None-Match"))
+                        || LAST_MODIFIED.equals(request.getHeader("If-Modified-Since"))) {
+                    return StubHttpServer.Response.notModified()
+                            .setHeader("Cache-Control", mCacheControl);
+                }
+                return StubHttpServer.Response.ok(FORECAST_JSON)
+                        .setHeader("ETag", ETAG)
+                        .setHeader("Last-Modified", LAST_MODIFIED)
+                        .setHeader("Cache-Control", mCacheControl);
+            }
+        });
+        mServer.start();
+    }
+
+    @After
+    public void tearDown() {
+        mServer.shutdown();
+        ForecastHttpCache.clear(mContext);
+    }
+
+    @Test
+    public void testUnchangedForecastIsNotDownloadedAgain() throws Exception {
+        URL url = mServer.getUrl(FORECAST_PATH);
+
+        ContentValues[] firstFetch = NetworkUtils.getWeatherContentValuesFromHttpUrl(
+                mContext, url, true);
+        assertNotNull(firstFetch);
+        assertEquals(1, firstFetch.length);
+
+        StubHttpServer.Request firstRequest = mServer.takeRequest();
+        assertNull("Nothing is cached yet, so the first request should be unconditional",
+                firstRequest.getHeader("If-None-Match"));
+
+        ContentValues[] secondFetch = NetworkUtils.getWeatherContentValuesFromHttpUrl(
+                mContext, url, true);
+        assertSame("An unchanged forecast should be reported as not modified",
+                NetworkUtils.FORECAST_NOT_MODIFIED, secondFetch);
+
+        StubHttpServer.Request secondRequest = mServer.takeRequest();
+        assertEquals(ETAG, secondRequest.getHeader("If-None-Match"));
+        assertEquals(LAST_MODIFIED, secondRequest.getHeader("If-Modified-Since"));
+    }
+
+    /*
+     * If the forecast isn't stored locally (it may have been deleted, for example), a 304 would
+     * leave us with nothing to show, so the request must not be conditional.
+     */
+    @Test
+    public void testNoConditionalRequestWithoutLocalForecast() throws Exception {
+        URL url = mServer.getUrl(FORECAST_PATH);
+
+        NetworkUtils.getWeatherContentValuesFromHttpUrl(mContext, url, true);
+        mServer.takeRequest();
+
+        ContentValues[] refetch = NetworkUtils.getWeatherContentValuesFromHttpUrl(
+                mContext, url, false);
+        assertNotNull(refetch);
+        assertEquals(1, refetch.length);
+
+        StubHttpServer.Request request = mServer.takeRequest();
+        assertNull(request.getHeader("If-None-Match"));
+        assertNull(request.getHeader("If-Modified-Since"));
+    }
+
+    @Test
+    public void testFreshForecastSkipsTheRequest() throws Exception {
+        mCacheControl = "public, max-age=3600";
+        URL url = mServer.getUrl(FORECAST_PATH);
+
+        NetworkUtils.getWeatherContentValuesFromHttpUrl(mContext, url, true);
+
+        ContentValues[] secondFetch = NetworkUtils.getWeatherContentValuesFromHttpUrl(
+                mContext, url, true);
+        assertSame(NetworkUtils.FORECAST_NOT_MODIFIED, secondFetch);
+        assertEquals("A fresh forecast should not be requested again",
+                1, mServer.getRequestCount());
+    }
+
+    @Test
+    public void testNoStoreResponseIsNotRevalidated() throws Exception {
+        mCacheControl = "no-store";
+        URL url = mServer.getUrl(FORECAST_PATH);
+
+        NetworkUtils.getWeatherContentValuesFromHttpUrl(mContext, url, true);
+        mServer.takeRequest();
+
+        NetworkUtils.getWeatherContentValuesFromHttpUrl(mContext, url, true);
+        assertNull("A no-store response must not be used for conditional requests",
+                mServer.takeRequest().getHeader("If-None-Match"));
+    }
+}
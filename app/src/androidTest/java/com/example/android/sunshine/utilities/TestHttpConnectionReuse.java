@@ -0,0 +1,182 @@
+/*
+ * Copyright (C) 2016 The Android Open Source Project
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *      http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package com.example.android.sunshine.utilities;
+
+import android.content.ContentValues;
+import android.content.Context;
+import android.support.test.InstrumentationRegistry;
+import android.support.test.runner.AndroidJUnit4;
+import android.util.Log;
+
+import com.example.android.sunshine.utils.StubHttpServer;
+
+import org.junit.After;
+import org.junit.Before;
+import org.junit.Test;
+import org.junit.runner.RunWith;
+
+import java.io.InputStream;
+import java.net.HttpURLConnection;
+import java.net.URL;
+
+import javax.net.ssl.SSLContext;
+
+import static junit.framework.Assert.assertEquals;
+import static junit.framework.Assert.assertNotNull;
+
+/**
+ * Tests that {@link WeatherHttpClient} keeps connections to the weather server alive between
+ * syncs, over HTTP and HTTPS, against a local stand-in for the weather server. The HTTPS server
+ * uses the self-signed certificate in the test assets, which the client is made to trust.
+ * <p>
+ * The time spent in each phase of each request is written to logcat under the
+ * "HttpConnectionReuse" tag.
+ */
+@RunWith(AndroidJUnit4.class)
+public class TestHttpConnectionReuse {
+
+    private static final String TAG = "HttpConnectionReuse";
+
+    private static final String KEY_STORE_ASSET = "stub_server.p12";
+    private static final String KEY_STORE_PASSWORD = "sunshine";
+
+    private static final String FORECAST_PATH = "/staticweather?q=94043";
+
+    private static final int SYNC_COUNT = 3;
+
+    private final Context mContext = InstrumentationRegistry.getTargetContext();
+
+    /* Whether the stub server closes the connection after each response, changed by the tests */
+    private volatile boolean mCloseConnections;
+
+    private StubHttpServer mServer;
+
+    @Before
+    public void setUp() {
+        ForecastHttpCache.clear(mContext);
+    }
+
+    @After
+    public void tearDown() {
+        if (mServer != null) {
+            mServer.shutdown();
+        }
+        WeatherHttpClient.setSslSocketFactory(null);
+        ForecastHttpCache.clear(mContext);
+    }
+
+    @Test
+    public void testTimeoutsAreSet() throws Exception {
+        startServer(null);
+
+        HttpURLConnection urlConnection =
+                WeatherHttpClient.open(mContext, mServer.getUrl(FORECAST_PATH));
+        assertEquals(WeatherHttpClient.CONNECT_TIMEOUT_MILLIS, urlConnection.getConnectTimeout());
+        assertEquals(WeatherHttpClient.READ_TIMEOUT_MILLIS, urlConnection.getReadTimeout());
+    }
+
+    @Test
+    public void testHttpConnectionIsReused() throws Exception {
+        startServer(null);
+
+        syncRepeatedly("HTTP");
+
+        assertEquals(SYNC_COUNT, mServer.getRequestCount());
+        assertEquals("Every sync should have used the same connection",
+                1, mServer.getConnectionCount());
+    }
+
+    @Test
+    public void testHttpsConnectionIsReused() throws Exception {
+        startServer(loadSslContext());
+
+        syncRepeatedly("HTTPS");
+
+        assertEquals(SYNC_COUNT, mServer.getRequestCount());
+        assertEquals("Every sync should have used the same connection",
+                1, mServer.getConnectionCount());
+        assertEquals("A reused connection needs no TLS handshake",
+                0, NetworkMetrics.getLastTlsHandshakeMillis());
+    }
+
+    /*
+     * When the server closes the connection, the next sync has to connect again, but it should
+     * be able to resume the TLS session. Whether it did can't be told reliably from outside, so
+     * this only checks that every sync worked and logs the handshake times and session ids.
+     */
+    @Test
+    public void testHttpsAfterServerClosesConnection() throws Exception {
+        mCloseConnections = true;
+        startServer(loadSslContext());
+
+        syncRepeatedly("HTTPS, closed by server");
+
+        assertEquals(SYNC_COUNT, mServer.getConnectionCount());
+        Log.i(TAG, "TLS session ids: " + mServer.getTlsSessionIds());
+    }
+
+    /**
+     * Fetches the forecast from the stub server a few times, as consecutive syncs would.
+     */
+    private void syncRepeatedly(String description) throws Exception {
+        URL url = mServer.getUrl(FORECAST_PATH);
+        for (int i = 0; i < SYNC_COUNT; i++) {
+            ContentValues[] weatherValues =
+                    NetworkUtils.getWeatherContentValuesFromHttpUrl(mContext, url, false);
+            assertNotNull(weatherValues);
+            assertEquals(14, weatherValues.length);
+            assertNotNull(mServer.takeRequest());
+
+            Log.i(TAG, description + ", sync " + i + ": "
+                    + "DNS " + NetworkMetrics.getLastDnsMillis() + " ms, "
+                    + "connect " + NetworkMetrics.getLastConnectMillis() + " ms, "
+                    + "TLS " + NetworkMetrics.getLastTlsHandshakeMillis() + " ms, "
+                    + "first byte " + NetworkMetrics.getLastFirstByteMillis() + " ms, "
+                    + "body " + NetworkMetrics.getLastReadTimeMillis() + " ms");
+        }
+    }
+
+    private void startServer(SSLContext sslContext) throws Exception {
+        final String forecast = TestJsonParserPerformance.createForecastJson(14);
+
+        mServer = new StubHttpServer(new StubHttpServer.Dispatcher() {
+            @Override
+            public StubHttpServer.Response dispatch(StubHttpServer.Request request) {
+                StubHttpServer.Response response = StubHttpServer.Response.ok(forecast)
+                        .setHeader("Cache-Control", "no-store");
+                if (mCloseConnections) {
+                    response.setHeader("Connection", "close");
+                }
+                return response;
+            }
+        }, sslContext);
+        mServer.start();
+
+        if (sslContext != null) {
+            WeatherHttpClient.setSslSocketFactory(sslContext.getSocketFactory());
+        }
+    }
+
+    private static SSLContext loadSslContext() throws Exception {
+        InputStream keyStore = InstrumentationRegistry.getContext().getAssets()
+                .open(KEY_STORE_ASSET);
+        try {
+            return StubHttpServer.loadSslContext(keyStore, KEY_STORE_PASSWORD);
+        } finally {
+            keyStore.close();
+        }
+    }
+}
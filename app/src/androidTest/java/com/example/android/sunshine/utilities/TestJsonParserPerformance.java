@@ -0,0 +1,186 @@
+/*
+ * Copyright (C) 2016 The Android Open Source Project
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *      http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package com.example.android.sunshine.utilities;
+
+import android.content.ContentValues;
+import android.content.Context;
+import android.os.Debug;
+import android.os.SystemClock;
+import android.support.test.InstrumentationRegistry;
+import android.support.test.runner.AndroidJUnit4;
+import android.util.Log;
+
+import org.json.JSONException;
+import org.junit.Test;
+import org.junit.runner.RunWith;
+
+import java.io.ByteArrayInputStream;
+import java.io.IOException;
+import java.io.InputStream;
+
+import static junit.framework.Assert.assertEquals;
+import static junit.framework.Assert.assertNull;
+
+/**
+ * Compares the streaming parser, {@link OpenWeatherJsonUtils#getWeatherContentValuesFromStream},
+ * with the org.json parser it replaced. For the org.json parser, the time and allocations
+ * include turning the response bytes into a String, as NetworkUtils used to do before parsing.
+ * <p>
+ * Timings and allocated bytes are written to logcat under the "JsonParserPerformance" tag. The
+ * only assertions made are that both parsers produce the same rows.
+ */
+@RunWith(AndroidJUnit4.class)
+public class TestJsonParserPerformance {
+
+    private static final String TAG = "JsonParserPerformance";
+
+    private final Context mContext = InstrumentationRegistry.getTargetContext();
+
+    @Test
+    public void testParseFourteenDays() throws Exception {
+        compareParsers(14);
+    }
+
+    @Test
+    public void testParseOneThousandDays() throws Exception {
+        compareParsers(1000);
+    }
+
+    /**
+     * The order of the fields in the response isn't guaranteed, so the streaming parser must not
+     * rely on "cod" or "city" coming before "list", or on the order of the fields of a day.
+     */
+    @Test
+    public void testStreamingParserAcceptsAnyFieldOrder() throws Exception {
+        String reordered = "{\"list\":[{\"weather\":[{\"main\":\"Rain\",\"id\":501}],"
+                + "\"temp\":{\"min\":11.5,\"day\":14,\"max\":17.25},\"deg\":190,\"speed\":4.2,"
+                + "\"humidity\":81,\"pressure\":1011.3}],"
+                + "\"city\":{\"coord\":{\"lon\":-122.08,\"lat\":37.39},\"name\":\"Mountain View\"},"
+                + "\"cod\":\"200\"}";
+
+        ContentValues[] streamed = parseStreaming(reordered);
+        ContentValues[] expected = OpenWeatherJsonUtils
+                .getWeatherContentValuesFromJson(mContext, reordered);
+
+        assertSameRows(expected, streamed);
+    }
+
+    @Test
+    public void testStreamingParserReturnsNullForErrorCode() throws Exception {
+        String notFound = "{\"message\":\"city not found\",\"cod\":\"404\"}";
+
+        assertNull("An error response should not produce a forecast", parseStreaming(notFound));
+    }
+
+    /**
+     * Parses the same forecast with both parsers, checks that they agree and logs how long each
+     * took and how much each allocated.
+     *
+     * @param dayCount Number of days of forecast in the response
+     */
+    @SuppressWarnings("deprecation")
+    private void compareParsers(int dayCount) throws Exception {
+        byte[] response = createForecastJson(dayCount).getBytes("UTF-8");
+
+        /* Warm both paths up, so that class loading isn't counted against either */
+        parseWithJsonObject(response);
+        parseStreaming(response);
+
+        Debug.resetThreadAllocCount();
+        Debug.startAllocCounting();
+        long jsonObjectStart = SystemClock.elapsedRealtime();
+        ContentValues[] jsonObjectRows = parseWithJsonObject(response);
+        long jsonObjectMillis = SystemClock.elapsedRealtime() - jsonObjectStart;
+        Debug.stopAllocCounting();
+        long jsonObjectBytes = Debug.getThreadAllocSize();
+
+        Debug.resetThreadAllocCount();
+        Debug.startAllocCounting();
+        long streamingStart = SystemClock.elapsedRealtime();
+        ContentValues[] streamingRows = parseStreaming(response);
+        long streamingMillis = SystemClock.elapsedRealtime() - streamingStart;
+        Debug.stopAllocCounting();
+        long streamingBytes = Debug.getThreadAllocSize();
+
+        assertSameRows(jsonObjectRows, streamingRows);
+        assertEquals(dayCount, streamingRows.length);
+
+        Log.i(TAG, dayCount + " days (" + response.length + " bytes): "
+                + "org.json " + jsonObjectMillis + " ms, " + jsonObjectBytes + " bytes allocated; "
+                + "streaming " + streamingMillis + " ms, " + streamingBytes + " bytes allocated");
+    }
+
+    private ContentValues[] parseWithJsonObject(byte[] response) throws IOException, JSONException {
+        InputStream in = new ByteArrayInputStream(response);
+        try {
+            return OpenWeatherJsonUtils.getWeatherContentValuesFromJson(mContext,
+                    NetworkUtils.readResponse(in));
+        } finally {
+            in.close();
+        }
+    }
+
+    private ContentValues[] parseStreaming(byte[] response) throws IOException, JSONException {
+        InputStream in = new ByteArrayInputStream(response);
+        try {
+            return OpenWeatherJsonUtils.getWeatherContentValuesFromStream(mContext, in);
+        } finally {
+            in.close();
+        }
+    }
+
+    private ContentValues[] parseStreaming(String response) throws IOException, JSONException {
+        return parseStreaming(response.getBytes("UTF-8"));
+    }
+
+    private static void assertSameRows(ContentValues[] expected, ContentValues[] actual) {
+        assertEquals("Both parsers should return the same number of days",
+                expected.length, actual.length);
+        for (int i = 0; i < expected.length; i++) {
+            assertEquals("Day " + i + " differs between the parsers", expected[i], actual[i]);
+        }
+    }
+
+    /**
+     * Builds a response in the format of the weather server, with varied values for every day.
+     */
+    static String createForecastJson(int dayCount) {
+        StringBuilder json = new StringBuilder(dayCount * 200);
+        json.append("{\"city\":{\"id\":5375480,\"name\":\"Mountain View\",")
+                .append("\"coord\":{\"lon\":-122.0838,\"lat\":37.3861},\"country\":\"US\"},")
+                .append("\"cod\":\"200\",\"message\":0.0118,\"cnt\":").append(dayCount)
+                .append(",\"list\":[");
+
+        for (int i = 0; i < dayCount; i++) {
+            if (i > 0) json.append(',');
+            json.append("{\"dt\":").append(1475323200L + i * 86400L)
+                    .append(",\"temp\":{\"day\":").append(20 + i % 7)
+                    .append(",\"min\":").append(10 + i % 5).append(".5")
+                    .append(",\"max\":").append(22 + i % 9).append(".25")
+                    .append(",\"night\":12,\"eve\":18,\"morn\":11}")
+                    .append(",\"pressure\":").append(1000 + i % 30).append(".7")
+                    .append(",\"humidity\":").append(40 + i % 50)
+                    .append(",\"weather\":[{\"id\":").append(800 + i % 5)
+                    .append(",\"main\":\"Clear\",\"description\":\"sky is clear\",\"icon\":\"01d\"}]")
+                    .append(",\"speed\":").append(1 + i % 8).append(".1")
+                    .append(",\"deg\":").append(i * 17 % 360)
+                    .append(",\"clouds\":0}");
+        }
+
+        json.append("]}");
+        return json.toString();
+    }
+}
@@ -0,0 +1,101 @@
+/*
+ * Copyright (C) 2016 The Android Open Source Project
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *      http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package com.example.android.sunshine.utilities;
+
+import android.support.test.runner.AndroidJUnit4;
+
+import org.junit.Test;
+import org.junit.runner.RunWith;
+
+import java.io.ByteArrayInputStream;
+import java.io.IOException;
+import java.io.InputStream;
+
+import static junit.framework.Assert.assertEquals;
+import static junit.framework.Assert.assertNull;
+import static junit.framework.Assert.assertSame;
+
+/**
+ * Tests the pooled buffer NetworkUtils reads responses into, and the metrics recorded for each
+ * response.
+ */
+@RunWith(AndroidJUnit4.class)
+public class TestResponseBuffering {
+
+    @Test
+    public void testReadsResponseOfExpectedLength() throws IOException {
+        String response = createResponse(5000);
+        byte[] bytes = response.getBytes("UTF-8");
+
+        assertEquals(response, NetworkUtils.readResponse(new ByteArrayInputStream(bytes),
+                bytes.length));
+    }
+
+    /* A server that lies about (or doesn't send) Content-Length shouldn't cut the response off */
+    @Test
+    public void testReadsResponseLongerThanExpected() throws IOException {
+        String response = createResponse(100000);
+        byte[] bytes = response.getBytes("UTF-8");
+
+        assertEquals(response, NetworkUtils.readResponse(new ByteArrayInputStream(bytes), 10));
+        assertEquals(response, NetworkUtils.readResponse(new ByteArrayInputStream(bytes)));
+    }
+
+    @Test
+    public void testEmptyResponseIsNull() throws IOException {
+        assertNull(NetworkUtils.readResponse(new ByteArrayInputStream(new byte[0])));
+    }
+
+    /*
+     * The largest buffer the pool keeps is used here, so that no other buffer left in the pool by
+     * earlier tests can be handed out instead.
+     */
+    @Test
+    public void testPoolReusesReturnedBuffers() {
+        byte[] buffer = ByteArrayPool.getBuf(ByteArrayPool.POOL_LIMIT_BYTES);
+        ByteArrayPool.returnBuf(buffer);
+
+        assertSame("A returned buffer should be handed out again",
+                buffer, ByteArrayPool.getBuf(ByteArrayPool.POOL_LIMIT_BYTES));
+    }
+
+    @Test
+    public void testMeteredStreamRecordsBytesRead() throws IOException {
+        byte[] bytes = createResponse(20000).getBytes("UTF-8");
+        int responseCount = NetworkMetrics.getResponseCount();
+
+        InputStream in = NetworkMetrics.meter(new ByteArrayInputStream(bytes));
+        NetworkUtils.readResponse(in);
+        in.close();
+        in.close();
+
+        assertEquals("Closing a response twice should only record it once",
+                responseCount + 1, NetworkMetrics.getResponseCount());
+        assertEquals(bytes.length, NetworkMetrics.getLastBytesRead());
+    }
+
+    /**
+     * Builds a response of at least the given length, including multi-byte characters so that a
+     * decode of partial buffers would show up as garbled text.
+     */
+    private static String createResponse(int minLength) {
+        StringBuilder response = new StringBuilder(minLength + 16);
+        while (response.length() < minLength) {
+            response.append("{\"temp\":21°C}");
+        }
+        return response.toString();
+    }
+}
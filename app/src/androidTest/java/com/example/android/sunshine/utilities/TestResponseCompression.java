@@ -0,0 +1,192 @@
+/*
+ * Copyright (C) 2016 The Android Open Source Project
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *      http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package com.example.android.sunshine.utilities;
+
+import android.content.ContentValues;
+import android.content.Context;
+import android.support.test.InstrumentationRegistry;
+import android.support.test.runner.AndroidJUnit4;
+import android.util.Log;
+
+import com.example.android.sunshine.utils.StubHttpServer;
+
+import org.junit.After;
+import org.junit.Before;
+import org.junit.Test;
+import org.junit.runner.RunWith;
+
+import java.io.ByteArrayInputStream;
+import java.io.ByteArrayOutputStream;
+import java.io.IOException;
+import java.net.URL;
+import java.util.zip.DeflaterOutputStream;
+import java.util.zip.GZIPOutputStream;
+
+import static junit.framework.Assert.assertEquals;
+import static junit.framework.Assert.assertNotNull;
+import static junit.framework.Assert.assertTrue;
+
+/**
+ * Tests that forecasts are requested compressed and decompressed as they are parsed, against a
+ * local stand-in for the weather server that answers with gzip, deflate or identity bodies.
+ * <p>
+ * The bytes transferred and the bytes read for each encoding are written to logcat under the
+ * "ResponseCompression" tag.
+ */
+@RunWith(AndroidJUnit4.class)
+public class TestResponseCompression {
+
+    private static final String TAG = "ResponseCompression";
+
+    private static final int DAY_COUNT = 100;
+
+    private static final String GZIP_PATH = "/gzip";
+    private static final String DEFLATE_PATH = "/deflate";
+    private static final String IDENTITY_PATH = "/identity";
+
+    private final Context mContext = InstrumentationRegistry.getTargetContext();
+
+    private byte[] mForecast;
+    private StubHttpServer mServer;
+
+    @Before
+    public void setUp() throws Exception {
+        ForecastHttpCache.clear(mContext);
+        mForecast = TestJsonParserPerformance.createForecastJson(DAY_COUNT).getBytes("UTF-8");
+
+        mServer = new StubHttpServer(new StubHttpServer.Dispatcher() {
+            @Override
+            public StubHttpServer.Response dispatch(StubHttpServer.Request request) {
+                StubHttpServer.Response response = new StubHttpServer.Response(200, "OK")
+                        .setHeader("Content-Type", "application/json; charset=utf-8")
+                        .setHeader("Cache-Control", "no-store");
+                try {
+                    if (request.path.equals(GZIP_PATH)) {
+                        return response.setHeader("Content-Encoding", "gzip")
+                                .setBody(gzip(mForecast));
+                    } else if (request.path.equals(DEFLATE_PATH)) {
+                        return response.setHeader("Content-Encoding", "deflate")
+                                .setBody(deflate(mForecast));
+                    }
+                } catch (IOException e) {
+                    throw new AssertionError(e);
+                }
+                return response.setBody(mForecast);
+            }
+        });
+        mServer.start();
+    }
+
+    @After
+    public void tearDown() {
+        mServer.shutdown();
+        ForecastHttpCache.clear(mContext);
+    }
+
+    @Test
+    public void testRequestAcceptsCompressedResponses() throws Exception {
+        NetworkUtils.getWeatherContentValuesFromHttpUrl(mContext, mServer.getUrl(IDENTITY_PATH),
+                false);
+
+        String acceptEncoding = mServer.takeRequest().getHeader("Accept-Encoding");
+        assertNotNull(acceptEncoding);
+        assertTrue(acceptEncoding.contains("gzip"));
+        assertTrue(acceptEncoding.contains("deflate"));
+    }
+
+    @Test
+    public void testGzipResponse() throws Exception {
+        ContentValues[] rows = fetch(GZIP_PATH);
+
+        assertSameRows(parse(mForecast), rows);
+        assertEquals(mForecast.length, NetworkMetrics.getLastBytesRead());
+        assertTrue("A gzip response should transfer fewer bytes than it decompresses to",
+                NetworkMetrics.getLastTransferredBytes() < NetworkMetrics.getLastBytesRead());
+    }
+
+    @Test
+    public void testDeflateResponse() throws Exception {
+        ContentValues[] rows = fetch(DEFLATE_PATH);
+
+        assertSameRows(parse(mForecast), rows);
+        assertEquals(mForecast.length, NetworkMetrics.getLastBytesRead());
+        assertTrue("A deflate response should transfer fewer bytes than it decompresses to",
+                NetworkMetrics.getLastTransferredBytes() < NetworkMetrics.getLastBytesRead());
+    }
+
+    @Test
+    public void testIdentityResponse() throws Exception {
+        ContentValues[] rows = fetch(IDENTITY_PATH);
+
+        assertSameRows(parse(mForecast), rows);
+        assertEquals(mForecast.length, NetworkMetrics.getLastBytesRead());
+        assertEquals(mForecast.length, NetworkMetrics.getLastTransferredBytes());
+    }
+
+    @Test
+    public void testTotalsIncludeEveryResponse() throws Exception {
+        long totalRead = NetworkMetrics.getTotalBytesRead();
+        long totalTransferred = NetworkMetrics.getTotalTransferredBytes();
+
+        fetch(GZIP_PATH);
+        long gzipTransferred = NetworkMetrics.getLastTransferredBytes();
+        fetch(IDENTITY_PATH);
+
+        assertEquals(totalRead + 2 * mForecast.length, NetworkMetrics.getTotalBytesRead());
+        assertEquals(totalTransferred + gzipTransferred + mForecast.length,
+                NetworkMetrics.getTotalTransferredBytes());
+    }
+
+    private ContentValues[] fetch(String path) throws Exception {
+        ContentValues[] rows = NetworkUtils.getWeatherContentValuesFromHttpUrl(mContext,
+                mServer.getUrl(path), false);
+        mServer.takeRequest();
+
+        Log.i(TAG, path + ": " + NetworkMetrics.getLastTransferredBytes() + " bytes transferred, "
+                + NetworkMetrics.getLastBytesRead() + " bytes read");
+        return rows;
+    }
+
+    private ContentValues[] parse(byte[] response) throws Exception {
+        return OpenWeatherJsonUtils.getWeatherContentValuesFromStream(mContext,
+                new ByteArrayInputStream(response));
+    }
+
+    private static void assertSameRows(ContentValues[] expected, ContentValues[] actual) {
+        assertNotNull(actual);
+        assertEquals(expected.length, actual.length);
+        for (int i = 0; i < expected.length; i++) {
+            assertEquals("Day " + i + " differs from the uncompressed forecast",
+                    expected[i], actual[i]);
+        }
+    }
+
+    private static byte[] gzip(byte[] bytes) throws IOException {
+        ByteArrayOutputStream compressed = new ByteArrayOutputStream();
+        GZIPOutputStream out = new GZIPOutputStream(compressed);
+        out.write(bytes);
+        out.close();
+        return compressed.toByteArray();
+    }
+
+    private static byte[] deflate(byte[] bytes) throws IOException {
+        ByteArrayOutputStream compressed = new ByteArrayOutputStream();
+        DeflaterOutputStream out = new DeflaterOutputStream(compressed);
+        out.write(bytes);
+        out.close();
+        return compressed.toByteArray();
+    }
+}
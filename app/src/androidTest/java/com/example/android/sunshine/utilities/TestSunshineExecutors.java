@@ -0,0 +1,181 @@
+/*
+ * Copyright (C) 2016 The Android Open Source Project
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *      http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package com.example.android.sunshine.utilities;
+
+import android.support.test.runner.AndroidJUnit4;
+
+import org.junit.After;
+import org.junit.Before;
+import org.junit.Test;
+import org.junit.runner.RunWith;
+
+import java.util.ArrayList;
+import java.util.Collections;
+import java.util.List;
+import java.util.concurrent.Callable;
+import java.util.concurrent.CountDownLatch;
+import java.util.concurrent.Future;
+import java.util.concurrent.RejectedExecutionException;
+import java.util.concurrent.TimeUnit;
+
+import static junit.framework.Assert.assertEquals;
+import static junit.framework.Assert.assertTrue;
+import static junit.framework.Assert.fail;
+
+/**
+ * Tests that a {@link SunshineExecutors.BackgroundQueue} runs the most urgent work first, turns
+ * work away once it is full, and keeps track of how work waited and which work threw.
+ */
+@RunWith(AndroidJUnit4.class)
+public class TestSunshineExecutors {
+
+    private static final int CAPACITY = 4;
+
+    /* A single thread, so that everything but the first task has to wait in the queue */
+    private SunshineExecutors.BackgroundQueue mQueue;
+
+    private final CountDownLatch mBlockerStarted = new CountDownLatch(1);
+    private final CountDownLatch mReleaseBlocker = new CountDownLatch(1);
+
+    @Before
+    public void setUp() throws Exception {
+        mQueue = new SunshineExecutors.BackgroundQueue("test", 1, CAPACITY);
+
+        /* Keep the only thread busy until the test has queued everything */
+        mQueue.submit(SunshineExecutors.PRIORITY_DEFAULT, new Runnable() {
+            @Override
+            public void run() {
+                mBlockerStarted.countDown();
+                try {
+                    mReleaseBlocker.await(10, TimeUnit.SECONDS);
+                } catch (InterruptedException e) {
+                    Thread.currentThread().interrupt();
+                }
+            }
+        }, null);
+        assertTrue(mBlockerStarted.await(5, TimeUnit.SECONDS));
+    }
+
+    @After
+    public void tearDown() {
+        mReleaseBlocker.countDown();
+        mQueue.shutdown();
+    }
+
+    @Test
+    public void testRunsHigherPriorityFirst() throws Exception {
+        final List<String> order = Collections.synchronizedList(new ArrayList<String>());
+
+        List<Future<?>> futures = new ArrayList<>();
+        futures.add(mQueue.submit(SunshineExecutors.PRIORITY_BACKGROUND,
+                record(order, "background"), null));
+        futures.add(mQueue.submit(SunshineExecutors.PRIORITY_DEFAULT,
+                record(order, "default 1"), null));
+        futures.add(mQueue.submit(SunshineExecutors.PRIORITY_IMMEDIATE,
+                record(order, "immediate"), null));
+        futures.add(mQueue.submit(SunshineExecutors.PRIORITY_DEFAULT,
+                record(order, "default 2"), null));
+
+        mReleaseBlocker.countDown();
+        for (Future<?> future : futures) {
+            future.get(5, TimeUnit.SECONDS);
+        }
+
+        /* Equal priorities keep the order they were submitted in */
+        assertEquals("[immediate, default 1, default 2, background]", order.toString());
+    }
+
+    @Test
+    public void testTurnsWorkAwayWhenFull() throws Exception {
+        for (int i = 0; i < CAPACITY; i++) {
+            mQueue.submit(SunshineExecutors.PRIORITY_DEFAULT, new Callable<Void>() {
+                @Override
+                public Void call() {
+                    return null;
+                }
+            });
+        }
+        assertEquals(CAPACITY, mQueue.getDepth());
+
+        try {
+            mQueue.submit(SunshineExecutors.PRIORITY_IMMEDIATE, new Callable<Void>() {
+                @Override
+                public Void call() {
+                    return null;
+                }
+            });
+            fail("A full queue should turn work away, whatever its priority");
+        } catch (RejectedExecutionException expected) {
+        }
+
+        assertEquals(1, mQueue.getRejectedCount());
+        assertEquals(CAPACITY, mQueue.getMaxDepth());
+    }
+
+    @Test
+    public void testRecordsWaitAndCompletion() throws Exception {
+        Future<String> result = mQueue.submit(SunshineExecutors.PRIORITY_DEFAULT,
+                new Callable<String>() {
+                    @Override
+                    public String call() {
+                        return "done";
+                    }
+                });
+
+        Thread.sleep(200);
+        mReleaseBlocker.countDown();
+
+        assertEquals("done", result.get(5, TimeUnit.SECONDS));
+
+        /* The blocker and our task */
+        assertEquals(2, mQueue.getSubmittedCount());
+        assertEquals(0, mQueue.getDepth());
+        assertTrue("Waited " + mQueue.getLastWaitMillis() + " ms",
+                mQueue.getLastWaitMillis() >= 200);
+    }
+
+    @Test
+    public void testCountsWorkThatThrows() throws Exception {
+        mQueue.submit(SunshineExecutors.PRIORITY_DEFAULT, new Runnable() {
+            @Override
+            public void run() {
+                throw new IllegalStateException("Nobody asks for this result");
+            }
+        }, null);
+        /* The only thread takes this once it is done with the one before, metrics and all */
+        Future<String> next = mQueue.submit(SunshineExecutors.PRIORITY_DEFAULT,
+                new Callable<String>() {
+                    @Override
+                    public String call() {
+                        return "done";
+                    }
+                });
+
+        mReleaseBlocker.countDown();
+
+        assertEquals("done", next.get(5, TimeUnit.SECONDS));
+        assertEquals(1, mQueue.getFailedCount());
+    }
+
+    private static Runnable record(final List<String> order, final String name) {
+        return new Runnable() {
+            @Override
+            public void run() {
+                order.add(name);
+            }
+        };
+    }
+}
@@ -0,0 +1,119 @@
+/*
+ * Copyright (C) 2016 The Android Open Source Project
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *      http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package com.example.android.sunshine.utilities;
+
+import android.content.Context;
+import android.content.SharedPreferences;
+import android.os.Debug;
+import android.preference.PreferenceManager;
+import android.support.test.InstrumentationRegistry;
+import android.support.test.runner.AndroidJUnit4;
+
+import com.example.android.sunshine.R;
+
+import org.junit.After;
+import org.junit.Before;
+import org.junit.Test;
+import org.junit.runner.RunWith;
+
+import static junit.framework.Assert.assertEquals;
+import static junit.framework.Assert.assertSame;
+
+/**
+ * Tests that {@link TemperatureFormatter} formats temperatures just as String.format with
+ * R.string.format_temperature did, follows the preferred units as soon as SunshinePreferences
+ * has heard of a change, and allocates nothing once it has formatted a temperature before.
+ */
+@RunWith(AndroidJUnit4.class)
+public class TestTemperatureFormatter {
+
+    private final Context mContext = InstrumentationRegistry.getTargetContext();
+
+    private SharedPreferences mPreferences;
+    private String mUnitsKey;
+    private String mSavedUnits;
+
+    @Before
+    public void setUp() {
+        mPreferences = PreferenceManager.getDefaultSharedPreferences(mContext);
+        mUnitsKey = mContext.getString(R.string.pref_units_key);
+        mSavedUnits = mPreferences.getString(mUnitsKey, null);
+        setUnits(R.string.pref_units_metric);
+    }
+
+    @After
+    public void tearDown() {
+        mPreferences.edit().putString(mUnitsKey, mSavedUnits).commit();
+    }
+
+    @Test
+    public void testFormatsLikeStringFormat() {
+        String format = mContext.getString(R.string.format_temperature);
+
+        for (int tenths = -600; tenths <= 600; tenths++) {
+            double temperature = tenths / 10.0;
+            String expected = String.format(format, temperature);
+            /* String.format keeps the sign of what rounds to zero */
+            if (tenths > -5 && tenths < 0) {
+                expected = String.format(format, 0.0);
+            }
+            assertEquals("Formatting " + temperature, expected,
+                    TemperatureFormatter.format(mContext, temperature));
+        }
+    }
+
+    @Test
+    public void testFollowsUnits() {
+        String format = mContext.getString(R.string.format_temperature);
+        assertEquals(String.format(format, 100.0), TemperatureFormatter.format(mContext, 100));
+
+        setUnits(R.string.pref_units_imperial);
+        assertEquals(String.format(format, 212.0), TemperatureFormatter.format(mContext, 100));
+    }
+
+    @Test
+    public void testTemperaturesOutsideTheCacheAreFormatted() {
+        String format = mContext.getString(R.string.format_temperature);
+
+        assertEquals(String.format(format, 1234.0), TemperatureFormatter.format(mContext, 1234));
+        assertEquals(String.format(format, Double.NaN),
+                TemperatureFormatter.format(mContext, Double.NaN));
+    }
+
+    @Test
+    @SuppressWarnings("deprecation")
+    public void testAllocatesNothingOnceWarm() {
+        String first = TemperatureFormatter.format(mContext, 21.4);
+
+        Debug.resetThreadAllocCount();
+        Debug.startAllocCounting();
+        String again = null;
+        for (int i = 0; i < 1000; i++) {
+            again = TemperatureFormatter.format(mContext, 20.5 + (i % 10) / 10.0 * 0.9);
+        }
+        Debug.stopAllocCounting();
+
+        assertEquals("Formatting a temperature again shouldn't allocate",
+                0, Debug.getThreadAllocCount());
+        assertSame(first, again);
+    }
+
+    private void setUnits(int unitsResId) {
+        mPreferences.edit().putString(mUnitsKey, mContext.getString(unitsResId)).commit();
+        /* SunshinePreferences hears of changes it didn't make itself on the main thread */
+        InstrumentationRegistry.getInstrumentation().waitForIdleSync();
+    }
+}
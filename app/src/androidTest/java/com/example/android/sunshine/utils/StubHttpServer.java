@@ -0,0 +1,388 @@
+/*
+ * Copyright (C) 2016 The Android Open Source Project
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *      http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package com.example.android.sunshine.utils;
+
+import java.io.ByteArrayOutputStream;
+import java.io.IOException;
+import java.io.InputStream;
+import java.io.OutputStream;
+import java.net.InetAddress;
+import java.net.InetSocketAddress;
+import java.net.MalformedURLException;
+import java.net.ServerSocket;
+import java.net.Socket;
+import java.net.SocketException;
+import java.net.URL;
+import java.security.KeyStore;
+import java.security.cert.Certificate;
+import java.util.ArrayList;
+import java.util.Collections;
+import java.util.HashMap;
+import java.util.LinkedHashMap;
+import java.util.List;
+import java.util.Locale;
+import java.util.Map;
+import java.util.concurrent.BlockingQueue;
+import java.util.concurrent.LinkedBlockingQueue;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicInteger;
+
+import javax.net.ssl.KeyManagerFactory;
+import javax.net.ssl.SSLContext;
+import javax.net.ssl.SSLSocket;
+import javax.net.ssl.TrustManagerFactory;
+
+/**
+ * A tiny HTTP/1.1 server on the loopback interface, standing in for the weather server in tests.
+ * Every request is handed to a {@link Dispatcher}, which decides what to answer. Connections are
+ * kept alive between requests, as a real server would, unless the client asks otherwise.
+ * <p>
+ * Requests are recorded, so that tests can check which headers were sent, and the number of
+ * connections accepted is counted, so that tests can check whether connections were reused.
+ * <p>
+ * Given an SSLContext, the server speaks HTTPS instead, and records the id of the TLS session
+ * of each connection.
+ */
+public class StubHttpServer {
+
+    /**
+     * Decides how to answer each request. Called on the thread serving the connection.
+     */
+    public interface Dispatcher {
+        Response dispatch(Request request);
+    }
+
+    /**
+     * A request as received by the server. Header names are lower case.
+     */
+    public static class Request {
+        public final String method;
+        public final String path;
+        public final Map<String, String> headers;
+
+        Request(String method, String path, Map<String, String> headers) {
+            this.method = method;
+            this.path = path;
+            this.headers = headers;
+        }
+
+        public String getHeader(String name) {
+            return headers.get(name.toLowerCase(Locale.US));
+        }
+    }
+
+    /**
+     * A response for the server to send. Content-Length is added automatically. Setting the
+     * Connection header to "close" makes the server close the connection after sending it.
+     */
+    public static class Response {
+        final int code;
+        final String reason;
+        final Map<String, String> headers = new LinkedHashMap<>();
+        byte[] body = new byte[0];
+
+        public Response(int code, String reason) {
+            this.code = code;
+            this.reason = reason;
+        }
+
+        public static Response ok(String body) {
+            try {
+                return new Response(200, "OK")
+                        .setHeader("Content-Type", "application/json; charset=utf-8")
+                        .setBody(body.getBytes("UTF-8"));
+            } catch (IOException e) {
+                throw new AssertionError(e);
+            }
+        }
+
+        public static Response notModified() {
+            return new Response(304, "Not Modified");
+        }
+
+        public Response setHeader(String name, String value) {
+            headers.put(name, value);
+            return this;
+        }
+
+        public Response setBody(byte[] body) {
+            this.body = body;
+            return this;
+        }
+    }
+
+    private final Dispatcher mDispatcher;
+    private final SSLContext mSslContext;
+    private final BlockingQueue<Request> mRequests = new LinkedBlockingQueue<>();
+    private final AtomicInteger mRequestCount = new AtomicInteger();
+    private final AtomicInteger mConnectionCount = new AtomicInteger();
+    private final List<String> mTlsSessionIds =
+            Collections.synchronizedList(new ArrayList<String>());
+
+    private ServerSocket mServerSocket;
+    private volatile boolean mShutdown;
+
+    public StubHttpServer(Dispatcher dispatcher) {
+        this(dispatcher, null);
+    }
+
+    /**
+     * @param dispatcher Decides how to answer each request
+     * @param sslContext Used to serve HTTPS, see {@link #loadSslContext(InputStream, String)}, or
+     *                   null to serve plain HTTP
+     */
+    public StubHttpServer(Dispatcher dispatcher, SSLContext sslContext) {
+        mDispatcher = dispatcher;
+        mSslContext = sslContext;
+    }
+
+    /**
+     * Builds an SSLContext that both presents and trusts the certificate in a PKCS12 key store,
+     * so that the same context can be used by the server and by the client talking to it.
+     *
+     * @param keyStore The key store, holding a self-signed certificate and its private key
+     * @param password The password of the key store
+     */
+    public static SSLContext loadSslContext(InputStream keyStore, String password)
+            throws Exception {
+        KeyStore serverKeys = KeyStore.getInstance("PKCS12");
+        serverKeys.load(keyStore, password.toCharArray());
+
+        KeyStore trustedCertificates = KeyStore.getInstance(KeyStore.getDefaultType());
+        trustedCertificates.load(null, null);
+        for (String alias : Collections.list(serverKeys.aliases())) {
+            Certificate certificate = serverKeys.getCertificate(alias);
+            if (certificate != null) {
+                trustedCertificates.setCertificateEntry(alias, certificate);
+            }
+        }
+
+        KeyManagerFactory keyManagerFactory =
+                KeyManagerFactory.getInstance(KeyManagerFactory.getDefaultAlgorithm());
+        keyManagerFactory.init(serverKeys, password.toCharArray());
+        TrustManagerFactory trustManagerFactory =
+                TrustManagerFactory.getInstance(TrustManagerFactory.getDefaultAlgorithm());
+        trustManagerFactory.init(trustedCertificates);
+
+        SSLContext sslContext = SSLContext.getInstance("TLS");
+        sslContext.init(keyManagerFactory.getKeyManagers(),
+                trustManagerFactory.getTrustManagers(), null);
+        return sslContext;
+    }
+
+    /**
+     * Starts listening on a free port of the loopback interface.
+     */
+    public void start() throws IOException {
+        mServerSocket = mSslContext != null
+                ? mSslContext.getServerSocketFactory().createServerSocket()
+                : new ServerSocket();
+        mServerSocket.bind(new InetSocketAddress(InetAddress.getByName("127.0.0.1"), 0));
+
+        Thread acceptThread = new Thread(new Runnable() {
+            @Override
+            public void run() {
+                acceptConnections();
+            }
+        }, "StubHttpServer");
+        acceptThread.setDaemon(true);
+        acceptThread.start();
+    }
+
+    public void shutdown() {
+        mShutdown = true;
+        try {
+            mServerSocket.close();
+        } catch (IOException ignored) {
+        }
+    }
+
+    public URL getUrl(String path) {
+        try {
+            return new URL(mSslContext != null ? "https" : "http", "127.0.0.1", mServerSocket.getLocalPort(), path);
+        } catch (MalformedURLException e) {
+            throw new AssertionError(e);
+        }
+    }
+
+    /**
+     * @return The next request received, waiting up to a few seconds for it, or null if none
+     * was received
+     */
+    public Request takeRequest() throws InterruptedException {
+        return mRequests.poll(5, TimeUnit.SECONDS);
+    }
+
+    public int getRequestCount() {
+        return mRequestCount.get();
+    }
+
+    public int getConnectionCount() {
+        return mConnectionCount.get();
+    }
+
+    /**
+     * @return The ids of the TLS sessions of the connections accepted so far, in hex. How the
+     * id of a resumed session relates to the original one depends on the TLS version and on
+     * whether a session ticket was used, so these are only meant to be logged.
+     */
+    public List<String> getTlsSessionIds() {
+        synchronized (mTlsSessionIds) {
+            return new ArrayList<>(mTlsSessionIds);
+        }
+    }
+
+    private void acceptConnections() {
+        while (!mShutdown) {
+            final Socket socket;
+            try {
+                socket = mServerSocket.accept();
+            } catch (IOException e) {
+                return;
+            }
+
+            mConnectionCount.incrementAndGet();
+
+            Thread connectionThread = new Thread(new Runnable() {
+                @Override
+                public void run() {
+                    serveConnection(socket);
+                }
+            }, "StubHttpServer connection");
+            connectionThread.setDaemon(true);
+            connectionThread.start();
+        }
+    }
+
+    private void serveConnection(Socket socket) {
+        try {
+            if (socket instanceof SSLSocket) {
+                /* getSession() completes the handshake */
+                mTlsSessionIds.add(toHex(((SSLSocket) socket).getSession().getId()));
+            }
+
+            InputStream in = socket.getInputStream();
+            OutputStream out = socket.getOutputStream();
+
+            while (!mShutdown) {
+                Request request = readRequest(in);
+                if (request == null) break;
+
+                mRequests.add(request);
+                mRequestCount.incrementAndGet();
+                Response response = mDispatcher.dispatch(request);
+                boolean close = "close".equalsIgnoreCase(request.getHeader("Connection"))
+                        || "close".equalsIgnoreCase(response.headers.get("Connection"));
+                writeResponse(out, response, close);
+
+                if (close) break;
+            }
+        } catch (SocketException ignored) {
+            /* The client or the test went away */
+        } catch (IOException e) {
+            e.printStackTrace();
+        } finally {
+            try {
+                socket.close();
+            } catch (IOException ignored) {
+            }
+        }
+    }
+
+    /**
+     * Reads a request line and its headers. Request bodies are skipped.
+     *
+     * @return The request, or null if the client closed the connection
+     */
+    private static Request readRequest(InputStream in) throws IOException {
+        String requestLine = readLine(in);
+        if (requestLine == null || requestLine.isEmpty()) return null;
+
+        String[] parts = requestLine.split(" ");
+        Map<String, String> headers = new HashMap<>();
+
+        String line;
+        while ((line = readLine(in)) != null && !line.isEmpty()) {
+            int colon = line.indexOf(':');
+            if (colon > 0) {
+                headers.put(line.substring(0, colon).trim().toLowerCase(Locale.US),
+                        line.substring(colon + 1).trim());
+            }
+        }
+
+        String contentLength = headers.get("content-length");
+        if (contentLength != null) {
+            long remaining = Long.parseLong(contentLength);
+            while (remaining > 0) {
+                long skipped = in.skip(remaining);
+                if (skipped <= 0) break;
+                remaining -= skipped;
+            }
+        }
+
+        return new Request(parts[0], parts.length > 1 ? parts[1] : "/", headers);
+    }
+
+    private static String readLine(InputStream in) throws IOException {
+        ByteArrayOutputStream line = new ByteArrayOutputStream();
+        int c;
+        while ((c = in.read()) != -1) {
+            if (c == '\n') {
+                byte[] bytes = line.toByteArray();
+                int length = bytes.length;
+                if (length > 0 && bytes[length - 1] == '\r') length--;
+                return new String(bytes, 0, length, "ISO-8859-1");
+            }
+            line.write(c);
+        }
+        return line.size() == 0 ? null : line.toString("ISO-8859-1");
+    }
+
+    private static String toHex(byte[] bytes) {
+        StringBuilder hex = new StringBuilder(bytes.length * 2);
+        for (byte b : bytes) {
+            hex.append(Character.forDigit((b >> 4) & 0xf, 16))
+                    .append(Character.forDigit(b & 0xf, 16));
+        }
+        return hex.toString();
+    }
+
+    private static void writeResponse(OutputStream out, Response response, boolean close)
+            throws IOException {
+        StringBuilder head = new StringBuilder();
+        head.append("HTTP/1.1 ").append(response.code).append(' ').append(response.reason)
+                .append("\r\n");
+        for (Map.Entry<String, String> header : response.headers.entrySet()) {
+            head.append(header.getKey()).append(": ").append(header.getValue()).append("\r\n");
+        }
+
+        /* 304 responses never have a body */
+        boolean hasBody = response.code != 304 && response.code != 204;
+        if (hasBody) {
+            head.append("Content-Length: ").append(response.body.length).append("\r\n");
+        }
+        if (close && !response.headers.containsKey("Connection")) {
+            head.append("Connection: close\r\n");
+        }
+        head.append("\r\n");
+
+        out.write(head.toString().getBytes("ISO-8859-1"));
+        if (hasBody) {
+            out.write(response.body);
+        }
+        out.flush();
+    }
+}
@@ -16,7 +16,6 @@
 package com.example.android.sunshine;
 
 import android.content.Context;
-import android.database.Cursor;
 import android.support.annotation.NonNull;
 import android.support.v7.widget.RecyclerView;
 import android.view.LayoutInflater;
@@ -25,18 +24,25 @@ import android.view.ViewGroup;
 import android.widget.ImageView;
 import android.widget.TextView;
 
-import com.example.android.sunshine.utilities.SunshineDateUtils;
-import com.example.android.sunshine.utilities.SunshineWeatherUtils;
+import java.util.List;
 
 /**
- * {@link ForecastAdapter} exposes a list of weather forecasts
- * from a {@link android.database.Cursor} to a {@link android.support.v7.widget.RecyclerView}.
+ * {@link ForecastAdapter} exposes a list of weather forecasts, as {@link ForecastRow}s, to a
+ * {@link android.support.v7.widget.RecyclerView}.
  */
 class ForecastAdapter extends RecyclerView.Adapter<ForecastAdapter.ForecastAdapterViewHolder> {
 
     private static final int VIEW_TYPE_TODAY = 0;
     private static final int VIEW_TYPE_FUTURE_DAY = 1;
 
+    /*
+     * Payloads passed to notifyItemChanged, so that only the parts of a row that changed are
+     * bound again. A row that changed in more than one way gets more than one payload.
+     */
+    static final Integer PAYLOAD_CONDITION = 1;
+    static final Integer PAYLOAD_TEMPERATURES = 2;
+    static final Integer PAYLOAD_DATE = 3;
+
     /* The context we use to utility methods, app resources and layout inflaters */
     private final Context mContext;
 
@@ -63,7 +69,8 @@ class ForecastAdapter extends RecyclerView.Adapter<ForecastAdapter.ForecastAdapt
      */
     private boolean mUseTodayLayout;
 
-    private Cursor mCursor;
+    /* Sorted by date, see ForecastLoader */
+    private ForecastRow[] mForecast = new ForecastRow[0];
 
     /**
      * Creates a ForecastAdapter.
@@ -129,90 +136,78 @@ class ForecastAdapter extends RecyclerView.Adapter<ForecastAdapter.ForecastAdapt
      */
     @Override
     public void onBindViewHolder(ForecastAdapterViewHolder forecastAdapterViewHolder, int position) {
-        mCursor.moveToPosition(position);
+        ForecastRow row = mForecast[position];
+
+        bindCondition(forecastAdapterViewHolder, row, position);
+        bindDate(forecastAdapterViewHolder, row);
+        bindTemperatures(forecastAdapterViewHolder, row);
+    }
+
+    /**
+     * Binds only the parts of a row named by the payloads swapForecast passed along with
+     * notifyItemChanged. Without payloads, the whole row is bound.
+     *
+     * @param forecastAdapterViewHolder The ViewHolder to update
+     * @param position                  The position of the item within the adapter's data set
+     * @param payloads                  Any of PAYLOAD_CONDITION, PAYLOAD_TEMPERATURES and
+     *                                  PAYLOAD_DATE, or none
+     */
+    @Override
+    public void onBindViewHolder(ForecastAdapterViewHolder forecastAdapterViewHolder, int position,
+                                 List<Object> payloads) {
+        if (payloads.isEmpty()) {
+            onBindViewHolder(forecastAdapterViewHolder, position);
+            return;
+        }
+
+        ForecastRow row = mForecast[position];
 
-        /****************
-         * Weather Icon *
-         ****************/
-        int weatherId = mCursor.getInt(MainActivity.INDEX_WEATHER_CONDITION_ID);
-        int weatherImageId;
+        if (payloads.contains(PAYLOAD_CONDITION)) {
+            bindCondition(forecastAdapterViewHolder, row, position);
+        }
+        if (payloads.contains(PAYLOAD_DATE)) {
+            bindDate(forecastAdapterViewHolder, row);
+        }
+        if (payloads.contains(PAYLOAD_TEMPERATURES)) {
+            bindTemperatures(forecastAdapterViewHolder, row);
+        }
+    }
 
+    /* The icon and the description */
+    private void bindCondition(ForecastAdapterViewHolder forecastAdapterViewHolder,
+                               ForecastRow row, int position) {
         int viewType = getItemViewType(position);
 
         switch (viewType) {
 
             case VIEW_TYPE_TODAY:
-                weatherImageId = SunshineWeatherUtils
-                        .getLargeArtResourceIdForWeatherCondition(weatherId);
+                forecastAdapterViewHolder.iconView.setImageResource(row.largeIconResId);
                 break;
 
             case VIEW_TYPE_FUTURE_DAY:
-                weatherImageId = SunshineWeatherUtils
-                        .getSmallArtResourceIdForWeatherCondition(weatherId);
+                forecastAdapterViewHolder.iconView.setImageResource(row.smallIconResId);
                 break;
 
             default:
                 throw new IllegalArgumentException("Invalid view type, value of " + viewType);
         }
 
-        forecastAdapterViewHolder.iconView.setImageResource(weatherImageId);
-
-        /****************
-         * Weather Date *
-         ****************/
-         /* Read date from the cursor */
-        long dateInMillis = mCursor.getLong(MainActivity.INDEX_WEATHER_DATE);
-         /* Get human readable string using our utility method */
-        String dateString = SunshineDateUtils.getFriendlyDateString(mContext, dateInMillis, false);
-
-         /* Display friendly date string */
-        forecastAdapterViewHolder.dateView.setText(dateString);
-
-        /***********************
-         * Weather Description *
-         ***********************/
-        String description = SunshineWeatherUtils.getStringForWeatherCondition(mContext, weatherId);
-         /* Create the accessibility (a11y) String from the weather description */
-        String descriptionA11y = mContext.getString(R.string.a11y_forecast, description);
-
-         /* Set the text and content description (for accessibility purposes) */
-        forecastAdapterViewHolder.descriptionView.setText(description);
-        forecastAdapterViewHolder.descriptionView.setContentDescription(descriptionA11y);
-
-        /**************************
-         * High (max) temperature *
-         **************************/
-         /* Read high temperature from the cursor (in degrees celsius) */
-        double highInCelsius = mCursor.getDouble(MainActivity.INDEX_WEATHER_MAX_TEMP);
-         /*
-          * If the user's preference for weather is fahrenheit, formatTemperature will convert
-          * the temperature. This method will also append either °C or °F to the temperature
-          * String.
-          */
-        String highString = SunshineWeatherUtils.formatTemperature(mContext, highInCelsius);
-         /* Create the accessibility (a11y) String from the weather description */
-        String highA11y = mContext.getString(R.string.a11y_high_temp, highString);
-
-         /* Set the text and content description (for accessibility purposes) */
-        forecastAdapterViewHolder.highTempView.setText(highString);
-        forecastAdapterViewHolder.highTempView.setContentDescription(highA11y);
-
-        /*************************
-         * Low (min) temperature *
-         *************************/
-         /* Read low temperature from the cursor (in degrees celsius) */
-        double lowInCelsius = mCursor.getDouble(MainActivity.INDEX_WEATHER_MIN_TEMP);
-         /*
-          * If the user's preference for weather is fahrenheit, formatTemperature will convert
-          * the temperature. This method will also append either °C or °F to the temperature
-          * String.
-          */
-        String lowString = SunshineWeatherUtils.formatTemperature(mContext, lowInCelsius);
-        String lowA11y = mContext.getString(R.string.a11y_low_temp, lowString);
-
-         /* Set the text and content description (for accessibility purposes) */
-        forecastAdapterViewHolder.lowTempView.setText(lowString);
-        forecastAdapterViewHolder.lowTempView.setContentDescription(lowA11y);
+        forecastAdapterViewHolder.descriptionView.setText(row.description);
+        forecastAdapterViewHolder.descriptionView.setContentDescription(row.descriptionA11y);
+    }
+
+    private void bindDate(ForecastAdapterViewHolder forecastAdapterViewHolder, ForecastRow row) {
+        forecastAdapterViewHolder.dateView.setText(row.dateString);
+    }
+
+    /* The high and low temperatures */
+    private void bindTemperatures(ForecastAdapterViewHolder forecastAdapterViewHolder,
+                                  ForecastRow row) {
+        forecastAdapterViewHolder.highTempView.setText(row.highString);
+        forecastAdapterViewHolder.highTempView.setContentDescription(row.highA11y);
+
+        forecastAdapterViewHolder.lowTempView.setText(row.lowString);
+        forecastAdapterViewHolder.lowTempView.setContentDescription(row.lowA11y);
     }
 
     /**
@@ -223,8 +218,7 @@ class ForecastAdapter extends RecyclerView.Adapter<ForecastAdapter.ForecastAdapt
      */
     @Override
     public int getItemCount() {
-        if (null == mCursor) return 0;
-        return mCursor.getCount();
+        return mForecast.length;
     }
 
     /**
@@ -234,7 +228,7 @@ class ForecastAdapter extends RecyclerView.Adapter<ForecastAdapter.ForecastAdapt
      * different layout for the "today" layout. The "today" layout is only shown in portrait mode
      * with the first item in the list.
      *
-     * @param position index within our RecyclerView and Cursor
+     * @param position index within our RecyclerView and forecast
      * @return the view type (today or future day)
      */
     @Override
@@ -247,16 +241,77 @@ class ForecastAdapter extends RecyclerView.Adapter<ForecastAdapter.ForecastAdapt
     }
 
     /**
-     * Swaps the cursor used by the ForecastAdapter for its weather data. This method is called by
-     * MainActivity after a load has finished, as well as when the Loader responsible for loading
-     * the weather data is reset. When this method is called, we assume we have a completely new
-     * set of data, so we call notifyDataSetChanged to tell the RecyclerView to update.
+     * Swaps the forecast shown by the ForecastAdapter. This method is called by MainActivity
+     * after a load has finished, as well as when the Loader responsible for loading the weather
+     * data is reset.
+     * <p>
+     * A new load is mostly the same forecast as the last one, so rather than calling
+     * notifyDataSetChanged, which rebinds every row, the rows of both forecasts are matched up by
+     * date. The RecyclerView is told which days were removed and inserted, and which parts of the
+     * days that are in both changed, so that only those get bound again. As the rows hold what
+     * is shown, rather than the weather it's worked out from, a change of units or of the
+     * current day shows up as changed temperatures or dates.
+     * <p>
+     * Both forecasts are sorted by date, so matching them up is a single pass over each. If the
+     * new forecast isn't sorted by date after all, every row is rebound.
      *
-     * @param newCursor the new cursor to use as ForecastAdapter's data source
+     * @param forecast The new forecast, or null to show none
      */
-    void swapCursor(Cursor newCursor) {
-        mCursor = newCursor;
-        notifyDataSetChanged();
+    void swapForecast(ForecastRow[] forecast) {
+        ForecastRow[] oldForecast = mForecast;
+        mForecast = forecast == null ? new ForecastRow[0] : forecast;
+
+        for (int i = 1; i < mForecast.length; i++) {
+            if (mForecast[i].date <= mForecast[i - 1].date) {
+                notifyDataSetChanged();
+                return;
+            }
+        }
+
+        int oldIndex = 0;
+        int newIndex = 0;
+        /* Where the next change goes, in the list as it is after the changes so far */
+        int position = 0;
+        while (oldIndex < oldForecast.length || newIndex < mForecast.length) {
+            if (newIndex == mForecast.length || (oldIndex < oldForecast.length
+                    && oldForecast[oldIndex].date < mForecast[newIndex].date)) {
+                notifyItemRemoved(position);
+                oldIndex++;
+
+            } else if (oldIndex == oldForecast.length
+                    || mForecast[newIndex].date < oldForecast[oldIndex].date) {
+                notifyItemInserted(position);
+                newIndex++;
+                position++;
+
+            } else {
+                ForecastRow oldRow = oldForecast[oldIndex];
+                ForecastRow newRow = mForecast[newIndex];
+                if (oldRow.weatherId != newRow.weatherId
+                        || !oldRow.description.equals(newRow.description)) {
+                    notifyItemChanged(position, PAYLOAD_CONDITION);
+                }
+                if (!oldRow.highString.equals(newRow.highString)
+                        || !oldRow.lowString.equals(newRow.lowString)) {
+                    notifyItemChanged(position, PAYLOAD_TEMPERATURES);
+                }
+                if (!oldRow.dateString.equals(newRow.dateString)) {
+                    notifyItemChanged(position, PAYLOAD_DATE);
+                }
+                oldIndex++;
+                newIndex++;
+                position++;
+            }
+        }
+
+        /*
+         * The first row has a layout of its own. When a different day becomes the first row, the
+         * row that moved there has to be bound again from scratch, to get that layout.
+         */
+        if (mUseTodayLayout && mForecast.length > 0
+                && (oldForecast.length == 0 || oldForecast[0].date != mForecast[0].date)) {
+            notifyItemChanged(0);
+        }
     }
 
     /**
@@ -294,9 +349,12 @@ class ForecastAdapter extends RecyclerView.Adapter<ForecastAdapter.ForecastAdapt
         @Override
         public void onClick(View v) {
             int adapterPosition = getAdapterPosition();
-            mCursor.moveToPosition(adapterPosition);
-            long dateInMillis = mCursor.getLong(MainActivity.INDEX_WEATHER_DATE);
-            mClickHandler.onClick(dateInMillis);
+
+            /* The row may have just been removed, and is still on screen, animating out */
+            if (adapterPosition == RecyclerView.NO_POSITION) {
+                return;
+            }
+            mClickHandler.onClick(mForecast[adapterPosition].date);
         }
     }
 }
\ No newline at end of file
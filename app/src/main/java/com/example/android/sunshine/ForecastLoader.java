@@ -0,0 +1,152 @@
+/*
+ * Copyright (C) 2016 The Android Open Source Project
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *      http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package com.example.android.sunshine;
+
+import android.content.Context;
+import android.database.Cursor;
+import android.support.v4.content.AsyncTaskLoader;
+
+import com.example.android.sunshine.data.WeatherContract;
+import com.example.android.sunshine.utilities.SunshineDateUtils;
+
+/**
+ * Loads the forecast from today onwards for MainActivity's list, as {@link ForecastRow}s that
+ * are ready to be bound. The query and all of the formatting happen on the loader's thread, and
+ * the cursor is closed before the rows are delivered.
+ * <p>
+ * Like a CursorLoader, it loads again whenever WeatherProvider reports a change to the forecast,
+ * or, while the activity is stopped, as soon as it is started again. The rows say "Today" and
+ * "Tomorrow" as of the day they were loaded, so they are also loaded again when the activity is
+ * started on a later day.
+ */
+class ForecastLoader extends AsyncTaskLoader<ForecastRow[]> {
+
+    /* Loads again when notified. Created on the main thread, where it is notified. */
+    private final ForceLoadContentObserver mObserver = new ForceLoadContentObserver();
+    private boolean mObserving;
+
+    /* The last rows delivered, to be delivered again when the activity is recreated */
+    private ForecastRow[] mForecast;
+
+    /* The normalized day the running load started on. Written on the loader's thread. */
+    private volatile long mLoadingDay;
+
+    /* The normalized day the rows in mForecast were loaded on */
+    private long mLoadedDay;
+
+    ForecastLoader(Context context) {
+        super(context);
+    }
+
+    @Override
+    public ForecastRow[] loadInBackground() {
+        mLoadingDay = SunshineDateUtils.normalizeDate(System.currentTimeMillis());
+
+        /* Sort order: Ascending by date, which ForecastAdapter relies on */
+        String sortOrder = WeatherContract.WeatherEntry.COLUMN_DATE + " ASC";
+        /*
+         * A SELECTION in SQL declares which rows you'd like to return. In our case, we want all
+         * weather data from today onwards that is stored in our weather table.
+         */
+        String selection = WeatherContract.WeatherEntry.getSqlSelectForTodayOnwards();
+
+        Cursor cursor = getContext().getContentResolver().query(
+                WeatherContract.WeatherEntry.CONTENT_URI,
+                MainActivity.MAIN_FORECAST_PROJECTION,
+                selection,
+                null,
+                sortOrder);
+        if (cursor == null) {
+            return new ForecastRow[0];
+        }
+
+        try {
+            return createRows(getContext(), cursor);
+        } finally {
+            cursor.close();
+        }
+    }
+
+    /**
+     * Creates a row for every day of the cursor, in order.
+     *
+     * @param context Used for the preferred units and the app's strings
+     * @param cursor  A cursor with MainActivity#MAIN_FORECAST_PROJECTION
+     * @return The rows, ready to be bound
+     */
+    static ForecastRow[] createRows(Context context, Cursor cursor) {
+        ForecastRow[] forecast = new ForecastRow[cursor.getCount()];
+        for (int i = 0; i < forecast.length; i++) {
+            cursor.moveToPosition(i);
+            forecast[i] = ForecastRow.fromCursor(context, cursor);
+        }
+        return forecast;
+    }
+
+    @Override
+    public void deliverResult(ForecastRow[] forecast) {
+        if (isReset()) {
+            return;
+        }
+        if (forecast != mForecast) {
+            mForecast = forecast;
+            mLoadedDay = mLoadingDay;
+        }
+        if (isStarted()) {
+            super.deliverResult(forecast);
+        }
+    }
+
+    @Override
+    protected void onStartLoading() {
+        /*
+         * Cursors over the whole forecast are notified at CHANGES_URI, see WeatherProvider. The
+         * observer stays registered while the activity is stopped, so that a change made in the
+         * meantime is loaded once it is started again.
+         */
+        if (!mObserving) {
+            getContext().getContentResolver().registerContentObserver(
+                    WeatherContract.WeatherEntry.CHANGES_URI, false, mObserver);
+            mObserving = true;
+        }
+
+        if (mForecast != null) {
+            deliverResult(mForecast);
+        }
+        /* The day of every row is relative to the day it was loaded on */
+        long today = SunshineDateUtils.normalizeDate(System.currentTimeMillis());
+        if (takeContentChanged() || mForecast == null || mLoadedDay != today) {
+            forceLoad();
+        }
+    }
+
+    @Override
+    protected void onStopLoading() {
+        cancelLoad();
+    }
+
+    @Override
+    protected void onReset() {
+        super.onReset();
+        onStopLoading();
+
+        mForecast = null;
+        if (mObserving) {
+            getContext().getContentResolver().unregisterContentObserver(mObserver);
+            mObserving = false;
+        }
+    }
+}
@@ -0,0 +1,93 @@
+/*
+ * Copyright (C) 2016 The Android Open Source Project
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *      http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package com.example.android.sunshine;
+
+import android.content.Context;
+import android.database.Cursor;
+
+import com.example.android.sunshine.utilities.SunshineDateUtils;
+import com.example.android.sunshine.utilities.SunshineWeatherUtils;
+
+/**
+ * One day of the forecast list, exactly as {@link ForecastAdapter} shows it. Every string and
+ * resource ID is worked out when the row is created, by {@link ForecastLoader} on its own thread,
+ * so that binding a row while the list scrolls only assigns fields to views.
+ * <p>
+ * Rows are never changed once created. A new load creates new rows.
+ */
+final class ForecastRow {
+
+    /* Normalized UTC date, which identifies the row, see WeatherEntry#COLUMN_DATE */
+    final long date;
+
+    /* The weather condition, from which both icons and the description are worked out */
+    final int weatherId;
+
+    /* The icons for the layout of today and for the layout of every other day */
+    final int largeIconResId;
+    final int smallIconResId;
+
+    final String dateString;
+
+    final String description;
+    final String descriptionA11y;
+
+    /* In the unit the user picked, with the degree symbol */
+    final String highString;
+    final String highA11y;
+    final String lowString;
+    final String lowA11y;
+
+    private ForecastRow(Context context, long date, int weatherId, double highInCelsius,
+                        double lowInCelsius) {
+        this.date = date;
+        this.weatherId = weatherId;
+
+        largeIconResId = SunshineWeatherUtils.getLargeArtResourceIdForWeatherCondition(weatherId);
+        smallIconResId = SunshineWeatherUtils.getSmallArtResourceIdForWeatherCondition(weatherId);
+
+        dateString = SunshineDateUtils.getFriendlyDateString(context, date, false);
+
+        description = SunshineWeatherUtils.getStringForWeatherCondition(context, weatherId);
+        descriptionA11y = context.getString(R.string.a11y_forecast, description);
+
+        /*
+         * If the user's preference for weather is fahrenheit, formatTemperature will convert
+         * the temperature. This method will also append either °C or °F to the temperature
+         * String.
+         */
+        highString = SunshineWeatherUtils.formatTemperature(context, highInCelsius);
+        highA11y = context.getString(R.string.a11y_high_temp, highString);
+        lowString = SunshineWeatherUtils.formatTemperature(context, lowInCelsius);
+        lowA11y = context.getString(R.string.a11y_low_temp, lowString);
+    }
+
+    /**
+     * Creates the row for the day the cursor is on.
+     *
+     * @param context Used for the preferred units and the app's strings
+     * @param cursor  A cursor with MainActivity#MAIN_FORECAST_PROJECTION, on the day to create
+     *                the row for
+     * @return The row, ready to be bound
+     */
+    static ForecastRow fromCursor(Context context, Cursor cursor) {
+        return new ForecastRow(context,
+                cursor.getLong(MainActivity.INDEX_WEATHER_DATE),
+                cursor.getInt(MainActivity.INDEX_WEATHER_CONDITION_ID),
+                cursor.getDouble(MainActivity.INDEX_WEATHER_MAX_TEMP),
+                cursor.getDouble(MainActivity.INDEX_WEATHER_MIN_TEMP));
+    }
+}
@@ -0,0 +1,402 @@
+/*
+ * Copyright (C) 2016 The Android Open Source Project
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *      http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package com.example.android.sunshine.data;
+
+import android.content.ContentValues;
+import android.database.Cursor;
+import android.database.MatrixCursor;
+import android.database.sqlite.SQLiteDatabase;
+
+import com.example.android.sunshine.data.WeatherContract.ArchiveEntry;
+import com.example.android.sunshine.data.WeatherContract.WeatherEntry;
+import com.example.android.sunshine.utilities.SunshineDateUtils;
+
+import java.io.ByteArrayOutputStream;
+
+/**
+ * Keeps the days of the forecast that have gone by, for trend charts, in far less space than
+ * weather rows would take.
+ * <p>
+ * The days of one location are packed into blocks of {@link #BLOCK_DAYS} consecutive days, one
+ * row of the archive table per block. Within a block, the data is stored column by column: first
+ * every date, then every weather ID, then every minimum temperature, and so on. Dates are stored
+ * as days since the start of the block, and the other values as tenths, which fit a short for
+ * anything the weather server sends. Every value is stored as the difference from the one before
+ * it in its column, in as few bytes as that difference needs. From one day to the next the
+ * weather changes little, so most values take a single byte. A month of weather takes a few
+ * hundred bytes, where weather rows and their index would take several kilobytes.
+ * <p>
+ * ForecastRetention archives the days it prunes, and WeatherProvider answers
+ * {@link ArchiveEntry#buildArchiveUriWithDateRange(long, long)} from here.
+ */
+final class ForecastArchive {
+
+    /* Days per block. Blocks start on a multiple of this many days since the epoch. */
+    static final int BLOCK_DAYS = 32;
+
+    /* The first byte of every block, so that the format can change without losing the archive */
+    private static final int FORMAT_VERSION = 1;
+
+    /* Temperatures, humidity, pressure, wind speed and direction are stored in tenths */
+    private static final double SCALE = 10.0;
+
+    /*
+     * The columns of the weather rows that are archived, in the order archive expects them,
+     * and the columns of the rows a query returns when no projection is given.
+     */
+    static final String[] DAY_COLUMNS = {
+            WeatherEntry.COLUMN_DATE,
+            WeatherEntry.COLUMN_WEATHER_ID,
+            WeatherEntry.COLUMN_MIN_TEMP,
+            WeatherEntry.COLUMN_MAX_TEMP,
+            WeatherEntry.COLUMN_HUMIDITY,
+            WeatherEntry.COLUMN_PRESSURE,
+            WeatherEntry.COLUMN_WIND_SPEED,
+            WeatherEntry.COLUMN_DEGREES
+    };
+
+    private static final int INDEX_DATE = 0;
+    private static final int INDEX_WEATHER_ID = 1;
+
+    /* The columns after the weather ID are all stored in tenths */
+    private static final int FIRST_SCALED_INDEX = 2;
+    private static final int SCALED_COLUMNS = DAY_COLUMNS.length - FIRST_SCALED_INDEX;
+
+    private ForecastArchive() {
+    }
+
+    /**
+     * Adds days to a location's archive. A day that is already archived is replaced.
+     *
+     * @param db         The writable database, in a transaction
+     * @param locationId The _ID of the location the days belong to
+     * @param days       The days, with {@link #DAY_COLUMNS} in that order, sorted by date. Read
+     *                   from its current position to the end.
+     * @return The number of days archived
+     */
+    static int archive(SQLiteDatabase db, long locationId, Cursor days) {
+        int archived = 0;
+        Block block = null;
+
+        while (days.moveToNext()) {
+            int day = toDay(days.getLong(INDEX_DATE));
+            if (block == null || !block.contains(day)) {
+                if (block != null) {
+                    writeBlock(db, locationId, block);
+                }
+                block = readBlock(db, locationId, getBlockStart(day));
+            }
+
+            short[] scaled = new short[SCALED_COLUMNS];
+            for (int i = 0; i < SCALED_COLUMNS; i++) {
+                scaled[i] = scale(days.getDouble(FIRST_SCALED_INDEX + i));
+            }
+            block.put(day, days.getInt(INDEX_WEATHER_ID), scaled);
+            archived++;
+        }
+
+        if (block != null) {
+            writeBlock(db, locationId, block);
+        }
+        return archived;
+    }
+
+    /**
+     * Reads the archived days of a location between two dates.
+     *
+     * @param db         The database
+     * @param locationId The _ID of the location
+     * @param startDate  The normalized date of the first day to return
+     * @param endDate    The normalized date of the last day to return
+     * @param projection Which of {@link #DAY_COLUMNS} to return, or null for all of them
+     * @return One row per archived day, sorted by date
+     */
+    static Cursor query(SQLiteDatabase db, long locationId, long startDate, long endDate,
+            String[] projection) {
+        if (projection == null) {
+            projection = DAY_COLUMNS;
+        }
+        int[] columnIndices = new int[projection.length];
+        for (int i = 0; i < projection.length; i++) {
+            columnIndices[i] = indexOf(projection[i]);
+        }
+
+        MatrixCursor cursor = new MatrixCursor(projection);
+        int startDay = toDay(startDate);
+        int endDay = toDay(endDate);
+
+        /* Blocks are found through the UNIQUE (location_id, first_date) index, in date order */
+        Cursor blocks = db.query(ArchiveEntry.TABLE_NAME,
+                new String[]{ArchiveEntry.COLUMN_FIRST_DATE, ArchiveEntry.COLUMN_DAYS},
+                ArchiveEntry.COLUMN_LOCATION_ID + " = ? AND "
+                        + ArchiveEntry.COLUMN_FIRST_DATE + " >= ? AND "
+                        + ArchiveEntry.COLUMN_FIRST_DATE + " <= ?",
+                new String[]{
+                        Long.toString(locationId),
+                        Long.toString(toDate(getBlockStart(startDay))),
+                        Long.toString(endDate)
+                },
+                null,
+                null,
+                ArchiveEntry.COLUMN_FIRST_DATE + " ASC");
+        try {
+            while (blocks.moveToNext()) {
+                Block block = Block.decode(toDay(blocks.getLong(0)), blocks.getBlob(1));
+                block.addRows(cursor, columnIndices, startDay, endDay);
+            }
+        } finally {
+            blocks.close();
+        }
+        return cursor;
+    }
+
+    private static Block readBlock(SQLiteDatabase db, long locationId, int startDay) {
+        Cursor cursor = db.query(ArchiveEntry.TABLE_NAME,
+                new String[]{ArchiveEntry.COLUMN_DAYS},
+                ArchiveEntry.COLUMN_LOCATION_ID + " = ? AND "
+                        + ArchiveEntry.COLUMN_FIRST_DATE + " = ?",
+                new String[]{Long.toString(locationId), Long.toString(toDate(startDay))},
+                null,
+                null,
+                null);
+        try {
+            if (cursor.moveToFirst()) {
+                return Block.decode(startDay, cursor.getBlob(0));
+            }
+        } finally {
+            cursor.close();
+        }
+        return new Block(startDay);
+    }
+
+    private static void writeBlock(SQLiteDatabase db, long locationId, Block block) {
+        ContentValues values = new ContentValues();
+        values.put(ArchiveEntry.COLUMN_LOCATION_ID, locationId);
+        values.put(ArchiveEntry.COLUMN_FIRST_DATE, toDate(block.mStartDay));
+        values.put(ArchiveEntry.COLUMN_DAY_COUNT, block.size());
+        values.put(ArchiveEntry.COLUMN_DAYS, block.encode());
+
+        /* Replaces the block that was there, see WeatherDbHelper */
+        db.insertOrThrow(ArchiveEntry.TABLE_NAME, null, values);
+    }
+
+    private static int indexOf(String column) {
+        for (int i = 0; i < DAY_COLUMNS.length; i++) {
+            if (DAY_COLUMNS[i].equals(column)) {
+                return i;
+            }
+        }
+        throw new IllegalArgumentException("The archive has no column " + column);
+    }
+
+    private static int toDay(long normalizedDate) {
+        return (int) (normalizedDate / SunshineDateUtils.DAY_IN_MILLIS);
+    }
+
+    private static long toDate(int day) {
+        return day * SunshineDateUtils.DAY_IN_MILLIS;
+    }
+
+    private static int getBlockStart(int day) {
+        return day - day % BLOCK_DAYS;
+    }
+
+    /* Rounds to tenths, and clamps anything a short can't hold */
+    static short scale(double value) {
+        long scaled = Math.round(value * SCALE);
+        return (short) Math.max(Short.MIN_VALUE, Math.min(Short.MAX_VALUE, scaled));
+    }
+
+    /**
+     * The days of one block, kept by their offset from the start of the block.
+     */
+    static final class Block {
+
+        private final int mStartDay;
+
+        /* Bit n is set if the day at offset n is stored */
+        private int mStoredDays;
+
+        private final int[] mWeatherIds = new int[BLOCK_DAYS];
+
+        /* [column][offset], in the order of DAY_COLUMNS after the weather ID */
+        private final short[][] mScaled = new short[SCALED_COLUMNS][BLOCK_DAYS];
+
+        Block(int startDay) {
+            mStartDay = startDay;
+        }
+
+        boolean contains(int day) {
+            return day >= mStartDay && day < mStartDay + BLOCK_DAYS;
+        }
+
+        int size() {
+            return Integer.bitCount(mStoredDays);
+        }
+
+        void put(int day, int weatherId, short[] scaled) {
+            int offset = day - mStartDay;
+            mStoredDays |= 1 << offset;
+            mWeatherIds[offset] = weatherId;
+            for (int i = 0; i < SCALED_COLUMNS; i++) {
+                mScaled[i][offset] = scaled[i];
+            }
+        }
+
+        private void addRows(MatrixCursor cursor, int[] columnIndices, int startDay, int endDay) {
+            Object[] row = new Object[columnIndices.length];
+            for (int offset = 0; offset < BLOCK_DAYS; offset++) {
+                int day = mStartDay + offset;
+                if ((mStoredDays & (1 << offset)) == 0 || day < startDay || day > endDay) {
+                    continue;
+                }
+
+                for (int i = 0; i < columnIndices.length; i++) {
+                    int column = columnIndices[i];
+                    if (column == INDEX_DATE) {
+                        row[i] = toDate(day);
+                    } else if (column == INDEX_WEATHER_ID) {
+                        row[i] = mWeatherIds[offset];
+                    } else {
+                        row[i] = mScaled[column - FIRST_SCALED_INDEX][offset] / SCALE;
+                    }
+                }
+                cursor.addRow(row);
+            }
+        }
+
+        /**
+         * The format version, the number of days, then each column in turn: the day offsets,
+         * the weather IDs and each scaled column, every value as the zigzag varint of its
+         * difference from the one before it.
+         */
+        byte[] encode() {
+            ByteArrayOutputStream out = new ByteArrayOutputStream(16 + size() * DAY_COLUMNS.length);
+            out.write(FORMAT_VERSION);
+            writeVarint(out, size());
+
+            int previous = 0;
+            for (int offset = 0; offset < BLOCK_DAYS; offset++) {
+                if ((mStoredDays & (1 << offset)) != 0) {
+                    /* Always positive, as the offsets only go up */
+                    writeVarint(out, offset - previous);
+                    previous = offset;
+                }
+            }
+
+            writeDeltas(out, mWeatherIds);
+            for (short[] column : mScaled) {
+                writeDeltas(out, column);
+            }
+            return out.toByteArray();
+        }
+
+        private void writeDeltas(ByteArrayOutputStream out, int[] column) {
+            int previous = 0;
+            for (int offset = 0; offset < BLOCK_DAYS; offset++) {
+                if ((mStoredDays & (1 << offset)) != 0) {
+                    writeVarint(out, zigzag(column[offset] - previous));
+                    previous = column[offset];
+                }
+            }
+        }
+
+        private void writeDeltas(ByteArrayOutputStream out, short[] column) {
+            int previous = 0;
+            for (int offset = 0; offset < BLOCK_DAYS; offset++) {
+                if ((mStoredDays & (1 << offset)) != 0) {
+                    writeVarint(out, zigzag(column[offset] - previous));
+                    previous = column[offset];
+                }
+            }
+        }
+
+        /**
+         * @param startDay The day the block starts on, which isn't stored in the block itself
+         * @param data     What {@link #encode()} returned
+         * @return The block
+         */
+        static Block decode(int startDay, byte[] data) {
+            if (data.length == 0 || data[0] != FORMAT_VERSION) {
+                throw new IllegalArgumentException("Unknown archive block format");
+            }
+            int[] position = {1};
+            int count = readVarint(data, position);
+            if (count > BLOCK_DAYS) {
+                throw new IllegalArgumentException("Too many days in archive block");
+            }
+
+            Block block = new Block(startDay);
+            int[] offsets = new int[count];
+            int offset = 0;
+            for (int i = 0; i < count; i++) {
+                offset += readVarint(data, position);
+                if (offset >= BLOCK_DAYS) {
+                    throw new IllegalArgumentException("Day outside of archive block");
+                }
+                offsets[i] = offset;
+                block.mStoredDays |= 1 << offset;
+            }
+
+            int previous = 0;
+            for (int i = 0; i < count; i++) {
+                previous += unzigzag(readVarint(data, position));
+                block.mWeatherIds[offsets[i]] = previous;
+            }
+            for (short[] column : block.mScaled) {
+                previous = 0;
+                for (int i = 0; i < count; i++) {
+                    previous += unzigzag(readVarint(data, position));
+                    column[offsets[i]] = (short) previous;
+                }
+            }
+            return block;
+        }
+    }
+
+    /* Maps small negative and positive numbers alike to small unsigned ones */
+    private static int zigzag(int value) {
+        return (value << 1) ^ (value >> 31);
+    }
+
+    private static int unzigzag(int value) {
+        return (value >>> 1) ^ -(value & 1);
+    }
+
+    /* Seven bits per byte, low bits first, with the top bit set on all but the last byte */
+    private static void writeVarint(ByteArrayOutputStream out, int value) {
+        while ((value & ~0x7F) != 0) {
+            out.write((value & 0x7F) | 0x80);
+            value >>>= 7;
+        }
+        out.write(value);
+    }
+
+    private static int readVarint(byte[] data, int[] position) {
+        int value = 0;
+        int shift = 0;
+        byte b;
+        do {
+            if (position[0] >= data.length || shift > 28) {
+                throw new IllegalArgumentException("Truncated archive block");
+            }
+            b = data[position[0]++];
+            value |= (b & 0x7F) << shift;
+            shift += 7;
+        } while ((b & 0x80) != 0);
+        return value;
+    }
+}
@@ -0,0 +1,322 @@
+/*
+ * Copyright (C) 2016 The Android Open Source Project
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *      http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package com.example.android.sunshine.data;
+
+import android.content.Context;
+import android.database.Cursor;
+import android.database.DatabaseUtils;
+import android.database.sqlite.SQLiteDatabase;
+import android.database.sqlite.SQLiteException;
+import android.util.Log;
+
+import com.example.android.sunshine.data.WeatherContract.LocationEntry;
+import com.example.android.sunshine.data.WeatherContract.WeatherEntry;
+import com.example.android.sunshine.utilities.SunshineDateUtils;
+
+import java.util.ArrayList;
+import java.util.List;
+
+/**
+ * Keeps weather.db from growing without bounds.
+ * <p>
+ * A sync only ever replaces the forecast of the location it syncs from today onwards, so the days
+ * that have gone by stay behind, and so do the forecasts of every location the user has ever
+ * picked. Maintenance removes both: days older than the history window, and the locations that
+ * haven't been synced the longest once there are more than a set number of them. The current
+ * location is always kept. Days older than the history window aren't lost, they are moved to the
+ * much more compact archive, see ForecastArchive. Rows are deleted in small batches, each in its
+ * own transaction, so that a sync or a CursorLoader never waits long for maintenance.
+ * <p>
+ * Maintenance runs inside WeatherProvider, on the same connections as every other read and
+ * write, see WeatherContract#MAINTENANCE_URI. A second connection pool would compete with the
+ * provider's writes for the database lock, and its changes would go unnoticed by the provider's
+ * observers.
+ * <p>
+ * Deleted rows only leave free pages behind in the database file. Those are given back to the
+ * file system with incremental_vacuum, which first needs the database to be in incremental
+ * auto_vacuum mode. Switching a database to that mode takes one full VACUUM, which maintenance
+ * runs the first time.
+ * <p>
+ * Maintenance is meant to run while the device is idle, see SunshineSyncUtils.
+ */
+public final class ForecastRetention {
+
+    private static final String TAG = ForecastRetention.class.getSimpleName();
+
+    /* Days before today that are kept, so that "yesterday" can still be looked at */
+    static final int DEFAULT_HISTORY_DAYS = 1;
+
+    /* Locations whose forecast is kept, including the current one */
+    static final int DEFAULT_MAX_LOCATIONS = 10;
+
+    /* Rows deleted per transaction */
+    static final int DEFAULT_BATCH_SIZE = 100;
+
+    /* PRAGMA auto_vacuum returns this for incremental mode */
+    private static final int AUTO_VACUUM_INCREMENTAL = 2;
+
+    /* The days of one location's forecast before a date */
+    private static final String SELECT_PAST_DAYS =
+            WeatherEntry.COLUMN_LOCATION_ID + " = ? AND " + WeatherEntry.COLUMN_DATE + " < ?";
+
+    /* The days of one location's forecast up to and including a date */
+    private static final String SELECT_DAYS_UP_TO =
+            WeatherEntry.COLUMN_LOCATION_ID + " = ? AND " + WeatherEntry.COLUMN_DATE + " <= ?";
+
+    private final int mHistoryDays;
+    private final int mMaxLocations;
+    private final int mBatchSize;
+
+    /**
+     * What a maintenance run did.
+     */
+    public static final class Report {
+
+        /* Days of forecast moved to the archive because they were older than the history window */
+        public final int pastDaysDeleted;
+
+        /* Locations deleted, with their forecast and archive, because there were too many */
+        public final int locationsDeleted;
+
+        /* How much smaller the database file got, in bytes */
+        public final long bytesReclaimed;
+
+        /* Whether the database had to be switched to incremental auto_vacuum with a VACUUM */
+        public final boolean fullVacuum;
+
+        Report(int pastDaysDeleted, int locationsDeleted, long bytesReclaimed, boolean fullVacuum) {
+            this.pastDaysDeleted = pastDaysDeleted;
+            this.locationsDeleted = locationsDeleted;
+            this.bytesReclaimed = bytesReclaimed;
+            this.fullVacuum = fullVacuum;
+        }
+
+        @Override
+        public String toString() {
+            return "deleted " + pastDaysDeleted + " past days and " + locationsDeleted
+                    + " locations, reclaimed " + bytesReclaimed + " bytes"
+                    + (fullVacuum ? " with a full VACUUM" : "");
+        }
+    }
+
+    /**
+     * @param historyDays  Days before today to keep
+     * @param maxLocations Locations to keep, at least 1
+     * @param batchSize    Rows to delete per transaction
+     */
+    ForecastRetention(int historyDays, int maxLocations, int batchSize) {
+        if (maxLocations < 1) {
+            throw new IllegalArgumentException("The current location is always kept");
+        }
+        mHistoryDays = historyDays;
+        mMaxLocations = maxLocations;
+        mBatchSize = batchSize;
+    }
+
+    /**
+     * Runs maintenance on weather.db with the default history window and limits, through
+     * WeatherProvider, see WeatherContract#MAINTENANCE_URI. Must not be called on the main
+     * thread.
+     *
+     * @param context Used to reach WeatherProvider
+     * @return false if the database couldn't be maintained this time, for instance because a
+     * sync held on to it for too long, in which case maintenance should be tried again later
+     */
+    public static boolean runMaintenance(Context context) {
+        try {
+            context.getContentResolver().delete(WeatherContract.MAINTENANCE_URI, null, null);
+            return true;
+        } catch (SQLiteException e) {
+            Log.w(TAG, "Maintenance failed, it will be tried again", e);
+            return false;
+        }
+    }
+
+    /**
+     * Runs maintenance with the default history window and limits, and logs what it did. Only
+     * WeatherProvider calls this, on its own database.
+     *
+     * @param db                     The writable database. Must not be in a transaction.
+     * @param currentLocationSetting The location that is never deleted
+     * @return What was done
+     */
+    static Report runWithDefaults(SQLiteDatabase db, String currentLocationSetting) {
+        Report report = new ForecastRetention(
+                DEFAULT_HISTORY_DAYS, DEFAULT_MAX_LOCATIONS, DEFAULT_BATCH_SIZE)
+                .run(db, currentLocationSetting, System.currentTimeMillis());
+        Log.i(TAG, "Maintenance " + report);
+        return report;
+    }
+
+    /**
+     * Deletes what is no longer needed and gives the space back to the file system.
+     *
+     * @param db                     The writable database. Must not be in a transaction.
+     * @param currentLocationSetting The location that is never deleted
+     * @param nowMillis              The current time
+     * @return What was done
+     */
+    Report run(SQLiteDatabase db, String currentLocationSetting, long nowMillis) {
+        long sizeBefore = getDatabaseSize(db);
+
+        int locationsDeleted = deleteExtraLocations(db, currentLocationSetting);
+
+        long today = SunshineDateUtils.normalizeDate(nowMillis);
+        long oldestKeptDate = today - mHistoryDays * SunshineDateUtils.DAY_IN_MILLIS;
+        int pastDaysDeleted = 0;
+        for (long locationId : getLocationIds(db)) {
+            pastDaysDeleted += deletePastDays(db, locationId, today, oldestKeptDate);
+        }
+
+        boolean fullVacuum = vacuum(db);
+
+        long bytesReclaimed = Math.max(0, sizeBefore - getDatabaseSize(db));
+        return new Report(pastDaysDeleted, locationsDeleted, bytesReclaimed, fullVacuum);
+    }
+
+    /**
+     * Deletes the locations that were synced the longest ago, along with their forecasts and
+     * archives, until at most mMaxLocations are left. The current location is kept whenever it
+     * was synced.
+     *
+     * @return The number of locations deleted
+     */
+    private int deleteExtraLocations(SQLiteDatabase db, String currentLocationSetting) {
+        List<Long> extraLocationIds = new ArrayList<>();
+        Cursor cursor = db.query(LocationEntry.TABLE_NAME,
+                new String[]{LocationEntry._ID},
+                LocationEntry.COLUMN_LOCATION_SETTING + " != ?",
+                new String[]{currentLocationSetting},
+                null,
+                null,
+                LocationEntry.COLUMN_LAST_SYNCED + " DESC");
+        try {
+            while (cursor.moveToNext()) {
+                /* Skip the locations we keep, besides the current one */
+                if (cursor.getPosition() >= mMaxLocations - 1) {
+                    extraLocationIds.add(cursor.getLong(0));
+                }
+            }
+        } finally {
+            cursor.close();
+        }
+
+        int locationsDeleted = 0;
+        for (long locationId : extraLocationIds) {
+            /* The forecast and the archive go with the location, see WeatherDbHelper */
+            locationsDeleted += db.delete(LocationEntry.TABLE_NAME,
+                    LocationEntry._ID + " = ?",
+                    new String[]{Long.toString(locationId)});
+        }
+        return locationsDeleted;
+    }
+
+    private static List<Long> getLocationIds(SQLiteDatabase db) {
+        List<Long> locationIds = new ArrayList<>();
+        Cursor cursor = db.query(LocationEntry.TABLE_NAME, new String[]{LocationEntry._ID},
+                null, null, null, null, null);
+        try {
+            while (cursor.moveToNext()) {
+                locationIds.add(cursor.getLong(0));
+            }
+        } finally {
+            cursor.close();
+        }
+        return locationIds;
+    }
+
+    /**
+     * Moves the days of one location's forecast before oldestKeptDate to the archive, mBatchSize
+     * at a time, oldest first. The batches are found through weather_forecast_index, which is led
+     * by the location ID and then the date. The location's forecast summary is updated along with
+     * each batch.
+     *
+     * @return The number of days deleted
+     */
+    private int deletePastDays(SQLiteDatabase db, long locationId, long today,
+            long oldestKeptDate) {
+        String location = Long.toString(locationId);
+        int daysDeleted = 0;
+
+        int batchDeleted;
+        do {
+            db.beginTransaction();
+            try {
+                Cursor batch = db.query(WeatherEntry.TABLE_NAME,
+                        ForecastArchive.DAY_COLUMNS,
+                        SELECT_PAST_DAYS,
+                        new String[]{location, Long.toString(oldestKeptDate)},
+                        null,
+                        null,
+                        WeatherEntry.COLUMN_DATE + " ASC",
+                        Integer.toString(mBatchSize));
+                try {
+                    batchDeleted = batch.getCount();
+                    if (batchDeleted > 0) {
+                        /* There's one row per date, so this is exactly the batch */
+                        batch.moveToLast();
+                        String lastDate = Long.toString(batch.getLong(0));
+                        batch.moveToPosition(-1);
+
+                        ForecastArchive.archive(db, locationId, batch);
+                        db.delete(WeatherEntry.TABLE_NAME, SELECT_DAYS_UP_TO,
+                                new String[]{location, lastDate});
+                        WeatherProvider.updateForecastSummary(db, locationId, today);
+                    }
+                } finally {
+                    batch.close();
+                }
+                db.setTransactionSuccessful();
+            } finally {
+                db.endTransaction();
+            }
+            daysDeleted += batchDeleted;
+        } while (batchDeleted == mBatchSize);
+
+        return daysDeleted;
+    }
+
+    /**
+     * Gives free pages back to the file system. The first time, that means switching the
+     * database to incremental auto_vacuum, which only a full VACUUM can do.
+     *
+     * @return true if a full VACUUM was run
+     */
+    private static boolean vacuum(SQLiteDatabase db) {
+        long autoVacuum = DatabaseUtils.longForQuery(db, "PRAGMA auto_vacuum", null);
+        if (autoVacuum != AUTO_VACUUM_INCREMENTAL) {
+            db.execSQL("PRAGMA auto_vacuum = INCREMENTAL");
+            db.execSQL("VACUUM");
+            return true;
+        }
+
+        /* incremental_vacuum returns a row for every page it frees, so it's run as a query */
+        Cursor cursor = db.rawQuery("PRAGMA incremental_vacuum", null);
+        try {
+            while (cursor.moveToNext()) {
+                /* Every step frees a page */
+            }
+        } finally {
+            cursor.close();
+        }
+        return false;
+    }
+
+    private static long getDatabaseSize(SQLiteDatabase db) {
+        return DatabaseUtils.longForQuery(db, "PRAGMA page_count", null)
+                * DatabaseUtils.longForQuery(db, "PRAGMA page_size", null);
+    }
+}
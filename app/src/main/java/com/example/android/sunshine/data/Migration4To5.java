@@ -0,0 +1,94 @@
+/*
+ * Copyright (C) 2016 The Android Open Source Project
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *      http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package com.example.android.sunshine.data;
+
+import android.content.Context;
+import android.database.sqlite.SQLiteDatabase;
+import android.database.sqlite.SQLiteStatement;
+
+/**
+ * Version 5 adds the location table and ties every weather row to a location.
+ * <p>
+ * Before version 5, the weather table only ever held the forecast for the location currently
+ * set in the preferences, so that is the location the existing rows are assigned to. Its last
+ * synced time is left at 0, so the forecast is refreshed on the next sync as it would have been
+ * anyway.
+ * <p>
+ * SQLite can't add a foreign key or change a UNIQUE constraint with ALTER TABLE, so the weather
+ * table is rebuilt and the forecast copied across.
+ */
+class Migration4To5 extends WeatherDbMigration {
+
+    private final Context mContext;
+
+    Migration4To5(Context context) {
+        super(4, 5);
+        mContext = context;
+    }
+
+    @Override
+    void migrate(SQLiteDatabase sqLiteDatabase) {
+        sqLiteDatabase.execSQL("CREATE TABLE location ("
+                + "_id INTEGER PRIMARY KEY AUTOINCREMENT, "
+                + "location_setting TEXT NOT NULL, "
+                + "coord_lat REAL NOT NULL, "
+                + "coord_long REAL NOT NULL, "
+                + "last_synced INTEGER NOT NULL, "
+                + "UNIQUE (location_setting));");
+
+        SunshinePreferences.Snapshot preferences = SunshinePreferences.getSnapshot(mContext);
+
+        SQLiteStatement insertLocation = sqLiteDatabase.compileStatement(
+                "INSERT INTO location (location_setting, coord_lat, coord_long, last_synced) "
+                        + "VALUES (?, ?, ?, 0)");
+        long locationId;
+        try {
+            insertLocation.bindString(1, preferences.preferredWeatherLocation);
+            insertLocation.bindDouble(2, preferences.latitude);
+            insertLocation.bindDouble(3, preferences.longitude);
+            locationId = insertLocation.executeInsert();
+        } finally {
+            insertLocation.close();
+        }
+
+        sqLiteDatabase.execSQL("CREATE TABLE weather_new ("
+                + "_id INTEGER PRIMARY KEY AUTOINCREMENT, "
+                + "date INTEGER NOT NULL, "
+                + "weather_id INTEGER NOT NULL, "
+                + "min REAL NOT NULL, "
+                + "max REAL NOT NULL, "
+                + "humidity REAL NOT NULL, "
+                + "pressure REAL NOT NULL, "
+                + "wind REAL NOT NULL, "
+                + "degrees REAL NOT NULL, "
+                + "location_id INTEGER NOT NULL REFERENCES location (_id) ON DELETE CASCADE, "
+                + "UNIQUE (location_id, date) ON CONFLICT REPLACE);");
+
+        sqLiteDatabase.execSQL("INSERT INTO weather_new "
+                        + "(_id, date, weather_id, min, max, humidity, pressure, wind, degrees, "
+                        + "location_id) "
+                        + "SELECT _id, date, weather_id, min, max, humidity, pressure, wind, "
+                        + "degrees, ? FROM weather",
+                new Object[]{locationId});
+
+        /* Dropping the old table drops weather_forecast_index along with it */
+        sqLiteDatabase.execSQL("DROP TABLE weather");
+        sqLiteDatabase.execSQL("ALTER TABLE weather_new RENAME TO weather");
+
+        sqLiteDatabase.execSQL("CREATE INDEX weather_forecast_index "
+                + "ON weather (location_id, date, max, min, weather_id);");
+    }
+}
@@ -0,0 +1,44 @@
+/*
+ * Copyright (C) 2016 The Android Open Source Project
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *      http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package com.example.android.sunshine.data;
+
+import android.database.sqlite.SQLiteDatabase;
+
+/**
+ * Version 6 keeps a summary of each location's stored forecast in the location table: how many
+ * days there are and the date of the last one. The summary of the forecasts that are already
+ * stored is worked out once, here.
+ */
+class Migration5To6 extends WeatherDbMigration {
+
+    Migration5To6() {
+        super(5, 6);
+    }
+
+    @Override
+    void migrate(SQLiteDatabase sqLiteDatabase) {
+        sqLiteDatabase.execSQL("ALTER TABLE location "
+                + "ADD COLUMN forecast_days INTEGER NOT NULL DEFAULT 0");
+        sqLiteDatabase.execSQL("ALTER TABLE location "
+                + "ADD COLUMN newest_date INTEGER NOT NULL DEFAULT 0");
+
+        sqLiteDatabase.execSQL("UPDATE location SET "
+                + "forecast_days = (SELECT COUNT(*) FROM weather "
+                + "WHERE weather.location_id = location._id), "
+                + "newest_date = (SELECT IFNULL(MAX(date), 0) FROM weather "
+                + "WHERE weather.location_id = location._id)");
+    }
+}
@@ -0,0 +1,46 @@
+/*
+ * Copyright (C) 2016 The Android Open Source Project
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *      http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package com.example.android.sunshine.data;
+
+import android.database.sqlite.SQLiteDatabase;
+
+/**
+ * Version 7 records, for each day of the forecast, when it was fetched and until when it is
+ * expected to be current, and adds the earliest of those expiry times to each location's
+ * forecast summary.
+ * <p>
+ * The days that are already stored were fetched when their location was last synced, as far as
+ * we know. Their expiry time is left at 0, so they are revalidated the next time they are shown.
+ */
+class Migration6To7 extends WeatherDbMigration {
+
+    Migration6To7() {
+        super(6, 7);
+    }
+
+    @Override
+    void migrate(SQLiteDatabase sqLiteDatabase) {
+        sqLiteDatabase.execSQL("ALTER TABLE weather "
+                + "ADD COLUMN fetched_at INTEGER NOT NULL DEFAULT 0");
+        sqLiteDatabase.execSQL("ALTER TABLE weather "
+                + "ADD COLUMN expires_at INTEGER NOT NULL DEFAULT 0");
+        sqLiteDatabase.execSQL("ALTER TABLE location "
+                + "ADD COLUMN forecast_expires_at INTEGER NOT NULL DEFAULT 0");
+
+        sqLiteDatabase.execSQL("UPDATE weather SET fetched_at = "
+                + "(SELECT last_synced FROM location WHERE location._id = weather.location_id)");
+    }
+}
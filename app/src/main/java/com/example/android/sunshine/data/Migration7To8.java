@@ -0,0 +1,41 @@
+/*
+ * Copyright (C) 2016 The Android Open Source Project
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *      http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package com.example.android.sunshine.data;
+
+import android.database.sqlite.SQLiteDatabase;
+
+/**
+ * Version 8 adds the archive table, where the days of the forecast that have gone by are kept.
+ * It starts out empty: the past days that are already stored are archived by the next
+ * maintenance, as it prunes them.
+ */
+class Migration7To8 extends WeatherDbMigration {
+
+    Migration7To8() {
+        super(7, 8);
+    }
+
+    @Override
+    void migrate(SQLiteDatabase sqLiteDatabase) {
+        sqLiteDatabase.execSQL("CREATE TABLE archive ("
+                + "_id INTEGER PRIMARY KEY AUTOINCREMENT, "
+                + "location_id INTEGER NOT NULL REFERENCES location (_id) ON DELETE CASCADE, "
+                + "first_date INTEGER NOT NULL, "
+                + "day_count INTEGER NOT NULL, "
+                + "days BLOB NOT NULL, "
+                + " UNIQUE (location_id, first_date) ON CONFLICT REPLACE);");
+    }
+}
@@ -21,6 +21,14 @@ import android.preference.PreferenceManager;
 
 import com.example.android.sunshine.R;
 
+/**
+ * Reads and writes Sunshine's preferences.
+ * <p>
+ * Some of the preferences are read many times a second, from the main thread as well as from
+ * the sync, so they aren't read from SharedPreferences each time. They are read once into an
+ * immutable {@link Snapshot}, which is replaced with a new one whenever a preference changes.
+ * Reading the current snapshot takes no lock and allocates nothing.
+ */
 public final class SunshinePreferences {
 
     /*
@@ -31,6 +39,125 @@ public final class SunshinePreferences {
     public static final String PREF_COORD_LAT = "coord_lat";
     public static final String PREF_COORD_LONG = "coord_long";
 
+    /* Null until the preferences are first read */
+    private static volatile Snapshot sSnapshot;
+
+    /*
+     * Replaces the snapshot whenever a preference changes, including when the user changes one
+     * in SettingsFragment. SharedPreferences only keeps a weak reference to its listeners, so
+     * this one is kept here.
+     */
+    private static SharedPreferences.OnSharedPreferenceChangeListener sListener;
+
+    /**
+     * The preferences as they were at one point in time. Never changes; a change to a preference
+     * makes a new snapshot.
+     */
+    public static final class Snapshot {
+
+        /* See getPreferredWeatherLocation */
+        public final String preferredWeatherLocation;
+
+        /* See isMetric */
+        public final boolean isMetric;
+
+        /* Whether latitude and longitude were stored, see isLocationLatLonAvailable */
+        public final boolean isLocationLatLonAvailable;
+
+        /* The coordinates of the preferred location, or 0 if they aren't available */
+        public final double latitude;
+        public final double longitude;
+
+        /* See areNotificationsEnabled */
+        public final boolean areNotificationsEnabled;
+
+        /* See getLastNotificationTimeInMillis */
+        public final long lastNotificationTimeInMillis;
+
+        private Snapshot(Context context, SharedPreferences sp) {
+            preferredWeatherLocation = sp.getString(
+                    context.getString(R.string.pref_location_key),
+                    context.getString(R.string.pref_location_default));
+
+            String metric = context.getString(R.string.pref_units_metric);
+            isMetric = metric.equals(
+                    sp.getString(context.getString(R.string.pref_units_key), metric));
+
+            isLocationLatLonAvailable = sp.contains(PREF_COORD_LAT) && sp.contains(PREF_COORD_LONG);
+
+            /*
+             * This is a hack we have to resort to since you can't store doubles in
+             * SharedPreferences.
+             *
+             * Double.doubleToLongBits returns an integer corresponding to the bits of the given
+             * IEEE 754 double precision value.
+             *
+             * Double.longBitsToDouble does the opposite, converting a long (that represents a
+             * double) into the double itself.
+             */
+            latitude = Double.longBitsToDouble(
+                    sp.getLong(PREF_COORD_LAT, Double.doubleToRawLongBits(0.0)));
+            longitude = Double.longBitsToDouble(
+                    sp.getLong(PREF_COORD_LONG, Double.doubleToRawLongBits(0.0)));
+
+            /*
+             * In Sunshine, the user has the ability to say whether she would like notifications
+             * enabled or not. If no preference has been chosen, we want to be able to determine
+             * whether or not to show them. To do this, we reference a bool stored in bools.xml.
+             */
+            areNotificationsEnabled = sp.getBoolean(
+                    context.getString(R.string.pref_enable_notifications_key),
+                    context.getResources().getBoolean(R.bool.show_notifications_by_default));
+
+            lastNotificationTimeInMillis =
+                    sp.getLong(context.getString(R.string.pref_last_notification), 0);
+        }
+    }
+
+    /**
+     * Returns the current preferences. Reads them the first time; after that, this takes no lock
+     * and allocates nothing. Read every preference a task needs from the same snapshot, so that
+     * they all go together.
+     *
+     * @param context Used to read the preferences the first time
+     * @return The current preferences
+     */
+    public static Snapshot getSnapshot(Context context) {
+        Snapshot snapshot = sSnapshot;
+        if (snapshot == null) {
+            snapshot = refreshSnapshot(context);
+        }
+        return snapshot;
+    }
+
+    /**
+     * Reads the preferences into a new snapshot and makes it the current one. The first time,
+     * also starts listening for changes to the preferences.
+     * <p>
+     * Called by the listener, and right after each write in this class, as the listener is only
+     * called later, on the main thread. Synchronized so that the last snapshot made, which
+     * becomes the current one, is never older than one made before it.
+     */
+    private static synchronized Snapshot refreshSnapshot(Context context) {
+        final Context appContext = context.getApplicationContext();
+        SharedPreferences sp = PreferenceManager.getDefaultSharedPreferences(appContext);
+
+        if (sListener == null) {
+            sListener = new SharedPreferences.OnSharedPreferenceChangeListener() {
+                @Override
+                public void onSharedPreferenceChanged(SharedPreferences sharedPreferences,
+                                                      String key) {
+                    refreshSnapshot(appContext);
+                }
+            };
+            sp.registerOnSharedPreferenceChangeListener(sListener);
+        }
+
+        Snapshot snapshot = new Snapshot(appContext, sp);
+        sSnapshot = snapshot;
+        return snapshot;
+    }
+
     /**
      * Helper method to handle setting location details in Preferences (city name, latitude,
      * longitude)
@@ -48,6 +175,7 @@ public final class SunshinePreferences {
         editor.putLong(PREF_COORD_LAT, Double.doubleToRawLongBits(lat));
         editor.putLong(PREF_COORD_LONG, Double.doubleToRawLongBits(lon));
         editor.apply();
+        refreshSnapshot(context);
     }
 
     /**
@@ -62,6 +190,7 @@ public final class SunshinePreferences {
         editor.remove(PREF_COORD_LAT);
         editor.remove(PREF_COORD_LONG);
         editor.apply();
+        refreshSnapshot(context);
     }
 
     /**
@@ -74,12 +203,7 @@ public final class SunshinePreferences {
      * "94043,USA" if SharedPreferences have not been implemented yet.
      */
     public static String getPreferredWeatherLocation(Context context) {
-        SharedPreferences sp = PreferenceManager.getDefaultSharedPreferences(context);
-
-        String keyForLocation = context.getString(R.string.pref_location_key);
-        String defaultLocation = context.getString(R.string.pref_location_default);
-
-        return sp.getString(keyForLocation, defaultLocation);
+        return getSnapshot(context).preferredWeatherLocation;
     }
 
     /**
@@ -89,49 +213,7 @@ public final class SunshinePreferences {
      * @return true if metric display should be used, false if imperial display should be used
      */
     public static boolean isMetric(Context context) {
-        SharedPreferences sp = PreferenceManager.getDefaultSharedPreferences(context);
-
-        String keyForUnits = context.getString(R.string.pref_units_key);
-        String defaultUnits = context.getString(R.string.pref_units_metric);
-        String preferredUnits = sp.getString(keyForUnits, defaultUnits);
-        String metric = context.getString(R.string.pref_units_metric);
-
-        boolean userPrefersMetric = false;
-        if (metric.equals(preferredUnits)) {
-            userPrefersMetric = true;
-        }
-
-        return userPrefersMetric;
-    }
-
-    /**
-     * Returns the location coordinates associated with the location. Note that there is a
-     * possibility that these coordinates may not be set, which results in (0,0) being returned.
-     * Interestingly, (0,0) is in the middle of the ocean off the west coast of Africa.
-     *
-     * @param context used to access SharedPreferences
-     * @return an array containing the two coordinate values for the user's preferred location
-     */
-    public static double[] getLocationCoordinates(Context context) {
-        SharedPreferences sp = PreferenceManager.getDefaultSharedPreferences(context);
-
-        double[] preferredCoordinates = new double[2];
-
-        /*
-         * This is a hack we have to resort to since you can't store doubles in SharedPreferences.
-         *
-         * Double.doubleToLongBits returns an integer corresponding to the bits of the given
-         * IEEE 754 double precision value.
-         *
-         * Double.longBitsToDouble does the opposite, converting a long (that represents a double)
-         * into the double itself.
-         */
-        preferredCoordinates[0] = Double
-                 .longBitsToDouble(sp.getLong(PREF_COORD_LAT, Double.doubleToRawLongBits(0.0)));
-        preferredCoordinates[1] = Double
-                .longBitsToDouble(sp.getLong(PREF_COORD_LONG, Double.doubleToRawLongBits(0.0)));
-
-        return preferredCoordinates;
+        return getSnapshot(context).isMetric;
     }
 
     /**
@@ -142,17 +224,7 @@ public final class SunshinePreferences {
      * @return true if lat/long are saved in SharedPreferences
      */
     public static boolean isLocationLatLonAvailable(Context context) {
-        SharedPreferences sp = PreferenceManager.getDefaultSharedPreferences(context);
-
-        boolean spContainLatitude = sp.contains(PREF_COORD_LAT);
-        boolean spContainLongitude = sp.contains(PREF_COORD_LONG);
-
-        boolean spContainBothLatitudeAndLongitude = false;
-        if (spContainLatitude && spContainLongitude) {
-            spContainBothLatitudeAndLongitude = true;
-        }
-
-        return spContainBothLatitudeAndLongitude;
+        return getSnapshot(context).isLocationLatLonAvailable;
     }
 
     /**
@@ -163,26 +235,7 @@ public final class SunshinePreferences {
      * @return true if the user prefers to see notifications, false otherwise
      */
     public static boolean areNotificationsEnabled(Context context) {
-        /* Key for accessing the preference for showing notifications */
-        String displayNotificationsKey = context.getString(R.string.pref_enable_notifications_key);
-
-        /*
-         * In Sunshine, the user has the ability to say whether she would like notifications
-         * enabled or not. If no preference has been chosen, we want to be able to determine
-         * whether or not to show them. To do this, we reference a bool stored in bools.xml.
-         */
-        boolean shouldDisplayNotificationsByDefault = context
-                .getResources()
-                .getBoolean(R.bool.show_notifications_by_default);
-
-        /* As usual, we use the default SharedPreferences to access the user's preferences */
-        SharedPreferences sp = PreferenceManager.getDefaultSharedPreferences(context);
-
-        /* If a value is stored with the key, we extract it here. If not, use a default. */
-        boolean shouldDisplayNotifications = sp
-                .getBoolean(displayNotificationsKey, shouldDisplayNotificationsByDefault);
-
-        return shouldDisplayNotifications;
+        return getSnapshot(context).areNotificationsEnabled;
     }
 
     /**
@@ -192,25 +245,15 @@ public final class SunshinePreferences {
      * @return UNIX time of when the last notification was shown
      */
     public static long getLastNotificationTimeInMillis(Context context) {
-        /* Key for accessing the time at which Sunshine last displayed a notification */
-        String lastNotificationKey = context.getString(R.string.pref_last_notification);
-
-        /* As usual, we use the default SharedPreferences to access the user's preferences */
-        SharedPreferences sp = PreferenceManager.getDefaultSharedPreferences(context);
-
         /*
-         * Here, we retrieve the time in milliseconds when the last notification was shown. If
-         * SharedPreferences doesn't have a value for lastNotificationKey, we return 0. The reason
-         * we return 0 is because we compare the value returned from this method to the current
-         * system time. If the difference between the last notification time and the current time
-         * is greater than one day, we will show a notification again. When we compare the two
-         * values, we subtract the last notification time from the current system time. If the
-         * time of the last notification was 0, the difference will always be greater than the
-         * number of milliseconds in a day and we will show another notification.
+         * If no notification was shown yet, this is 0. The reason we return 0 is because we
+         * compare the value returned from this method to the current system time. If the
+         * difference between the last notification time and the current time is greater than
+         * one day, we will show a notification again. If the time of the last notification was
+         * 0, the difference will always be greater than the number of milliseconds in a day and
+         * we will show another notification.
          */
-        long lastNotificationTime = sp.getLong(lastNotificationKey, 0);
-
-        return lastNotificationTime;
+        return getSnapshot(context).lastNotificationTimeInMillis;
     }
 
     /**
@@ -241,5 +284,6 @@ public final class SunshinePreferences {
         String lastNotificationKey = context.getString(R.string.pref_last_notification);
         editor.putLong(lastNotificationKey, timeOfNotification);
         editor.apply();
+        refreshSnapshot(context);
     }
 }
\ No newline at end of file
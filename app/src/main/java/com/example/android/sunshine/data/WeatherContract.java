@@ -56,6 +56,113 @@ public class WeatherContract {
      */
     public static final String PATH_WEATHER = "weather";
 
+    /*
+     * Appended to the weather path to form the URI that SunshineSyncTask hands a freshly
+     * downloaded forecast to. Rows bulk inserted at that URI are compared with the rows we
+     * already have instead of being blindly inserted.
+     */
+    public static final String PATH_SYNC = "sync";
+
+    /*
+     * Appended to the weather path to form the URI that sums up the stored forecast of the
+     * current location in a single row, see WeatherEntry#META_URI.
+     */
+    public static final String PATH_META = "meta";
+
+    /*
+     * Appended to the weather path to form the URI that cursors over more than one day are
+     * notified at, see WeatherEntry#CHANGES_URI.
+     */
+    public static final String PATH_CHANGES = "changes";
+
+    /*
+     * Used both as its own path, for the location table, and appended to the weather path, for
+     * the forecast of one particular location. For instance,
+     *
+     *     content://com.example.android.sunshine/location/
+     *     content://com.example.android.sunshine/weather/location/3
+     */
+    public static final String PATH_LOCATION = "location";
+
+    /*
+     * The days of the forecast that have gone by, kept for trend charts. For instance,
+     *
+     *     content://com.example.android.sunshine/archive/1472169600000/1474761600000
+     */
+    public static final String PATH_ARCHIVE = "archive";
+
+    /* Where daily maintenance of the database is run, see MAINTENANCE_URI */
+    public static final String PATH_MAINTENANCE = "maintenance";
+
+    /*
+     * Deleting at this URI runs maintenance on the database, see ForecastRetention, on
+     * WeatherProvider's own connection, so that it queues up behind syncs rather than competing
+     * with them. The selection is ignored. It returns the number of days archived and locations
+     * deleted, and notifies the observers of whatever went away. It is never queried.
+     */
+    public static final Uri MAINTENANCE_URI = BASE_CONTENT_URI.buildUpon()
+            .appendPath(PATH_MAINTENANCE)
+            .build();
+
+    /*
+     * Inner class that defines the table contents of the location table. Every location the user
+     * has asked for the weather of gets a row, so that switching back to a recently used location
+     * can show its cached forecast straight away.
+     */
+    public static final class LocationEntry implements BaseColumns {
+
+        /* The base CONTENT_URI used to query the location table from the content provider */
+        public static final Uri CONTENT_URI = BASE_CONTENT_URI.buildUpon()
+                .appendPath(PATH_LOCATION)
+                .build();
+
+        /* Used internally as the name of our location table. */
+        public static final String TABLE_NAME = "location";
+
+        /*
+         * The location string the user entered in the settings, exactly as it was sent to the
+         * weather server. Each location setting is stored once.
+         */
+        public static final String COLUMN_LOCATION_SETTING = "location_setting";
+
+        /* Latitude and longitude of the location, as returned by the weather server */
+        public static final String COLUMN_COORD_LAT = "coord_lat";
+        public static final String COLUMN_COORD_LONG = "coord_long";
+
+        /* Time in milliseconds at which the forecast for this location was last synced */
+        public static final String COLUMN_LAST_SYNCED = "last_synced";
+
+        /*
+         * How many days of forecast from today onwards are stored for this location, and the
+         * normalized date of the last stored day, or 0 if there are none. Days before today are
+         * history, not forecast, so they aren't counted. WeatherProvider keeps both up to date
+         * with every write to the weather table, so that asking whether there is a forecast to
+         * show doesn't mean reading the forecast. Added in version 6, see Migration5To6.
+         */
+        public static final String COLUMN_FORECAST_DAYS = "forecast_days";
+        public static final String COLUMN_NEWEST_DATE = "newest_date";
+
+        /*
+         * The earliest WeatherEntry#COLUMN_EXPIRES_AT of the location's forecast from today
+         * onwards, or 0 if there is none: once this time has passed, the forecast should be
+         * revalidated. Kept up to date by WeatherProvider like the rest of the summary. Added in
+         * version 7, see Migration6To7.
+         */
+        public static final String COLUMN_FORECAST_EXPIRES_AT = "forecast_expires_at";
+
+        /**
+         * Builds a URI for a single location row.
+         *
+         * @param locationId The _ID of the location
+         * @return Uri to query a single location
+         */
+        public static Uri buildLocationUri(long locationId) {
+            return CONTENT_URI.buildUpon()
+                    .appendPath(Long.toString(locationId))
+                    .build();
+        }
+    }
+
     /* Inner class that defines the table contents of the weather table */
     public static final class WeatherEntry implements BaseColumns {
 
@@ -64,9 +171,49 @@ public class WeatherContract {
                 .appendPath(PATH_WEATHER)
                 .build();
 
+        /*
+         * The URI used to bulkInsert a complete forecast. WeatherProvider writes only the days
+         * that changed, deletes the days from today onwards that are no longer part of the
+         * forecast and does both in a single transaction. Days before today are kept until
+         * maintenance archives them, see MAINTENANCE_URI.
+         */
+        public static final Uri SYNC_URI = CONTENT_URI.buildUpon()
+                .appendPath(PATH_SYNC)
+                .build();
+
+        /*
+         * The URI that sums up the stored forecast of the location currently set in
+         * SunshinePreferences in a single row: LocationEntry's COLUMN_FORECAST_DAYS,
+         * COLUMN_NEWEST_DATE, COLUMN_FORECAST_EXPIRES_AT and COLUMN_LAST_SYNCED. If the location
+         * isn't stored, there is no row at all. Answering this never touches the weather table.
+         */
+        public static final Uri META_URI = CONTENT_URI.buildUpon()
+                .appendPath(PATH_META)
+                .build();
+
+        /*
+         * WeatherProvider notifies the URI of every date it changed, once the change has been
+         * committed, so that a cursor for a single date from buildWeatherUriWithDate only hears
+         * about that date. Cursors over more than one day, from CONTENT_URI, META_URI and
+         * buildWeatherUriWithLocation, are notified at this URI instead, once per change however
+         * many days it touched. It is never queried. Notifying CONTENT_URI itself still reaches
+         * every cursor.
+         */
+        public static final Uri CHANGES_URI = CONTENT_URI.buildUpon()
+                .appendPath(PATH_CHANGES)
+                .build();
+
         /* Used internally as the name of our weather table. */
         public static final String TABLE_NAME = "weather";
 
+        /*
+         * The _ID of the row in the location table that this forecast day belongs to. Rows
+         * queried through CONTENT_URI are always those of the location currently set in
+         * SunshinePreferences. When values are inserted through CONTENT_URI or SYNC_URI without a
+         * location ID, they are stored for that same location.
+         */
+        public static final String COLUMN_LOCATION_ID = "location_id";
+
         /*
          * The date column will store the UTC date that correlates to the local date for which
          * each particular weather row represents. For example, if you live in the Eastern
@@ -109,6 +256,16 @@ public class WeatherContract {
          */
         public static final String COLUMN_DEGREES = "degrees";
 
+        /*
+         * Time in milliseconds at which this day of the forecast was last fetched from, or
+         * confirmed by, the weather server, and the time until which it is expected to still be
+         * current. Past that time the day is still shown, but a sync is started to revalidate it.
+         * Neither counts as a change to the forecast. Rows inserted without them are stored as
+         * fetched now and expired right away. Added in version 7, see Migration6To7.
+         */
+        public static final String COLUMN_FETCHED_AT = "fetched_at";
+        public static final String COLUMN_EXPIRES_AT = "expires_at";
+
         /**
          * Builds a URI that adds the weather date to the end of the forecast content URI path.
          * This is used to query details about a single weather entry by date. This is what we
@@ -123,6 +280,20 @@ public class WeatherContract {
                     .build();
         }
 
+        /**
+         * Builds a URI for the whole stored forecast of one location, whether or not it is the
+         * location currently set in the preferences.
+         *
+         * @param locationId The _ID of the location in the location table
+         * @return Uri to query the forecast of that location
+         */
+        public static Uri buildWeatherUriWithLocation(long locationId) {
+            return CONTENT_URI.buildUpon()
+                    .appendPath(PATH_LOCATION)
+                    .appendPath(Long.toString(locationId))
+                    .build();
+        }
+
         /**
          * Returns just the selection part of the weather query from a normalized today value.
          * This is used to get a weather forecast from today's date. To make this easy to use
@@ -135,4 +306,57 @@ public class WeatherContract {
             return WeatherContract.WeatherEntry.COLUMN_DATE + " >= " + normalizedUtcNow;
         }
     }
+
+    /*
+     * Inner class that defines the archive table, where the days of the forecast that have gone
+     * by are kept, packed into blocks of consecutive days. See ForecastArchive for the format.
+     *
+     * The blocks aren't read through the ContentProvider. Querying a URI built with
+     * buildArchiveUriWithDateRange returns one row per archived day of the current location,
+     * sorted by date, with WeatherEntry's COLUMN_DATE, COLUMN_WEATHER_ID, COLUMN_MIN_TEMP,
+     * COLUMN_MAX_TEMP, COLUMN_HUMIDITY, COLUMN_PRESSURE, COLUMN_WIND_SPEED and COLUMN_DEGREES.
+     * Values are kept to a tenth. The selection and sort order are ignored. Added in version 8,
+     * see Migration7To8.
+     */
+    public static final class ArchiveEntry implements BaseColumns {
+
+        /* The base CONTENT_URI of the archive. Only ranges of it can be queried. */
+        public static final Uri CONTENT_URI = BASE_CONTENT_URI.buildUpon()
+                .appendPath(PATH_ARCHIVE)
+                .build();
+
+        /* Used internally as the name of our archive table. */
+        public static final String TABLE_NAME = "archive";
+
+        /*
+         * The _ID of the row in the location table that the archived days belong to. Deleting a
+         * location deletes its archive too, on purpose: picking the location again stores it
+         * under a new _ID, which could never reach the old blocks.
+         */
+        public static final String COLUMN_LOCATION_ID = "location_id";
+
+        /* The normalized date the block starts on, see ForecastArchive#BLOCK_DAYS */
+        public static final String COLUMN_FIRST_DATE = "first_date";
+
+        /* How many days are stored in the block */
+        public static final String COLUMN_DAY_COUNT = "day_count";
+
+        /* The days of the block, encoded by ForecastArchive */
+        public static final String COLUMN_DAYS = "days";
+
+        /**
+         * Builds a URI for the archived days of the current location from one date up to and
+         * including another.
+         *
+         * @param startDate Normalized date of the first day
+         * @param endDate   Normalized date of the last day
+         * @return Uri to query the archived days
+         */
+        public static Uri buildArchiveUriWithDateRange(long startDate, long endDate) {
+            return CONTENT_URI.buildUpon()
+                    .appendPath(Long.toString(startDate))
+                    .appendPath(Long.toString(endDate))
+                    .build();
+        }
+    }
 }
\ No newline at end of file
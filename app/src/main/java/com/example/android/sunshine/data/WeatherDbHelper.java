@@ -15,12 +15,20 @@
  */
 package com.example.android.sunshine.data;
 
+import android.annotation.TargetApi;
 import android.content.Context;
+import android.database.DatabaseUtils;
 import android.database.sqlite.SQLiteDatabase;
 import android.database.sqlite.SQLiteOpenHelper;
+import android.os.Build;
 
+import com.example.android.sunshine.data.WeatherContract.ArchiveEntry;
+import com.example.android.sunshine.data.WeatherContract.LocationEntry;
 import com.example.android.sunshine.data.WeatherContract.WeatherEntry;
 
+import java.util.ArrayList;
+import java.util.List;
+
 /**
  * Manages a local database for weather data.
  */
@@ -43,10 +51,133 @@ public class WeatherDbHelper extends SQLiteOpenHelper {
      * use-case, we wanted to watch out for it and warn you what could happen if you mistakenly
      * version your databases.
      */
-    private static final int DATABASE_VERSION = 3;
+    private static final int DATABASE_VERSION = 8;
+
+    /*
+     * Covering index for the forecast list. MainActivity asks for the date, max, min and weather
+     * ID of every day from today onwards, sorted by date. WeatherProvider limits that query to
+     * the rows of the current location, so the location ID leads the index. NotificationUtils
+     * and the wear sync ask for a subset of those same columns for a single date. With every one
+     * of those columns in the index, SQLite answers all of these queries from the index alone,
+     * in date order, without ever touching the table itself.
+     *
+     * DetailActivity's WEATHER_DETAIL_PROJECTION is deliberately left out. It asks for every
+     * column of a single row, so an index covering it would be a second copy of the whole table
+     * that every sync has to write to, just to save one row lookup. The UNIQUE (location_id,
+     * date) index already lets SQLite go straight to that row.
+     *
+     * Added in version 4, see Migration3To4, and led by the location ID since version 5, see
+     * Migration4To5.
+     */
+    static final String FORECAST_INDEX_NAME = "weather_forecast_index";
+
+    private static final String SQL_CREATE_FORECAST_INDEX =
+            "CREATE INDEX IF NOT EXISTS " + FORECAST_INDEX_NAME + " ON " +
+                    WeatherEntry.TABLE_NAME + " (" +
+                    WeatherEntry.COLUMN_LOCATION_ID + ", " +
+                    WeatherEntry.COLUMN_DATE + ", " +
+                    WeatherEntry.COLUMN_MAX_TEMP + ", " +
+                    WeatherEntry.COLUMN_MIN_TEMP + ", " +
+                    WeatherEntry.COLUMN_WEATHER_ID + ");";
+
+    /*
+     * The steps that upgrade an existing database to DATABASE_VERSION without discarding the
+     * forecast it holds. Whenever DATABASE_VERSION is incremented, add a step here that upgrades
+     * the previous version to the new one.
+     */
+    private final WeatherDbMigration[] mMigrations;
+
+    /*
+     * Once the write-ahead log grows past this many pages, SQLite copies it back into the
+     * database file. Our writes are small (a sync is a couple of dozen rows at most), so we
+     * checkpoint far more often than SQLite's default of 1000 pages to keep the log small.
+     */
+    private static final int WAL_AUTOCHECKPOINT_PAGES = 100;
+
+    /*
+     * After a checkpoint, SQLite truncates the write-ahead log file down to this size rather than
+     * leaving it at whatever size it reached.
+     */
+    private static final long JOURNAL_SIZE_LIMIT_BYTES = 512 * 1024;
 
     public WeatherDbHelper(Context context) {
         super(context, DATABASE_NAME, null, DATABASE_VERSION);
+
+        mMigrations = buildMigrations(context);
+
+        /*
+         * In the default rollback journal mode, a sync's write transaction locks out every
+         * reader until it commits, which means the CursorLoaders in MainActivity and
+         * DetailActivity have to wait on SunshineSyncTask. With write-ahead logging, readers
+         * keep reading the last committed data while a write is in progress. SQLiteDatabase
+         * also gives each reading thread its own connection from its connection pool, which it
+         * only does in this mode. The size of that pool is set by the platform.
+         */
+        if (Build.VERSION.SDK_INT >= Build.VERSION_CODES.JELLY_BEAN) {
+            setWriteAheadLoggingEnabled(true);
+        }
+    }
+
+    /**
+     * Called when the database connection is being configured, before onCreate, onUpgrade or
+     * onOpen. This is only called on Jelly Bean and above. See {@link #onOpen(SQLiteDatabase)} for
+     * older releases.
+     * <p>
+     * SQLite doesn't enforce foreign keys unless asked to on every connection. We want it to, so
+     * that deleting a location also deletes its forecast.
+     *
+     * @param sqLiteDatabase The database.
+     */
+    @Override
+    @TargetApi(16)
+    public void onConfigure(SQLiteDatabase sqLiteDatabase) {
+        super.onConfigure(sqLiteDatabase);
+        sqLiteDatabase.setForeignKeyConstraintsEnabled(true);
+        tuneWriteAheadLog(sqLiteDatabase);
+    }
+
+    /**
+     * Called when the database has been opened. Before Jelly Bean, there's no onConfigure, no
+     * setForeignKeyConstraintsEnabled and no setWriteAheadLoggingEnabled, so this is where we
+     * turn on foreign keys and, for Honeycomb through Ice Cream Sandwich, write-ahead logging.
+     * Gingerbread doesn't support write-ahead logging at all and keeps using the rollback
+     * journal.
+     *
+     * @param sqLiteDatabase The database.
+     */
+    @Override
+    @TargetApi(11)
+    public void onOpen(SQLiteDatabase sqLiteDatabase) {
+        super.onOpen(sqLiteDatabase);
+
+        if (Build.VERSION.SDK_INT < Build.VERSION_CODES.JELLY_BEAN
+                && !sqLiteDatabase.isReadOnly()) {
+            sqLiteDatabase.execSQL("PRAGMA foreign_keys = ON");
+
+            if (Build.VERSION.SDK_INT >= Build.VERSION_CODES.HONEYCOMB) {
+                sqLiteDatabase.enableWriteAheadLogging();
+                tuneWriteAheadLog(sqLiteDatabase);
+            }
+        }
+    }
+
+    /**
+     * Trades a little durability for faster commits. In WAL mode, synchronous = NORMAL only
+     * syncs to disk at checkpoints rather than on every commit. The database can't be corrupted
+     * by a crash or power loss, although the most recent sync may be lost, which is fine for
+     * what is only a cache of data we can download again.
+     * <p>
+     * The two pragmas that return a value are run with longForQuery, since execSQL refuses to
+     * run statements that return rows.
+     *
+     * @param sqLiteDatabase The database.
+     */
+    private static void tuneWriteAheadLog(SQLiteDatabase sqLiteDatabase) {
+        sqLiteDatabase.execSQL("PRAGMA synchronous = NORMAL");
+        DatabaseUtils.longForQuery(sqLiteDatabase,
+                "PRAGMA wal_autocheckpoint = " + WAL_AUTOCHECKPOINT_PAGES, null);
+        DatabaseUtils.longForQuery(sqLiteDatabase,
+                "PRAGMA journal_size_limit = " + JOURNAL_SIZE_LIMIT_BYTES, null);
     }
 
     /**
@@ -58,6 +189,35 @@ public class WeatherDbHelper extends SQLiteOpenHelper {
     @Override
     public void onCreate(SQLiteDatabase sqLiteDatabase) {
 
+        /*
+         * This String will contain a simple SQL statement that will create a table that will
+         * store every location the user has asked for the weather of.
+         */
+        final String SQL_CREATE_LOCATION_TABLE =
+
+                "CREATE TABLE " + LocationEntry.TABLE_NAME + " (" +
+
+                LocationEntry._ID                     + " INTEGER PRIMARY KEY AUTOINCREMENT, " +
+
+                LocationEntry.COLUMN_LOCATION_SETTING + " TEXT NOT NULL, "                    +
+
+                LocationEntry.COLUMN_COORD_LAT        + " REAL NOT NULL, "                    +
+                LocationEntry.COLUMN_COORD_LONG       + " REAL NOT NULL, "                    +
+
+                LocationEntry.COLUMN_LAST_SYNCED      + " INTEGER NOT NULL, "                 +
+
+                /* A summary of the location's forecast, kept up to date by WeatherProvider */
+                LocationEntry.COLUMN_FORECAST_DAYS    + " INTEGER NOT NULL DEFAULT 0, "       +
+                LocationEntry.COLUMN_NEWEST_DATE      + " INTEGER NOT NULL DEFAULT 0, "       +
+                LocationEntry.COLUMN_FORECAST_EXPIRES_AT + " INTEGER NOT NULL DEFAULT 0, "    +
+
+                /*
+                 * Each location setting is stored only once. Unlike the weather table, we don't
+                 * REPLACE on conflict here, as replacing a location would delete its forecast
+                 * along with it. WeatherProvider updates an existing location instead.
+                 */
+                " UNIQUE (" + LocationEntry.COLUMN_LOCATION_SETTING + "));";
+
         /*
          * This String will contain a simple SQL statement that will create a table that will
          * cache our weather data.
@@ -86,28 +246,118 @@ public class WeatherDbHelper extends SQLiteOpenHelper {
                 WeatherEntry.COLUMN_WIND_SPEED + " REAL NOT NULL, "                    +
                 WeatherEntry.COLUMN_DEGREES    + " REAL NOT NULL, "                    +
 
+                /* When the day was fetched, and until when it is expected to be current */
+                WeatherEntry.COLUMN_FETCHED_AT + " INTEGER NOT NULL DEFAULT 0, "       +
+                WeatherEntry.COLUMN_EXPIRES_AT + " INTEGER NOT NULL DEFAULT 0, "       +
+
+                /*
+                 * Every forecast day belongs to a location. When a location is deleted, its
+                 * forecast goes with it.
+                 */
+                WeatherEntry.COLUMN_LOCATION_ID + " INTEGER NOT NULL REFERENCES "       +
+                LocationEntry.TABLE_NAME + " (" + LocationEntry._ID + ") ON DELETE CASCADE, " +
+
                 /*
-                 * To ensure this table can only contain one weather entry per date, we declare
-                 * the date column to be unique. We also specify "ON CONFLICT REPLACE". This tells
-                 * SQLite that if we have a weather entry for a certain date and we attempt to
-                 * insert another weather entry with that date, we replace the old weather entry.
+                 * To ensure this table can only contain one weather entry per date for each
+                 * location, we declare the pair of location ID and date to be unique. We also
+                 * specify "ON CONFLICT REPLACE". This tells SQLite that if we have a weather entry
+                 * for a certain location and date and we attempt to insert another weather entry
+                 * for them, we replace the old weather entry.
                  */
-                " UNIQUE (" + WeatherEntry.COLUMN_DATE + ") ON CONFLICT REPLACE);";
+                " UNIQUE (" + WeatherEntry.COLUMN_LOCATION_ID + ", " +
+                WeatherEntry.COLUMN_DATE + ") ON CONFLICT REPLACE);";
+
+        /*
+         * The days of the forecast that have gone by, packed into blocks of consecutive days by
+         * ForecastArchive. Like the forecast, the archive of a location goes with it. There's
+         * one block per location and first date, and writing a block again replaces it.
+         */
+        final String SQL_CREATE_ARCHIVE_TABLE =
+
+                "CREATE TABLE " + ArchiveEntry.TABLE_NAME + " (" +
+
+                ArchiveEntry._ID                + " INTEGER PRIMARY KEY AUTOINCREMENT, " +
+
+                ArchiveEntry.COLUMN_LOCATION_ID + " INTEGER NOT NULL REFERENCES "       +
+                LocationEntry.TABLE_NAME + " (" + LocationEntry._ID + ") ON DELETE CASCADE, " +
+
+                ArchiveEntry.COLUMN_FIRST_DATE  + " INTEGER NOT NULL, "                 +
+                ArchiveEntry.COLUMN_DAY_COUNT   + " INTEGER NOT NULL, "                 +
+                ArchiveEntry.COLUMN_DAYS        + " BLOB NOT NULL, "                    +
+
+                " UNIQUE (" + ArchiveEntry.COLUMN_LOCATION_ID + ", " +
+                ArchiveEntry.COLUMN_FIRST_DATE + ") ON CONFLICT REPLACE);";
 
         /*
          * After we've spelled out our SQLite table creation statement above, we actually execute
          * that SQL with the execSQL method of our SQLite database object.
          */
+        sqLiteDatabase.execSQL(SQL_CREATE_LOCATION_TABLE);
         sqLiteDatabase.execSQL(SQL_CREATE_WEATHER_TABLE);
+        sqLiteDatabase.execSQL(SQL_CREATE_FORECAST_INDEX);
+        sqLiteDatabase.execSQL(SQL_CREATE_ARCHIVE_TABLE);
+    }
+
+    /**
+     * Creates the ordered list of migration steps, one for every version we know how to upgrade
+     * from without discarding data.
+     *
+     * @param context Used by steps that need to know about the user's preferences
+     * @return Every migration step, ordered by the version it starts from
+     */
+    static WeatherDbMigration[] buildMigrations(Context context) {
+        return new WeatherDbMigration[]{
+                new Migration3To4(),
+                new Migration4To5(context),
+                new Migration5To6(),
+                new Migration6To7(),
+                new Migration7To8()
+        };
+    }
+
+    /**
+     * Finds the chain of migration steps that takes a database from one version to another.
+     *
+     * @param migrations The available steps, see {@link #buildMigrations(Context)}
+     * @param oldVersion The version the database is currently at
+     * @param newVersion The version the database needs to be at
+     * @return The steps to run, in order, or null if there is a version along the way that no
+     * step upgrades from
+     */
+    static List<WeatherDbMigration> findMigrationPath(WeatherDbMigration[] migrations,
+                                                      int oldVersion, int newVersion) {
+        List<WeatherDbMigration> path = new ArrayList<>();
+        int version = oldVersion;
+
+        while (version < newVersion) {
+            WeatherDbMigration nextStep = null;
+            for (WeatherDbMigration migration : migrations) {
+                if (migration.startVersion == version && migration.endVersion <= newVersion) {
+                    nextStep = migration;
+                    break;
+                }
+            }
+
+            if (nextStep == null) return null;
+
+            path.add(nextStep);
+            version = nextStep.endVersion;
+        }
+
+        return path;
     }
 
     /**
-     * This database is only a cache for online data, so its upgrade policy is simply to discard
-     * the data and call through to onCreate to recreate the table. Note that this only fires if
-     * you change the version number for your database (in our case, DATABASE_VERSION). It does NOT
-     * depend on the version number for your application found in your app/build.gradle file. If
-     * you want to update the schema without wiping data, commenting out the current body of this
-     * method should be your top priority before modifying this method.
+     * Upgrades the database in place by running each migration step between oldVersion and
+     * newVersion in order, which keeps the cached forecast around so there's something to show
+     * straight after an app update. Note that this only fires if you change the version number
+     * for your database (in our case, DATABASE_VERSION). It does NOT depend on the version number
+     * for your application found in your app/build.gradle file.
+     * <p>
+     * This database is still only a cache for online data. If there's no chain of steps from
+     * oldVersion to newVersion (a very old version of Sunshine, for example), we fall back to
+     * discarding the data and calling through to onCreate to recreate the tables. The next sync
+     * will fill it up again.
      *
      * @param sqLiteDatabase Database that is being upgraded
      * @param oldVersion     The old database version
@@ -115,7 +365,19 @@ public class WeatherDbHelper extends SQLiteOpenHelper {
      */
     @Override
     public void onUpgrade(SQLiteDatabase sqLiteDatabase, int oldVersion, int newVersion) {
+        List<WeatherDbMigration> migrationPath =
+                findMigrationPath(mMigrations, oldVersion, newVersion);
+
+        if (migrationPath != null) {
+            for (WeatherDbMigration migration : migrationPath) {
+                migration.migrate(sqLiteDatabase);
+            }
+            return;
+        }
+
+        sqLiteDatabase.execSQL("DROP TABLE IF EXISTS " + ArchiveEntry.TABLE_NAME);
         sqLiteDatabase.execSQL("DROP TABLE IF EXISTS " + WeatherEntry.TABLE_NAME);
+        sqLiteDatabase.execSQL("DROP TABLE IF EXISTS " + LocationEntry.TABLE_NAME);
         onCreate(sqLiteDatabase);
     }
 }
\ No newline at end of file
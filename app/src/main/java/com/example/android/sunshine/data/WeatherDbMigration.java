@@ -0,0 +1,49 @@
+/*
+ * Copyright (C) 2016 The Android Open Source Project
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *      http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package com.example.android.sunshine.data;
+
+import android.database.sqlite.SQLiteDatabase;
+
+/**
+ * A single step in upgrading weather.db from one database version to the next. Each step changes
+ * the existing tables in place, so the forecast that's already cached survives the upgrade and
+ * there's something to show on first launch after an app update.
+ * <p>
+ * Steps are run by {@link WeatherDbHelper#onUpgrade(SQLiteDatabase, int, int)}, inside the
+ * upgrade transaction, one after the other. A step should only ever use SQL written out for the
+ * versions it migrates between, rather than the constants in WeatherContract, as those describe
+ * the latest schema and may have changed since the step was written.
+ */
+abstract class WeatherDbMigration {
+
+    /* The database version this step upgrades from */
+    final int startVersion;
+
+    /* The database version the database is at once this step has run */
+    final int endVersion;
+
+    WeatherDbMigration(int startVersion, int endVersion) {
+        this.startVersion = startVersion;
+        this.endVersion = endVersion;
+    }
+
+    /**
+     * Upgrades the database from startVersion to endVersion.
+     *
+     * @param sqLiteDatabase Database at startVersion
+     */
+    abstract void migrate(SQLiteDatabase sqLiteDatabase);
+}
@@ -17,15 +17,25 @@ package com.example.android.sunshine.data;
 
 import android.annotation.TargetApi;
 import android.content.ContentProvider;
+import android.content.ContentResolver;
 import android.content.ContentValues;
 import android.content.UriMatcher;
 import android.database.Cursor;
+import android.database.SQLException;
 import android.database.sqlite.SQLiteDatabase;
+import android.database.sqlite.SQLiteStatement;
 import android.net.Uri;
 import android.support.annotation.NonNull;
 
+import com.example.android.sunshine.data.WeatherContract.LocationEntry;
 import com.example.android.sunshine.utilities.SunshineDateUtils;
 
+import java.util.HashMap;
+import java.util.HashSet;
+import java.util.List;
+import java.util.Map;
+import java.util.Set;
+
 /**
  * This class serves as the ContentProvider for all of Sunshine's data. This class allows us to
  * bulkInsert data, query data, and delete data.
@@ -45,6 +55,13 @@ public class WeatherProvider extends ContentProvider {
      */
     public static final int CODE_WEATHER = 100;
     public static final int CODE_WEATHER_WITH_DATE = 101;
+    public static final int CODE_WEATHER_SYNC = 102;
+    public static final int CODE_WEATHER_WITH_LOCATION = 103;
+    public static final int CODE_WEATHER_META = 104;
+    public static final int CODE_LOCATION = 200;
+    public static final int CODE_LOCATION_WITH_ID = 201;
+    public static final int CODE_ARCHIVE_WITH_DATE_RANGE = 300;
+    public static final int CODE_MAINTENANCE = 400;
 
     /*
      * The URI Matcher used by this content provider. The leading "s" in this variable name
@@ -54,6 +71,78 @@ public class WeatherProvider extends ContentProvider {
     private static final UriMatcher sUriMatcher = buildUriMatcher();
     private WeatherDbHelper mOpenHelper;
 
+    /*
+     * The INSERT statement used for every row we write. It is compiled once per batch and then
+     * re-bound for each row, rather than having SQLiteDatabase#insert build, parse and bind a new
+     * statement from a ContentValues for every single row. The order of the columns here must
+     * match the bind indices used in insertWeather.
+     *
+     * There's no "OR REPLACE" in here on purpose. The UNIQUE (location_id, date) ON CONFLICT
+     * REPLACE clause from WeatherDbHelper applies to this statement just like it does to
+     * SQLiteDatabase#insert.
+     */
+    private static final String SQL_INSERT_WEATHER =
+            "INSERT INTO " + WeatherContract.WeatherEntry.TABLE_NAME + " (" +
+                    WeatherContract.WeatherEntry.COLUMN_DATE + ", " +
+                    WeatherContract.WeatherEntry.COLUMN_WEATHER_ID + ", " +
+                    WeatherContract.WeatherEntry.COLUMN_MIN_TEMP + ", " +
+                    WeatherContract.WeatherEntry.COLUMN_MAX_TEMP + ", " +
+                    WeatherContract.WeatherEntry.COLUMN_HUMIDITY + ", " +
+                    WeatherContract.WeatherEntry.COLUMN_PRESSURE + ", " +
+                    WeatherContract.WeatherEntry.COLUMN_WIND_SPEED + ", " +
+                    WeatherContract.WeatherEntry.COLUMN_DEGREES + ", " +
+                    WeatherContract.WeatherEntry.COLUMN_LOCATION_ID + ", " +
+                    WeatherContract.WeatherEntry.COLUMN_FETCHED_AT + ", " +
+                    WeatherContract.WeatherEntry.COLUMN_EXPIRES_AT +
+                    ") VALUES (?, ?, ?, ?, ?, ?, ?, ?, ?, ?, ?)";
+
+    /*
+     * Every weather query and delete is limited to the rows of one location. This is the
+     * selection used to do that, see scopeSelectionToLocation.
+     */
+    private static final String SELECT_LOCATION_ID =
+            WeatherContract.WeatherEntry.COLUMN_LOCATION_ID + " = ?";
+
+    /*
+     * Works out a location's forecast summary again, see LocationEntry#COLUMN_FORECAST_DAYS.
+     * Only the days from today (?2) onwards are counted and looked at for the expiry time, as
+     * the days before it are history kept for maintenance to archive, not forecast. The count
+     * and the newest date are answered from weather_forecast_index, which is led by the location
+     * ID and then the date, and the expiry time from the rows of that one location only, so this
+     * never reads other locations' forecasts. It runs in the same transaction as every write to
+     * the weather table, so the summary and the forecast never disagree.
+     */
+    private static final String SQL_UPDATE_FORECAST_SUMMARY =
+            "UPDATE " + LocationEntry.TABLE_NAME + " SET " +
+                    LocationEntry.COLUMN_FORECAST_DAYS + " = (SELECT COUNT(*) FROM " +
+                    WeatherContract.WeatherEntry.TABLE_NAME + " WHERE " +
+                    WeatherContract.WeatherEntry.COLUMN_LOCATION_ID + " = ?1 AND " +
+                    WeatherContract.WeatherEntry.COLUMN_DATE + " >= ?2), " +
+                    LocationEntry.COLUMN_NEWEST_DATE + " = (SELECT IFNULL(MAX(" +
+                    WeatherContract.WeatherEntry.COLUMN_DATE + "), 0) FROM " +
+                    WeatherContract.WeatherEntry.TABLE_NAME + " WHERE " +
+                    WeatherContract.WeatherEntry.COLUMN_LOCATION_ID + " = ?1), " +
+                    LocationEntry.COLUMN_FORECAST_EXPIRES_AT + " = (SELECT IFNULL(MIN(" +
+                    WeatherContract.WeatherEntry.COLUMN_EXPIRES_AT + "), 0) FROM " +
+                    WeatherContract.WeatherEntry.TABLE_NAME + " WHERE " +
+                    WeatherContract.WeatherEntry.COLUMN_LOCATION_ID + " = ?1 AND " +
+                    WeatherContract.WeatherEntry.COLUMN_DATE + " >= ?2) " +
+                    "WHERE " + LocationEntry._ID + " = ?1";
+
+    /* What WeatherEntry#META_URI returns when no projection is given */
+    private static final String[] FORECAST_SUMMARY_PROJECTION = {
+            LocationEntry.COLUMN_FORECAST_DAYS,
+            LocationEntry.COLUMN_NEWEST_DATE,
+            LocationEntry.COLUMN_FORECAST_EXPIRES_AT,
+            LocationEntry.COLUMN_LAST_SYNCED
+    };
+
+    /* Columns that say how fresh a day of the forecast is, rather than what the weather is */
+    private static final String[] FRESHNESS_COLUMNS = {
+            WeatherContract.WeatherEntry.COLUMN_FETCHED_AT,
+            WeatherContract.WeatherEntry.COLUMN_EXPIRES_AT
+    };
+
     /**
      * Creates the UriMatcher that will match each URI to the CODE_WEATHER and
      * CODE_WEATHER_WITH_DATE constants defined above.
@@ -96,6 +185,49 @@ public class WeatherProvider extends ContentProvider {
          */
         matcher.addURI(authority, WeatherContract.PATH_WEATHER + "/#", CODE_WEATHER_WITH_DATE);
 
+        /*
+         * This URI is content://com.example.android.sunshine/weather/sync. It is only used to
+         * bulkInsert a complete forecast, see WeatherContract.WeatherEntry#SYNC_URI. Since "#"
+         * only matches numbers, this won't be confused with CODE_WEATHER_WITH_DATE.
+         */
+        matcher.addURI(authority,
+                WeatherContract.PATH_WEATHER + "/" + WeatherContract.PATH_SYNC,
+                CODE_WEATHER_SYNC);
+
+        /*
+         * This URI would look something like content://com.example.android.sunshine/weather/location/3
+         * and is the stored forecast of the location with the _ID 3, whether or not that is the
+         * location currently set in the preferences.
+         */
+        matcher.addURI(authority,
+                WeatherContract.PATH_WEATHER + "/" + WeatherContract.PATH_LOCATION + "/#",
+                CODE_WEATHER_WITH_LOCATION);
+
+        /*
+         * This URI is content://com.example.android.sunshine/weather/meta, the summary of the
+         * current location's forecast, see WeatherContract.WeatherEntry#META_URI.
+         */
+        matcher.addURI(authority,
+                WeatherContract.PATH_WEATHER + "/" + WeatherContract.PATH_META,
+                CODE_WEATHER_META);
+
+        /* This URI is content://com.example.android.sunshine/location/ */
+        matcher.addURI(authority, WeatherContract.PATH_LOCATION, CODE_LOCATION);
+
+        /* This URI would look something like content://com.example.android.sunshine/location/3 */
+        matcher.addURI(authority, WeatherContract.PATH_LOCATION + "/#", CODE_LOCATION_WITH_ID);
+
+        /*
+         * This URI would look something like
+         * content://com.example.android.sunshine/archive/1472169600000/1474761600000, the
+         * archived days of the current location from the first date to the second.
+         */
+        matcher.addURI(authority, WeatherContract.PATH_ARCHIVE + "/#/#",
+                CODE_ARCHIVE_WITH_DATE_RANGE);
+
+        /* This URI is content://com.example.android.sunshine/maintenance/ */
+        matcher.addURI(authority, WeatherContract.PATH_MAINTENANCE, CODE_MAINTENANCE);
+
         return matcher;
     }
 
@@ -145,9 +277,13 @@ public class WeatherProvider extends ContentProvider {
         switch (sUriMatcher.match(uri)) {
 
             case CODE_WEATHER:
+                long currentLocationId = getCurrentLocationId(db, true);
+                SQLiteStatement insertStatement = db.compileStatement(SQL_INSERT_WEATHER);
+                Set<Long> insertedDates = new HashSet<>();
                 db.beginTransaction();
                 int rowsInserted = 0;
                 try {
+                    Set<Long> locationIds = new HashSet<>();
                     for (ContentValues value : values) {
                         long weatherDate =
                                 value.getAsLong(WeatherContract.WeatherEntry.COLUMN_DATE);
@@ -155,27 +291,482 @@ public class WeatherProvider extends ContentProvider {
                             throw new IllegalArgumentException("Date must be normalized to insert");
                         }
 
-                        long _id = db.insert(WeatherContract.WeatherEntry.TABLE_NAME, null, value);
+                        long _id = insertWeather(insertStatement, value, currentLocationId);
                         if (_id != -1) {
                             rowsInserted++;
+                            insertedDates.add(weatherDate);
+                            Long locationId = value.getAsLong(
+                                    WeatherContract.WeatherEntry.COLUMN_LOCATION_ID);
+                            locationIds.add(locationId != null ? locationId : currentLocationId);
                         }
                     }
+
+                    for (long locationId : locationIds) {
+                        updateForecastSummary(db, locationId);
+                    }
                     db.setTransactionSuccessful();
                 } finally {
                     db.endTransaction();
+                    insertStatement.close();
                 }
 
-                if (rowsInserted > 0) {
-                    getContext().getContentResolver().notifyChange(uri, null);
-                }
+                notifyWeatherChanged(insertedDates);
 
                 return rowsInserted;
 
+            case CODE_WEATHER_SYNC:
+                /*
+                 * A sync always covers a single location. The sync task tells us which one, as
+                 * the user may have picked another location while the forecast was downloading.
+                 */
+                Long syncLocationId = values.length > 0
+                        ? values[0].getAsLong(WeatherContract.WeatherEntry.COLUMN_LOCATION_ID)
+                        : null;
+                if (syncLocationId == null) {
+                    syncLocationId = getCurrentLocationId(db, true);
+                }
+
+                Set<Long> changedDates = new HashSet<>();
+                int rowsChanged = syncWeather(db, syncLocationId, values, changedDates);
+
+                /*
+                 * Nobody observes the sync URI itself. Only the days that were written or deleted
+                 * are notified, so a sync that changed nothing makes nobody requery anything.
+                 */
+                notifyWeatherChanged(changedDates);
+
+                return rowsChanged;
+
             default:
                 return super.bulkInsert(uri, values);
         }
     }
 
+    /**
+     * Replaces the stored forecast of one location with the forecast in values, touching as few
+     * rows as possible. Rows are matched up by COLUMN_DATE. A day is only written if it is new or
+     * if any of its values differ from what is stored, and stored days from today onwards that
+     * are missing from values are deleted. Days before today are kept for maintenance to archive.
+     * The location's last synced time is updated along with the forecast. Everything happens in
+     * one transaction, so readers never see a partial forecast.
+     * <p>
+     * If values carry COLUMN_FETCHED_AT and COLUMN_EXPIRES_AT, the days from today onwards that
+     * didn't change are marked as fetched too, as the server just confirmed them. That isn't
+     * counted as a change. The days before today weren't part of what the server sent, so they
+     * keep the times they were last fetched at.
+     * <p>
+     * The forecasts of other locations are left alone.
+     *
+     * @param db           The writable database
+     * @param locationId   The _ID of the location the forecast is for
+     * @param values       The complete forecast. Every date must be normalized.
+     * @param changedDates Receives the dates of the rows that were written or deleted
+     * @return The number of weather rows that were written or deleted
+     */
+    private int syncWeather(SQLiteDatabase db, long locationId, ContentValues[] values,
+                            Set<Long> changedDates) {
+        String[] locationArgs = new String[]{Long.toString(locationId)};
+
+        SQLiteStatement insertStatement = db.compileStatement(SQL_INSERT_WEATHER);
+        db.beginTransaction();
+        int rowsChanged = 0;
+        try {
+            Map<Long, ContentValues> storedWeather = new HashMap<>();
+
+            Cursor cursor = db.query(WeatherContract.WeatherEntry.TABLE_NAME,
+                    null, SELECT_LOCATION_ID, locationArgs, null, null, null);
+            try {
+                int dateIndex = cursor.getColumnIndex(WeatherContract.WeatherEntry.COLUMN_DATE);
+                String[] columnNames = cursor.getColumnNames();
+                while (cursor.moveToNext()) {
+                    ContentValues storedValue = new ContentValues();
+                    for (int i = 0; i < columnNames.length; i++) {
+                        storedValue.put(columnNames[i], cursor.getString(i));
+                    }
+                    storedWeather.put(cursor.getLong(dateIndex), storedValue);
+                }
+            } finally {
+                cursor.close();
+            }
+
+            for (ContentValues value : values) {
+                long weatherDate = value.getAsLong(WeatherContract.WeatherEntry.COLUMN_DATE);
+                if (!SunshineDateUtils.isDateNormalized(weatherDate)) {
+                    throw new IllegalArgumentException("Date must be normalized to insert");
+                }
+
+                /* Whatever is left in storedWeather after this loop is no longer forecast */
+                ContentValues storedValue = storedWeather.remove(weatherDate);
+                if (storedValue != null && isSameWeather(storedValue, value)) {
+                    continue;
+                }
+
+                /*
+                 * The UNIQUE (location_id, date) ON CONFLICT REPLACE constraint turns this into
+                 * an update
+                 */
+                long _id = insertWeather(insertStatement, value, locationId);
+                if (_id != -1) {
+                    rowsChanged++;
+                    changedDates.add(weatherDate);
+                }
+            }
+
+            /*
+             * A forecast starts today, so the days before it are missing because they have gone
+             * by, not because the forecast changed. They are left to maintenance, which moves them
+             * to the archive, see ForecastRetention.
+             */
+            long today = SunshineDateUtils.normalizeDate(System.currentTimeMillis());
+            for (Long staleDate : storedWeather.keySet()) {
+                if (staleDate < today) continue;
+
+                int rowsDeleted = db.delete(WeatherContract.WeatherEntry.TABLE_NAME,
+                        SELECT_LOCATION_ID + " AND "
+                                + WeatherContract.WeatherEntry.COLUMN_DATE + " = ?",
+                        new String[]{Long.toString(locationId), Long.toString(staleDate)});
+                if (rowsDeleted > 0) {
+                    rowsChanged += rowsDeleted;
+                    changedDates.add(staleDate);
+                }
+            }
+
+            ContentValues freshness = getFreshness(values);
+            if (freshness.size() > 0) {
+                db.update(WeatherContract.WeatherEntry.TABLE_NAME, freshness,
+                        SELECT_LOCATION_ID + " AND "
+                                + WeatherContract.WeatherEntry.COLUMN_DATE + " >= ?",
+                        new String[]{Long.toString(locationId), Long.toString(today)});
+            }
+
+            ContentValues lastSynced = new ContentValues();
+            lastSynced.put(LocationEntry.COLUMN_LAST_SYNCED, System.currentTimeMillis());
+            db.update(LocationEntry.TABLE_NAME, lastSynced,
+                    LocationEntry._ID + " = ?", locationArgs);
+
+            updateForecastSummary(db, locationId, today);
+
+            db.setTransactionSuccessful();
+        } finally {
+            db.endTransaction();
+            insertStatement.close();
+        }
+
+        return rowsChanged;
+    }
+
+    /**
+     * @param values The forecast of a sync
+     * @return The freshness columns of the first day of values, which a sync sets the same for
+     * every day. Empty if there are none.
+     */
+    private static ContentValues getFreshness(ContentValues[] values) {
+        ContentValues freshness = new ContentValues();
+        if (values.length == 0) {
+            return freshness;
+        }
+        for (String column : FRESHNESS_COLUMNS) {
+            Long time = values[0].getAsLong(column);
+            if (time != null) {
+                freshness.put(column, time);
+            }
+        }
+        return freshness;
+    }
+
+    /**
+     * Brings the forecast summary of a location up to date after its forecast was written to.
+     * Must be called inside the transaction that did the writing.
+     *
+     * @param db         The writable database
+     * @param locationId The _ID of the location whose forecast changed
+     */
+    static void updateForecastSummary(SQLiteDatabase db, long locationId) {
+        updateForecastSummary(db, locationId,
+                SunshineDateUtils.normalizeDate(System.currentTimeMillis()));
+    }
+
+    /**
+     * Same as {@link #updateForecastSummary(SQLiteDatabase, long)}, for a caller that has
+     * already worked out what day it is.
+     *
+     * @param db         The writable database
+     * @param locationId The _ID of the location whose forecast changed
+     * @param today      The normalized date of today. Days before it aren't part of the summary.
+     */
+    static void updateForecastSummary(SQLiteDatabase db, long locationId, long today) {
+        db.execSQL(SQL_UPDATE_FORECAST_SUMMARY, new Object[]{locationId, today});
+    }
+
+    /**
+     * Lets observers know which days of the forecast changed. Called once per transaction, after
+     * it has committed, so that observers never requery a change that might still be rolled
+     * back, and never hear about the same change twice.
+     * <p>
+     * Each date is notified at its own URI, which reaches the cursors for that single date and
+     * nothing else. The cursors over the whole forecast are notified once, at
+     * {@link WeatherContract.WeatherEntry#CHANGES_URI}, however many days changed.
+     *
+     * @param changedDates The normalized dates that were written or deleted. If there are none,
+     *                     nobody is notified.
+     */
+    private void notifyWeatherChanged(Set<Long> changedDates) {
+        if (changedDates.isEmpty()) {
+            return;
+        }
+
+        ContentResolver contentResolver = getContext().getContentResolver();
+        contentResolver.notifyChange(WeatherContract.WeatherEntry.CHANGES_URI, null);
+        for (long date : changedDates) {
+            contentResolver.notifyChange(
+                    WeatherContract.WeatherEntry.buildWeatherUriWithDate(date), null);
+        }
+    }
+
+    /**
+     * Adds the dates of the rows of one location's forecast that match a selection to dates.
+     * Used to find out which days a delete or an update is about to change, inside its
+     * transaction.
+     */
+    private static void collectDates(SQLiteDatabase db, long locationId, String selection,
+                                     String[] selectionArgs, Set<Long> dates) {
+        Cursor cursor = db.query(WeatherContract.WeatherEntry.TABLE_NAME,
+                new String[]{WeatherContract.WeatherEntry.COLUMN_DATE},
+                scopeSelectionToLocation(selection),
+                scopeSelectionArgsToLocation(locationId, selectionArgs),
+                null,
+                null,
+                null);
+        try {
+            while (cursor.moveToNext()) {
+                dates.add(cursor.getLong(0));
+            }
+        } finally {
+            cursor.close();
+        }
+    }
+
+    /**
+     * Binds one row of weather to the precompiled SQL_INSERT_WEATHER statement and executes it.
+     * Values are bound as primitives, so SQLite doesn't have to convert them again.
+     * <p>
+     * Just like SQLiteDatabase#insert, a row that violates a constraint (for example, a missing
+     * NOT NULL column) is not inserted and -1 is returned, rather than failing the whole batch.
+     *
+     * @param insertStatement   The statement compiled from SQL_INSERT_WEATHER
+     * @param value             The row to insert
+     * @param defaultLocationId The location to store the row for, unless value has its own
+     * @return The row ID of the newly inserted row, or -1 if the row could not be inserted
+     */
+    private static long insertWeather(SQLiteStatement insertStatement, ContentValues value,
+                                      long defaultLocationId) {
+        Long locationId = value.getAsLong(WeatherContract.WeatherEntry.COLUMN_LOCATION_ID);
+
+        bindLong(insertStatement, 1, value.getAsLong(WeatherContract.WeatherEntry.COLUMN_DATE));
+        bindLong(insertStatement, 2,
+                value.getAsLong(WeatherContract.WeatherEntry.COLUMN_WEATHER_ID));
+        bindDouble(insertStatement, 3,
+                value.getAsDouble(WeatherContract.WeatherEntry.COLUMN_MIN_TEMP));
+        bindDouble(insertStatement, 4,
+                value.getAsDouble(WeatherContract.WeatherEntry.COLUMN_MAX_TEMP));
+        bindDouble(insertStatement, 5,
+                value.getAsDouble(WeatherContract.WeatherEntry.COLUMN_HUMIDITY));
+        bindDouble(insertStatement, 6,
+                value.getAsDouble(WeatherContract.WeatherEntry.COLUMN_PRESSURE));
+        bindDouble(insertStatement, 7,
+                value.getAsDouble(WeatherContract.WeatherEntry.COLUMN_WIND_SPEED));
+        bindDouble(insertStatement, 8,
+                value.getAsDouble(WeatherContract.WeatherEntry.COLUMN_DEGREES));
+        insertStatement.bindLong(9, locationId != null ? locationId : defaultLocationId);
+
+        /* A day without freshness is as fresh as it will ever be, and expires right away */
+        Long fetchedAt = value.getAsLong(WeatherContract.WeatherEntry.COLUMN_FETCHED_AT);
+        Long expiresAt = value.getAsLong(WeatherContract.WeatherEntry.COLUMN_EXPIRES_AT);
+        long fetchedAtMillis = fetchedAt != null ? fetchedAt : System.currentTimeMillis();
+        insertStatement.bindLong(10, fetchedAtMillis);
+        insertStatement.bindLong(11, expiresAt != null ? expiresAt : fetchedAtMillis);
+
+        try {
+            return insertStatement.executeInsert();
+        } catch (SQLException e) {
+            return -1;
+        }
+    }
+
+    private static void bindLong(SQLiteStatement statement, int index, Long value) {
+        if (value == null) {
+            statement.bindNull(index);
+        } else {
+            statement.bindLong(index, value);
+        }
+    }
+
+    private static void bindDouble(SQLiteStatement statement, int index, Double value) {
+        if (value == null) {
+            statement.bindNull(index);
+        } else {
+            statement.bindDouble(index, value);
+        }
+    }
+
+    /**
+     * Compares a stored row against a freshly parsed one. Numbers are compared by value, since
+     * the parser hands us Integers for columns that SQLite stores as REAL (humidity, for one).
+     * When a day was fetched says nothing about the weather, so it isn't compared.
+     *
+     * @param storedValue The row as read from the database
+     * @param newValue    The row as parsed from the network
+     * @return true if every column in newValue has the same value in storedValue
+     */
+    private static boolean isSameWeather(ContentValues storedValue, ContentValues newValue) {
+        for (String column : newValue.keySet()) {
+            if (WeatherContract.WeatherEntry.COLUMN_LOCATION_ID.equals(column)) continue;
+            if (isFreshnessColumn(column)) continue;
+
+            Double storedNumber = storedValue.getAsDouble(column);
+            Double newNumber = newValue.getAsDouble(column);
+            if (storedNumber == null || newNumber == null
+                    || Double.compare(storedNumber, newNumber) != 0) {
+                return false;
+            }
+        }
+        return true;
+    }
+
+    private static boolean isFreshnessColumn(String column) {
+        for (String freshnessColumn : FRESHNESS_COLUMNS) {
+            if (freshnessColumn.equals(column)) return true;
+        }
+        return false;
+    }
+
+    /**
+     * Looks up the _ID of the location currently set in SunshinePreferences.
+     * <p>
+     * Writes always need a location to store rows for, so when createIfMissing is true, the
+     * location is added with the coordinates currently in SunshinePreferences. Reads have no
+     * reason to create anything, as a location that isn't stored has no forecast to read.
+     *
+     * @param db              The database. Must be writable if createIfMissing is true.
+     * @param createIfMissing Whether or not to add the location if it isn't stored yet
+     * @return The _ID of the current location, or -1 if it isn't stored and createIfMissing
+     * is false
+     */
+    private long getCurrentLocationId(SQLiteDatabase db, boolean createIfMissing) {
+        String locationSetting = SunshinePreferences.getPreferredWeatherLocation(getContext());
+
+        Cursor cursor = db.query(LocationEntry.TABLE_NAME,
+                new String[]{LocationEntry._ID},
+                LocationEntry.COLUMN_LOCATION_SETTING + " = ?",
+                new String[]{locationSetting},
+                null,
+                null,
+                null);
+        try {
+            if (cursor.moveToFirst()) {
+                return cursor.getLong(0);
+            }
+        } finally {
+            cursor.close();
+        }
+
+        if (!createIfMissing) return -1;
+
+        SunshinePreferences.Snapshot preferences = SunshinePreferences.getSnapshot(getContext());
+
+        ContentValues location = new ContentValues();
+        location.put(LocationEntry.COLUMN_LOCATION_SETTING, locationSetting);
+        location.put(LocationEntry.COLUMN_COORD_LAT, preferences.latitude);
+        location.put(LocationEntry.COLUMN_COORD_LONG, preferences.longitude);
+        location.put(LocationEntry.COLUMN_LAST_SYNCED, 0);
+        return upsertLocation(db, location);
+    }
+
+    /**
+     * Stores a location, or updates the one with the same location setting if it is already
+     * stored. The location table doesn't REPLACE on conflict, as that would delete the forecast
+     * of the location along with the old row, so we try an update first.
+     *
+     * @param db       The writable database
+     * @param location The location. Must contain COLUMN_LOCATION_SETTING.
+     * @return The _ID of the location, or -1 if it could not be stored
+     */
+    private static long upsertLocation(SQLiteDatabase db, ContentValues location) {
+        String locationSetting = location.getAsString(LocationEntry.COLUMN_LOCATION_SETTING);
+        if (locationSetting == null) {
+            throw new IllegalArgumentException("Location setting is required");
+        }
+
+        String[] settingArgs = new String[]{locationSetting};
+
+        db.beginTransaction();
+        try {
+            long locationId;
+            int rowsUpdated = db.update(LocationEntry.TABLE_NAME, location,
+                    LocationEntry.COLUMN_LOCATION_SETTING + " = ?", settingArgs);
+
+            if (rowsUpdated > 0) {
+                Cursor cursor = db.query(LocationEntry.TABLE_NAME,
+                        new String[]{LocationEntry._ID},
+                        LocationEntry.COLUMN_LOCATION_SETTING + " = ?",
+                        settingArgs,
+                        null,
+                        null,
+                        null);
+                try {
+                    cursor.moveToFirst();
+                    locationId = cursor.getLong(0);
+                } finally {
+                    cursor.close();
+                }
+            } else {
+                ContentValues newLocation = new ContentValues(location);
+                if (!newLocation.containsKey(LocationEntry.COLUMN_LAST_SYNCED)) {
+                    newLocation.put(LocationEntry.COLUMN_LAST_SYNCED, 0);
+                }
+                locationId = db.insert(LocationEntry.TABLE_NAME, null, newLocation);
+            }
+
+            db.setTransactionSuccessful();
+            return locationId;
+        } finally {
+            db.endTransaction();
+        }
+    }
+
+    /**
+     * Limits a weather selection to the rows of one location. The location ID always comes
+     * first, so that SQLite can use the location_id column that leads weather_forecast_index.
+     *
+     * @param selection The selection passed in by the caller. May be null.
+     * @return The selection, limited to one location. The location ID must be bound first, see
+     * {@link #scopeSelectionArgsToLocation(long, String[])}.
+     */
+    static String scopeSelectionToLocation(String selection) {
+        if (selection == null || selection.trim().isEmpty()) {
+            return SELECT_LOCATION_ID;
+        }
+        return SELECT_LOCATION_ID + " AND (" + selection + ")";
+    }
+
+    /**
+     * Prepends the location ID to the arguments of a selection built with
+     * {@link #scopeSelectionToLocation(String)}.
+     *
+     * @param locationId    The _ID of the location
+     * @param selectionArgs The arguments passed in by the caller. May be null.
+     * @return The arguments to use with the scoped selection
+     */
+    static String[] scopeSelectionArgsToLocation(long locationId, String[] selectionArgs) {
+        int argCount = selectionArgs == null ? 0 : selectionArgs.length;
+        String[] scopedArgs = new String[argCount + 1];
+        scopedArgs[0] = Long.toString(locationId);
+        if (argCount > 0) {
+            System.arraycopy(selectionArgs, 0, scopedArgs, 1, argCount);
+        }
+        return scopedArgs;
+    }
+
     /**
      * Handles query requests from clients. We will use this method in Sunshine to query for all
      * of our weather data as well as to query for the weather on a particular day.
@@ -196,12 +787,13 @@ public class WeatherProvider extends ContentProvider {
                         String[] selectionArgs, String sortOrder) {
 
         Cursor cursor;
+        int match = sUriMatcher.match(uri);
 
         /*
          * Here's the switch statement that, given a URI, will determine what kind of request is
          * being made and query the database accordingly.
          */
-        switch (sUriMatcher.match(uri)) {
+        switch (match) {
 
             /*
              * When sUriMatcher's match method is called with a URI that looks something like this
@@ -231,9 +823,12 @@ public class WeatherProvider extends ContentProvider {
                  * one "?", we have to create a string array that only contains one element
                  * because this method signature accepts a string array.
                  */
-                String[] selectionArguments = new String[]{normalizedUtcDateString};
+                SQLiteDatabase db = mOpenHelper.getReadableDatabase();
+                String[] selectionArguments = scopeSelectionArgsToLocation(
+                        getCurrentLocationId(db, false),
+                        new String[]{normalizedUtcDateString});
 
-                cursor = mOpenHelper.getReadableDatabase().query(
+                cursor = db.query(
                         /* Table we are going to query */
                         WeatherContract.WeatherEntry.TABLE_NAME,
                         /*
@@ -250,9 +845,11 @@ public class WeatherProvider extends ContentProvider {
                          * question mark here and then designate selectionArguments as the next
                          * argument for performance reasons. Whatever Strings are contained
                          * within the selectionArguments array will be inserted into the
-                         * selection statement by SQLite under the hood.
+                         * selection statement by SQLite under the hood. Like every weather
+                         * query, it only looks at the current location's forecast.
                          */
-                        WeatherContract.WeatherEntry.COLUMN_DATE + " = ? ",
+                        scopeSelectionToLocation(
+                                WeatherContract.WeatherEntry.COLUMN_DATE + " = ? "),
                         selectionArguments,
                         null,
                         null,
@@ -270,12 +867,64 @@ public class WeatherProvider extends ContentProvider {
              * to return all of the weather in our weather table.
              *
              * In this case, we want to return a cursor that contains every row of weather data
-             * in our weather table.
+             * stored for the location currently set in the preferences.
              */
             case CODE_WEATHER: {
+                SQLiteDatabase db = mOpenHelper.getReadableDatabase();
+                cursor = db.query(
+                        WeatherContract.WeatherEntry.TABLE_NAME,
+                        projection,
+                        scopeSelectionToLocation(selection),
+                        scopeSelectionArgsToLocation(getCurrentLocationId(db, false), selectionArgs),
+                        null,
+                        null,
+                        sortOrder);
+
+                break;
+            }
+
+            /*
+             * The stored forecast of a location picked by its _ID, such as
+             *
+             *      content://com.example.android.sunshine/weather/location/3
+             */
+            case CODE_WEATHER_WITH_LOCATION: {
+                long locationId = Long.parseLong(uri.getLastPathSegment());
                 cursor = mOpenHelper.getReadableDatabase().query(
                         WeatherContract.WeatherEntry.TABLE_NAME,
                         projection,
+                        scopeSelectionToLocation(selection),
+                        scopeSelectionArgsToLocation(locationId, selectionArgs),
+                        null,
+                        null,
+                        sortOrder);
+
+                break;
+            }
+
+            /*
+             * The summary of the current location's forecast. It is one row of the location
+             * table, looked up by the UNIQUE location setting, however long the forecast is.
+             */
+            case CODE_WEATHER_META: {
+                String locationSetting =
+                        SunshinePreferences.getPreferredWeatherLocation(getContext());
+                cursor = mOpenHelper.getReadableDatabase().query(
+                        LocationEntry.TABLE_NAME,
+                        projection != null ? projection : FORECAST_SUMMARY_PROJECTION,
+                        LocationEntry.COLUMN_LOCATION_SETTING + " = ?",
+                        new String[]{locationSetting},
+                        null,
+                        null,
+                        null);
+
+                break;
+            }
+
+            case CODE_LOCATION: {
+                cursor = mOpenHelper.getReadableDatabase().query(
+                        LocationEntry.TABLE_NAME,
+                        projection,
                         selection,
                         selectionArgs,
                         null,
@@ -285,11 +934,52 @@ public class WeatherProvider extends ContentProvider {
                 break;
             }
 
+            case CODE_LOCATION_WITH_ID: {
+                cursor = mOpenHelper.getReadableDatabase().query(
+                        LocationEntry.TABLE_NAME,
+                        projection,
+                        LocationEntry._ID + " = ? ",
+                        new String[]{uri.getLastPathSegment()},
+                        null,
+                        null,
+                        sortOrder);
+
+                break;
+            }
+
+            /*
+             * The archived days of the current location between two dates, such as
+             *
+             *      content://com.example.android.sunshine/archive/1472169600000/1474761600000
+             *
+             * They are unpacked from the blocks they are stored in, see ForecastArchive.
+             */
+            case CODE_ARCHIVE_WITH_DATE_RANGE: {
+                List<String> dates = uri.getPathSegments();
+                SQLiteDatabase db = mOpenHelper.getReadableDatabase();
+                cursor = ForecastArchive.query(db,
+                        getCurrentLocationId(db, false),
+                        Long.parseLong(dates.get(1)),
+                        Long.parseLong(dates.get(2)),
+                        projection);
+
+                break;
+            }
+
             default:
                 throw new UnsupportedOperationException("Unknown uri: " + uri);
         }
 
-        cursor.setNotificationUri(getContext().getContentResolver(), uri);
+        /*
+         * A cursor over more than one day is notified once per change, rather than once for
+         * every day that changed. See notifyWeatherChanged.
+         */
+        Uri notificationUri = uri;
+        if (match == CODE_WEATHER || match == CODE_WEATHER_WITH_LOCATION
+                || match == CODE_WEATHER_META) {
+            notificationUri = WeatherContract.WeatherEntry.CHANGES_URI;
+        }
+        cursor.setNotificationUri(getContext().getContentResolver(), notificationUri);
         return cursor;
     }
 
@@ -316,28 +1006,115 @@ public class WeatherProvider extends ContentProvider {
          */
         if (null == selection) selection = "1";
 
+        SQLiteDatabase db = mOpenHelper.getWritableDatabase();
+        Set<Long> deletedDates = new HashSet<>();
+
         switch (sUriMatcher.match(uri)) {
 
+            /* Only the current location's forecast is deleted, just as only it is queried */
             case CODE_WEATHER:
-                numRowsDeleted = mOpenHelper.getWritableDatabase().delete(
-                        WeatherContract.WeatherEntry.TABLE_NAME,
-                        selection,
-                        selectionArgs);
+                numRowsDeleted = deleteWeather(db, getCurrentLocationId(db, false),
+                        selection, selectionArgs, deletedDates);
+                notifyWeatherChanged(deletedDates);
+
+                return numRowsDeleted;
+
+            case CODE_WEATHER_WITH_LOCATION:
+                numRowsDeleted = deleteWeather(db, Long.parseLong(uri.getLastPathSegment()),
+                        selection, selectionArgs, deletedDates);
+                notifyWeatherChanged(deletedDates);
+
+                return numRowsDeleted;
+
+            /* Deleting a location deletes its forecast too, see WeatherDbHelper */
+            case CODE_LOCATION:
+                numRowsDeleted = db.delete(LocationEntry.TABLE_NAME, selection, selectionArgs);
+
+                break;
+
+            case CODE_LOCATION_WITH_ID:
+                numRowsDeleted = db.delete(LocationEntry.TABLE_NAME,
+                        LocationEntry._ID + " = ?",
+                        new String[]{uri.getLastPathSegment()});
 
                 break;
 
+            case CODE_MAINTENANCE:
+                return runMaintenance(db);
+
             default:
                 throw new UnsupportedOperationException("Unknown uri: " + uri);
         }
 
-        /* If we actually deleted any rows, notify that a change has occurred to this URI */
+        /*
+         * If we actually deleted any locations, notify that a change has occurred to this URI.
+         * Deleted locations take their forecasts with them, and it would take a query per
+         * location to find out which days went, so every weather observer is notified.
+         */
         if (numRowsDeleted != 0) {
             getContext().getContentResolver().notifyChange(uri, null);
+            getContext().getContentResolver()
+                    .notifyChange(WeatherContract.WeatherEntry.CONTENT_URI, null);
         }
 
         return numRowsDeleted;
     }
 
+    /**
+     * Runs maintenance on the database, see {@link WeatherContract#MAINTENANCE_URI}. The rows
+     * it deletes go away in batches of their own, so every weather and archive observer is
+     * notified afterwards, as for deleted locations.
+     *
+     * @param db The writable database
+     * @return The number of days archived and locations deleted
+     */
+    private int runMaintenance(SQLiteDatabase db) {
+        ForecastRetention.Report report = ForecastRetention.runWithDefaults(db,
+                SunshinePreferences.getPreferredWeatherLocation(getContext()));
+
+        int rowsDeleted = report.pastDaysDeleted + report.locationsDeleted;
+        if (rowsDeleted != 0) {
+            ContentResolver contentResolver = getContext().getContentResolver();
+            if (report.locationsDeleted != 0) {
+                contentResolver.notifyChange(LocationEntry.CONTENT_URI, null);
+            }
+            contentResolver.notifyChange(WeatherContract.WeatherEntry.CONTENT_URI, null);
+            contentResolver.notifyChange(WeatherContract.ArchiveEntry.CONTENT_URI, null);
+        }
+        return rowsDeleted;
+    }
+
+    /**
+     * Deletes rows from the forecast of one location, and brings its forecast summary up to date
+     * in the same transaction.
+     *
+     * @param db            The writable database
+     * @param locationId    The _ID of the location
+     * @param selection     The rows to delete
+     * @param selectionArgs Used in conjunction with the selection statement
+     * @param deletedDates  Receives the dates of the rows deleted
+     * @return The number of rows deleted
+     */
+    private static int deleteWeather(SQLiteDatabase db, long locationId, String selection,
+                                     String[] selectionArgs, Set<Long> deletedDates) {
+        db.beginTransaction();
+        try {
+            collectDates(db, locationId, selection, selectionArgs, deletedDates);
+            int numRowsDeleted = db.delete(
+                    WeatherContract.WeatherEntry.TABLE_NAME,
+                    scopeSelectionToLocation(selection),
+                    scopeSelectionArgsToLocation(locationId, selectionArgs));
+
+            if (numRowsDeleted > 0) {
+                updateForecastSummary(db, locationId);
+            }
+            db.setTransactionSuccessful();
+            return numRowsDeleted;
+        } finally {
+            db.endTransaction();
+        }
+    }
+
     /**
      * In Sunshine, we aren't going to do anything with this method. However, we are required to
      * override it as WeatherProvider extends ContentProvider and getType is an abstract method in
@@ -354,25 +1131,96 @@ public class WeatherProvider extends ContentProvider {
     }
 
     /**
-     * In Sunshine, we aren't going to do anything with this method. However, we are required to
-     * override it as WeatherProvider extends ContentProvider and insert is an abstract method in
-     * ContentProvider. Rather than the single insert method, we are only going to implement
-     * {@link WeatherProvider#bulkInsert}.
+     * Stores a location. Weather is only ever inserted a whole forecast at a time, through
+     * {@link WeatherProvider#bulkInsert}, but locations are inserted one by one.
+     * <p>
+     * Inserting a location that is already stored updates it instead, keeping its _ID and
+     * its forecast.
      *
      * @param uri    The URI of the insertion request. This must not be null.
      * @param values A set of column_name/value pairs to add to the database.
      *               This must not be null
-     * @return nothing in Sunshine, but normally the URI for the newly inserted item.
+     * @return The URI of the stored location
      */
     @Override
     public Uri insert(@NonNull Uri uri, ContentValues values) {
-        throw new RuntimeException(
-                "We are not implementing insert in Sunshine. Use bulkInsert instead");
+        switch (sUriMatcher.match(uri)) {
+
+            case CODE_LOCATION:
+                long locationId = upsertLocation(mOpenHelper.getWritableDatabase(), values);
+                if (locationId == -1) {
+                    throw new SQLException("Failed to insert location " + values);
+                }
+
+                getContext().getContentResolver().notifyChange(uri, null);
+                return LocationEntry.buildLocationUri(locationId);
+
+            default:
+                throw new UnsupportedOperationException(
+                        "Unknown uri: " + uri + ". Use bulkInsert for weather");
+        }
     }
 
+    /**
+     * Updates days of the forecast of one location. Sunshine uses this to mark a forecast the
+     * weather server confirmed as fresh again, see WeatherEntry#COLUMN_EXPIRES_AT. Updates that
+     * only change the freshness columns don't notify anyone, as there's nothing new to show.
+     *
+     * @param uri           CONTENT_URI for the current location, or a URI built with
+     *                      WeatherEntry#buildWeatherUriWithLocation
+     * @param values        The columns to update
+     * @param selection     An optional restriction to apply to rows when updating
+     * @param selectionArgs Used in conjunction with the selection statement
+     * @return The number of rows updated
+     */
     @Override
     public int update(@NonNull Uri uri, ContentValues values, String selection, String[] selectionArgs) {
-        throw new RuntimeException("We are not implementing update in Sunshine");
+        SQLiteDatabase db = mOpenHelper.getWritableDatabase();
+
+        long locationId;
+        switch (sUriMatcher.match(uri)) {
+
+            case CODE_WEATHER:
+                locationId = getCurrentLocationId(db, false);
+                break;
+
+            case CODE_WEATHER_WITH_LOCATION:
+                locationId = Long.parseLong(uri.getLastPathSegment());
+                break;
+
+            default:
+                throw new UnsupportedOperationException("Unknown uri: " + uri);
+        }
+
+        boolean onlyFreshness = true;
+        for (String column : values.keySet()) {
+            onlyFreshness &= isFreshnessColumn(column);
+        }
+
+        int numRowsUpdated;
+        Set<Long> updatedDates = new HashSet<>();
+        db.beginTransaction();
+        try {
+            if (!onlyFreshness) {
+                collectDates(db, locationId, selection, selectionArgs, updatedDates);
+            }
+            numRowsUpdated = db.update(
+                    WeatherContract.WeatherEntry.TABLE_NAME,
+                    values,
+                    scopeSelectionToLocation(selection),
+                    scopeSelectionArgsToLocation(locationId, selectionArgs));
+
+            if (numRowsUpdated > 0) {
+                updateForecastSummary(db, locationId);
+            }
+            db.setTransactionSuccessful();
+        } finally {
+            db.endTransaction();
+        }
+
+        notifyWeatherChanged(updatedDates);
+
+        return numRowsUpdated;
     }
 
     /**
@@ -0,0 +1,303 @@
+/*
+ * Copyright (C) 2016 The Android Open Source Project
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *      http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package com.example.android.sunshine.sync;
+
+import android.content.Context;
+import android.content.SharedPreferences;
+
+import java.util.TimeZone;
+import java.util.concurrent.TimeUnit;
+
+/**
+ * Decides when the next periodic sync should happen, instead of always syncing every three
+ * hours. Two things are learned along the way:
+ * <ul>
+ * <li>How often a sync finds that the forecast has changed. If most syncs find nothing new, we
+ * sync too often; if every sync finds something new, we probably miss changes. The interval is
+ * adjusted so that about half of the syncs find a change, which means syncing about twice as
+ * often as the forecast changes.</li>
+ * <li>At which hours of the day the user opens Sunshine. Each time the app is opened, the hour
+ * is added to a histogram in which older opens count less and less.</li>
+ * </ul>
+ * Once we know when the user is likely to open the app, syncing while nobody looks is wasted.
+ * Instead, there is one sync shortly before each likely open, unless the forecast will still be
+ * fresh by then. Until we know, we sync on the interval.
+ * <p>
+ * When the forecast changes slowly, the sync before an open can happen hours ahead. For those
+ * hours, an opportunistic sync is scheduled that waits for the device to be charging on an
+ * unmetered network. If it gets to run, the forecast is fresh by the open, and the sync right
+ * before it isn't needed anymore. If it doesn't, the sync right before the open still happens.
+ * <p>
+ * The policy only depends on the times it is given, so that a simulation can run it over weeks
+ * in a few milliseconds. {@link #load(Context)} and {@link #save(Context)} keep its state with
+ * the app between syncs.
+ */
+final class AdaptiveSyncPolicy {
+
+    /* The interval Sunshine has always used, until we know better */
+    static final long DEFAULT_INTERVAL_MILLIS = TimeUnit.HOURS.toMillis(3);
+    static final long MIN_INTERVAL_MILLIS = TimeUnit.HOURS.toMillis(1);
+    static final long MAX_INTERVAL_MILLIS = TimeUnit.HOURS.toMillis(12);
+
+    /* The fraction of syncs that should find a change, see the class comment */
+    static final float TARGET_CHANGE_RATE = 0.5f;
+
+    /*
+     * The part of the interval for which a forecast counts as fresh. If the forecast changes at
+     * random moments, and half of the syncs an interval apart find a change, a forecast a quarter
+     * of an interval old has been replaced upstream about one time in six.
+     */
+    static final float FRESH_FRACTION = 0.25f;
+
+    /* How long before an expected open a sync should be done, and how much room it gets */
+    static final long LEAD_TIME_MILLIS = TimeUnit.MINUTES.toMillis(15);
+    static final long PRE_OPEN_WINDOW_MILLIS = TimeUnit.MINUTES.toMillis(30);
+
+    /* An opportunistic sync is only worth scheduling if it has at least this long to happen */
+    static final long MIN_OPPORTUNISTIC_WINDOW_MILLIS = TimeUnit.HOURS.toMillis(1);
+
+    /*
+     * Until the user has opened the app this many times (after decay), we don't pretend to know
+     * their habits.
+     */
+    static final float MIN_USAGE_WEIGHT = 5f;
+
+    /* How much weight an hour needs, compared to a uniform spread, to count as a likely open */
+    private static final float LIKELY_USE_FACTOR = 2f;
+
+    /* How much each new open or sync counts compared to everything before it */
+    private static final float USAGE_DECAY = 0.97f;
+    private static final float CHANGE_RATE_SMOOTHING = 0.2f;
+
+    private static final int HOURS_PER_DAY = 24;
+
+    private static final String PREFERENCES_NAME = "adaptive_sync_policy";
+    private static final String KEY_USAGE_PREFIX = "usage_";
+    private static final String KEY_CHANGE_RATE = "change_rate";
+    private static final String KEY_LAST_SYNC = "last_sync";
+
+    /**
+     * When the next sync should run. All times are delays from now, in milliseconds.
+     */
+    static final class Schedule {
+
+        /* Returned by getOpportunisticStartMillis if there is no opportunistic sync */
+        static final long NO_OPPORTUNISTIC_SYNC = -1;
+
+        /* The window of the sync that runs on any network */
+        final long windowStartMillis;
+        final long windowEndMillis;
+
+        /*
+         * The start of the window of a sync that waits for the device to be charging on an
+         * unmetered network. Its window ends where the other one starts.
+         */
+        final long opportunisticStartMillis;
+
+        Schedule(long windowStartMillis, long windowEndMillis, long opportunisticStartMillis) {
+            this.windowStartMillis = windowStartMillis;
+            this.windowEndMillis = windowEndMillis;
+            this.opportunisticStartMillis = opportunisticStartMillis;
+        }
+
+        boolean hasOpportunisticSync() {
+            return opportunisticStartMillis != NO_OPPORTUNISTIC_SYNC;
+        }
+
+        @Override
+        public String toString() {
+            String window = "[" + TimeUnit.MILLISECONDS.toMinutes(windowStartMillis) + ", "
+                    + TimeUnit.MILLISECONDS.toMinutes(windowEndMillis) + "] minutes";
+            if (hasOpportunisticSync()) {
+                window += ", or while charging on an unmetered network from "
+                        + TimeUnit.MILLISECONDS.toMinutes(opportunisticStartMillis) + " minutes";
+            }
+            return window;
+        }
+    }
+
+    private final float[] mUsageByHour = new float[HOURS_PER_DAY];
+    private float mChangeRate = TARGET_CHANGE_RATE;
+    private long mLastSyncMillis;
+
+    private final TimeZone mTimeZone;
+
+    /**
+     * @param timeZone Used to find the local hour of the day of opens and syncs
+     */
+    AdaptiveSyncPolicy(TimeZone timeZone) {
+        mTimeZone = timeZone;
+    }
+
+    /**
+     * Records that the user opened the app.
+     *
+     * @param timeMillis When the app was opened
+     */
+    void recordAppOpen(long timeMillis) {
+        for (int hour = 0; hour < HOURS_PER_DAY; hour++) {
+            mUsageByHour[hour] *= USAGE_DECAY;
+        }
+        mUsageByHour[getLocalHour(timeMillis)] += 1f;
+    }
+
+    /**
+     * Records that a sync succeeded.
+     *
+     * @param timeMillis When the sync happened
+     * @param changed    Whether the sync found that the forecast had changed
+     */
+    void recordSync(long timeMillis, boolean changed) {
+        mChangeRate += CHANGE_RATE_SMOOTHING * ((changed ? 1f : 0f) - mChangeRate);
+        mLastSyncMillis = timeMillis;
+    }
+
+    /**
+     * @return The time between syncs that should make about {@link #TARGET_CHANGE_RATE} of the
+     * syncs find a change
+     */
+    long getIntervalMillis() {
+        /*
+         * If syncs find changes half as often as they should, the forecast changes about half as
+         * often as we thought, so we can wait twice as long, and the other way around.
+         */
+        float changeRate = Math.max(mChangeRate, 0.01f);
+        long interval = (long) (DEFAULT_INTERVAL_MILLIS * TARGET_CHANGE_RATE / changeRate);
+        return Math.max(MIN_INTERVAL_MILLIS, Math.min(MAX_INTERVAL_MILLIS, interval));
+    }
+
+    /**
+     * @return How old a forecast can be while it is most likely still the current one
+     */
+    long getFreshnessMillis() {
+        return (long) (getIntervalMillis() * FRESH_FRACTION);
+    }
+
+    /**
+     * Finds the next time the user is likely to open the app: the start of the next hour in
+     * which they have opened it much more often than average.
+     *
+     * @param nowMillis The current time
+     * @return The time of the next likely open, after nowMillis and within a day of it, or -1
+     * if we don't know
+     */
+    long predictNextUse(long nowMillis) {
+        float totalWeight = 0f;
+        for (float weight : mUsageByHour) {
+            totalWeight += weight;
+        }
+        if (totalWeight < MIN_USAGE_WEIGHT) {
+            return -1;
+        }
+
+        float likelyUseWeight = LIKELY_USE_FACTOR * totalWeight / HOURS_PER_DAY;
+        long hourMillis = TimeUnit.HOURS.toMillis(1);
+        long startOfNextHour = nowMillis - (nowMillis + mTimeZone.getOffset(nowMillis)) % hourMillis
+                + hourMillis;
+
+        for (int i = 0; i < HOURS_PER_DAY; i++) {
+            long hourStart = startOfNextHour + i * hourMillis;
+            if (mUsageByHour[getLocalHour(hourStart)] >= likelyUseWeight) {
+                return hourStart;
+            }
+        }
+        return -1;
+    }
+
+    /**
+     * Decides when the next sync should happen.
+     *
+     * @param nowMillis The current time
+     * @return The windows of the next sync
+     */
+    Schedule nextSchedule(long nowMillis) {
+        long interval = getIntervalMillis();
+        long freshness = getFreshnessMillis();
+        long lastSync = mLastSyncMillis > 0 ? mLastSyncMillis : nowMillis;
+
+        /*
+         * Find the next open that needs a sync. Opens that are too close to still sync for, or
+         * for which the forecast will still be fresh, don't.
+         */
+        long nextUse = predictNextUse(nowMillis + LEAD_TIME_MILLIS + PRE_OPEN_WINDOW_MILLIS);
+        for (int i = 0; i < HOURS_PER_DAY && nextUse != -1 && nextUse - lastSync <= freshness;
+                i++) {
+            nextUse = predictNextUse(nextUse);
+        }
+
+        long windowEnd = nextUse - LEAD_TIME_MILLIS - nowMillis;
+
+        /*
+         * Either we don't know when the app will be opened, or it won't be for a long time.
+         * Sync on the interval, so that the forecast is never too old.
+         */
+        if (nextUse == -1 || windowEnd > MAX_INTERVAL_MILLIS) {
+            return new Schedule(interval, interval + interval / 3,
+                    Schedule.NO_OPPORTUNISTIC_SYNC);
+        }
+
+        long windowStart = windowEnd - PRE_OPEN_WINDOW_MILLIS;
+
+        /*
+         * Any sync from the freshness before the open onwards gets the user a fresh forecast. If
+         * that leaves enough time, try to get it done while the device is charging.
+         */
+        long opportunisticStart = Math.max(0, nextUse - freshness - nowMillis);
+        if (windowStart - opportunisticStart < MIN_OPPORTUNISTIC_WINDOW_MILLIS) {
+            opportunisticStart = Schedule.NO_OPPORTUNISTIC_SYNC;
+        }
+
+        return new Schedule(windowStart, windowEnd, opportunisticStart);
+    }
+
+    private int getLocalHour(long timeMillis) {
+        long localMillis = timeMillis + mTimeZone.getOffset(timeMillis);
+        long hour = TimeUnit.MILLISECONDS.toHours(localMillis) % HOURS_PER_DAY;
+        return (int) (hour < 0 ? hour + HOURS_PER_DAY : hour);
+    }
+
+    /**
+     * @param context Used to read the stored state
+     * @return The policy as it was last saved, in the device's time zone
+     */
+    static AdaptiveSyncPolicy load(Context context) {
+        SharedPreferences preferences = getPreferences(context);
+        AdaptiveSyncPolicy policy = new AdaptiveSyncPolicy(TimeZone.getDefault());
+        for (int hour = 0; hour < HOURS_PER_DAY; hour++) {
+            policy.mUsageByHour[hour] = preferences.getFloat(KEY_USAGE_PREFIX + hour, 0f);
+        }
+        policy.mChangeRate = preferences.getFloat(KEY_CHANGE_RATE, TARGET_CHANGE_RATE);
+        policy.mLastSyncMillis = preferences.getLong(KEY_LAST_SYNC, 0);
+        return policy;
+    }
+
+    /**
+     * @param context Used to store the state
+     */
+    void save(Context context) {
+        SharedPreferences.Editor editor = getPreferences(context).edit();
+        for (int hour = 0; hour < HOURS_PER_DAY; hour++) {
+            editor.putFloat(KEY_USAGE_PREFIX + hour, mUsageByHour[hour]);
+        }
+        editor.putFloat(KEY_CHANGE_RATE, mChangeRate);
+        editor.putLong(KEY_LAST_SYNC, mLastSyncMillis);
+        editor.apply();
+    }
+
+    private static SharedPreferences getPreferences(Context context) {
+        return context.getSharedPreferences(PREFERENCES_NAME, Context.MODE_PRIVATE);
+    }
+}
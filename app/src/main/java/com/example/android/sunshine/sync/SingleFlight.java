@@ -0,0 +1,286 @@
+/*
+ * Copyright (C) 2016 The Android Open Source Project
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *      http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package com.example.android.sunshine.sync;
+
+import android.support.v4.os.CancellationSignal;
+
+import java.util.ArrayList;
+import java.util.List;
+import java.util.concurrent.CancellationException;
+
+/**
+ * Makes sure only one sync runs at a time, without making anyone sync twice.
+ * <p>
+ * The periodic job, an immediate sync from the settings and the check for an empty forecast at
+ * startup can all ask for a sync at about the same moment. Each caller passes a key describing
+ * what it wants synced (the location). If a sync for the same key is already running (a
+ * "flight"), the caller doesn't start another one: it waits for the running one and gets its
+ * result.
+ * <p>
+ * If the running flight is for another key, it is stale: the user picked another location after
+ * it started. It is cancelled, and the new flight waits for it to stop before starting, so that
+ * the two never write at the same time. Flights check {@link Flight#isCancelled()} at points
+ * where they can stop safely, and can hook their {@link Flight#getCancellationSignal()} up to
+ * whatever is blocking, like a connection.
+ * <p>
+ * A caller can give up on a flight, like a job that is stopped by the system. If it was the only
+ * caller, nobody needs the result anymore and the flight is cancelled. Otherwise, the flight goes
+ * on for the callers that are left, and only the caller that gave up stops waiting for it.
+ * <p>
+ * A caller that runs on a small pool of threads can {@link #join(String)} a running flight
+ * instead, and be told its result by a {@link Listener}, so that it doesn't hold a thread
+ * that a flight for another key may need.
+ */
+final class SingleFlight {
+
+    /**
+     * The work done by a flight.
+     */
+    interface Work {
+        /**
+         * @param flight The flight doing the work, to check for cancellation
+         * @return The result handed to every caller of the flight
+         */
+        boolean run(Flight flight);
+    }
+
+    /**
+     * Told the result of a flight that was joined, see {@link #join(String)}.
+     */
+    interface Listener {
+        /**
+         * Called on the thread that ran the flight, or on the caller's thread if the flight had
+         * already finished.
+         *
+         * @param result The result of the flight
+         */
+        void onFinished(boolean result);
+    }
+
+    /**
+     * One run of {@link Work}, shared by every caller that asked for the same key while it
+     * was running.
+     */
+    static final class Flight {
+
+        final String key;
+
+        private final CancellationSignal mSignal = new CancellationSignal();
+        private boolean mDone;
+        private boolean mResult;
+        private int mCallerCount = 1;
+        private final List<Listener> mListeners = new ArrayList<>();
+
+        Flight(String key) {
+            this.key = key;
+        }
+
+        /**
+         * @return true if a flight for another key has superseded this one
+         */
+        boolean isCancelled() {
+            return mSignal.isCanceled();
+        }
+
+        /**
+         * @return A signal that is cancelled along with this flight
+         */
+        CancellationSignal getCancellationSignal() {
+            return mSignal;
+        }
+
+        /**
+         * @return The number of callers sharing this flight, including the one running it
+         */
+        synchronized int getCallerCount() {
+            return mCallerCount;
+        }
+
+        synchronized void attach() {
+            mCallerCount++;
+        }
+
+        /**
+         * Lets a caller give up on this flight, cancelling it if that was the last caller.
+         */
+        void detach() {
+            boolean abandoned;
+            synchronized (this) {
+                mCallerCount--;
+                abandoned = mCallerCount == 0 && !mDone;
+                /* Wake up the caller that gave up, if it was waiting */
+                notifyAll();
+            }
+            if (abandoned) {
+                cancel();
+            }
+        }
+
+        void cancel() {
+            mSignal.cancel();
+        }
+
+        void finish(boolean result) {
+            List<Listener> listeners;
+            synchronized (this) {
+                mResult = result;
+                mDone = true;
+                notifyAll();
+                listeners = new ArrayList<>(mListeners);
+                mListeners.clear();
+            }
+            for (Listener listener : listeners) {
+                listener.onFinished(result);
+            }
+        }
+
+        /**
+         * Tells listener the result of this flight once it finishes, or right away if it
+         * already has.
+         */
+        void whenFinished(Listener listener) {
+            boolean result;
+            synchronized (this) {
+                if (!mDone) {
+                    mListeners.add(listener);
+                    return;
+                }
+                result = mResult;
+            }
+            listener.onFinished(result);
+        }
+
+        synchronized boolean awaitResult(CancellationSignal callerSignal)
+                throws InterruptedException {
+            while (!mDone) {
+                if (callerSignal != null && callerSignal.isCanceled()) {
+                    throw new CancellationException();
+                }
+                wait();
+            }
+            return mResult;
+        }
+    }
+
+    private Flight mCurrentFlight;
+
+    /**
+     * @return The flight running now, or null if there is none
+     */
+    synchronized Flight getCurrentFlight() {
+        return mCurrentFlight;
+    }
+
+    /**
+     * Joins the flight for key that is running now, if there is one, without waiting for it.
+     * The caller counts as one of the flight's callers until it detaches.
+     *
+     * @param key Describes what the caller wants done
+     * @return The flight, to be told its result with {@link Flight#whenFinished(Listener)} and
+     * to {@link Flight#detach()} from if the caller gives up, or null if no flight for key is
+     * running
+     */
+    synchronized Flight join(String key) {
+        if (mCurrentFlight != null && mCurrentFlight.key.equals(key)) {
+            mCurrentFlight.attach();
+            return mCurrentFlight;
+        }
+        return null;
+    }
+
+    /**
+     * Same as {@link #execute(String, Work, CancellationSignal)}, for a caller that never gives
+     * up.
+     */
+    boolean execute(String key, Work work) throws InterruptedException {
+        return execute(key, work, null);
+    }
+
+    /**
+     * Runs work for key, unless a flight for key is already running, in which case its result
+     * is waited for instead.
+     *
+     * @param key          Describes what the work is for. Flights for equal keys are shared.
+     * @param work         What to run if there is no flight to share
+     * @param callerSignal Cancelled if the caller gives up on the result, or null
+     * @return The result of the work, whether it was run by this caller or not
+     * @throws InterruptedException  If the calling thread was interrupted while waiting for
+     *                               another flight
+     * @throws CancellationException If the caller gave up while waiting for another flight
+     */
+    boolean execute(String key, Work work, CancellationSignal callerSignal)
+            throws InterruptedException {
+        final Flight flight;
+        Flight superseded = null;
+        boolean runHere;
+
+        synchronized (this) {
+            if (mCurrentFlight != null && mCurrentFlight.key.equals(key)) {
+                flight = mCurrentFlight;
+                flight.attach();
+                runHere = false;
+            } else {
+                superseded = mCurrentFlight;
+                if (superseded != null) {
+                    superseded.cancel();
+                }
+                flight = new Flight(key);
+                mCurrentFlight = flight;
+                runHere = true;
+            }
+        }
+
+        if (callerSignal != null) {
+            callerSignal.setOnCancelListener(new CancellationSignal.OnCancelListener() {
+                @Override
+                public void onCancel() {
+                    flight.detach();
+                }
+            });
+        }
+
+        try {
+            if (!runHere) {
+                return flight.awaitResult(callerSignal);
+            }
+
+            boolean result = false;
+            try {
+                /* Let the stale flight stop before starting, so that they never write together */
+                if (superseded != null) {
+                    superseded.awaitResult(null);
+                }
+
+                /* We may have been superseded ourselves while waiting */
+                if (!flight.isCancelled()) {
+                    result = work.run(flight);
+                }
+            } finally {
+                synchronized (this) {
+                    if (mCurrentFlight == flight) {
+                        mCurrentFlight = null;
+                    }
+                }
+                flight.finish(result);
+            }
+            return result;
+        } finally {
+            if (callerSignal != null) {
+                callerSignal.setOnCancelListener(null);
+            }
+        }
+    }
+}
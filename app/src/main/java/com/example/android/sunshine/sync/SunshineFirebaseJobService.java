@@ -16,17 +16,141 @@
 package com.example.android.sunshine.sync;
 
 import android.content.Context;
-import android.os.AsyncTask;
+import android.os.Handler;
+import android.os.Looper;
+import android.support.v4.os.CancellationSignal;
+import android.util.Log;
 
+import com.example.android.sunshine.data.ForecastRetention;
+import com.example.android.sunshine.utilities.SunshineExecutors;
 import com.firebase.jobdispatcher.Job;
 import com.firebase.jobdispatcher.JobParameters;
 import com.firebase.jobdispatcher.JobService;
 import com.firebase.jobdispatcher.RetryStrategy;
 
+import java.util.HashMap;
+import java.util.Map;
+
 
 public class SunshineFirebaseJobService extends JobService {
 
-    private AsyncTask<Void, Void, Void> mFetchWeatherTask;
+    private static final String TAG = SunshineFirebaseJobService.class.getSimpleName();
+
+    /*
+     * The periodic, opportunistic and retry syncs and the maintenance are separate jobs that may
+     * run at the same time, so the running jobs are kept by tag. Only touched on the main thread.
+     */
+    private final Map<String, SyncJob> mRunningJobs = new HashMap<>();
+
+    private final Handler mMainHandler = new Handler(Looper.getMainLooper());
+
+    /**
+     * Runs a sync for one job, on the sync queue of {@link SunshineExecutors}, or the maintenance
+     * of the database, on the maintenance queue.
+     */
+    private class SyncJob implements Runnable {
+
+        private final JobParameters mJobParameters;
+        private final CancellationSignal mSignal = new CancellationSignal();
+
+        SyncJob(JobParameters jobParameters) {
+            mJobParameters = jobParameters;
+        }
+
+        /**
+         * Waits for the sync of the current location that is running now, if there is one,
+         * without taking a thread of the sync queue, and finishes with its result.
+         *
+         * @return false if no sync is running, in which case the job has to run one itself
+         */
+        boolean joinRunningSync() {
+            final SingleFlight.Flight flight =
+                    SunshineSyncTask.joinRunningSync(getApplicationContext());
+            if (flight == null) {
+                return false;
+            }
+
+            mSignal.setOnCancelListener(new CancellationSignal.OnCancelListener() {
+                @Override
+                public void onCancel() {
+                    flight.detach();
+                }
+            });
+            flight.whenFinished(new SingleFlight.Listener() {
+                @Override
+                public void onFinished(final boolean needsReschedule) {
+                    mMainHandler.post(new Runnable() {
+                        @Override
+                        public void run() {
+                            finish(needsReschedule);
+                        }
+                    });
+                }
+            });
+            return true;
+        }
+
+        @Override
+        public void run() {
+            /* Stopped while it was still waiting for a thread */
+            if (mSignal.isCanceled()) {
+                return;
+            }
+
+            Context context = getApplicationContext();
+            boolean needsReschedule = true;
+            try {
+                if (isMaintenance(mJobParameters.getTag())) {
+                    /*
+                     * Maintenance only does what it can today, the next run does the rest. It is
+                     * only retried if it couldn't get at the database at all.
+                     */
+                    needsReschedule = !ForecastRetention.runMaintenance(context);
+                } else {
+                    needsReschedule = SunshineSyncTask.syncWeather(context, mSignal);
+                }
+            } finally {
+                /*
+                 * Whatever the job threw is logged by its queue. The job is finished either way,
+                 * and rescheduled if it didn't get to the end, so the dispatcher isn't left
+                 * waiting on it.
+                 */
+                final boolean reschedule = needsReschedule;
+                mMainHandler.post(new Runnable() {
+                    @Override
+                    public void run() {
+                        finish(reschedule);
+                    }
+                });
+            }
+        }
+
+        /*
+         * If the sync failed in a way that is worth retrying, ask to be rescheduled. The
+         * job's RetryStrategy backs off exponentially between attempts, see
+         * SunshineSyncUtils and SyncRetryPolicy.
+         *
+         * This is the only place jobFinished is called, and only for a job that is still ours:
+         * after onStopJob, the job is no longer ours to finish.
+         */
+        private void finish(boolean needsReschedule) {
+            String tag = mJobParameters.getTag();
+            if (mRunningJobs.get(tag) != this) {
+                return;
+            }
+            mRunningJobs.remove(tag);
+            jobFinished(mJobParameters, needsReschedule);
+        }
+
+        /*
+         * The sync doesn't check for interruption, it checks the signal at points where it can
+         * stop safely, so the thread isn't interrupted: that could break off a database
+         * transaction half way.
+         */
+        void stop() {
+            mSignal.cancel();
+        }
+    }
 
     /**
      * The entry point to your Job. Implementations should offload work to another thread of
@@ -40,29 +164,28 @@ public class SunshineFirebaseJobService extends JobService {
      */
     @Override
     public boolean onStartJob(final JobParameters jobParameters) {
+        SyncJob syncJob = new SyncJob(jobParameters);
 
-        mFetchWeatherTask = new AsyncTask<Void, Void, Void>(){
-            @Override
-            protected Void doInBackground(Void... voids) {
-                Context context = getApplicationContext();
-                SunshineSyncTask.syncWeather(context);
-                jobFinished(jobParameters, false);
-                return null;
-            }
-
-            @Override
-            protected void onPostExecute(Void aVoid) {
-                jobFinished(jobParameters, false);
-            }
-        };
+        /* Sharing a sync that is already running doesn't need a thread of its own */
+        if (!isMaintenance(jobParameters.getTag()) && syncJob.joinRunningSync()) {
+            mRunningJobs.put(jobParameters.getTag(), syncJob);
+            return true;
+        }
 
-        mFetchWeatherTask.execute();
+        if (!SunshineExecutors.execute(getQueue(jobParameters.getTag()),
+                getPriority(jobParameters.getTag()), syncJob)) {
+            /* The syncs already waiting will fetch the same forecast this one would */
+            Log.w(TAG, "Too many syncs waiting, dropping " + jobParameters.getTag());
+            return false;
+        }
+        mRunningJobs.put(jobParameters.getTag(), syncJob);
         return true;
     }
 
     /**
      * Called when the scheduling engine has decided to interrupt the execution of a running job,
      * most likely because the runtime constraints associated with the job are no longer satisfied.
+     * The sync stops at its next checkpoint, and closes its connection right away.
      *
      * @return whether the job should be retried
      * @see Job.Builder#setRetryStrategy(RetryStrategy)
@@ -70,9 +193,31 @@ public class SunshineFirebaseJobService extends JobService {
      */
     @Override
     public boolean onStopJob(JobParameters jobParameters) {
-        if (mFetchWeatherTask != null) {
-            mFetchWeatherTask.cancel(true);
+        SyncJob syncJob = mRunningJobs.remove(jobParameters.getTag());
+        if (syncJob != null) {
+            syncJob.stop();
         }
         return true;
     }
-}
\ No newline at end of file
+
+    private static boolean isMaintenance(String tag) {
+        return SunshineSyncUtils.SUNSHINE_MAINTENANCE_TAG.equals(tag);
+    }
+
+    private static int getQueue(String tag) {
+        return isMaintenance(tag)
+                ? SunshineExecutors.QUEUE_MAINTENANCE : SunshineExecutors.QUEUE_SYNC;
+    }
+
+    /*
+     * The opportunistic sync is early on purpose, so it makes way for any other sync. The
+     * periodic and retry syncs are the ones that keep the forecast fresh. Maintenance is never
+     * in a hurry.
+     */
+    private static int getPriority(String tag) {
+        if (SunshineSyncUtils.SUNSHINE_SYNC_OPPORTUNISTIC_TAG.equals(tag) || isMaintenance(tag)) {
+            return SunshineExecutors.PRIORITY_BACKGROUND;
+        }
+        return SunshineExecutors.PRIORITY_DEFAULT;
+    }
+}
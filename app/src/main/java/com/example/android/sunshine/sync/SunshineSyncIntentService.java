@@ -15,138 +15,124 @@
  */
 package com.example.android.sunshine.sync;
 
-import android.app.IntentService;
+import android.app.Service;
 import android.content.Intent;
-import android.database.Cursor;
-import android.net.Uri;
-import android.os.Bundle;
-import android.support.annotation.NonNull;
-import android.support.annotation.Nullable;
+import android.os.Handler;
+import android.os.IBinder;
+import android.os.Looper;
 import android.util.Log;
 
-import com.example.android.sunshine.data.WeatherContract;
-import com.example.android.sunshine.utilities.SunshineDateUtils;
-import com.google.android.gms.common.ConnectionResult;
-import com.google.android.gms.common.api.GoogleApiClient;
-import com.google.android.gms.common.api.PendingResult;
-import com.google.android.gms.common.api.ResultCallback;
-import com.google.android.gms.wearable.DataApi;
-import com.google.android.gms.wearable.PutDataMapRequest;
-import com.google.android.gms.wearable.PutDataRequest;
-import com.google.android.gms.wearable.Wearable;
+import com.example.android.sunshine.utilities.SunshineExecutors;
 
 /**
- * An {@link IntentService} subclass for handling asynchronous task requests in
- * a service on a separate handler thread.
+ * Runs immediate syncs on the sync queue of {@link SunshineExecutors}, ahead of any periodic
+ * sync waiting there. The service itself only keeps Sunshine's process around until the syncs
+ * it was started for are done.
  */
-public class SunshineSyncIntentService extends IntentService implements GoogleApiClient.ConnectionCallbacks, GoogleApiClient.OnConnectionFailedListener{
+public class SunshineSyncIntentService extends Service {
 
-    private GoogleApiClient mWearClient;
-    public final String LOG_TAG = SunshineSyncIntentService.class.getSimpleName();
+    private static final String TAG = SunshineSyncIntentService.class.getSimpleName();
 
-    public static final String WEATHER_PATH = "/weather_watch";
-    public static final String HIGH_TEMP = "HIGH_TEMP";
-    public static final String LOW_TEMP = "LOW_TEMP";
-    public static final String WEATHER_ID = "WEATHER_ID";
+    private final Handler mMainHandler = new Handler(Looper.getMainLooper());
 
-    double high_temp;
-    double low_temp;
-    int weather_id;
-
-    public static final String[] MAIN_FORECAST_PROJECTION = {
-            WeatherContract.WeatherEntry.COLUMN_DATE,
-            WeatherContract.WeatherEntry.COLUMN_MAX_TEMP,
-            WeatherContract.WeatherEntry.COLUMN_MIN_TEMP,
-            WeatherContract.WeatherEntry.COLUMN_WEATHER_ID,
-    };
-
-    /*
-     * We store the indices of the values in the array of Strings above to more quickly be able to
-     * access the data from our query. If the order of the Strings above changes, these indices
-     * must be adjusted to match the order of the Strings.
-     */
-    public static final int INDEX_WEATHER_DATE = 0;
-    public static final int INDEX_WEATHER_MAX_TEMP = 1;
-    public static final int INDEX_WEATHER_MIN_TEMP = 2;
-    public static final int INDEX_WEATHER_CONDITION_ID = 3;
+    /* The syncs started and not finished yet. Only touched on the main thread. */
+    private int mPendingSyncs;
 
     @Override
-    public void onCreate() {
-        super.onCreate();
-        mWearClient = new GoogleApiClient.Builder(this)
-                .addApi(Wearable.API)
-                .addConnectionCallbacks(this)
-                .addOnConnectionFailedListener(this)
-                .build();
-        mWearClient.connect();
-        Log.d(LOG_TAG, "google api client connected");
-    }
-
-    @Override
-    public void onDestroy() {
-//        super.onDestroy();
-
-    }
-
-    public SunshineSyncIntentService() {
+    public int onStartCommand(Intent intent, int flags, int startId) {
+        /* Sharing a sync that is already running doesn't need a thread of its own */
+        if (joinRunningSync()) {
+            mPendingSyncs++;
+            return START_NOT_STICKY;
+        }
 
-        super("SunshineSyncIntentService");
+        boolean queued = SunshineExecutors.execute(SunshineExecutors.QUEUE_SYNC,
+                SunshineExecutors.PRIORITY_IMMEDIATE, new Runnable() {
+                    @Override
+                    public void run() {
+                        try {
+                            sync();
+                        } finally {
+                            mMainHandler.post(new Runnable() {
+                                @Override
+                                public void run() {
+                                    onSyncFinished();
+                                }
+                            });
+                        }
+                    }
+                });
+
+        if (queued) {
+            mPendingSyncs++;
+        } else {
+            /* The syncs already waiting will fetch the same forecast this one would */
+            Log.w(TAG, "Too many syncs waiting, dropping an immediate sync");
+            if (mPendingSyncs == 0) {
+                stopSelf();
+            }
+        }
+        return START_NOT_STICKY;
     }
 
-    @Override
-    protected void onHandleIntent(Intent intent) {
-
-        SunshineSyncTask.syncWeather(this);
-
-        long normalizedUtcNow = SunshineDateUtils.normalizeDate(System.currentTimeMillis());
-        Uri uriForDateToday = WeatherContract.WeatherEntry.buildWeatherUriWithDate(normalizedUtcNow);
+    private void sync() {
 
-        Cursor cursor = getContentResolver().query(uriForDateToday, MAIN_FORECAST_PROJECTION, null, null, null);
-
-        if(cursor!=null && cursor.moveToFirst()){
-            weather_id = cursor.getInt(INDEX_WEATHER_CONDITION_ID);
-            high_temp = cursor.getDouble(INDEX_WEATHER_MAX_TEMP);
-            low_temp = cursor.getDouble(INDEX_WEATHER_MIN_TEMP);
-            updateWearWeather(weather_id, high_temp, low_temp);
+        /*
+         * There is no job to reschedule for an immediate sync, so if it should be retried, a
+         * one-off job is scheduled to do it. Today's weather is sent to the watch as part of
+         * the sync, see WearableSync.
+         */
+        boolean needsRetry = SunshineSyncTask.syncWeather(this);
+        if (needsRetry) {
+            SunshineSyncUtils.scheduleRetrySync(this);
         }
-
     }
 
-    private void updateWearWeather(int weather_id, double high_temp, double low_temp){
-        PutDataMapRequest putDataMapRequest = PutDataMapRequest.create(WEATHER_PATH).setUrgent();
-        putDataMapRequest.getDataMap().putInt(WEATHER_ID, weather_id);
-        Log.d(LOG_TAG, "value of weather put : "+weather_id);
-        putDataMapRequest.getDataMap().putDouble(HIGH_TEMP, high_temp);
-        putDataMapRequest.getDataMap().putDouble(LOW_TEMP, low_temp);
-        PutDataRequest putDataRequest = putDataMapRequest.asPutDataRequest().setUrgent();
-        PendingResult<DataApi.DataItemResult> pendingResult = Wearable.DataApi.putDataItem(mWearClient, putDataRequest);
+    /**
+     * Waits for the sync of the current location that is running now, if there is one, without
+     * taking a thread of the sync queue.
+     *
+     * @return false if no sync is running, in which case one has to be run
+     */
+    private boolean joinRunningSync() {
+        SingleFlight.Flight flight = SunshineSyncTask.joinRunningSync(this);
+        if (flight == null) {
+            return false;
+        }
 
-        pendingResult.setResultCallback(new ResultCallback<DataApi.DataItemResult>() {
+        flight.whenFinished(new SingleFlight.Listener() {
             @Override
-            public void onResult(@NonNull DataApi.DataItemResult dataItemResult) {
-                if (dataItemResult.getStatus().isSuccess()) {
-                    Log.d(LOG_TAG, "Data item set: " + dataItemResult.getDataItem().getUri());
-
-                } else {
-                    Log.d(LOG_TAG, "Error in sending data to watch");
+            public void onFinished(boolean needsRetry) {
+                try {
+                    if (needsRetry) {
+                        SunshineSyncUtils.scheduleRetrySync(SunshineSyncIntentService.this);
+                    }
+                } finally {
+                    mMainHandler.post(new Runnable() {
+                        @Override
+                        public void run() {
+                            onSyncFinished();
+                        }
+                    });
                 }
             }
-
         });
+        return true;
     }
 
-    @Override
-    public void onConnected(@Nullable Bundle bundle) {
-
-    }
-
-    @Override
-    public void onConnectionSuspended(int i) {
-
+    /*
+     * stopSelf(startId) isn't enough here: syncs may finish in another order than they were
+     * started in, and the service must stay until the last one is done.
+     */
+    private void onSyncFinished() {
+        mPendingSyncs--;
+        if (mPendingSyncs == 0) {
+            stopSelf();
+        }
     }
 
     @Override
-    public void onConnectionFailed(@NonNull ConnectionResult connectionResult) {
-
+    public IBinder onBind(Intent intent) {
+        return null;
     }
-}
\ No newline at end of file
+}
@@ -17,100 +17,504 @@ package com.example.android.sunshine.sync;
 
 import android.content.ContentResolver;
 import android.content.ContentValues;
+import android.content.ContentUris;
 import android.content.Context;
+import android.net.Uri;
+import android.support.v4.os.CancellationSignal;
 import android.text.format.DateUtils;
+import android.util.Log;
 
 import com.example.android.sunshine.data.SunshinePreferences;
 import com.example.android.sunshine.data.WeatherContract;
+import com.example.android.sunshine.utilities.HttpStatusException;
 import com.example.android.sunshine.utilities.NetworkUtils;
 import com.example.android.sunshine.utilities.NotificationUtils;
-import com.example.android.sunshine.utilities.OpenWeatherJsonUtils;
+import com.example.android.sunshine.utilities.SunshineExecutors;
 
+import org.json.JSONException;
+
+import java.io.IOException;
 import java.net.URL;
+import java.util.concurrent.Callable;
+import java.util.concurrent.CancellationException;
+import java.util.concurrent.ExecutionException;
+import java.util.concurrent.RejectedExecutionException;
 
 public class SunshineSyncTask {
 
+    private static final String TAG = SunshineSyncTask.class.getSimpleName();
+
+    /* Shares a running sync with everyone who asks for the same location while it runs */
+    private static final SingleFlight sSyncs = new SingleFlight();
+
+    /**
+     * Same as {@link #syncWeather(Context, CancellationSignal)}, for a sync that can't be
+     * stopped, like an immediate sync.
+     *
+     * @param context Used to access utility methods and the ContentResolver
+     * @return true if the sync failed and should be retried soon
+     */
+    public static boolean syncWeather(Context context) {
+        return syncWeather(context, null);
+    }
+
     /**
      * Performs the network request for updated weather, parses the JSON from that request, and
      * inserts the new weather information into our ContentProvider. Will notify the user that new
      * weather has been loaded if the user hasn't been notified of the weather within the last day
-     * AND they haven't disabled notifications in the preferences screen.
+     * AND they haven't disabled notifications in the preferences screen. Finally, today's
+     * weather is sent to the watch.
+     * <p>
+     * If the sync fails, {@link SyncRetryPolicy} decides whether it's worth trying again soon.
+     * If the weather server has failed too many times in a row, no request is made at all.
+     * <p>
+     * If a sync of the same location is already running, this waits for it to finish instead of
+     * syncing again. If a sync of another location is running, the user has picked a new
+     * location since it started, so that sync is cancelled. See {@link SingleFlight}.
+     * <p>
+     * Cancelling signal stops the sync at the next point where it can stop safely, or gives up
+     * waiting for a sync someone else still needs. The download is abandoned right away, but
+     * a forecast that is being stored is stored completely. How long each stage took, and how it
+     * ended, is recorded with {@link SyncMetrics}.
      *
      * @param context Used to access utility methods and the ContentResolver
+     * @param signal  Cancelled if the caller wants the sync to stop, or null
+     * @return true if the sync failed and should be retried soon
      */
-    synchronized public static void syncWeather(Context context) {
+    public static boolean syncWeather(final Context context, CancellationSignal signal) {
+        final String locationSetting = SunshinePreferences.getPreferredWeatherLocation(context);
 
         try {
-            /*
-             * The getUrl method will return the URL that we need to get the forecast JSON for the
-             * weather. It will decide whether to create a URL based off of the latitude and
-             * longitude or off of a simple location as a String.
-             */
-            URL weatherRequestUrl = NetworkUtils.getUrl(context);
+            return sSyncs.execute(locationSetting, new SingleFlight.Work() {
+                @Override
+                public boolean run(SingleFlight.Flight flight) {
+                    return syncLocation(context, flight);
+                }
+            }, signal);
+        } catch (CancellationException e) {
+            /* We gave up waiting for a sync that goes on for someone else */
+            return false;
+        } catch (InterruptedException e) {
+            /* Our job was stopped while waiting for another sync. Let the caller know. */
+            Thread.currentThread().interrupt();
+            return false;
+        }
+    }
+
+    /**
+     * Joins the sync of the current location that is running now, if there is one, without
+     * waiting for it. Used by callers on the sync queue, so that waiting for a running sync
+     * doesn't take up a thread that a sync of a newly picked location needs to start on.
+     *
+     * @param context Used to read the current location
+     * @return The running sync, whose result is what syncWeather would have returned, or null
+     * if it isn't running. See {@link SingleFlight#join(String)}.
+     */
+    static SingleFlight.Flight joinRunningSync(Context context) {
+        return sSyncs.join(SunshinePreferences.getPreferredWeatherLocation(context));
+    }
 
-            /* Use the URL to retrieve the JSON */
-            String jsonWeatherResponse = NetworkUtils.getResponseFromHttpUrl(weatherRequestUrl);
+    /**
+     * Syncs the location of flight, applying {@link SyncRetryPolicy}.
+     *
+     * @param context Used to access utility methods and the ContentResolver
+     * @param flight  The flight this sync runs in
+     * @return true if the sync failed and should be retried soon
+     */
+    private static boolean syncLocation(Context context, SingleFlight.Flight flight) {
+        if (!SyncRetryPolicy.isSyncAllowed(context, System.currentTimeMillis())) {
+            Log.w(TAG, "The weather server has been failing, skipping this sync");
+            return false;
+        }
 
-            /* Parse the JSON into a list of weather values */
-            ContentValues[] weatherValues = OpenWeatherJsonUtils
-                    .getWeatherContentValuesFromJson(context, jsonWeatherResponse);
+        SyncMetrics.Recorder recorder = new SyncMetrics.Recorder();
+        try {
+            boolean changed = runPipeline(context, flight, recorder);
+            SyncRetryPolicy.recordSuccess(context);
+            SunshineSyncUtils.onSyncSucceeded(context, changed);
+            return false;
+        } catch (CancellationException e) {
+            recorder.cancel();
+            Log.i(TAG, "Sync of " + flight.key + " cancelled");
+            return false;
+        } catch (SyncException e) {
+            Log.e(TAG, "Sync failed", e);
+            return SyncRetryPolicy.recordFailure(context, e, System.currentTimeMillis());
+        } catch (RuntimeException e) {
+            /* Most likely the ContentProvider, while checking for a stored forecast */
+            Log.e(TAG, "Sync failed", e);
+            return SyncRetryPolicy.recordFailure(context, SyncException.database(e),
+                    System.currentTimeMillis());
+        } finally {
+            recorder.close();
+        }
+    }
 
-            /*
-             * In cases where our JSON contained an error code, getWeatherContentValuesFromJson
-             * would have returned null. We need to check for those cases here to prevent any
-             * NullPointerExceptions being thrown. We also have no reason to insert fresh data if
-             * there isn't any to insert.
-             */
-            if (weatherValues != null && weatherValues.length != 0) {
-                /* Get a handle on the ContentResolver to delete and insert data */
-                ContentResolver sunshineContentResolver = context.getContentResolver();
+    /**
+     * Does the actual work of {@link #syncWeather(Context, CancellationSignal)}, one stage after
+     * the other: fetch, parse, persist, notify and wear. Before each stage that writes anything,
+     * the flight is checked for cancellation. Once the forecast is stored, the sync has done
+     * what it's for: the stages after that are skipped if the flight is cancelled, but the sync
+     * still counts as a success.
+     *
+     * @param context  Used to access utility methods and the ContentResolver
+     * @param flight   The flight this sync runs in. Its key is the location to sync.
+     * @param recorder Times each stage
+     * @return true if the stored forecast changed
+     * @throws SyncException         If the forecast couldn't be downloaded or stored
+     * @throws CancellationException If the flight was cancelled before the forecast was stored
+     */
+    private static boolean runPipeline(final Context context, SingleFlight.Flight flight,
+                                       SyncMetrics.Recorder recorder) throws SyncException {
+        /*
+         * Remember which location this sync is for. The user may pick another location while
+         * the forecast is downloading, and this forecast must not be stored as theirs.
+         */
+        String locationSetting = flight.key;
+
+        checkCancelled(flight);
+
+        /*
+         * The getUrl method will return the URL that we need to get the forecast JSON for the
+         * weather. It will decide whether to create a URL based off of the latitude and
+         * longitude or off of a simple location as a String.
+         */
+        URL weatherRequestUrl = NetworkUtils.getUrl(context);
 
-                /* Delete old weather data because we don't need to keep multiple days' data */
-                sunshineContentResolver.delete(
-                        WeatherContract.WeatherEntry.CONTENT_URI,
+        /*
+         * Use the URL to request the forecast. If we already have one, the server only sends a
+         * new one if it has changed.
+         */
+        recorder.begin(SyncMetrics.STAGE_FETCH);
+        NetworkUtils.ForecastResponse response = fetchWeather(context, flight, weatherRequestUrl);
+
+        /*
+         * Parse the forecast into a list of weather values as it comes in, rather than reading
+         * the whole response into a String first.
+         */
+        ContentValues[] weatherValues;
+        try {
+            if (response.isNotModified()) {
+                recorder.skip(SyncMetrics.STAGE_PARSE);
+            } else {
+                recorder.begin(SyncMetrics.STAGE_PARSE);
+            }
+            weatherValues = parseWeather(flight, response);
+        } finally {
+            response.close();
+        }
+        recorder.succeed();
+
+        /*
+         * If the user picked another location while we were downloading, this forecast is of
+         * no use anymore. Parsing it stored its coordinates as the current location's, so they
+         * have to go. The sync of the new location waits for us to return before it starts.
+         * The new location may have been synced recently enough not to need a sync at all, in
+         * which case nothing cancelled us, so the preference is checked as well.
+         */
+        if (flight.isCancelled()
+                || !locationSetting.equals(SunshinePreferences.getPreferredWeatherLocation(context))) {
+            SunshinePreferences.resetLocationCoordinates(context);
+            throw new CancellationException();
+        }
+
+        /*
+         * Our forecast is still current, so there's nothing to store and nothing to tell the
+         * user about. All we do is remember that the location, and every day of its forecast,
+         * is up to date.
+         */
+        if (weatherValues == NetworkUtils.FORECAST_NOT_MODIFIED) {
+            recorder.begin(SyncMetrics.STAGE_PERSIST);
+            ContentValues locationValues = new ContentValues();
+            locationValues.put(WeatherContract.LocationEntry.COLUMN_LOCATION_SETTING,
+                    locationSetting);
+            locationValues.put(WeatherContract.LocationEntry.COLUMN_LAST_SYNCED,
+                    System.currentTimeMillis());
+            try {
+                ContentResolver contentResolver = context.getContentResolver();
+                Uri locationUri = contentResolver.insert(
+                        WeatherContract.LocationEntry.CONTENT_URI,
+                        locationValues);
+                contentResolver.update(
+                        WeatherContract.WeatherEntry.buildWeatherUriWithLocation(
+                                ContentUris.parseId(locationUri)),
+                        SunshineSyncUtils.newFreshnessValues(context),
                         null,
                         null);
+            } catch (RuntimeException e) {
+                throw SyncException.database(e);
+            }
+            recorder.skip(SyncMetrics.STAGE_NOTIFY);
+            recorder.skip(SyncMetrics.STAGE_WEAR);
+            return false;
+        }
 
-                /* Insert our new weather data into Sunshine's ContentProvider */
-                sunshineContentResolver.bulkInsert(
-                        WeatherContract.WeatherEntry.CONTENT_URI,
-                        weatherValues);
-
-                /*
-                 * Finally, after we insert data into the ContentProvider, determine whether or not
-                 * we should notify the user that the weather has been refreshed.
-                 */
-                boolean notificationsEnabled = SunshinePreferences.areNotificationsEnabled(context);
-
-                /*
-                 * If the last notification was shown was more than 1 day ago, we want to send
-                 * another notification to the user that the weather has been updated. Remember,
-                 * it's important that you shouldn't spam your users with notifications.
-                 */
-                long timeSinceLastNotification = SunshinePreferences
-                        .getEllapsedTimeSinceLastNotification(context);
-
-                boolean oneDayPassedSinceLastNotification = false;
-
-                if (timeSinceLastNotification >= DateUtils.DAY_IN_MILLIS) {
-                    oneDayPassedSinceLastNotification = true;
-                }
+        /*
+         * In cases where our JSON contained an error code, getWeatherContentValuesFromStream
+         * would have returned null. The server told us something is wrong, so this sync failed.
+         */
+        if (weatherValues == null) {
+            throw SyncException.httpStatus(SyncException.STATUS_IN_RESPONSE_BODY, null);
+        }
 
-                /*
-                 * We only want to show the notification if the user wants them shown and we
-                 * haven't shown a notification in the past day.
-                 */
-                if (notificationsEnabled && oneDayPassedSinceLastNotification) {
-                    NotificationUtils.notifyUserOfNewWeather(context);
-                }
+        /* We have no reason to insert fresh data if there isn't any to insert. */
+        if (weatherValues.length == 0) {
+            recorder.skip(SyncMetrics.STAGE_PERSIST);
+            recorder.skip(SyncMetrics.STAGE_NOTIFY);
+            recorder.skip(SyncMetrics.STAGE_WEAR);
+            return false;
+        }
+
+        recorder.begin(SyncMetrics.STAGE_PERSIST);
+        int rowsChanged = persistWeather(context, locationSetting, weatherValues);
+
+        /* From here on, the sync has done its job, even if it is cancelled */
+        if (flight.isCancelled()) {
+            recorder.succeed();
+            Log.i(TAG, "Sync of " + flight.key + " cancelled after storing the forecast");
+            return rowsChanged > 0;
+        }
+
+        /*
+         * Finally, after we insert data into the ContentProvider, determine whether or not
+         * we should notify the user that the weather has been refreshed.
+         */
+        recorder.begin(SyncMetrics.STAGE_NOTIFY);
+        if (!runStage(SunshineExecutors.QUEUE_NOTIFICATION, new NotifyUserStage(context))) {
+            recorder.skip(SyncMetrics.STAGE_NOTIFY);
+        }
 
-            /* If the code reaches this point, we have successfully performed our sync */
+        if (flight.isCancelled()) {
+            recorder.succeed();
+            return rowsChanged > 0;
+        }
 
+        /* Let the watch know about today's weather. A watch that isn't around is no failure. */
+        recorder.begin(SyncMetrics.STAGE_WEAR);
+        runStage(SunshineExecutors.QUEUE_WEAR, new Callable<Boolean>() {
+            @Override
+            public Boolean call() {
+                return WearableSync.pushTodayToWearable(context);
             }
+        });
+        recorder.succeed();
 
-        } catch (Exception e) {
-            /* Server probably invalid */
-            e.printStackTrace();
+        /* If the code reaches this point, we have successfully performed our sync */
+        return rowsChanged > 0;
+    }
+
+    private static void checkCancelled(SingleFlight.Flight flight) {
+        if (flight.isCancelled()) {
+            throw new CancellationException();
         }
     }
+
+    /**
+     * Stores the location along with the coordinates the weather server just gave us for it,
+     * and the forecast, tagging every day of the forecast with the location's ID and with how
+     * long it is expected to stay current.
+     *
+     * @param context         Used to access the ContentResolver
+     * @param locationSetting The location the forecast is for
+     * @param weatherValues   The forecast
+     * @return The number of days of the forecast that were written or deleted
+     * @throws SyncException If the forecast couldn't be stored
+     */
+    private static int persistWeather(Context context, String locationSetting,
+                                      ContentValues[] weatherValues) throws SyncException {
+        /* Get a handle on the ContentResolver to hand the new forecast to */
+        ContentResolver sunshineContentResolver = context.getContentResolver();
+
+        SunshinePreferences.Snapshot preferences = SunshinePreferences.getSnapshot(context);
+
+        ContentValues locationValues = new ContentValues();
+        locationValues.put(WeatherContract.LocationEntry.COLUMN_LOCATION_SETTING,
+                locationSetting);
+        locationValues.put(WeatherContract.LocationEntry.COLUMN_COORD_LAT, preferences.latitude);
+        locationValues.put(WeatherContract.LocationEntry.COLUMN_COORD_LONG, preferences.longitude);
+
+        try {
+            Uri locationUri = sunshineContentResolver.insert(
+                    WeatherContract.LocationEntry.CONTENT_URI,
+                    locationValues);
+            long locationId = ContentUris.parseId(locationUri);
+
+            ContentValues freshness = SunshineSyncUtils.newFreshnessValues(context);
+            for (ContentValues weatherValue : weatherValues) {
+                weatherValue.put(WeatherContract.WeatherEntry.COLUMN_LOCATION_ID, locationId);
+                weatherValue.putAll(freshness);
+            }
+
+            /*
+             * Insert our new weather data at the sync URI. Rather than deleting everything
+             * and inserting it all again, WeatherProvider only writes the days that changed
+             * and deletes the days that are no longer part of the forecast. The forecasts of
+             * other locations are kept, so switching back to them is instant.
+             */
+            return sunshineContentResolver.bulkInsert(
+                    WeatherContract.WeatherEntry.SYNC_URI,
+                    weatherValues);
+        } catch (RuntimeException e) {
+            /* SQLiteExceptions, or a null Uri if the location couldn't be stored */
+            throw SyncException.database(e);
+        }
+    }
+
+    /**
+     * Runs a stage of the sync on the queue for its kind of work, and waits for it. The notify
+     * and wear stages are shared by every sync, and the queues make sure only one sync runs
+     * them at a time.
+     *
+     * @param queue One of the QUEUE constants of {@link SunshineExecutors}
+     * @param stage The work of the stage
+     * @return What stage returned, or false if it couldn't be run
+     */
+    private static boolean runStage(int queue, Callable<Boolean> stage) {
+        try {
+            return SunshineExecutors.submit(queue, SunshineExecutors.PRIORITY_DEFAULT, stage)
+                    .get();
+        } catch (RejectedExecutionException e) {
+            /* Other syncs have piled up enough of this work to do ours as well */
+            Log.w(TAG, "Too many syncs waiting to run a stage, skipping it");
+            return false;
+        } catch (InterruptedException e) {
+            Thread.currentThread().interrupt();
+            return false;
+        } catch (ExecutionException e) {
+            /* Fail the sync the same way as if the stage had run on our own thread */
+            Throwable cause = e.getCause();
+            if (cause instanceof RuntimeException) {
+                throw (RuntimeException) cause;
+            }
+            if (cause instanceof Error) {
+                throw (Error) cause;
+            }
+            throw new RuntimeException(cause);
+        }
+    }
+
+    /**
+     * Notifies the user of the new weather, if they want to be. Deciding whether to, and
+     * remembering that we did, happen together on the notification queue, so two syncs that
+     * finish at the same time can't both decide to notify.
+     */
+    private static final class NotifyUserStage implements Callable<Boolean> {
+
+        private final Context mContext;
+
+        NotifyUserStage(Context context) {
+            mContext = context;
+        }
+
+        /**
+         * @return true if the user was notified
+         */
+        @Override
+        public Boolean call() {
+            if (!shouldNotifyUser(mContext)) {
+                return false;
+            }
+            NotificationUtils.notifyUserOfNewWeather(mContext);
+            return true;
+        }
+    }
+
+    /**
+     * @param context Used to read the preferences
+     * @return true if the user wants notifications and hasn't had one in the past day
+     */
+    private static boolean shouldNotifyUser(Context context) {
+        boolean notificationsEnabled = SunshinePreferences.areNotificationsEnabled(context);
+
+        /*
+         * If the last notification was shown was more than 1 day ago, we want to send
+         * another notification to the user that the weather has been updated. Remember,
+         * it's important that you shouldn't spam your users with notifications.
+         */
+        long timeSinceLastNotification = SunshinePreferences
+                .getEllapsedTimeSinceLastNotification(context);
+
+        boolean oneDayPassedSinceLastNotification = false;
+
+        if (timeSinceLastNotification >= DateUtils.DAY_IN_MILLIS) {
+            oneDayPassedSinceLastNotification = true;
+        }
+
+        /*
+         * We only want to show the notification if the user wants them shown and we
+         * haven't shown a notification in the past day.
+         */
+        return notificationsEnabled && oneDayPassedSinceLastNotification;
+    }
+
+    /**
+     * Requests the forecast, sorting whatever goes wrong into the reasons
+     * {@link SyncException} knows about. Cancelling the flight closes the connection.
+     *
+     * @param context Used to access utility methods and the ContentResolver
+     * @param flight  The flight this sync runs in
+     * @param url     The URL to fetch the forecast from
+     * @return The response, which must be closed
+     * @throws SyncException         If the forecast couldn't be requested
+     * @throws CancellationException If the flight was cancelled during the request
+     */
+    private static NetworkUtils.ForecastResponse fetchWeather(Context context,
+                                                              SingleFlight.Flight flight,
+                                                              URL url) throws SyncException {
+        try {
+            /* Only with a forecast to revalidate can we ask for one only if it has changed */
+            boolean hasLocalForecast = SunshineSyncUtils.hasForecastFromToday(context);
+            return NetworkUtils.openForecast(context, url, hasLocalForecast,
+                    flight.getCancellationSignal());
+        } catch (HttpStatusException e) {
+            throw SyncException.httpStatus(e.getStatusCode(), e);
+        } catch (IOException e) {
+            /* Closing the connection to cancel the request makes it fail */
+            checkCancelled(flight);
+            throw SyncException.network(e);
+        }
+    }
+
+    /**
+     * Parses the forecast as it is being downloaded, sorting whatever goes wrong into the
+     * reasons {@link SyncException} knows about.
+     *
+     * @param flight   The flight this sync runs in
+     * @param response The response to parse
+     * @return See {@link NetworkUtils.ForecastResponse#parse()}
+     * @throws SyncException         If the forecast couldn't be downloaded or parsed
+     * @throws CancellationException If the flight was cancelled during the download
+     */
+    private static ContentValues[] parseWeather(SingleFlight.Flight flight,
+                                                NetworkUtils.ForecastResponse response)
+            throws SyncException {
+        try {
+            return response.parse();
+        } catch (IOException e) {
+            checkCancelled(flight);
+            /*
+             * JsonReader reports malformed JSON as an IOException too. A forecast that stops
+             * half way through is a network problem, but one that isn't JSON at all isn't.
+             */
+            if (isMalformedJson(e)) {
+                throw SyncException.parse(e);
+            }
+            throw SyncException.network(e);
+        } catch (JSONException e) {
+            throw SyncException.parse(e);
+        } catch (IllegalStateException e) {
+            /* JsonReader throws this when a value isn't of the type we asked for */
+            throw SyncException.parse(e);
+        } catch (NumberFormatException e) {
+            throw SyncException.parse(e);
+        }
+    }
+
+    /*
+     * MalformedJsonException only exists from API 11, so it's recognized by name: on API 10 an
+     * instanceof check would fail to resolve the class.
+     */
+    private static boolean isMalformedJson(IOException e) {
+        return e.getClass().getSimpleName().equals("MalformedJsonException");
+    }
 }
\ No newline at end of file
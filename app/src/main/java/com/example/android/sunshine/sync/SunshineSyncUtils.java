@@ -15,43 +15,75 @@
  */
 package com.example.android.sunshine.sync;
 
+import android.content.ContentValues;
 import android.content.Context;
 import android.content.Intent;
 import android.database.Cursor;
-import android.net.Uri;
+import android.os.SystemClock;
 import android.support.annotation.NonNull;
+import android.util.Log;
 
+import com.example.android.sunshine.data.SunshinePreferences;
 import com.example.android.sunshine.data.WeatherContract;
+import com.example.android.sunshine.utilities.SunshineDateUtils;
+import com.example.android.sunshine.utilities.SunshineExecutors;
 import com.firebase.jobdispatcher.Constraint;
 import com.firebase.jobdispatcher.Driver;
 import com.firebase.jobdispatcher.FirebaseJobDispatcher;
 import com.firebase.jobdispatcher.GooglePlayDriver;
 import com.firebase.jobdispatcher.Job;
 import com.firebase.jobdispatcher.Lifetime;
+import com.firebase.jobdispatcher.RetryStrategy;
 import com.firebase.jobdispatcher.Trigger;
 
+import java.util.Random;
 import java.util.concurrent.TimeUnit;
 
 public class SunshineSyncUtils {
 
+    private static final String TAG = SunshineSyncUtils.class.getSimpleName();
+
     /*
-     * Interval at which to sync with the weather. Use TimeUnit for convenience, rather than
-     * writing out a bunch of multiplication ourselves and risk making a silly mistake.
+     * However often the user comes back to a forecast that has expired, it isn't revalidated
+     * more often than this. A sync that fails schedules its own retry, see SyncRetryPolicy.
      */
-    private static final int SYNC_INTERVAL_HOURS = 3;
-    private static final int SYNC_INTERVAL_SECONDS = (int) TimeUnit.HOURS.toSeconds(SYNC_INTERVAL_HOURS);
-    private static final int SYNC_FLEXTIME_SECONDS = SYNC_INTERVAL_SECONDS / 3;
+    private static final long MIN_REVALIDATION_INTERVAL_MILLIS = TimeUnit.MINUTES.toMillis(5);
 
     private static boolean sInitialized;
 
+    /* SystemClock.elapsedRealtime() of the last revalidation, or 0 */
+    private static long sLastRevalidationMillis;
+
     private static final String SUNSHINE_SYNC_TAG = "sunshine-sync";
+    private static final String SUNSHINE_SYNC_RETRY_TAG = "sunshine-sync-retry";
+    static final String SUNSHINE_SYNC_OPPORTUNISTIC_TAG = "sunshine-sync-opportunistic";
+    static final String SUNSHINE_MAINTENANCE_TAG = "sunshine-maintenance";
+
+    /* Past days pile up one a day, so once a day is often enough to clear them out */
+    private static final int MAINTENANCE_INTERVAL_SECONDS = (int) TimeUnit.DAYS.toSeconds(1);
+    private static final int MAINTENANCE_FLEXTIME_SECONDS = (int) TimeUnit.HOURS.toSeconds(6);
+
+    private static final Random sRandom = new Random();
+
+    /* Guards AdaptiveSyncPolicy's state, which the UI and the sync both update */
+    private static final Object sPolicyLock = new Object();
 
     /**
-     * Schedules a repeating sync of Sunshine's weather data using FirebaseJobDispatcher.
+     * Schedules a repeating sync of Sunshine's weather data using FirebaseJobDispatcher. When it
+     * runs is decided by {@link AdaptiveSyncPolicy}.
      * @param context Context used to create the GooglePlayDriver that powers the
      *                FirebaseJobDispatcher
      */
     static void scheduleFirebaseJobDispatcherSync(@NonNull final Context context) {
+        AdaptiveSyncPolicy.Schedule schedule;
+        synchronized (sPolicyLock) {
+            schedule = AdaptiveSyncPolicy.load(context).nextSchedule(System.currentTimeMillis());
+        }
+        scheduleFirebaseJobDispatcherSync(context, schedule);
+    }
+
+    private static void scheduleFirebaseJobDispatcherSync(@NonNull final Context context,
+            AdaptiveSyncPolicy.Schedule schedule) {
 
         Driver driver = new GooglePlayDriver(context);
         FirebaseJobDispatcher dispatcher = new FirebaseJobDispatcher(driver);
@@ -64,9 +96,8 @@ public class SunshineSyncUtils {
                 .setTag(SUNSHINE_SYNC_TAG)
                 /*
                  * Network constraints on which this Job should run. We choose to run on any
-                 * network, but you can also choose to run only on un-metered networks or when the
-                 * device is charging. It might be a good idea to include a preference for this,
-                 * as some users may not want to download any data on their mobile plan. ($$$)
+                 * network, as this sync is the one that makes sure the forecast is fresh when the
+                 * user opens Sunshine. The opportunistic sync below is the one that is picky.
                  */
                 .setConstraints(Constraint.ON_ANY_NETWORK)
                 /*
@@ -76,29 +107,188 @@ public class SunshineSyncUtils {
                 .setLifetime(Lifetime.FOREVER)
                 /*
                  * We want Sunshine's weather data to stay up to date, so we tell this Job to recur.
+                 * Every successful sync schedules the Job again with a fresh window.
                  */
                 .setRecurring(true)
                 /*
-                 * We want the weather data to be synced every 3 to 4 hours. The first argument for
-                 * Trigger's static executionWindow method is the start of the time frame when the
-                 * sync should be performed. The second argument is the latest point in time at
-                 * which the data should be synced. Please note that this end time is not
-                 * guaranteed, but is more of a guideline for FirebaseJobDispatcher to go off of.
+                 * The first argument for Trigger's static executionWindow method is the start of
+                 * the time frame when the sync should be performed. The second argument is the
+                 * latest point in time at which the data should be synced. Please note that this
+                 * end time is not guaranteed, but is more of a guideline for
+                 * FirebaseJobDispatcher to go off of.
                  */
                 .setTrigger(Trigger.executionWindow(
-                        SYNC_INTERVAL_SECONDS,
-                        SYNC_INTERVAL_SECONDS + SYNC_FLEXTIME_SECONDS))
+                        (int) TimeUnit.MILLISECONDS.toSeconds(schedule.windowStartMillis),
+                        (int) TimeUnit.MILLISECONDS.toSeconds(schedule.windowEndMillis)))
                 /*
                  * If a Job with the tag with provided already exists, this new job will replace
                  * the old one.
                  */
                 .setReplaceCurrent(true)
+                /*
+                 * When a sync fails in a way that is worth retrying, the Job asks to be
+                 * rescheduled, and this strategy decides when it runs again.
+                 */
+                .setRetryStrategy(newRetryStrategy(dispatcher))
                 /* Once the Job is ready, call the builder's build method to return the Job */
                 .build();
 
         /* Schedule the Job with the dispatcher */
         dispatcher.schedule(syncSunshineJob);
+
+        if (!schedule.hasOpportunisticSync()) {
+            dispatcher.cancel(SUNSHINE_SYNC_OPPORTUNISTIC_TAG);
+            return;
+        }
+
+        /*
+         * The forecast changes slowly enough that the sync could happen hours before it is
+         * needed. Try to get it done while the device is charging on an un-metered network, so
+         * that it costs the user neither battery nor mobile data. ($$$) If that works, the sync
+         * reschedules the Job above for a later open. If it doesn't, the Job above still runs.
+         */
+        Job opportunisticJob = dispatcher.newJobBuilder()
+                .setService(SunshineFirebaseJobService.class)
+                .setTag(SUNSHINE_SYNC_OPPORTUNISTIC_TAG)
+                .setConstraints(Constraint.ON_UNMETERED_NETWORK, Constraint.DEVICE_CHARGING)
+                .setLifetime(Lifetime.UNTIL_NEXT_BOOT)
+                .setRecurring(false)
+                .setTrigger(Trigger.executionWindow(
+                        (int) TimeUnit.MILLISECONDS.toSeconds(schedule.opportunisticStartMillis),
+                        (int) TimeUnit.MILLISECONDS.toSeconds(schedule.windowStartMillis)))
+                .setReplaceCurrent(true)
+                .build();
+
+        dispatcher.schedule(opportunisticJob);
+    }
+
+    /**
+     * Schedules the daily maintenance of weather.db, see
+     * {@link com.example.android.sunshine.data.ForecastRetention}. Deleting
+     * rows and vacuuming is disk work the user never waits for, so it only runs while the
+     * device is charging.
+     *
+     * @param context Context used to create the GooglePlayDriver that powers the
+     *                FirebaseJobDispatcher
+     */
+    static void scheduleMaintenance(@NonNull final Context context) {
+        FirebaseJobDispatcher dispatcher = new FirebaseJobDispatcher(new GooglePlayDriver(context));
+
+        Job maintenanceJob = dispatcher.newJobBuilder()
+                .setService(SunshineFirebaseJobService.class)
+                .setTag(SUNSHINE_MAINTENANCE_TAG)
+                .setConstraints(Constraint.DEVICE_CHARGING)
+                .setLifetime(Lifetime.FOREVER)
+                .setRecurring(true)
+                .setTrigger(Trigger.executionWindow(
+                        MAINTENANCE_INTERVAL_SECONDS,
+                        MAINTENANCE_INTERVAL_SECONDS + MAINTENANCE_FLEXTIME_SECONDS))
+                /* Keep the window of a maintenance that is already scheduled */
+                .setReplaceCurrent(false)
+                .build();
+
+        dispatcher.schedule(maintenanceJob);
+    }
+
+    /**
+     * Lets {@link AdaptiveSyncPolicy} know that the user opened Sunshine, so that it can learn
+     * at which times of the day a fresh forecast matters.
+     *
+     * @param context Used to store the policy's state
+     */
+    public static void recordAppOpened(@NonNull final Context context) {
+        synchronized (sPolicyLock) {
+            AdaptiveSyncPolicy policy = AdaptiveSyncPolicy.load(context);
+            policy.recordAppOpen(System.currentTimeMillis());
+            policy.save(context);
+        }
+    }
+
+    /**
+     * Lets {@link AdaptiveSyncPolicy} know that a sync succeeded, and schedules the next one
+     * accordingly.
+     *
+     * @param context Used to store the policy's state and to reschedule the periodic sync
+     * @param changed Whether the sync found a forecast that differed from the stored one
+     */
+    static void onSyncSucceeded(@NonNull final Context context, boolean changed) {
+        AdaptiveSyncPolicy.Schedule schedule;
+        synchronized (sPolicyLock) {
+            AdaptiveSyncPolicy policy = AdaptiveSyncPolicy.load(context);
+            long now = System.currentTimeMillis();
+            policy.recordSync(now, changed);
+            policy.save(context);
+            schedule = policy.nextSchedule(now);
+        }
+        Log.d(TAG, "Next sync in " + schedule);
+        scheduleFirebaseJobDispatcherSync(context, schedule);
+    }
+
+    /**
+     * Marks a forecast as fetched now, and as current for as long as {@link AdaptiveSyncPolicy}
+     * expects forecasts to stay current.
+     *
+     * @param context Used to read the policy's state
+     * @return WeatherEntry's COLUMN_FETCHED_AT and COLUMN_EXPIRES_AT
+     */
+    static ContentValues newFreshnessValues(@NonNull final Context context) {
+        long freshnessMillis;
+        synchronized (sPolicyLock) {
+            freshnessMillis = AdaptiveSyncPolicy.load(context).getFreshnessMillis();
+        }
+
+        long now = System.currentTimeMillis();
+        ContentValues freshness = new ContentValues();
+        freshness.put(WeatherContract.WeatherEntry.COLUMN_FETCHED_AT, now);
+        freshness.put(WeatherContract.WeatherEntry.COLUMN_EXPIRES_AT, now + freshnessMillis);
+        return freshness;
+    }
+
+    /**
+     * Schedules a one-off sync to retry an immediate sync that failed. Retries of the periodic
+     * sync don't need this, as its Job is rescheduled by FirebaseJobDispatcher instead.
+     *
+     * @param context Context used to create the GooglePlayDriver that powers the
+     *                FirebaseJobDispatcher
+     */
+    static void scheduleRetrySync(@NonNull final Context context) {
+        FirebaseJobDispatcher dispatcher = new FirebaseJobDispatcher(new GooglePlayDriver(context));
+
+        int failureCount = Math.max(1, SyncRetryPolicy.getConsecutiveFailures(context));
+        int delaySeconds = SyncRetryPolicy.computeBackoffSeconds(failureCount, sRandom);
+
+        Job retryJob = dispatcher.newJobBuilder()
+                .setService(SunshineFirebaseJobService.class)
+                .setTag(SUNSHINE_SYNC_RETRY_TAG)
+                .setConstraints(Constraint.ON_ANY_NETWORK)
+                /* A retry is only useful for as long as the failure was recent */
+                .setLifetime(Lifetime.UNTIL_NEXT_BOOT)
+                .setRecurring(false)
+                .setTrigger(Trigger.executionWindow(delaySeconds, delaySeconds * 2))
+                .setReplaceCurrent(true)
+                .setRetryStrategy(newRetryStrategy(dispatcher))
+                .build();
+
+        dispatcher.schedule(retryJob);
+    }
+
+    /**
+     * Builds the strategy FirebaseJobDispatcher uses to reschedule a failed sync: exponential
+     * backoff from {@link SyncRetryPolicy#INITIAL_BACKOFF_SECONDS} up to
+     * {@link SyncRetryPolicy#MAX_BACKOFF_SECONDS}.
+     * <p>
+     * FirebaseJobDispatcher doesn't add any jitter of its own, so the initial backoff is picked
+     * with {@link SyncRetryPolicy#computeBackoffSeconds(int, Random)} every time a Job is
+     * scheduled. That way, devices that failed at the same moment don't all retry at the same
+     * moment too.
+     */
+    private static RetryStrategy newRetryStrategy(FirebaseJobDispatcher dispatcher) {
+        return dispatcher.newRetryStrategy(
+                RetryStrategy.RETRY_POLICY_EXPONENTIAL,
+                SyncRetryPolicy.computeBackoffSeconds(1, sRandom),
+                SyncRetryPolicy.MAX_BACKOFF_SECONDS);
     }
+
     /**
      * Creates periodic sync tasks and checks to see if an immediate sync is required. If an
      * immediate sync is required, this method will take care of making sure that sync occurs.
@@ -121,69 +311,196 @@ public class SunshineSyncUtils {
          * periodically.
          */
         scheduleFirebaseJobDispatcherSync(context);
+        scheduleMaintenance(context);
 
         /*
          * We need to check to see if our ContentProvider has data to display in our forecast
          * list. However, performing a query on the main thread is a bad idea as this may
-         * cause our UI to lag. Therefore, we create a thread in which we will run the query
-         * to check the contents of our ContentProvider.
+         * cause our UI to lag. Therefore, we run the query to check the contents of our
+         * ContentProvider on the database queue. The user is waiting for a forecast, so it
+         * runs ahead of anything else there.
          */
-        Thread checkForEmpty = new Thread(new Runnable() {
+        Runnable checkForEmpty = new Runnable() {
             @Override
             public void run() {
-
-                /* URI for every row of weather data in our weather table*/
-                Uri forecastQueryUri = WeatherContract.WeatherEntry.CONTENT_URI;
-
                 /*
-                 * Since this query is going to be used only as a check to see if we have any
-                 * data (rather than to display data), we just need to PROJECT the ID of each
-                 * row. In our queries where we display data, we need to PROJECT more columns
-                 * to determine what weather details need to be displayed.
+                 * If there's no forecast from today onwards, we need to sync immediately to be
+                 * able to display data to the user.
                  */
-                String[] projectionColumns = {WeatherContract.WeatherEntry._ID};
-                String selectionStatement = WeatherContract.WeatherEntry
-                        .getSqlSelectForTodayOnwards();
+                if (!hasForecastFromToday(context)) {
+                    startImmediateSync(context);
+                }
+            }
+        };
+
+        /* Finally, hand the check off to be performed. */
+        runCheck(context, checkForEmpty);
+    }
 
-                /* Here, we perform the query to check to see if we have any weather data */
+    /**
+     * Checks whether there is a forecast from today onwards stored for the current location.
+     * This only reads the summary of the forecast at {@link WeatherContract.WeatherEntry#META_URI},
+     * a single row however many days are stored.
+     *
+     * @param context Used to access the ContentResolver
+     * @return true if there is at least one day of forecast from today onwards
+     */
+    static boolean hasForecastFromToday(@NonNull Context context) {
+        Cursor cursor = context.getContentResolver().query(
+                WeatherContract.WeatherEntry.META_URI,
+                new String[]{WeatherContract.LocationEntry.COLUMN_NEWEST_DATE},
+                null,
+                null,
+                null);
+
+        /*
+         * A Cursor object can be null for various different reasons. A few are listed below.
+         *
+         *   1) Invalid URI
+         *   2) A certain ContentProvider's query method returns null
+         *   3) A RemoteException was thrown.
+         *
+         * Bottom line, it is generally a good idea to check if a Cursor returned from a
+         * ContentResolver is null. If it is, we have no forecast we know of.
+         */
+        if (cursor == null) {
+            return false;
+        }
+
+        try {
+            long normalizedUtcNow = SunshineDateUtils.normalizeDate(System.currentTimeMillis());
+
+            /* There's no row at all for a location that was never synced */
+            return cursor.moveToFirst() && cursor.getLong(0) >= normalizedUtcNow;
+        } finally {
+            /* Make sure to close the Cursor to avoid memory leaks! */
+            cursor.close();
+        }
+    }
+
+    /**
+     * Stale-while-revalidate: called whenever the forecast is about to be shown. Whatever forecast
+     * is stored is shown straight away, and if it has expired, a sync is started in the
+     * background to revalidate it. A forecast that hasn't expired costs no more than reading
+     * the summary at {@link WeatherContract.WeatherEntry#META_URI}.
+     * <p>
+     * An empty forecast is left to {@link #initialize(Context)}.
+     *
+     * @param context The Context used to access the ContentResolver and start the sync
+     */
+    public static void revalidateIfStale(@NonNull final Context context) {
+        Runnable checkExpiry = new Runnable() {
+            @Override
+            public void run() {
                 Cursor cursor = context.getContentResolver().query(
-                        forecastQueryUri,
-                        projectionColumns,
-                        selectionStatement,
+                        WeatherContract.WeatherEntry.META_URI,
+                        new String[]{WeatherContract.LocationEntry.COLUMN_FORECAST_DAYS,
+                                WeatherContract.LocationEntry.COLUMN_FORECAST_EXPIRES_AT},
+                        null,
                         null,
                         null);
-                /*
-                 * A Cursor object can be null for various different reasons. A few are
-                 * listed below.
-                 *
-                 *   1) Invalid URI
-                 *   2) A certain ContentProvider's query method returns null
-                 *   3) A RemoteException was thrown.
-                 *
-                 * Bottom line, it is generally a good idea to check if a Cursor returned
-                 * from a ContentResolver is null.
-                 *
-                 * If the Cursor was null OR if it was empty, we need to sync immediately to
-                 * be able to display data to the user.
-                 */
-                if (null == cursor || cursor.getCount() == 0) {
+                if (cursor == null) {
+                    return;
+                }
+
+                boolean expired;
+                try {
+                    expired = cursor.moveToFirst() && cursor.getInt(0) > 0
+                            && System.currentTimeMillis() >= cursor.getLong(1);
+                } finally {
+                    cursor.close();
+                }
+
+                if (expired && shouldRevalidate()) {
                     startImmediateSync(context);
                 }
+            }
+        };
+
+        if (!SunshineExecutors.execute(SunshineExecutors.QUEUE_DB,
+                SunshineExecutors.PRIORITY_DEFAULT, checkExpiry)) {
+            Log.w(TAG, "Too busy to check whether the forecast has expired");
+        }
+    }
+
+    synchronized private static boolean shouldRevalidate() {
+        long now = SystemClock.elapsedRealtime();
+        if (sLastRevalidationMillis != 0
+                && now - sLastRevalidationMillis < MIN_REVALIDATION_INTERVAL_MILLIS) {
+            return false;
+        }
+        sLastRevalidationMillis = now;
+        return true;
+    }
+
+    /**
+     * Called when the user picks another location. If we already have a forecast for that
+     * location that hasn't expired yet, there's no need to download it again, and we only need
+     * to restore the location's coordinates. Otherwise, we sync immediately.
+     *
+     * @param context The Context used to access the ContentResolver and start the sync
+     */
+    public static void syncLocationIfStale(@NonNull final Context context) {
+        final String locationSetting = SunshinePreferences.getPreferredWeatherLocation(context);
+
+        /* Like the check in initialize, this query stays off the main thread */
+        Runnable checkLocation = new Runnable() {
+            @Override
+            public void run() {
+                String[] projectionColumns = {
+                        WeatherContract.LocationEntry.COLUMN_COORD_LAT,
+                        WeatherContract.LocationEntry.COLUMN_COORD_LONG,
+                        WeatherContract.LocationEntry.COLUMN_FORECAST_EXPIRES_AT
+                };
+
+                Cursor cursor = context.getContentResolver().query(
+                        WeatherContract.LocationEntry.CONTENT_URI,
+                        projectionColumns,
+                        WeatherContract.LocationEntry.COLUMN_LOCATION_SETTING + " = ?",
+                        new String[]{locationSetting},
+                        null);
+
+                boolean stillCurrent = false;
+                if (cursor != null) {
+                    if (cursor.moveToFirst()) {
+                        if (System.currentTimeMillis() < cursor.getLong(2)) {
+                            stillCurrent = true;
+                            SunshinePreferences.setLocationDetails(context,
+                                    cursor.getDouble(0), cursor.getDouble(1));
+                        }
+                    }
+                    cursor.close();
+                }
 
-                /* Make sure to close the Cursor to avoid memory leaks! */
-                cursor.close();
+                if (!stillCurrent) {
+                    startImmediateSync(context);
+                }
             }
-        });
+        };
+
+        runCheck(context, checkLocation);
+    }
 
-        /* Finally, once the thread is prepared, fire it off to perform our checks. */
-        checkForEmpty.start();
+    /**
+     * Runs a check that decides whether to sync on the database queue of
+     * {@link SunshineExecutors}. If the queue is too busy to take it, we sync without checking:
+     * a sync that wasn't needed costs less than a forecast that never shows up.
+     *
+     * @param context The Context used to start the sync if the check can't run
+     * @param check   The check, which starts a sync if one is needed
+     */
+    private static void runCheck(@NonNull final Context context, Runnable check) {
+        if (!SunshineExecutors.execute(SunshineExecutors.QUEUE_DB,
+                SunshineExecutors.PRIORITY_IMMEDIATE, check)) {
+            startImmediateSync(context);
+        }
     }
 
     /**
-     * Helper method to perform a sync immediately using an IntentService for asynchronous
-     * execution.
+     * Helper method to perform a sync immediately using a Service that runs it on the sync
+     * queue of {@link SunshineExecutors}.
      *
-     * @param context The Context used to start the IntentService for the sync.
+     * @param context The Context used to start the Service for the sync.
      */
     public static void startImmediateSync(@NonNull final Context context) {
         Intent intentToSyncImmediately = new Intent(context, SunshineSyncIntentService.class);
@@ -0,0 +1,112 @@
+/*
+ * Copyright (C) 2016 The Android Open Source Project
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *      http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package com.example.android.sunshine.sync;
+
+import java.net.HttpURLConnection;
+
+/**
+ * Describes why a sync failed, so that {@link SyncRetryPolicy} can decide whether trying again
+ * soon is likely to help.
+ * <p>
+ * The reason is one of:
+ * <ul>
+ * <li>{@link #REASON_NETWORK}: the weather server couldn't be reached, or the connection broke
+ * while the forecast was being read. Usually gone by the time we try again.</li>
+ * <li>{@link #REASON_HTTP_STATUS}: the weather server answered with an error. Worth retrying
+ * only if the server said it was temporary (5xx, 408 Request Timeout or 429 Too Many
+ * Requests).</li>
+ * <li>{@link #REASON_PARSE}: the forecast wasn't in the format we expect. Asking again will
+ * most likely get us the same forecast.</li>
+ * <li>{@link #REASON_DATABASE}: the forecast couldn't be stored. This has nothing to do with
+ * the weather server, so it doesn't count against it.</li>
+ * </ul>
+ */
+class SyncException extends Exception {
+
+    static final int REASON_NETWORK = 0;
+    static final int REASON_HTTP_STATUS = 1;
+    static final int REASON_PARSE = 2;
+    static final int REASON_DATABASE = 3;
+
+    /* Used as the status code when the server reports an error in the forecast itself */
+    static final int STATUS_IN_RESPONSE_BODY = -1;
+
+    private static final int HTTP_TOO_MANY_REQUESTS = 429;
+
+    private final int mReason;
+    private final int mHttpStatus;
+
+    private SyncException(int reason, int httpStatus, String message, Throwable cause) {
+        super(message, cause);
+        mReason = reason;
+        mHttpStatus = httpStatus;
+    }
+
+    static SyncException network(Throwable cause) {
+        return new SyncException(REASON_NETWORK, 0, "Network error", cause);
+    }
+
+    static SyncException httpStatus(int httpStatus, Throwable cause) {
+        return new SyncException(REASON_HTTP_STATUS, httpStatus, "HTTP " + httpStatus, cause);
+    }
+
+    static SyncException parse(Throwable cause) {
+        return new SyncException(REASON_PARSE, 0, "Unable to parse the forecast", cause);
+    }
+
+    static SyncException database(Throwable cause) {
+        return new SyncException(REASON_DATABASE, 0, "Unable to store the forecast", cause);
+    }
+
+    int getReason() {
+        return mReason;
+    }
+
+    /**
+     * @return The HTTP status code the server answered with, {@link #STATUS_IN_RESPONSE_BODY}
+     * if the error was reported in the forecast, or 0 if the reason isn't
+     * {@link #REASON_HTTP_STATUS}
+     */
+    int getHttpStatus() {
+        return mHttpStatus;
+    }
+
+    /**
+     * @return true if the same sync has a good chance of succeeding if we try again soon
+     */
+    boolean isTransient() {
+        switch (mReason) {
+            case REASON_NETWORK:
+                return true;
+
+            case REASON_HTTP_STATUS:
+                return mHttpStatus >= HttpURLConnection.HTTP_INTERNAL_ERROR
+                        || mHttpStatus == HttpURLConnection.HTTP_CLIENT_TIMEOUT
+                        || mHttpStatus == HTTP_TOO_MANY_REQUESTS;
+
+            default:
+                return false;
+        }
+    }
+
+    /**
+     * @return true if the failure says something about the weather server, as opposed to
+     * something that went wrong on the device
+     */
+    boolean isServerFailure() {
+        return mReason != REASON_DATABASE;
+    }
+}
@@ -0,0 +1,189 @@
+/*
+ * Copyright (C) 2016 The Android Open Source Project
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *      http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package com.example.android.sunshine.sync;
+
+import android.util.Log;
+
+import java.util.concurrent.TimeUnit;
+
+/**
+ * Keeps track of how long each stage of a sync takes, and how it ends.
+ * <p>
+ * A sync runs through the stages in order: fetching the forecast (up to the response headers),
+ * parsing it as the body comes in, persisting it, notifying the user and pushing today's weather
+ * to the watch. Every stage of every sync ends with one of the OUTCOME constants, even the
+ * stages that never got to run, so that a sync that stopped early is easy to tell apart.
+ */
+final class SyncMetrics {
+
+    private static final String TAG = SyncMetrics.class.getSimpleName();
+
+    static final int STAGE_FETCH = 0;
+    static final int STAGE_PARSE = 1;
+    static final int STAGE_PERSIST = 2;
+    static final int STAGE_NOTIFY = 3;
+    static final int STAGE_WEAR = 4;
+
+    static final int STAGE_COUNT = 5;
+
+    private static final String[] STAGE_NAMES = {"fetch", "parse", "persist", "notify", "wear"};
+
+    /* The stage never started, because an earlier stage failed or the sync was cancelled */
+    static final int OUTCOME_NOT_RUN = 0;
+    static final int OUTCOME_SUCCEEDED = 1;
+    /* The stage had nothing to do, like persisting a forecast that hadn't changed */
+    static final int OUTCOME_SKIPPED = 2;
+    static final int OUTCOME_CANCELLED = 3;
+    static final int OUTCOME_FAILED = 4;
+
+    private static final int OUTCOME_COUNT = 5;
+
+    private static final String[] OUTCOME_NAMES =
+            {"not run", "succeeded", "skipped", "cancelled", "failed"};
+
+    private static final int[] sLastOutcomes = new int[STAGE_COUNT];
+    private static final long[] sLastNanos = new long[STAGE_COUNT];
+    private static final int[][] sOutcomeCounts = new int[STAGE_COUNT][OUTCOME_COUNT];
+    private static int sSyncCount;
+
+    private SyncMetrics() {
+    }
+
+    /**
+     * Times the stages of one sync, and records them with SyncMetrics once the sync is over.
+     * Not thread safe: a sync runs on a single thread.
+     */
+    static final class Recorder {
+
+        private final int[] mOutcomes = new int[STAGE_COUNT];
+        private final long[] mNanos = new long[STAGE_COUNT];
+
+        /* The stage that is running, or -1 */
+        private int mCurrentStage = -1;
+        private long mCurrentStart;
+
+        private boolean mClosed;
+
+        /**
+         * Starts timing a stage. The stage that was running, if any, succeeded.
+         *
+         * @param stage One of the STAGE constants
+         */
+        void begin(int stage) {
+            end(OUTCOME_SUCCEEDED);
+            mCurrentStage = stage;
+            mCurrentStart = System.nanoTime();
+        }
+
+        /**
+         * Records that a stage had nothing to do. The stage that was running, if any, succeeded.
+         *
+         * @param stage One of the STAGE constants
+         */
+        void skip(int stage) {
+            end(OUTCOME_SUCCEEDED);
+            mOutcomes[stage] = OUTCOME_SKIPPED;
+        }
+
+        /**
+         * Records that the running stage stopped because the sync was cancelled.
+         */
+        void cancel() {
+            end(OUTCOME_CANCELLED);
+        }
+
+        /**
+         * Records that the running stage, if any, succeeded.
+         */
+        void succeed() {
+            end(OUTCOME_SUCCEEDED);
+        }
+
+        /**
+         * Ends the sync. A stage that is still running at this point failed. Call this in a
+         * finally block.
+         */
+        void close() {
+            if (mClosed) {
+                return;
+            }
+            end(OUTCOME_FAILED);
+            mClosed = true;
+            record(mOutcomes, mNanos);
+        }
+
+        private void end(int outcome) {
+            if (mCurrentStage == -1) {
+                return;
+            }
+            mOutcomes[mCurrentStage] = outcome;
+            mNanos[mCurrentStage] = System.nanoTime() - mCurrentStart;
+            mCurrentStage = -1;
+        }
+    }
+
+    private static synchronized void record(int[] outcomes, long[] nanos) {
+        StringBuilder summary = new StringBuilder("Sync:");
+        for (int stage = 0; stage < STAGE_COUNT; stage++) {
+            sLastOutcomes[stage] = outcomes[stage];
+            sLastNanos[stage] = nanos[stage];
+            sOutcomeCounts[stage][outcomes[stage]]++;
+
+            summary.append(' ').append(STAGE_NAMES[stage]).append(' ')
+                    .append(OUTCOME_NAMES[outcomes[stage]]);
+            if (outcomes[stage] != OUTCOME_NOT_RUN && outcomes[stage] != OUTCOME_SKIPPED) {
+                summary.append(" in ").append(TimeUnit.NANOSECONDS.toMillis(nanos[stage]))
+                        .append(" ms");
+            }
+            summary.append(stage < STAGE_COUNT - 1 ? ',' : '.');
+        }
+        sSyncCount++;
+
+        Log.v(TAG, summary.toString());
+    }
+
+    /**
+     * @param stage One of the STAGE constants
+     * @return How the stage ended in the last sync, one of the OUTCOME constants
+     */
+    static synchronized int getLastOutcome(int stage) {
+        return sLastOutcomes[stage];
+    }
+
+    /**
+     * @param stage One of the STAGE constants
+     * @return How long the stage took in the last sync, in milliseconds. 0 if it didn't run.
+     */
+    static synchronized long getLastDurationMillis(int stage) {
+        return TimeUnit.NANOSECONDS.toMillis(sLastNanos[stage]);
+    }
+
+    /**
+     * @param stage   One of the STAGE constants
+     * @param outcome One of the OUTCOME constants
+     * @return How many syncs since the process started ended the stage with outcome
+     */
+    static synchronized int getOutcomeCount(int stage, int outcome) {
+        return sOutcomeCounts[stage][outcome];
+    }
+
+    /**
+     * @return The number of syncs recorded since the process started
+     */
+    static synchronized int getSyncCount() {
+        return sSyncCount;
+    }
+}
@@ -0,0 +1,190 @@
+/*
+ * Copyright (C) 2016 The Android Open Source Project
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *      http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package com.example.android.sunshine.sync;
+
+import android.content.Context;
+import android.content.SharedPreferences;
+import android.util.Log;
+
+import java.util.Random;
+import java.util.concurrent.TimeUnit;
+
+/**
+ * Decides what to do after a sync fails: try again soon, or wait for the next periodic sync.
+ * <p>
+ * Retries back off exponentially, with jitter, so that a weather server that is having trouble
+ * isn't hit by every device at the same moment as soon as it recovers. The retries themselves
+ * are run by FirebaseJobDispatcher: a failed job asks to be rescheduled, and the job's
+ * RetryStrategy (see {@link SunshineSyncUtils}) decides when.
+ * <p>
+ * On top of that, a circuit breaker stops syncing altogether after
+ * {@link #FAILURE_THRESHOLD} failures in a row that were the weather server's fault. While the
+ * circuit is open, syncs give up without using the network. Once the cool down is over, a single
+ * sync is let through: if it succeeds, everything is back to normal, and if it fails, the circuit
+ * opens again for twice as long. This keeps a broken server from draining the battery.
+ * <p>
+ * The state is kept in its own SharedPreferences file rather than with the user's preferences,
+ * so that listeners for preference changes don't hear about every failed sync. It survives the
+ * process being killed, which for a sync every few hours is the usual case.
+ */
+final class SyncRetryPolicy {
+
+    private static final String TAG = SyncRetryPolicy.class.getSimpleName();
+
+    /* Failures in a row after which we stop retrying and open the circuit */
+    static final int FAILURE_THRESHOLD = 5;
+
+    /*
+     * FirebaseJobDispatcher won't accept an initial backoff shorter than 30 seconds. With the
+     * jitter, the first retry happens between 30 and 60 seconds after a failure.
+     */
+    static final int INITIAL_BACKOFF_SECONDS = 60;
+    static final int MAX_BACKOFF_SECONDS = (int) TimeUnit.HOURS.toSeconds(1);
+
+    static final long INITIAL_COOL_DOWN_MILLIS = TimeUnit.MINUTES.toMillis(30);
+    static final long MAX_COOL_DOWN_MILLIS = TimeUnit.HOURS.toMillis(12);
+
+    private static final String PREFERENCES_NAME = "sync_retry_policy";
+    private static final String KEY_CONSECUTIVE_FAILURES = "consecutive_failures";
+    private static final String KEY_CIRCUIT_TRIPS = "circuit_trips";
+    private static final String KEY_CIRCUIT_OPEN_UNTIL = "circuit_open_until";
+
+    /*
+     * Guards the read-modify-write of the state, as the syncs on both threads of the sync queue
+     * record their results here
+     */
+    private static final Object sLock = new Object();
+
+    private SyncRetryPolicy() {
+    }
+
+    /**
+     * Computes how long to wait before the next attempt, using "equal jitter": half of the
+     * exponential backoff is always waited, the other half is random.
+     *
+     * @param failureCount Number of failures in a row so far, at least 1
+     * @param random       Source of the jitter
+     * @return The delay before the next attempt, in seconds
+     */
+    static int computeBackoffSeconds(int failureCount, Random random) {
+        long backoff = INITIAL_BACKOFF_SECONDS;
+        for (int i = 1; i < failureCount && backoff < MAX_BACKOFF_SECONDS; i++) {
+            backoff *= 2;
+        }
+        int cappedBackoff = (int) Math.min(backoff, MAX_BACKOFF_SECONDS);
+
+        int half = cappedBackoff / 2;
+        return cappedBackoff - half + random.nextInt(half + 1);
+    }
+
+    /**
+     * @param tripCount Number of times in a row the circuit has opened, at least 1
+     * @return How long the circuit stays open, in milliseconds
+     */
+    static long computeCoolDownMillis(int tripCount) {
+        long coolDown = INITIAL_COOL_DOWN_MILLIS;
+        for (int i = 1; i < tripCount && coolDown < MAX_COOL_DOWN_MILLIS; i++) {
+            coolDown *= 2;
+        }
+        return Math.min(coolDown, MAX_COOL_DOWN_MILLIS);
+    }
+
+    /**
+     * @param context   Used to read the state of the circuit breaker
+     * @param nowMillis The current time
+     * @return true if a sync may use the network, false if the circuit is open
+     */
+    static boolean isSyncAllowed(Context context, long nowMillis) {
+        return nowMillis >= getPreferences(context).getLong(KEY_CIRCUIT_OPEN_UNTIL, 0);
+    }
+
+    /**
+     * @param context Used to read the number of failures so far
+     * @return The number of syncs in a row that have failed
+     */
+    static int getConsecutiveFailures(Context context) {
+        return getPreferences(context).getInt(KEY_CONSECUTIVE_FAILURES, 0);
+    }
+
+    /**
+     * Closes the circuit and forgets about earlier failures.
+     *
+     * @param context Used to store the state of the circuit breaker
+     */
+    static void recordSuccess(Context context) {
+        synchronized (sLock) {
+            SharedPreferences preferences = getPreferences(context);
+            if (preferences.getInt(KEY_CONSECUTIVE_FAILURES, 0) == 0
+                    && preferences.getInt(KEY_CIRCUIT_TRIPS, 0) == 0) {
+                return;
+            }
+            preferences.edit().clear().apply();
+        }
+    }
+
+    /**
+     * Counts a failed sync, opening the circuit if too many failed in a row.
+     *
+     * @param context   Used to store the state of the circuit breaker
+     * @param failure   Why the sync failed
+     * @param nowMillis The current time
+     * @return true if the sync should be retried soon
+     */
+    static boolean recordFailure(Context context, SyncException failure, long nowMillis) {
+        /* A full disk or a bug of ours is no reason to stop asking the server for forecasts */
+        if (!failure.isServerFailure()) {
+            return false;
+        }
+
+        synchronized (sLock) {
+            SharedPreferences preferences = getPreferences(context);
+            int failures = preferences.getInt(KEY_CONSECUTIVE_FAILURES, 0) + 1;
+            SharedPreferences.Editor editor = preferences.edit()
+                    .putInt(KEY_CONSECUTIVE_FAILURES, failures);
+
+            boolean retry = failure.isTransient();
+            if (failures >= FAILURE_THRESHOLD) {
+                int trips = preferences.getInt(KEY_CIRCUIT_TRIPS, 0) + 1;
+                long coolDownMillis = computeCoolDownMillis(trips);
+                editor.putInt(KEY_CIRCUIT_TRIPS, trips)
+                        .putLong(KEY_CIRCUIT_OPEN_UNTIL, nowMillis + coolDownMillis);
+                retry = false;
+
+                Log.w(TAG, failures + " syncs failed in a row, not syncing for the next "
+                        + TimeUnit.MILLISECONDS.toMinutes(coolDownMillis) + " minutes");
+            }
+
+            /* commit, not apply: the process may be gone before an apply would reach the disk */
+            editor.commit();
+            return retry;
+        }
+    }
+
+    /**
+     * Forgets about every failure. Used by tests.
+     *
+     * @param context Used to store the state of the circuit breaker
+     */
+    static void reset(Context context) {
+        synchronized (sLock) {
+            getPreferences(context).edit().clear().commit();
+        }
+    }
+
+    private static SharedPreferences getPreferences(Context context) {
+        return context.getSharedPreferences(PREFERENCES_NAME, Context.MODE_PRIVATE);
+    }
+}
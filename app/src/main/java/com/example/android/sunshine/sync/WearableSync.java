@@ -0,0 +1,142 @@
+/*
+ * Copyright (C) 2016 The Android Open Source Project
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *      http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package com.example.android.sunshine.sync;
+
+import android.content.Context;
+import android.database.Cursor;
+import android.net.Uri;
+import android.util.Log;
+
+import com.example.android.sunshine.data.WeatherContract;
+import com.example.android.sunshine.utilities.SunshineDateUtils;
+import com.google.android.gms.common.ConnectionResult;
+import com.google.android.gms.common.api.GoogleApiClient;
+import com.google.android.gms.wearable.DataApi;
+import com.google.android.gms.wearable.PutDataMapRequest;
+import com.google.android.gms.wearable.PutDataRequest;
+import com.google.android.gms.wearable.Wearable;
+
+import java.util.concurrent.TimeUnit;
+
+/**
+ * Sends today's weather to the Sunshine watch face, as the last stage of a sync.
+ */
+public final class WearableSync {
+
+    private static final String TAG = WearableSync.class.getSimpleName();
+
+    /* These must match what the watch face listens for */
+    public static final String WEATHER_PATH = "/weather_watch";
+    public static final String HIGH_TEMP = "HIGH_TEMP";
+    public static final String LOW_TEMP = "LOW_TEMP";
+    public static final String WEATHER_ID = "WEATHER_ID";
+
+    public static final String[] MAIN_FORECAST_PROJECTION = {
+            WeatherContract.WeatherEntry.COLUMN_DATE,
+            WeatherContract.WeatherEntry.COLUMN_MAX_TEMP,
+            WeatherContract.WeatherEntry.COLUMN_MIN_TEMP,
+            WeatherContract.WeatherEntry.COLUMN_WEATHER_ID,
+    };
+
+    /*
+     * We store the indices of the values in the array of Strings above to more quickly be able to
+     * access the data from our query. If the order of the Strings above changes, these indices
+     * must be adjusted to match the order of the Strings.
+     */
+    public static final int INDEX_WEATHER_DATE = 0;
+    public static final int INDEX_WEATHER_MAX_TEMP = 1;
+    public static final int INDEX_WEATHER_MIN_TEMP = 2;
+    public static final int INDEX_WEATHER_CONDITION_ID = 3;
+
+    /*
+     * This runs on the wear queue of SunshineExecutors, so it waits for Google Play services,
+     * but not for long: a watch that isn't around shouldn't keep the sync, and the device, awake.
+     */
+    private static final long CONNECT_TIMEOUT_SECONDS = 10;
+    private static final long PUT_TIMEOUT_SECONDS = 10;
+
+    private WearableSync() {
+    }
+
+    /**
+     * Sends today's weather to the watch. Must not be called on the main thread, and is only
+     * called on the wear queue, so that only one connection to the watch is made at a time.
+     *
+     * @param context Used to query today's weather and to connect to Google Play services
+     * @return true if there was weather to send and it was handed to the Wearable API
+     */
+    static boolean pushTodayToWearable(Context context) {
+        long normalizedUtcNow = SunshineDateUtils.normalizeDate(System.currentTimeMillis());
+        Uri uriForDateToday = WeatherContract.WeatherEntry.buildWeatherUriWithDate(normalizedUtcNow);
+
+        Cursor cursor = context.getContentResolver().query(
+                uriForDateToday,
+                MAIN_FORECAST_PROJECTION,
+                null,
+                null,
+                null);
+
+        if (cursor == null) {
+            return false;
+        }
+
+        int weatherId;
+        double highTemp;
+        double lowTemp;
+        try {
+            if (!cursor.moveToFirst()) {
+                return false;
+            }
+            weatherId = cursor.getInt(INDEX_WEATHER_CONDITION_ID);
+            highTemp = cursor.getDouble(INDEX_WEATHER_MAX_TEMP);
+            lowTemp = cursor.getDouble(INDEX_WEATHER_MIN_TEMP);
+        } finally {
+            cursor.close();
+        }
+
+        GoogleApiClient wearClient = new GoogleApiClient.Builder(context)
+                .addApi(Wearable.API)
+                .build();
+
+        ConnectionResult connectionResult =
+                wearClient.blockingConnect(CONNECT_TIMEOUT_SECONDS, TimeUnit.SECONDS);
+        if (!connectionResult.isSuccess()) {
+            Log.d(TAG, "Couldn't connect to the Wearable API: " + connectionResult);
+            return false;
+        }
+
+        try {
+            PutDataMapRequest putDataMapRequest = PutDataMapRequest.create(WEATHER_PATH);
+            putDataMapRequest.getDataMap().putInt(WEATHER_ID, weatherId);
+            putDataMapRequest.getDataMap().putDouble(HIGH_TEMP, highTemp);
+            putDataMapRequest.getDataMap().putDouble(LOW_TEMP, lowTemp);
+            PutDataRequest putDataRequest = putDataMapRequest.asPutDataRequest().setUrgent();
+
+            DataApi.DataItemResult result = Wearable.DataApi
+                    .putDataItem(wearClient, putDataRequest)
+                    .await(PUT_TIMEOUT_SECONDS, TimeUnit.SECONDS);
+
+            if (!result.getStatus().isSuccess()) {
+                Log.d(TAG, "Error in sending data to watch: " + result.getStatus());
+                return false;
+            }
+            Log.d(TAG, "Data item set: " + result.getDataItem().getUri());
+            return true;
+        } finally {
+            wearClient.disconnect();
+        }
+    }
+}
@@ -0,0 +1,84 @@
+/*
+ * Copyright (C) 2016 The Android Open Source Project
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *      http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package com.example.android.sunshine.utilities;
+
+import java.util.ArrayList;
+import java.util.List;
+
+/**
+ * A small pool of byte arrays used to read responses from the weather server. A sync downloads a
+ * response of about the same size every few hours, so rather than allocating (and later
+ * garbage collecting) a new buffer for every response, we hand the same buffer out again.
+ * <p>
+ * Buffers returned with {@link #returnBuf(byte[])} are kept as long as the pool holds no more
+ * than POOL_LIMIT_BYTES. When the limit is exceeded, the smallest buffers are dropped first, as
+ * they are the least likely to be big enough for the next response.
+ */
+final class ByteArrayPool {
+
+    /* The most bytes the pool will hold on to between requests */
+    static final int POOL_LIMIT_BYTES = 256 * 1024;
+
+    /* Pooled buffers, ordered from smallest to largest */
+    private static final List<byte[]> sBuffersBySize = new ArrayList<>();
+
+    private static int sPooledBytes;
+
+    private ByteArrayPool() {
+    }
+
+    /**
+     * Returns a buffer from the pool if one of at least the requested length is available, or
+     * allocates a new one otherwise. The contents of a pooled buffer are not cleared.
+     *
+     * @param minLength The minimum length of the buffer
+     * @return A buffer of at least minLength bytes
+     */
+    static synchronized byte[] getBuf(int minLength) {
+        for (int i = 0; i < sBuffersBySize.size(); i++) {
+            byte[] buffer = sBuffersBySize.get(i);
+            if (buffer.length >= minLength) {
+                sPooledBytes -= buffer.length;
+                sBuffersBySize.remove(i);
+                return buffer;
+            }
+        }
+        return new byte[minLength];
+    }
+
+    /**
+     * Hands a buffer back to the pool. The buffer must not be used by the caller afterwards.
+     *
+     * @param buffer The buffer to return. May be null.
+     */
+    static synchronized void returnBuf(byte[] buffer) {
+        if (buffer == null || buffer.length > POOL_LIMIT_BYTES) {
+            return;
+        }
+
+        int position = 0;
+        while (position < sBuffersBySize.size()
+                && sBuffersBySize.get(position).length < buffer.length) {
+            position++;
+        }
+        sBuffersBySize.add(position, buffer);
+        sPooledBytes += buffer.length;
+
+        while (sPooledBytes > POOL_LIMIT_BYTES) {
+            sPooledBytes -= sBuffersBySize.remove(0).length;
+        }
+    }
+}
@@ -0,0 +1,259 @@
+/*
+ * Copyright (C) 2016 The Android Open Source Project
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *      http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package com.example.android.sunshine.utilities;
+
+import android.content.Context;
+import android.util.Log;
+
+import java.io.Closeable;
+import java.io.File;
+import java.io.FileInputStream;
+import java.io.FileOutputStream;
+import java.io.IOException;
+import java.io.InputStream;
+import java.io.OutputStream;
+import java.net.HttpURLConnection;
+import java.net.URL;
+import java.util.Locale;
+import java.util.Properties;
+import java.util.concurrent.TimeUnit;
+
+/**
+ * Remembers, for each forecast URL, what the weather server told us about the last forecast it
+ * sent: its ETag, its Last-Modified date and how long it may be used without asking again
+ * (Cache-Control max-age, or Expires).
+ * <p>
+ * The forecast itself is not stored here. It's already stored in weather.db, so all we need to
+ * keep is enough to ask the server whether that forecast is still current. This is a very small
+ * subset of what an HTTP cache does, but it is all Sunshine needs.
+ * <p>
+ * Entries are stored as small properties files in the app's cache directory. If the system
+ * clears the cache, we simply download the full forecast on the next sync.
+ */
+public final class ForecastHttpCache {
+
+    private static final String TAG = ForecastHttpCache.class.getSimpleName();
+
+    private static final String CACHE_DIRECTORY = "forecast_http_cache";
+
+    private static final String KEY_URL = "url";
+    private static final String KEY_ETAG = "etag";
+    private static final String KEY_LAST_MODIFIED = "last_modified";
+    private static final String KEY_EXPIRES_AT = "expires_at";
+
+    private ForecastHttpCache() {
+    }
+
+    /**
+     * What we know about the forecast last downloaded from one URL.
+     */
+    static final class Entry {
+
+        final String etag;
+        final String lastModified;
+
+        /* Time in milliseconds until which the forecast may be used without revalidating it */
+        final long expiresAtMillis;
+
+        Entry(String etag, String lastModified, long expiresAtMillis) {
+            this.etag = etag;
+            this.lastModified = lastModified;
+            this.expiresAtMillis = expiresAtMillis;
+        }
+
+        /**
+         * @return true if the server allows us to keep using the forecast without asking
+         */
+        boolean isFresh(long nowMillis) {
+            return nowMillis < expiresAtMillis;
+        }
+
+        /**
+         * @return true if there is a validator we can send along with a conditional request
+         */
+        boolean canRevalidate() {
+            return etag != null || lastModified != null;
+        }
+    }
+
+    /**
+     * Reads the validators and freshness information the server sent with a response. A 304
+     * may leave out the validators, in which case the ones from the previous entry still apply.
+     *
+     * @param urlConnection A connection whose response headers have been received
+     * @param previous      The entry the request was made with, or null
+     * @param nowMillis     The current time
+     * @return The entry to store, or null if the response must not be stored
+     */
+    static Entry fromResponse(HttpURLConnection urlConnection, Entry previous, long nowMillis) {
+        String cacheControl = urlConnection.getHeaderField("Cache-Control");
+
+        long maxAgeSeconds = -1;
+        if (cacheControl != null) {
+            for (String directive : cacheControl.toLowerCase(Locale.US).split(",")) {
+                directive = directive.trim();
+                if (directive.equals("no-store")) {
+                    return null;
+                } else if (directive.equals("no-cache")) {
+                    maxAgeSeconds = 0;
+                } else if (directive.startsWith("max-age=") && maxAgeSeconds != 0) {
+                    try {
+                        maxAgeSeconds = Long.parseLong(directive.substring("max-age=".length()));
+                    } catch (NumberFormatException e) {
+                        maxAgeSeconds = 0;
+                    }
+                }
+            }
+        }
+
+        long expiresAtMillis;
+        if (maxAgeSeconds >= 0) {
+            expiresAtMillis = nowMillis + TimeUnit.SECONDS.toMillis(maxAgeSeconds);
+        } else {
+            /* getExpiration returns 0 when there is no (valid) Expires header */
+            expiresAtMillis = urlConnection.getExpiration();
+        }
+
+        String etag = urlConnection.getHeaderField("ETag");
+        String lastModified = urlConnection.getHeaderField("Last-Modified");
+        if (previous != null) {
+            if (etag == null) etag = previous.etag;
+            if (lastModified == null) lastModified = previous.lastModified;
+        }
+
+        return new Entry(etag, lastModified, expiresAtMillis);
+    }
+
+    /**
+     * @param context Used to find the cache directory
+     * @param url     The forecast URL
+     * @return The stored entry for url, or null if there is none
+     */
+    static Entry get(Context context, URL url) {
+        File file = getFile(context, url);
+        if (!file.exists()) {
+            return null;
+        }
+
+        Properties properties = new Properties();
+        InputStream in = null;
+        try {
+            in = new FileInputStream(file);
+            properties.load(in);
+        } catch (IOException e) {
+            Log.w(TAG, "Unable to read cache entry for " + url, e);
+            return null;
+        } finally {
+            closeQuietly(in);
+        }
+
+        /* Two URLs may share a file name. Only use the entry if it is really for this URL. */
+        if (!url.toString().equals(properties.getProperty(KEY_URL))) {
+            return null;
+        }
+
+        long expiresAtMillis;
+        try {
+            expiresAtMillis = Long.parseLong(properties.getProperty(KEY_EXPIRES_AT, "0"));
+        } catch (NumberFormatException e) {
+            expiresAtMillis = 0;
+        }
+
+        return new Entry(properties.getProperty(KEY_ETAG),
+                properties.getProperty(KEY_LAST_MODIFIED),
+                expiresAtMillis);
+    }
+
+    /**
+     * Stores an entry for url, replacing any entry already stored for it. Passing null removes
+     * the stored entry.
+     *
+     * @param context Used to find the cache directory
+     * @param url     The forecast URL
+     * @param entry   The entry to store, or null
+     */
+    static void put(Context context, URL url, Entry entry) {
+        File file = getFile(context, url);
+        if (entry == null) {
+            file.delete();
+            return;
+        }
+
+        Properties properties = new Properties();
+        properties.setProperty(KEY_URL, url.toString());
+        if (entry.etag != null) properties.setProperty(KEY_ETAG, entry.etag);
+        if (entry.lastModified != null) {
+            properties.setProperty(KEY_LAST_MODIFIED, entry.lastModified);
+        }
+        properties.setProperty(KEY_EXPIRES_AT, Long.toString(entry.expiresAtMillis));
+
+        /*
+         * Write to a temporary file first and then rename it, so that a crash half way through
+         * can't leave a corrupt entry behind.
+         */
+        File directory = file.getParentFile();
+        if (!directory.exists() && !directory.mkdirs()) {
+            Log.w(TAG, "Unable to create " + directory);
+            return;
+        }
+
+        File tempFile = new File(directory, file.getName() + ".tmp");
+        OutputStream out = null;
+        try {
+            out = new FileOutputStream(tempFile);
+            properties.store(out, null);
+            out.close();
+            out = null;
+            if (!tempFile.renameTo(file)) {
+                Log.w(TAG, "Unable to store cache entry for " + url);
+                tempFile.delete();
+            }
+        } catch (IOException e) {
+            Log.w(TAG, "Unable to store cache entry for " + url, e);
+            tempFile.delete();
+        } finally {
+            closeQuietly(out);
+        }
+    }
+
+    /**
+     * Removes every stored entry, so that the next sync downloads the full forecast.
+     *
+     * @param context Used to find the cache directory
+     */
+    public static void clear(Context context) {
+        File[] files = new File(context.getCacheDir(), CACHE_DIRECTORY).listFiles();
+        if (files == null) {
+            return;
+        }
+        for (File file : files) {
+            file.delete();
+        }
+    }
+
+    private static File getFile(Context context, URL url) {
+        String fileName = Integer.toHexString(url.toString().hashCode());
+        return new File(new File(context.getCacheDir(), CACHE_DIRECTORY), fileName);
+    }
+
+    private static void closeQuietly(Closeable closeable) {
+        if (closeable == null) return;
+        try {
+            closeable.close();
+        } catch (IOException ignored) {
+        }
+    }
+}
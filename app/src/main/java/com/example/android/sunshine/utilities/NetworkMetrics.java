@@ -0,0 +1,310 @@
+/*
+ * Copyright (C) 2016 The Android Open Source Project
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *      http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package com.example.android.sunshine.utilities;
+
+import android.util.Log;
+
+import java.io.FilterInputStream;
+import java.io.IOException;
+import java.io.InputStream;
+import java.util.concurrent.TimeUnit;
+
+/**
+ * Keeps track of how much Sunshine reads from the weather server, and how long reading takes.
+ * <p>
+ * For each request, the time spent in each phase before the body is read is also kept: looking
+ * up the host, connecting, the TLS handshake and waiting for the first byte of the response.
+ * <p>
+ * Two byte counts are kept for each response. The transferred bytes are the bytes that actually
+ * came over the network, compressed or not. The bytes read are the bytes of the response after
+ * decompression, which is what the parser sees. For uncompressed responses, the two are equal.
+ * <p>
+ * The time recorded is only the time spent inside read calls, waiting on the network and
+ * decompressing. When the response is parsed while it is being read, the time spent parsing is
+ * not included.
+ */
+public final class NetworkMetrics {
+
+    private static final String TAG = NetworkMetrics.class.getSimpleName();
+
+    private static long sLastBytesRead;
+    private static long sLastTransferredBytes;
+    private static long sLastReadNanos;
+    private static long sTotalBytesRead;
+    private static long sTotalTransferredBytes;
+    private static int sResponseCount;
+
+    private static long sLastDnsNanos;
+    private static long sLastConnectNanos;
+    private static long sLastTlsHandshakeNanos;
+    private static long sLastFirstByteNanos;
+
+    private NetworkMetrics() {
+    }
+
+    /**
+     * Wraps the body of an uncompressed response so that the bytes read from it, and the time
+     * spent reading them, are recorded once the stream is closed.
+     *
+     * @param in The body of the response
+     * @return A stream that reads from in and records what was read when it is closed
+     */
+    static InputStream meter(InputStream in) {
+        return new MeteredInputStream(in, null);
+    }
+
+    /**
+     * Wraps the body of a response as it comes off the network, before decompression, so that
+     * the transferred bytes can be counted. Pass the result to
+     * {@link #meter(InputStream, CountingInputStream)} once it has been wrapped in a
+     * decompressing stream.
+     *
+     * @param in The body of the response as sent by the server
+     * @return A stream that counts the bytes read through it
+     */
+    static CountingInputStream countTransferredBytes(InputStream in) {
+        return new CountingInputStream(in);
+    }
+
+    /**
+     * Wraps the decompressed body of a response so that both the bytes read from it and the
+     * bytes transferred over the network are recorded once the stream is closed.
+     *
+     * @param decoded     The decompressed body of the response
+     * @param transferred The stream the compressed body is read from, see
+     *                    {@link #countTransferredBytes(InputStream)}
+     * @return A stream that reads from decoded and records what was read when it is closed
+     */
+    static InputStream meter(InputStream decoded, CountingInputStream transferred) {
+        return new MeteredInputStream(decoded, transferred);
+    }
+
+    static synchronized void recordResponse(long bytesRead, long transferredBytes,
+                                            long readNanos) {
+        sLastBytesRead = bytesRead;
+        sLastTransferredBytes = transferredBytes;
+        sLastReadNanos = readNanos;
+        sTotalBytesRead += bytesRead;
+        sTotalTransferredBytes += transferredBytes;
+        sResponseCount++;
+
+        Log.v(TAG, "Read " + bytesRead + " bytes (" + transferredBytes + " transferred) in "
+                + TimeUnit.NANOSECONDS.toMillis(readNanos) + " ms");
+    }
+
+    static synchronized void recordConnection(long dnsNanos, long connectNanos,
+                                              long tlsHandshakeNanos, long firstByteNanos) {
+        sLastDnsNanos = dnsNanos;
+        sLastConnectNanos = connectNanos;
+        sLastTlsHandshakeNanos = tlsHandshakeNanos;
+        sLastFirstByteNanos = firstByteNanos;
+
+        Log.v(TAG, "DNS " + TimeUnit.NANOSECONDS.toMillis(dnsNanos)
+                + " ms, connect " + TimeUnit.NANOSECONDS.toMillis(connectNanos)
+                + " ms, TLS " + TimeUnit.NANOSECONDS.toMillis(tlsHandshakeNanos)
+                + " ms, first byte " + TimeUnit.NANOSECONDS.toMillis(firstByteNanos) + " ms");
+    }
+
+    /**
+     * @return The time spent looking up the host of the last request, in milliseconds
+     */
+    public static synchronized long getLastDnsMillis() {
+        return TimeUnit.NANOSECONDS.toMillis(sLastDnsNanos);
+    }
+
+    /**
+     * @return The time spent opening the TCP connection of the last request, in milliseconds.
+     * Close to 0 if a pooled connection was reused.
+     */
+    public static synchronized long getLastConnectMillis() {
+        return TimeUnit.NANOSECONDS.toMillis(sLastConnectNanos);
+    }
+
+    /**
+     * @return The time spent on the TLS handshake of the last request, in milliseconds. 0 if a
+     * pooled connection was reused or the request wasn't made over HTTPS.
+     */
+    public static synchronized long getLastTlsHandshakeMillis() {
+        return TimeUnit.NANOSECONDS.toMillis(sLastTlsHandshakeNanos);
+    }
+
+    /**
+     * @return The time between connecting and receiving the response headers of the last
+     * request, in milliseconds
+     */
+    public static synchronized long getLastFirstByteMillis() {
+        return TimeUnit.NANOSECONDS.toMillis(sLastFirstByteNanos);
+    }
+
+    /**
+     * @return The number of bytes read from the body of the last response, after decompression
+     */
+    public static synchronized long getLastBytesRead() {
+        return sLastBytesRead;
+    }
+
+    /**
+     * @return The number of bytes of the body of the last response that came over the network
+     */
+    public static synchronized long getLastTransferredBytes() {
+        return sLastTransferredBytes;
+    }
+
+    /**
+     * @return The time spent reading the body of the last response, in milliseconds
+     */
+    public static synchronized long getLastReadTimeMillis() {
+        return TimeUnit.NANOSECONDS.toMillis(sLastReadNanos);
+    }
+
+    /**
+     * @return The number of bytes read from every response since the process started
+     */
+    public static synchronized long getTotalBytesRead() {
+        return sTotalBytesRead;
+    }
+
+    /**
+     * @return The number of bytes of every response that came over the network since the
+     * process started
+     */
+    public static synchronized long getTotalTransferredBytes() {
+        return sTotalTransferredBytes;
+    }
+
+    /**
+     * @return The number of responses read since the process started
+     */
+    public static synchronized int getResponseCount() {
+        return sResponseCount;
+    }
+
+    /**
+     * Counts the bytes read through it, and nothing else.
+     */
+    static final class CountingInputStream extends FilterInputStream {
+
+        private long mBytesRead;
+
+        CountingInputStream(InputStream in) {
+            super(in);
+        }
+
+        @Override
+        public int read() throws IOException {
+            int value = super.read();
+            if (value != -1) {
+                mBytesRead++;
+            }
+            return value;
+        }
+
+        @Override
+        public int read(byte[] buffer, int offset, int count) throws IOException {
+            int read = super.read(buffer, offset, count);
+            if (read > 0) {
+                mBytesRead += read;
+            }
+            return read;
+        }
+
+        @Override
+        public long skip(long byteCount) throws IOException {
+            long skipped = super.skip(byteCount);
+            mBytesRead += skipped;
+            return skipped;
+        }
+
+        @Override
+        public boolean markSupported() {
+            return false;
+        }
+
+        long getBytesRead() {
+            return mBytesRead;
+        }
+    }
+
+    /**
+     * Counts the bytes read through it and the time spent in read calls, and records both with
+     * NetworkMetrics when closed.
+     */
+    private static final class MeteredInputStream extends FilterInputStream {
+
+        /* Counts the bytes before decompression, or null if the body isn't compressed */
+        private final CountingInputStream mTransferred;
+
+        private long mBytesRead;
+        private long mReadNanos;
+        private boolean mRecorded;
+
+        MeteredInputStream(InputStream in, CountingInputStream transferred) {
+            super(in);
+            mTransferred = transferred;
+        }
+
+        @Override
+        public int read() throws IOException {
+            long start = System.nanoTime();
+            int value = super.read();
+            mReadNanos += System.nanoTime() - start;
+            if (value != -1) {
+                mBytesRead++;
+            }
+            return value;
+        }
+
+        @Override
+        public int read(byte[] buffer, int offset, int count) throws IOException {
+            long start = System.nanoTime();
+            int read = super.read(buffer, offset, count);
+            mReadNanos += System.nanoTime() - start;
+            if (read > 0) {
+                mBytesRead += read;
+            }
+            return read;
+        }
+
+        @Override
+        public long skip(long byteCount) throws IOException {
+            long start = System.nanoTime();
+            long skipped = super.skip(byteCount);
+            mReadNanos += System.nanoTime() - start;
+            mBytesRead += skipped;
+            return skipped;
+        }
+
+        @Override
+        public boolean markSupported() {
+            /* Rereading marked bytes would count them twice */
+            return false;
+        }
+
+        @Override
+        public void close() throws IOException {
+            try {
+                super.close();
+            } finally {
+                if (!mRecorded) {
+                    mRecorded = true;
+                    recordResponse(mBytesRead,
+                            mTransferred != null ? mTransferred.getBytesRead() : mBytesRead,
+                            mReadNanos);
+                }
+            }
+        }
+    }
+}
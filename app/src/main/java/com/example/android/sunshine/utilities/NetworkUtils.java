@@ -15,18 +15,22 @@
  */
 package com.example.android.sunshine.utilities;
 
+import android.content.ContentValues;
 import android.content.Context;
 import android.net.Uri;
+import android.support.v4.os.CancellationSignal;
 import android.util.Log;
 
 import com.example.android.sunshine.data.SunshinePreferences;
 
+import org.json.JSONException;
+
+import java.io.Closeable;
 import java.io.IOException;
 import java.io.InputStream;
 import java.net.HttpURLConnection;
 import java.net.MalformedURLException;
 import java.net.URL;
-import java.util.Scanner;
 
 /**
  * These utilities will be used to communicate with the weather servers.
@@ -83,6 +87,21 @@ public final class NetworkUtils {
     /* The days parameter allows us to designate how many days of weather data we want */
     private static final String DAYS_PARAM = "cnt";
 
+    /*
+     * Size of the buffer used to read a response when the server doesn't tell us how long it is.
+     * This comfortably fits a 14 day forecast, so the buffer rarely has to grow.
+     */
+    private static final int DEFAULT_RESPONSE_BUFFER_BYTES = 8 * 1024;
+
+    /**
+     * Returned by {@link ForecastResponse#parse()} and
+     * {@link #getWeatherContentValuesFromHttpUrl(Context, URL, boolean)} when the
+     * forecast we already have is still current, either because the server told us it hasn't
+     * changed (304 Not Modified) or because the server said we could keep using it for a while.
+     * Compare against it with ==, not by its (empty) contents.
+     */
+    public static final ContentValues[] FORECAST_NOT_MODIFIED = new ContentValues[0];
+
     /**
      * Retrieves the proper URL to query for the weather data. The reason for both this method as
      * well as {@link #buildUrlWithLocationQuery(String)} is two fold.
@@ -98,14 +117,11 @@ public final class NetworkUtils {
      * @return URL to query weather service
      */
     public static URL getUrl(Context context) {
-        if (SunshinePreferences.isLocationLatLonAvailable(context)) {
-            double[] preferredCoordinates = SunshinePreferences.getLocationCoordinates(context);
-            double latitude = preferredCoordinates[0];
-            double longitude = preferredCoordinates[1];
-            return buildUrlWithLatitudeLongitude(latitude, longitude);
+        SunshinePreferences.Snapshot preferences = SunshinePreferences.getSnapshot(context);
+        if (preferences.isLocationLatLonAvailable) {
+            return buildUrlWithLatitudeLongitude(preferences.latitude, preferences.longitude);
         } else {
-            String locationQuery = SunshinePreferences.getPreferredWeatherLocation(context);
-            return buildUrlWithLocationQuery(locationQuery);
+            return buildUrlWithLocationQuery(preferences.preferredWeatherLocation);
         }
     }
 
@@ -169,22 +185,291 @@ public final class NetworkUtils {
      * @throws IOException Related to network and stream reading
      */
     public static String getResponseFromHttpUrl(URL url) throws IOException {
-        HttpURLConnection urlConnection = (HttpURLConnection) url.openConnection();
+        HttpURLConnection urlConnection = WeatherHttpClient.open(null, url);
+        InputStream in = null;
+        boolean reusable = false;
+        try {
+            WeatherHttpClient.execute(urlConnection);
+            in = WeatherHttpClient.openResponseBody(urlConnection);
+
+            /* Content-Length is the compressed length, so it's no use for compressed bodies */
+            int expectedLength = WeatherHttpClient.isCompressed(urlConnection)
+                    ? -1
+                    : urlConnection.getContentLength();
+            String response = readResponse(in, expectedLength);
+            reusable = true;
+            return response;
+        } finally {
+            WeatherHttpClient.release(urlConnection, in, reusable);
+        }
+    }
+
+    /**
+     * Fetches the forecast from the weather server and parses it as it is being downloaded,
+     * without ever holding the whole response in memory. See
+     * {@link OpenWeatherJsonUtils#getWeatherContentValuesFromStream(Context, InputStream)}.
+     * <p>
+     * This is {@link #openForecast(Context, URL, boolean, CancellationSignal)} and
+     * {@link ForecastResponse#parse()} in one go, for callers that don't need to tell the two
+     * apart or to cancel them.
+     *
+     * @param context          Used to store the location coordinates of the forecast and to
+     *                         access the cache
+     * @param url              The URL to fetch the forecast from
+     * @param hasLocalForecast Whether or not the forecast from this URL is stored locally. If it
+     *                         isn't, the full forecast is always downloaded.
+     * @return The weather for each day of the forecast, {@link #FORECAST_NOT_MODIFIED} if the
+     * stored forecast is still current, or null if the server returned an error
+     * @throws HttpStatusException If the server answered with an HTTP error status
+     * @throws IOException         Related to network and stream reading
+     * @throws JSONException       If the response is missing parts of the forecast
+     */
+    public static ContentValues[] getWeatherContentValuesFromHttpUrl(Context context, URL url,
+                                                                     boolean hasLocalForecast)
+            throws IOException, JSONException {
+        ForecastResponse response = openForecast(context, url, hasLocalForecast, null);
+        try {
+            return response.parse();
+        } finally {
+            response.close();
+        }
+    }
+
+    /**
+     * Requests the forecast from the weather server, and returns as soon as the response
+     * headers are in. The body is left for {@link ForecastResponse#parse()} to read.
+     * <p>
+     * If we already have a forecast from this URL, we use {@link ForecastHttpCache} to avoid
+     * downloading it again when it hasn't changed. If the server said the forecast could be used
+     * for a while and that time isn't up yet, no request is made at all. Otherwise, we send the
+     * ETag and Last-Modified date of the forecast we have, and the server may answer with
+     * 304 Not Modified instead of the forecast. In both cases, the response
+     * {@link ForecastResponse#isNotModified() is not modified}.
+     * <p>
+     * Cancelling the signal closes the connection, which makes whatever is waiting on the
+     * network, here or in {@link ForecastResponse#parse()}, fail with an IOException right
+     * away. It's up to the caller to check the signal to tell that apart from a network error.
+     *
+     * @param context          Used to store the location coordinates of the forecast and to
+     *                         access the cache
+     * @param url              The URL to fetch the forecast from
+     * @param hasLocalForecast Whether or not the forecast from this URL is stored locally. If it
+     *                         isn't, the full forecast is always downloaded.
+     * @param signal           Cancels the request, or null if it can't be cancelled
+     * @return The response, which must be closed
+     * @throws HttpStatusException If the server answered with an HTTP error status
+     * @throws IOException         Related to network and stream reading
+     */
+    public static ForecastResponse openForecast(Context context, URL url,
+                                                boolean hasLocalForecast,
+                                                CancellationSignal signal) throws IOException {
+
+        ForecastHttpCache.Entry cacheEntry = hasLocalForecast
+                ? ForecastHttpCache.get(context, url)
+                : null;
+
+        if (cacheEntry != null && cacheEntry.isFresh(System.currentTimeMillis())) {
+            Log.v(TAG, "Stored forecast is still fresh, not fetching " + url);
+            return new ForecastResponse(context, url, null, null);
+        }
+
+        final HttpURLConnection urlConnection = WeatherHttpClient.open(context, url);
+        if (signal != null) {
+            signal.setOnCancelListener(new CancellationSignal.OnCancelListener() {
+                @Override
+                public void onCancel() {
+                    disconnectInBackground(urlConnection);
+                }
+            });
+        }
+
+        ForecastResponse response = new ForecastResponse(context, url, urlConnection, signal);
+        boolean opened = false;
         try {
-            InputStream in = urlConnection.getInputStream();
+            if (cacheEntry != null && cacheEntry.canRevalidate()) {
+                if (cacheEntry.etag != null) {
+                    urlConnection.setRequestProperty("If-None-Match", cacheEntry.etag);
+                }
+                if (cacheEntry.lastModified != null) {
+                    urlConnection.setRequestProperty("If-Modified-Since", cacheEntry.lastModified);
+                }
+            }
 
-            Scanner scanner = new Scanner(in);
-            scanner.useDelimiter("\\A");
+            int responseCode = WeatherHttpClient.execute(urlConnection);
+            if (responseCode == HttpURLConnection.HTTP_NOT_MODIFIED && cacheEntry != null) {
+                /* The server may have changed how long the forecast can be used for */
+                ForecastHttpCache.put(context, url, ForecastHttpCache.fromResponse(
+                        urlConnection, cacheEntry, System.currentTimeMillis()));
+                Log.v(TAG, "Stored forecast has not been modified: " + url);
+                response.mNotModified = true;
+                response.mReusable = true;
+                opened = true;
+                return response;
+            }
 
-            boolean hasInput = scanner.hasNext();
-            String response = null;
-            if (hasInput) {
-                response = scanner.next();
+            if (responseCode >= HttpURLConnection.HTTP_BAD_REQUEST) {
+                throw new HttpStatusException(responseCode, url.toString());
             }
-            scanner.close();
+
+            response.mBody = WeatherHttpClient.openResponseBody(urlConnection);
+            opened = true;
             return response;
         } finally {
-            urlConnection.disconnect();
+            if (!opened) {
+                response.close();
+            }
+        }
+    }
+
+    /*
+     * Closing a connection can mean writing to it (a TLS close_notify, for one), which isn't
+     * allowed on the main thread, where cancellation usually comes from. It gets a thread of its
+     * own rather than a place in SunshineExecutors: the queues may be full of the very syncs
+     * this is trying to cancel.
+     */
+    private static void disconnectInBackground(final HttpURLConnection urlConnection) {
+        new Thread(new Runnable() {
+            @Override
+            public void run() {
+                urlConnection.disconnect();
+            }
+        }, "CancelForecastRequest").start();
+    }
+
+    /**
+     * A response to {@link #openForecast(Context, URL, boolean, CancellationSignal)}. Either the
+     * stored forecast is still current, or the body of the response is waiting to be parsed.
+     */
+    public static final class ForecastResponse implements Closeable {
+
+        private final Context mContext;
+        private final URL mUrl;
+
+        /* null if no request was made at all */
+        private final HttpURLConnection mConnection;
+        private final CancellationSignal mSignal;
+
+        private InputStream mBody;
+        private boolean mNotModified;
+        private boolean mReusable;
+
+        private ForecastResponse(Context context, URL url, HttpURLConnection connection,
+                                 CancellationSignal signal) {
+            mContext = context;
+            mUrl = url;
+            mConnection = connection;
+            mSignal = signal;
+            mNotModified = connection == null;
+        }
+
+        /**
+         * @return true if the stored forecast is still current, and there is nothing to parse
+         */
+        public boolean isNotModified() {
+            return mNotModified;
+        }
+
+        /**
+         * Parses the forecast as the body of the response comes in.
+         *
+         * @return The weather for each day of the forecast, {@link #FORECAST_NOT_MODIFIED} if
+         * the stored forecast is still current, or null if the server returned an error
+         * @throws IOException   Related to network and stream reading
+         * @throws JSONException If the response is missing parts of the forecast
+         */
+        public ContentValues[] parse() throws IOException, JSONException {
+            if (mNotModified) {
+                return FORECAST_NOT_MODIFIED;
+            }
+
+            ContentValues[] weatherValues =
+                    OpenWeatherJsonUtils.getWeatherContentValuesFromStream(mContext, mBody);
+
+            /*
+             * Only remember the validators of a forecast we were actually able to use. If the
+             * response was an error, forget about any forecast we had, so that the next sync
+             * doesn't skip a download based on it.
+             */
+            ForecastHttpCache.put(mContext, mUrl, weatherValues != null
+                    ? ForecastHttpCache.fromResponse(mConnection, null, System.currentTimeMillis())
+                    : null);
+
+            mReusable = true;
+            return weatherValues;
+        }
+
+        /**
+         * Releases the connection, back to the pool if the response was read without errors.
+         */
+        @Override
+        public void close() {
+            if (mSignal != null) {
+                mSignal.setOnCancelListener(null);
+            }
+            if (mConnection != null) {
+                WeatherHttpClient.release(mConnection, mBody,
+                        mReusable && (mSignal == null || !mSignal.isCanceled()));
+            }
+        }
+    }
+
+    /**
+     * Reads everything that is left in a stream into a String, when the length of the stream
+     * isn't known. See {@link #readResponse(InputStream, int)}.
+     *
+     * @param in The stream to read. The caller is responsible for closing it.
+     * @return The contents of the stream, null if it was empty
+     * @throws IOException Related to stream reading
+     */
+    static String readResponse(InputStream in) throws IOException {
+        return readResponse(in, -1);
+    }
+
+    /**
+     * Reads everything that is left in a stream into a String.
+     * <p>
+     * The bytes are read into a buffer from {@link ByteArrayPool}, sized to the expected length
+     * of the response when we know it, and are only decoded from UTF-8 once, at the very end.
+     * The buffer only grows (by doubling) if the response turns out to be longer than expected.
+     *
+     * @param in             The stream to read. The caller is responsible for closing it.
+     * @param expectedLength The length of the response, usually from the Content-Length header,
+     *                       or -1 if it isn't known
+     * @return The contents of the stream, null if it was empty
+     * @throws IOException Related to stream reading
+     */
+    static String readResponse(InputStream in, int expectedLength) throws IOException {
+        int initialLength = expectedLength > 0 ? expectedLength : DEFAULT_RESPONSE_BUFFER_BYTES;
+        byte[] buffer = ByteArrayPool.getBuf(initialLength);
+        int length = 0;
+        try {
+            while (true) {
+                if (length == buffer.length) {
+                    /*
+                     * The buffer is full, which is exactly what should happen when the expected
+                     * length was right. Only grow the buffer if there's actually more to read.
+                     */
+                    int nextByte = in.read();
+                    if (nextByte == -1) break;
+
+                    byte[] largerBuffer = ByteArrayPool.getBuf(buffer.length * 2);
+                    System.arraycopy(buffer, 0, largerBuffer, 0, length);
+                    ByteArrayPool.returnBuf(buffer);
+                    buffer = largerBuffer;
+                    buffer[length++] = (byte) nextByte;
+                }
+
+                int read = in.read(buffer, length, buffer.length - length);
+                if (read == -1) break;
+                length += read;
+            }
+
+            if (length == 0) {
+                return null;
+            }
+            return new String(buffer, 0, length, "UTF-8");
+        } finally {
+            ByteArrayPool.returnBuf(buffer);
         }
     }
 }
\ No newline at end of file
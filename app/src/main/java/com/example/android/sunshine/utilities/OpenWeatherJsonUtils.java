@@ -15,8 +15,12 @@
  */
 package com.example.android.sunshine.utilities;
 
+import android.annotation.TargetApi;
 import android.content.ContentValues;
 import android.content.Context;
+import android.os.Build;
+import android.util.JsonReader;
+import android.util.JsonToken;
 
 import com.example.android.sunshine.data.SunshinePreferences;
 import com.example.android.sunshine.data.WeatherContract;
@@ -25,7 +29,12 @@ import org.json.JSONArray;
 import org.json.JSONException;
 import org.json.JSONObject;
 
+import java.io.IOException;
+import java.io.InputStream;
+import java.io.InputStreamReader;
 import java.net.HttpURLConnection;
+import java.util.ArrayList;
+import java.util.List;
 
 /**
  * Utility functions to handle OpenWeatherMap JSON data.
@@ -60,6 +69,261 @@ public final class OpenWeatherJsonUtils {
 
     private static final String OWM_MESSAGE_CODE = "cod";
 
+    /*
+     * Every field the streaming parser needs for one day, as bits. A day is only complete once
+     * all of them have been seen, in whatever order the server sent them.
+     */
+    private static final int DAY_PRESSURE = 1;
+    private static final int DAY_HUMIDITY = 1 << 1;
+    private static final int DAY_WIND_SPEED = 1 << 2;
+    private static final int DAY_WIND_DIRECTION = 1 << 3;
+    private static final int DAY_MAX = 1 << 4;
+    private static final int DAY_MIN = 1 << 5;
+    private static final int DAY_WEATHER_ID = 1 << 6;
+    private static final int DAY_COMPLETE = (1 << 7) - 1;
+
+    /**
+     * Parses the forecast straight off a stream, such as the body of the HTTP response, rather
+     * than from a String holding the entire response.
+     * <p>
+     * From Honeycomb on, this uses a pull parser (JsonReader) that only ever holds one day of the
+     * forecast in memory besides the parsed rows. Neither the response body as a String nor a
+     * JSONObject tree of it is built. Gingerbread has no JsonReader, so there we read the body
+     * into a String and hand it to {@link #getWeatherContentValuesFromJson(Context, String)}.
+     * <p>
+     * Either way, the results are the same as those of getWeatherContentValuesFromJson,
+     * including the location coordinates that are stored in SunshinePreferences.
+     *
+     * @param context     Used to store the location coordinates
+     * @param forecastJson Stream of the JSON response from the server, encoded as UTF-8. The
+     *                    caller is responsible for closing it.
+     * @return The weather for each day of the forecast, or null if the server returned an error
+     * @throws IOException   If the stream can't be read, or doesn't contain valid JSON
+     * @throws JSONException If the JSON is missing parts of the forecast
+     */
+    public static ContentValues[] getWeatherContentValuesFromStream(Context context,
+                                                                    InputStream forecastJson)
+            throws IOException, JSONException {
+
+        if (Build.VERSION.SDK_INT < Build.VERSION_CODES.HONEYCOMB) {
+            String forecastJsonStr = NetworkUtils.readResponse(forecastJson);
+            if (forecastJsonStr == null) {
+                throw new JSONException("Empty forecast response");
+            }
+            return getWeatherContentValuesFromJson(context, forecastJsonStr);
+        }
+
+        return streamWeatherContentValues(context, forecastJson);
+    }
+
+    /**
+     * The JsonReader half of {@link #getWeatherContentValuesFromStream(Context, InputStream)}.
+     * The top level fields of the response may come in any order, so whether or not the response
+     * is an error is only decided once the whole object has been read.
+     */
+    @TargetApi(11)
+    private static ContentValues[] streamWeatherContentValues(Context context,
+                                                              InputStream forecastJson)
+            throws IOException, JSONException {
+
+        JsonReader reader = new JsonReader(new InputStreamReader(forecastJson, "UTF-8"));
+
+        int messageCode = HttpURLConnection.HTTP_OK;
+        double[] cityCoordinates = null;
+        List<ContentValues> weatherValues = null;
+
+        reader.beginObject();
+        while (reader.hasNext()) {
+            String name = reader.nextName();
+            if (OWM_MESSAGE_CODE.equals(name)) {
+                messageCode = reader.nextInt();
+            } else if (OWM_CITY.equals(name)) {
+                cityCoordinates = readCityCoordinates(reader);
+            } else if (OWM_LIST.equals(name)) {
+                weatherValues = readForecastDays(reader);
+            } else {
+                reader.skipValue();
+            }
+        }
+        reader.endObject();
+
+        /* Is there an error? Just like getWeatherContentValuesFromJson, we've got no forecast */
+        if (messageCode != HttpURLConnection.HTTP_OK) {
+            return null;
+        }
+
+        if (weatherValues == null) {
+            throw new JSONException("No value for " + OWM_LIST);
+        }
+        if (cityCoordinates == null) {
+            throw new JSONException("No value for " + OWM_COORD);
+        }
+
+        SunshinePreferences.setLocationDetails(context, cityCoordinates[0], cityCoordinates[1]);
+
+        return weatherValues.toArray(new ContentValues[weatherValues.size()]);
+    }
+
+    /**
+     * Reads the "city" object and returns the latitude and longitude from its "coord" object.
+     *
+     * @return The latitude and longitude of the city, or null if there were none
+     */
+    @TargetApi(11)
+    private static double[] readCityCoordinates(JsonReader reader) throws IOException {
+        double[] coordinates = null;
+
+        reader.beginObject();
+        while (reader.hasNext()) {
+            if (OWM_COORD.equals(reader.nextName())) {
+                double latitude = Double.NaN;
+                double longitude = Double.NaN;
+
+                reader.beginObject();
+                while (reader.hasNext()) {
+                    String name = reader.nextName();
+                    if (OWM_LATITUDE.equals(name)) {
+                        latitude = reader.nextDouble();
+                    } else if (OWM_LONGITUDE.equals(name)) {
+                        longitude = reader.nextDouble();
+                    } else {
+                        reader.skipValue();
+                    }
+                }
+                reader.endObject();
+
+                if (!Double.isNaN(latitude) && !Double.isNaN(longitude)) {
+                    coordinates = new double[]{latitude, longitude};
+                }
+            } else {
+                reader.skipValue();
+            }
+        }
+        reader.endObject();
+
+        return coordinates;
+    }
+
+    /**
+     * Reads the "list" array, turning each day into a row as soon as that day has been read.
+     * Just like getWeatherContentValuesFromJson, the dates in the JSON are ignored and the days
+     * are assumed to start today and to be in order.
+     */
+    @TargetApi(11)
+    private static List<ContentValues> readForecastDays(JsonReader reader)
+            throws IOException, JSONException {
+
+        List<ContentValues> weatherValues = new ArrayList<>();
+        long normalizedUtcStartDay = SunshineDateUtils.getNormalizedUtcDateForToday();
+
+        reader.beginArray();
+        while (reader.hasNext()) {
+            long dateTimeMillis =
+                    normalizedUtcStartDay + SunshineDateUtils.DAY_IN_MILLIS * weatherValues.size();
+            weatherValues.add(readForecastDay(reader, dateTimeMillis));
+        }
+        reader.endArray();
+
+        return weatherValues;
+    }
+
+    /**
+     * Reads a single day of the forecast. The fields of the day, and those of its "temp" object,
+     * may come in any order.
+     *
+     * @param dateTimeMillis The normalized UTC date of the day
+     * @return The row for the day
+     * @throws JSONException If any part of the day is missing
+     */
+    @TargetApi(11)
+    private static ContentValues readForecastDay(JsonReader reader, long dateTimeMillis)
+            throws IOException, JSONException {
+
+        double pressure = 0;
+        int humidity = 0;
+        double windSpeed = 0;
+        double windDirection = 0;
+
+        double high = 0;
+        double low = 0;
+
+        int weatherId = 0;
+
+        int fieldsRead = 0;
+
+        reader.beginObject();
+        while (reader.hasNext()) {
+            String name = reader.nextName();
+            if (OWM_PRESSURE.equals(name)) {
+                pressure = reader.nextDouble();
+                fieldsRead |= DAY_PRESSURE;
+            } else if (OWM_HUMIDITY.equals(name)) {
+                /* JSONObject#getInt truncates fractions, so we do the same */
+                humidity = (int) reader.nextDouble();
+                fieldsRead |= DAY_HUMIDITY;
+            } else if (OWM_WINDSPEED.equals(name)) {
+                windSpeed = reader.nextDouble();
+                fieldsRead |= DAY_WIND_SPEED;
+            } else if (OWM_WIND_DIRECTION.equals(name)) {
+                windDirection = reader.nextDouble();
+                fieldsRead |= DAY_WIND_DIRECTION;
+            } else if (OWM_TEMPERATURE.equals(name)) {
+                reader.beginObject();
+                while (reader.hasNext()) {
+                    String temperatureName = reader.nextName();
+                    if (OWM_MAX.equals(temperatureName)) {
+                        high = reader.nextDouble();
+                        fieldsRead |= DAY_MAX;
+                    } else if (OWM_MIN.equals(temperatureName)) {
+                        low = reader.nextDouble();
+                        fieldsRead |= DAY_MIN;
+                    } else {
+                        reader.skipValue();
+                    }
+                }
+                reader.endObject();
+            } else if (OWM_WEATHER.equals(name)) {
+                /* Only the first element of the "weather" array is used */
+                reader.beginArray();
+                if (reader.hasNext() && reader.peek() == JsonToken.BEGIN_OBJECT) {
+                    reader.beginObject();
+                    while (reader.hasNext()) {
+                        if (OWM_WEATHER_ID.equals(reader.nextName())) {
+                            weatherId = (int) reader.nextDouble();
+                            fieldsRead |= DAY_WEATHER_ID;
+                        } else {
+                            reader.skipValue();
+                        }
+                    }
+                    reader.endObject();
+                }
+                while (reader.hasNext()) {
+                    reader.skipValue();
+                }
+                reader.endArray();
+            } else {
+                reader.skipValue();
+            }
+        }
+        reader.endObject();
+
+        if (fieldsRead != DAY_COMPLETE) {
+            throw new JSONException("Incomplete forecast for " + dateTimeMillis);
+        }
+
+        ContentValues weatherValues = new ContentValues();
+        weatherValues.put(WeatherContract.WeatherEntry.COLUMN_DATE, dateTimeMillis);
+        weatherValues.put(WeatherContract.WeatherEntry.COLUMN_HUMIDITY, humidity);
+        weatherValues.put(WeatherContract.WeatherEntry.COLUMN_PRESSURE, pressure);
+        weatherValues.put(WeatherContract.WeatherEntry.COLUMN_WIND_SPEED, windSpeed);
+        weatherValues.put(WeatherContract.WeatherEntry.COLUMN_DEGREES, windDirection);
+        weatherValues.put(WeatherContract.WeatherEntry.COLUMN_MAX_TEMP, high);
+        weatherValues.put(WeatherContract.WeatherEntry.COLUMN_MIN_TEMP, low);
+        weatherValues.put(WeatherContract.WeatherEntry.COLUMN_WEATHER_ID, weatherId);
+
+        return weatherValues;
+    }
+
     /**
      * This method parses JSON from a web response and returns an array of Strings
      * describing the weather over various days from the forecast.
@@ -0,0 +1,417 @@
+/*
+ * Copyright (C) 2016 The Android Open Source Project
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *      http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package com.example.android.sunshine.utilities;
+
+import android.os.Process;
+import android.util.Log;
+
+import java.util.concurrent.Callable;
+import java.util.concurrent.CancellationException;
+import java.util.concurrent.ExecutionException;
+import java.util.concurrent.Future;
+import java.util.concurrent.FutureTask;
+import java.util.concurrent.PriorityBlockingQueue;
+import java.util.concurrent.RejectedExecutionException;
+import java.util.concurrent.RejectedExecutionHandler;
+import java.util.concurrent.ThreadFactory;
+import java.util.concurrent.ThreadPoolExecutor;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicInteger;
+import java.util.concurrent.atomic.AtomicLong;
+
+/**
+ * The threads all of Sunshine's background work runs on.
+ * <p>
+ * Work is sorted into a few queues, each with its own threads, so that one kind of work can't
+ * hold up another: a sync waiting on a slow weather server doesn't keep the query that decides
+ * whether to sync from running. Every queue is bounded, both in threads and in the work that
+ * may wait for them, and runs the work with the highest priority first. Work of the same
+ * priority runs in the order it was handed in.
+ * <p>
+ * For each queue, how much work is waiting and how long work waits before it runs, and then
+ * runs, are kept track of. Work that throws is logged and counted, even when nothing ever asks
+ * its Future for the result.
+ */
+public final class SunshineExecutors {
+
+    private static final String TAG = SunshineExecutors.class.getSimpleName();
+
+    /*
+     * Syncing the weather. Two threads, so that a sync of a newly picked location can start,
+     * and cancel the sync of the old one, while that one is still running. See SingleFlight.
+     * A job that wants the sync that is already running joins it without taking a thread, see
+     * SunshineSyncTask#joinRunningSync, so the second thread stays free for the new location.
+     */
+    public static final int QUEUE_SYNC = 0;
+    /* Short reads and writes of the database and the preferences */
+    public static final int QUEUE_DB = 1;
+    /* Showing notifications, one at a time so that the user never gets two for one forecast */
+    public static final int QUEUE_NOTIFICATION = 2;
+    /* Talking to the watch through Google Play services, one connection at a time */
+    public static final int QUEUE_WEAR = 3;
+    /*
+     * Maintenance of the database, which reads and deletes whole tables and so may take a while.
+     * It has a thread of its own, so that it never holds up the short work on QUEUE_DB.
+     */
+    public static final int QUEUE_MAINTENANCE = 4;
+
+    /* The user is waiting for the result, like the first sync after installing Sunshine */
+    public static final int PRIORITY_IMMEDIATE = 0;
+    /* Work that is expected to be done soon, like a periodic sync */
+    public static final int PRIORITY_DEFAULT = 1;
+    /* Work that may as well wait, like an opportunistic sync */
+    public static final int PRIORITY_BACKGROUND = 2;
+
+    private static final BackgroundQueue[] sQueues = {
+            new BackgroundQueue("sync", 2, 8),
+            new BackgroundQueue("db", 1, 16),
+            new BackgroundQueue("notification", 1, 4),
+            new BackgroundQueue("wear", 1, 4),
+            new BackgroundQueue("maintenance", 1, 2),
+    };
+
+    private SunshineExecutors() {
+    }
+
+    /**
+     * Runs task on one of queue's threads, once the work that was handed in before it at the
+     * same or a higher priority has started.
+     *
+     * @param queue    One of the QUEUE constants
+     * @param priority One of the PRIORITY constants
+     * @param task     The work to do
+     * @return false if the queue is full, in which case task will never run
+     */
+    public static boolean execute(int queue, int priority, Runnable task) {
+        try {
+            sQueues[queue].submit(priority, task, null);
+            return true;
+        } catch (RejectedExecutionException e) {
+            return false;
+        }
+    }
+
+    /**
+     * Same as {@link #execute(int, int, Runnable)}, for work that has a result.
+     *
+     * @param queue    One of the QUEUE constants
+     * @param priority One of the PRIORITY constants
+     * @param task     The work to do
+     * @return The result of task, once it has run
+     * @throws RejectedExecutionException If the queue is full
+     */
+    public static <T> Future<T> submit(int queue, int priority, Callable<T> task) {
+        return sQueues[queue].submit(priority, task);
+    }
+
+    /**
+     * @param queue One of the QUEUE constants
+     * @return The queue, for its metrics
+     */
+    public static BackgroundQueue getQueue(int queue) {
+        return sQueues[queue];
+    }
+
+    /**
+     * A bounded pool of threads that takes work from a priority queue, and keeps track of how
+     * the work waits and runs.
+     */
+    public static final class BackgroundQueue {
+
+        private final String mName;
+        private final int mCapacity;
+        private final ThreadPoolExecutor mExecutor;
+
+        /* Hands out the order in which work was submitted, to keep equal priorities in order */
+        private final AtomicLong mNextSequence = new AtomicLong();
+
+        private final AtomicInteger mMaxDepth = new AtomicInteger();
+        private final AtomicInteger mSubmittedCount = new AtomicInteger();
+        private final AtomicInteger mRejectedCount = new AtomicInteger();
+        private final AtomicInteger mCompletedCount = new AtomicInteger();
+        private final AtomicInteger mFailedCount = new AtomicInteger();
+        private final AtomicLong mTotalWaitNanos = new AtomicLong();
+        private final AtomicLong mTotalRunNanos = new AtomicLong();
+        private final AtomicLong mLastWaitNanos = new AtomicLong();
+
+        /**
+         * @param name     Used to name the threads
+         * @param threads  How many tasks may run at the same time
+         * @param capacity How many tasks may wait for a thread
+         */
+        BackgroundQueue(final String name, int threads, int capacity) {
+            mName = name;
+            mCapacity = capacity;
+
+            ThreadFactory threadFactory = new ThreadFactory() {
+                private final AtomicInteger mThreadCount = new AtomicInteger();
+
+                @Override
+                public Thread newThread(final Runnable runnable) {
+                    return new Thread(new Runnable() {
+                        @Override
+                        public void run() {
+                            /* Stay out of the way of the UI thread */
+                            Process.setThreadPriority(Process.THREAD_PRIORITY_BACKGROUND);
+                            runnable.run();
+                        }
+                    }, "sunshine-" + name + "-" + mThreadCount.incrementAndGet());
+                }
+            };
+
+            RejectedExecutionHandler rejectionHandler = new RejectedExecutionHandler() {
+                @Override
+                public void rejectedExecution(Runnable runnable, ThreadPoolExecutor executor) {
+                    mRejectedCount.incrementAndGet();
+                    Log.w(TAG, "The " + mName + " queue is full, dropping work");
+                    throw new RejectedExecutionException("The " + mName + " queue is full");
+                }
+            };
+
+            mExecutor = new ThreadPoolExecutor(threads, threads, 0, TimeUnit.MILLISECONDS,
+                    new BoundedPriorityQueue(capacity), threadFactory, rejectionHandler) {
+                @Override
+                protected void beforeExecute(Thread thread, Runnable runnable) {
+                    ((PrioritizedTask<?>) runnable).onStart();
+                }
+
+                @Override
+                protected void afterExecute(Runnable runnable, Throwable throwable) {
+                    PrioritizedTask<?> task = (PrioritizedTask<?>) runnable;
+                    task.onFinish();
+
+                    /* A FutureTask keeps what its work threw, so throwable is always null here */
+                    Throwable failure = task.getFailure();
+                    if (failure != null) {
+                        mFailedCount.incrementAndGet();
+                        Log.e(TAG, "Work on the " + mName + " queue failed", failure);
+                    }
+                }
+            };
+        }
+
+        <T> Future<T> submit(int priority, Callable<T> task) {
+            PrioritizedTask<T> prioritizedTask = new PrioritizedTask<>(task, priority);
+            enqueue(prioritizedTask);
+            return prioritizedTask;
+        }
+
+        <T> Future<T> submit(int priority, Runnable task, T result) {
+            PrioritizedTask<T> prioritizedTask = new PrioritizedTask<>(task, result, priority);
+            enqueue(prioritizedTask);
+            return prioritizedTask;
+        }
+
+        private void enqueue(PrioritizedTask<?> task) {
+            mExecutor.execute(task);
+            mSubmittedCount.incrementAndGet();
+
+            int depth = mExecutor.getQueue().size();
+            int maxDepth;
+            do {
+                maxDepth = mMaxDepth.get();
+            } while (depth > maxDepth && !mMaxDepth.compareAndSet(maxDepth, depth));
+        }
+
+        /**
+         * @return How much work is waiting for a thread right now
+         */
+        public int getDepth() {
+            return mExecutor.getQueue().size();
+        }
+
+        /**
+         * @return The most work that has been waiting for a thread at the same time
+         */
+        public int getMaxDepth() {
+            return mMaxDepth.get();
+        }
+
+        /**
+         * @return How much work may wait for a thread before more work is turned away
+         */
+        public int getCapacity() {
+            return mCapacity;
+        }
+
+        /**
+         * @return The number of tasks that were accepted
+         */
+        public int getSubmittedCount() {
+            return mSubmittedCount.get();
+        }
+
+        /**
+         * @return The number of tasks that were turned away because the queue was full
+         */
+        public int getRejectedCount() {
+            return mRejectedCount.get();
+        }
+
+        /**
+         * @return The number of tasks that have run to the end, or thrown
+         */
+        public int getCompletedCount() {
+            return mCompletedCount.get();
+        }
+
+        /**
+         * @return The number of tasks that threw, out of the completed ones
+         */
+        public int getFailedCount() {
+            return mFailedCount.get();
+        }
+
+        /**
+         * @return How long the last task that started waited for a thread, in milliseconds
+         */
+        public long getLastWaitMillis() {
+            return TimeUnit.NANOSECONDS.toMillis(mLastWaitNanos.get());
+        }
+
+        /**
+         * @return How long completed tasks waited for a thread on average, in milliseconds
+         */
+        public long getAverageWaitMillis() {
+            int completed = mCompletedCount.get();
+            return completed == 0 ? 0
+                    : TimeUnit.NANOSECONDS.toMillis(mTotalWaitNanos.get() / completed);
+        }
+
+        /**
+         * @return How long completed tasks ran on average, in milliseconds
+         */
+        public long getAverageRunMillis() {
+            int completed = mCompletedCount.get();
+            return completed == 0 ? 0
+                    : TimeUnit.NANOSECONDS.toMillis(mTotalRunNanos.get() / completed);
+        }
+
+        /**
+         * Stops taking work, and lets the work that was already handed in finish. Only for
+         * queues made by tests.
+         */
+        void shutdown() {
+            mExecutor.shutdown();
+        }
+
+        @Override
+        public String toString() {
+            return mName + ": " + getDepth() + " waiting (max " + getMaxDepth() + "), "
+                    + getCompletedCount() + " completed, " + getFailedCount() + " failed, "
+                    + getRejectedCount() + " rejected, "
+                    + "waited " + getAverageWaitMillis() + " ms and ran "
+                    + getAverageRunMillis() + " ms on average";
+        }
+
+        /**
+         * A task that knows its priority, and when it was handed in, started and finished.
+         */
+        private final class PrioritizedTask<T> extends FutureTask<T>
+                implements Comparable<PrioritizedTask<?>> {
+
+            private final int mPriority;
+            private final long mSequence;
+            private final long mEnqueuedNanos = System.nanoTime();
+            private long mStartedNanos;
+
+            PrioritizedTask(Callable<T> callable, int priority) {
+                super(callable);
+                mPriority = priority;
+                mSequence = mNextSequence.getAndIncrement();
+            }
+
+            PrioritizedTask(Runnable runnable, T result, int priority) {
+                super(runnable, result);
+                mPriority = priority;
+                mSequence = mNextSequence.getAndIncrement();
+            }
+
+            void onStart() {
+                mStartedNanos = System.nanoTime();
+                long waitNanos = mStartedNanos - mEnqueuedNanos;
+                mLastWaitNanos.set(waitNanos);
+                mTotalWaitNanos.addAndGet(waitNanos);
+            }
+
+            void onFinish() {
+                mTotalRunNanos.addAndGet(System.nanoTime() - mStartedNanos);
+                mCompletedCount.incrementAndGet();
+            }
+
+            /**
+             * Only called once the task has run, so get never waits.
+             *
+             * @return What the work threw, or null if it ran to the end or was cancelled
+             */
+            Throwable getFailure() {
+                if (!isDone() || isCancelled()) {
+                    return null;
+                }
+                try {
+                    get();
+                    return null;
+                } catch (ExecutionException e) {
+                    return e.getCause();
+                } catch (CancellationException e) {
+                    return null;
+                } catch (InterruptedException e) {
+                    Thread.currentThread().interrupt();
+                    return null;
+                }
+            }
+
+            @Override
+            public int compareTo(PrioritizedTask<?> other) {
+                if (mPriority != other.mPriority) {
+                    return mPriority < other.mPriority ? -1 : 1;
+                }
+                return mSequence < other.mSequence ? -1 : (mSequence == other.mSequence ? 0 : 1);
+            }
+        }
+    }
+
+    /**
+     * A PriorityBlockingQueue that turns work away once it holds capacity tasks. The
+     * ThreadPoolExecutor only ever adds work with offer, so that is the only way in to guard.
+     */
+    private static final class BoundedPriorityQueue extends PriorityBlockingQueue<Runnable> {
+
+        private final int mCapacity;
+
+        BoundedPriorityQueue(int capacity) {
+            super(capacity);
+            mCapacity = capacity;
+        }
+
+        /*
+         * Synchronized so that two tasks can't both see room for one. Taking work out only
+         * makes more room, so it doesn't need to be.
+         */
+        @Override
+        public synchronized boolean offer(Runnable runnable) {
+            if (size() >= mCapacity) {
+                return false;
+            }
+            return super.offer(runnable);
+        }
+
+        @Override
+        public int remainingCapacity() {
+            return Math.max(0, mCapacity - size());
+        }
+    }
+}
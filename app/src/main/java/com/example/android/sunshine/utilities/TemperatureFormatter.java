@@ -0,0 +1,150 @@
+/*
+ * Copyright (C) 2016 The Android Open Source Project
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *      http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package com.example.android.sunshine.utilities;
+
+import android.content.Context;
+
+import com.example.android.sunshine.R;
+import com.example.android.sunshine.data.SunshinePreferences;
+
+import java.text.DecimalFormatSymbols;
+import java.util.Locale;
+
+/**
+ * Formats temperatures the way R.string.format_temperature does, in the user's preferred units,
+ * without formatting anything each time.
+ * <p>
+ * The units are read from SunshinePreferences' snapshot every time, which costs no more than
+ * reading a field and is always up to date, so there's nothing to invalidate when they change.
+ * Temperatures are shown in whole degrees, so there are only a few hundred different strings to
+ * show. Each one is built once, into a reused buffer, and the same String is returned every time
+ * after that. The strings are built again if the default locale changes.
+ */
+public final class TemperatureFormatter {
+
+    /* Strings are kept for whole degrees from -MAX_CACHED_DEGREES to MAX_CACHED_DEGREES */
+    private static final int MAX_CACHED_DEGREES = 200;
+
+    /* How R.string.format_temperature shows the temperature */
+    private static final String PLACEHOLDER = "%1.0f";
+
+    /* The locale the strings below were built for */
+    private static Locale sLocale;
+
+    /* R.string.format_temperature, and what comes before and after the placeholder in it */
+    private static String sFormat;
+    private static String sPrefix;
+    private static String sSuffix;
+
+    private static char sZeroDigit;
+    private static char sMinusSign;
+
+    private static final String[] sStrings = new String[2 * MAX_CACHED_DEGREES + 1];
+    private static final StringBuilder sBuffer = new StringBuilder();
+
+    private TemperatureFormatter() {
+    }
+
+    /**
+     * Formats a temperature as "21°", in the user's preferred units, rounded to whole degrees
+     * half up, as String.format rounds. A temperature that rounds to zero is shown without a
+     * minus sign.
+     *
+     * @param context              Used to read the preferred units, and
+     *                             R.string.format_temperature the first time
+     * @param temperatureInCelsius Temperature in degrees Celsius (°C)
+     * @return The formatted temperature
+     */
+    public static synchronized String format(Context context, double temperatureInCelsius) {
+        double temperature = SunshinePreferences.isMetric(context)
+                ? temperatureInCelsius
+                : SunshineWeatherUtils.celsiusToFahrenheit(temperatureInCelsius);
+
+        Locale locale = Locale.getDefault();
+        if (!locale.equals(sLocale)) {
+            setLocale(context, locale);
+        }
+
+        /* Not a temperature Sunshine expects, or a translation that shows it some other way */
+        if (sPrefix == null || !(Math.abs(temperature) < MAX_CACHED_DEGREES + 0.5)) {
+            return String.format(sFormat, temperature);
+        }
+
+        int degrees = roundHalfUp(temperature);
+        int index = degrees + MAX_CACHED_DEGREES;
+        String formatted = sStrings[index];
+        if (formatted == null) {
+            formatted = build(degrees);
+            sStrings[index] = formatted;
+        }
+        return formatted;
+    }
+
+    private static void setLocale(Context context, Locale locale) {
+        sLocale = locale;
+        sFormat = context.getString(R.string.format_temperature);
+
+        int placeholder = sFormat.indexOf(PLACEHOLDER);
+        if (placeholder == -1) {
+            sPrefix = null;
+            sSuffix = null;
+        } else {
+            sPrefix = sFormat.substring(0, placeholder);
+            sSuffix = sFormat.substring(placeholder + PLACEHOLDER.length());
+        }
+
+        DecimalFormatSymbols symbols = DecimalFormatSymbols.getInstance(locale);
+        sZeroDigit = symbols.getZeroDigit();
+        sMinusSign = symbols.getMinusSign();
+
+        for (int i = 0; i < sStrings.length; i++) {
+            sStrings[i] = null;
+        }
+    }
+
+    /**
+     * Rounds to the nearest whole degree, and away from zero when halfway, as String.format
+     * does. The fraction is worked out exactly, rather than by adding 0.5, which would round
+     * 0.49999999999999994 up.
+     */
+    private static int roundHalfUp(double temperature) {
+        double magnitude = Math.abs(temperature);
+        int whole = (int) magnitude;
+        if (magnitude - whole >= 0.5) {
+            whole++;
+        }
+        return temperature < 0 ? -whole : whole;
+    }
+
+    /* The temperature in the locale's own digits, between the prefix and the suffix */
+    private static String build(int degrees) {
+        sBuffer.setLength(0);
+        sBuffer.append(sPrefix);
+        if (degrees < 0) {
+            sBuffer.append(sMinusSign);
+        }
+
+        int digitsStart = sBuffer.length();
+        int remaining = Math.abs(degrees);
+        do {
+            sBuffer.insert(digitsStart, (char) (sZeroDigit + remaining % 10));
+            remaining /= 10;
+        } while (remaining > 0);
+
+        sBuffer.append(sSuffix);
+        return sBuffer.toString();
+    }
+}
@@ -0,0 +1,336 @@
+/*
+ * Copyright (C) 2016 The Android Open Source Project
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *      http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package com.example.android.sunshine.utilities;
+
+import android.content.Context;
+import android.net.SSLCertificateSocketFactory;
+import android.net.SSLSessionCache;
+
+import java.io.IOException;
+import java.io.InputStream;
+import java.net.HttpURLConnection;
+import java.net.InetAddress;
+import java.net.Socket;
+import java.net.URL;
+import java.util.concurrent.atomic.AtomicLong;
+import java.util.zip.GZIPInputStream;
+import java.util.zip.InflaterInputStream;
+
+import javax.net.ssl.HandshakeCompletedEvent;
+import javax.net.ssl.HandshakeCompletedListener;
+import javax.net.ssl.HttpsURLConnection;
+import javax.net.ssl.SSLSocket;
+import javax.net.ssl.SSLSocketFactory;
+
+/**
+ * Opens, times and releases the connections Sunshine makes to the weather server.
+ * <p>
+ * HttpURLConnection keeps connections alive and pools them between requests, but only if we
+ * let it: the body of the response has to be read to the end and closed, and disconnect() must
+ * not be called. Otherwise the socket is thrown away, and the next sync pays for a new TCP
+ * connection and a full TLS handshake. {@link #release(HttpURLConnection, InputStream, boolean)}
+ * only gives up on a connection when something went wrong with it.
+ * <p>
+ * All HTTPS connections share one SSLSocketFactory. Connections are only pooled between
+ * requests made with the same factory, and the factory is backed by an SSLSessionCache stored
+ * with the app, so that TLS sessions can be resumed with an abbreviated handshake even when the
+ * process has been killed between syncs, which for a sync every few hours is the usual case.
+ */
+final class WeatherHttpClient {
+
+    /* How long to wait for a connection, including the TLS handshake, before giving up */
+    static final int CONNECT_TIMEOUT_MILLIS = 15 * 1000;
+
+    /* How long to wait for the next bytes of the response before giving up */
+    static final int READ_TIMEOUT_MILLIS = 20 * 1000;
+
+    /*
+     * The encodings we can decompress. Once we set Accept-Encoding ourselves, HttpURLConnection
+     * leaves decompression to us, so this must match what openResponseBody can decode.
+     */
+    private static final String ACCEPT_ENCODING = "gzip, deflate";
+
+    /*
+     * If more than this is left of a response we're done with, it's cheaper to close the
+     * connection than to download the rest just to be able to reuse it.
+     */
+    private static final int MAX_DRAIN_BYTES = 64 * 1024;
+
+    private static SSLSocketFactory sSslSocketFactory;
+
+    private WeatherHttpClient() {
+    }
+
+    /**
+     * Opens a connection to the weather server, with timeouts set and asking for a compressed
+     * response.
+     *
+     * @param context Used to find the TLS session cache. If null, HTTPS connections use the
+     *                platform's socket factory, without the persistent session cache.
+     * @param url     The URL to connect to
+     * @return The connection, not yet connected
+     * @throws IOException Related to opening the connection
+     */
+    static HttpURLConnection open(Context context, URL url) throws IOException {
+        HttpURLConnection urlConnection = (HttpURLConnection) url.openConnection();
+        urlConnection.setConnectTimeout(CONNECT_TIMEOUT_MILLIS);
+        urlConnection.setReadTimeout(READ_TIMEOUT_MILLIS);
+        urlConnection.setRequestProperty("Accept-Encoding", ACCEPT_ENCODING);
+
+        if (context != null && urlConnection instanceof HttpsURLConnection) {
+            ((HttpsURLConnection) urlConnection).setSSLSocketFactory(getSslSocketFactory(context));
+        }
+        return urlConnection;
+    }
+
+    /**
+     * Sends the request and waits for the status line and headers of the response. How long the
+     * DNS lookup, the connection, the TLS handshake and the wait for the first byte of the
+     * response took are recorded with {@link NetworkMetrics}. When a pooled connection is
+     * reused, the connection and TLS handshake take (close to) no time at all.
+     *
+     * @param urlConnection A connection opened with {@link #open(Context, URL)}
+     * @return The HTTP status code of the response
+     * @throws IOException Related to network and stream reading
+     */
+    static int execute(HttpURLConnection urlConnection) throws IOException {
+        /*
+         * HttpURLConnection doesn't tell us how long it spent looking the host up, so we look it
+         * up ourselves first. The system caches the result, so the lookup the connection makes
+         * right after is answered from the cache.
+         */
+        long dnsStart = System.nanoTime();
+        InetAddress.getAllByName(urlConnection.getURL().getHost());
+        long dnsNanos = System.nanoTime() - dnsStart;
+
+        AtomicLong handshakeNanos = TimingSSLSocketFactory.beginConnect();
+        long connectNanos;
+        try {
+            long connectStart = System.nanoTime();
+            urlConnection.connect();
+            connectNanos = System.nanoTime() - connectStart;
+        } finally {
+            TimingSSLSocketFactory.endConnect();
+        }
+
+        long firstByteStart = System.nanoTime();
+        int responseCode = urlConnection.getResponseCode();
+        long firstByteNanos = System.nanoTime() - firstByteStart;
+
+        /* connect() covers both the TCP connection and the TLS handshake */
+        long tlsNanos = Math.min(handshakeNanos.get(), connectNanos);
+        NetworkMetrics.recordConnection(dnsNanos, connectNanos - tlsNanos, tlsNanos,
+                firstByteNanos);
+
+        return responseCode;
+    }
+
+    /**
+     * Returns the body of a response, decompressing it as it is read if the server compressed
+     * it. Both the compressed and the decompressed bytes are counted by {@link NetworkMetrics}.
+     *
+     * @param urlConnection A connection opened with {@link #open(Context, URL)}
+     * @return The decompressed body of the response. Pass it to
+     * {@link #release(HttpURLConnection, InputStream, boolean)} when done with it.
+     * @throws IOException Related to network and stream reading
+     */
+    static InputStream openResponseBody(HttpURLConnection urlConnection) throws IOException {
+        NetworkMetrics.CountingInputStream transferred =
+                NetworkMetrics.countTransferredBytes(urlConnection.getInputStream());
+
+        String contentEncoding = urlConnection.getContentEncoding();
+        InputStream decoded;
+        if (contentEncoding == null || "identity".equalsIgnoreCase(contentEncoding)) {
+            decoded = transferred;
+        } else if ("gzip".equalsIgnoreCase(contentEncoding)) {
+            decoded = new GZIPInputStream(transferred);
+        } else if ("deflate".equalsIgnoreCase(contentEncoding)) {
+            decoded = new InflaterInputStream(transferred);
+        } else {
+            transferred.close();
+            throw new IOException("Unsupported Content-Encoding: " + contentEncoding);
+        }
+
+        return NetworkMetrics.meter(decoded, transferred);
+    }
+
+    /**
+     * @param urlConnection A connection whose response headers have been received
+     * @return true if the server compressed the body of the response
+     */
+    static boolean isCompressed(HttpURLConnection urlConnection) {
+        String contentEncoding = urlConnection.getContentEncoding();
+        return contentEncoding != null && !"identity".equalsIgnoreCase(contentEncoding);
+    }
+
+    /**
+     * Finishes with a response. If everything went well, whatever is left of the body is read
+     * and the body is closed, which puts the connection back in the pool for the next request.
+     * If not, the connection is closed, as there's no telling what state it was left in.
+     *
+     * @param urlConnection The connection the response came from
+     * @param body          The body returned by {@link #openResponseBody(HttpURLConnection)},
+     *                      or null if it wasn't opened
+     * @param reusable      Whether the response was handled without errors
+     */
+    static void release(HttpURLConnection urlConnection, InputStream body, boolean reusable) {
+        if (body != null) {
+            try {
+                if (reusable) {
+                    reusable = drain(body);
+                }
+                body.close();
+            } catch (IOException e) {
+                reusable = false;
+            }
+        }
+
+        if (!reusable) {
+            urlConnection.disconnect();
+        }
+    }
+
+    /**
+     * Replaces the socket factory used for HTTPS connections. Tests use this to trust the
+     * certificate of a local server.
+     *
+     * @param factory The factory to use, or null to go back to the default one
+     */
+    static synchronized void setSslSocketFactory(SSLSocketFactory factory) {
+        sSslSocketFactory = factory != null ? new TimingSSLSocketFactory(factory) : null;
+    }
+
+    private static synchronized SSLSocketFactory getSslSocketFactory(Context context) {
+        if (sSslSocketFactory == null) {
+            SSLSessionCache sessionCache = new SSLSessionCache(context.getApplicationContext());
+            sSslSocketFactory = new TimingSSLSocketFactory(
+                    SSLCertificateSocketFactory.getDefault(CONNECT_TIMEOUT_MILLIS, sessionCache));
+        }
+        return sSslSocketFactory;
+    }
+
+    /**
+     * Reads what is left of a stream, up to {@link #MAX_DRAIN_BYTES}.
+     *
+     * @return true if the end of the stream was reached
+     */
+    private static boolean drain(InputStream in) throws IOException {
+        byte[] buffer = ByteArrayPool.getBuf(4096);
+        try {
+            int drained = 0;
+            int read;
+            while ((read = in.read(buffer, 0, buffer.length)) != -1) {
+                drained += read;
+                if (drained > MAX_DRAIN_BYTES) {
+                    return false;
+                }
+            }
+            return true;
+        } finally {
+            ByteArrayPool.returnBuf(buffer);
+        }
+    }
+
+    /**
+     * Hands out the sockets of another factory unchanged, timing the TLS handshake of those
+     * created while {@link #execute(HttpURLConnection)} is connecting on the same thread.
+     * <p>
+     * The handshake itself is started by HttpURLConnection, after it has configured the socket,
+     * so all we can do is note when the socket was created and when the handshake completed.
+     */
+    private static final class TimingSSLSocketFactory extends SSLSocketFactory {
+
+        private static final ThreadLocal<AtomicLong> sHandshakeNanos = new ThreadLocal<>();
+
+        private final SSLSocketFactory mDelegate;
+
+        TimingSSLSocketFactory(SSLSocketFactory delegate) {
+            mDelegate = delegate;
+        }
+
+        /**
+         * @return Holds the duration of the handshake, in nanoseconds, once it has completed.
+         * Stays 0 if no new TLS connection was needed.
+         */
+        static AtomicLong beginConnect() {
+            AtomicLong handshakeNanos = new AtomicLong();
+            sHandshakeNanos.set(handshakeNanos);
+            return handshakeNanos;
+        }
+
+        static void endConnect() {
+            sHandshakeNanos.remove();
+        }
+
+        @Override
+        public String[] getDefaultCipherSuites() {
+            return mDelegate.getDefaultCipherSuites();
+        }
+
+        @Override
+        public String[] getSupportedCipherSuites() {
+            return mDelegate.getSupportedCipherSuites();
+        }
+
+        @Override
+        public Socket createSocket(Socket socket, String host, int port, boolean autoClose)
+                throws IOException {
+            return timeHandshake(mDelegate.createSocket(socket, host, port, autoClose));
+        }
+
+        @Override
+        public Socket createSocket() throws IOException {
+            return timeHandshake(mDelegate.createSocket());
+        }
+
+        @Override
+        public Socket createSocket(String host, int port) throws IOException {
+            return timeHandshake(mDelegate.createSocket(host, port));
+        }
+
+        @Override
+        public Socket createSocket(String host, int port, InetAddress localHost, int localPort)
+                throws IOException {
+            return timeHandshake(mDelegate.createSocket(host, port, localHost, localPort));
+        }
+
+        @Override
+        public Socket createSocket(InetAddress host, int port) throws IOException {
+            return timeHandshake(mDelegate.createSocket(host, port));
+        }
+
+        @Override
+        public Socket createSocket(InetAddress address, int port, InetAddress localAddress,
+                                   int localPort) throws IOException {
+            return timeHandshake(mDelegate.createSocket(address, port, localAddress, localPort));
+        }
+
+        private static Socket timeHandshake(Socket socket) {
+            final AtomicLong handshakeNanos = sHandshakeNanos.get();
+            if (handshakeNanos != null && socket instanceof SSLSocket) {
+                final long start = System.nanoTime();
+                ((SSLSocket) socket).addHandshakeCompletedListener(
+                        new HandshakeCompletedListener() {
+                            @Override
+                            public void handshakeCompleted(HandshakeCompletedEvent event) {
+                                handshakeNanos.compareAndSet(0, System.nanoTime() - start);
+                            }
+                        });
+            }
+            return socket;
+        }
+    }
+}